@@ -0,0 +1,279 @@
+package mrmathami.cia.cpp;
+
+import mrmathami.annotations.Nonnull;
+import mrmathami.annotations.Nullable;
+import mrmathami.cia.cpp.builder.MappedProjectVersion;
+import mrmathami.cia.cpp.builder.ProjectVersion;
+import mrmathami.cia.cpp.differ.VersionDifference;
+import mrmathami.cia.cpp.differ.VersionDifferenceSummary;
+import mrmathami.utils.BlockCodec;
+import mrmathami.utils.BlockCompressedInputStream;
+import mrmathami.utils.BlockCompressedOutputStream;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Upgrade of saved projects, project versions, differences, project histories, mapped project versions and compact
+ * differences to the current version of their binary format. A file is upgraded when it is loaded with upgrading
+ * enabled, or by re-encoding a whole archive at once. Files in an older version of the binary format, or written by
+ * Java serialization, are read and written again in place. Block compressed files are compressed again with the LZ4
+ * codec. A compact difference is rewritten without its versions, keeping the content hashes it was written with.
+ * <p>
+ * Files written by Java serialization, including the ones of the versions before the binary formats, are decoded by
+ * {@link SerializationReader}, which does not depend on the layout of the current classes.
+ */
+public final class ArchiveMigrator {
+	public enum Status {
+		/** The file is in the current version of its format. */
+		CURRENT,
+		/** The file was written again in the current version of its format. */
+		UPGRADED,
+		/** The file is not in any of the formats. */
+		UNKNOWN
+	}
+
+	private ArchiveMigrator() {
+	}
+
+	//region Loader
+
+	/**
+	 * Load a project, a project version, a difference, a project history ({@link ProjectHistory}), a mapped project
+	 * version ({@link MappedProjectVersion}) or a compact difference ({@link VersionDifferenceSummary}) from a file,
+	 * in any of its formats. If the file is not in the current version of its format and upgrading is enabled, the
+	 * file is written again in the current version.
+	 *
+	 * @param path the file
+	 * @param type the class of the loaded object
+	 * @param upgrade upgrade the file if it is outdated
+	 * @param <E> the type of the loaded object
+	 * @return the loaded object
+	 * @throws IOException if the file is not of the type, or an I/O error occurs
+	 */
+	@Nonnull
+	public static <E> E load(@Nonnull Path path, @Nonnull Class<E> type, boolean upgrade) throws IOException {
+		final ForkJoinPool pool = ForkJoinPool.commonPool();
+		final Object object = read(path, pool);
+		if (!type.isInstance(object)) throw new IOException("Wrong input file format!");
+		if (!upgrade || isCurrent(path, pool)) return type.cast(object);
+		write(path, object);
+		// histories and mapped versions keep reading the file at the positions of the old content
+		return object instanceof ProjectHistory || object instanceof MappedProjectVersion
+				? type.cast(read(path, pool))
+				: type.cast(object);
+	}
+
+	/**
+	 * Upgrade a file if it is in one of the formats, but not in the current version of it.
+	 *
+	 * @param path the file
+	 * @return the status of the file
+	 * @throws IOException if the file is corrupted, or an I/O error occurs
+	 */
+	@Nonnull
+	public static Status migrate(@Nonnull Path path) throws IOException {
+		return migrate(path, ForkJoinPool.commonPool());
+	}
+
+	/**
+	 * Upgrade a file if it is in one of the formats, but not in the current version of it, decompressing and decoding
+	 * it on the pool.
+	 *
+	 * @param path the file
+	 * @param pool the pool
+	 * @return the status of the file
+	 * @throws IOException if the file is corrupted, or an I/O error occurs
+	 */
+	@Nonnull
+	public static Status migrate(@Nonnull Path path, @Nonnull ForkJoinPool pool) throws IOException {
+		if (isCurrent(path, pool)) return Status.CURRENT;
+		final Object object = read(path, pool);
+		if (object == null) return Status.UNKNOWN;
+		write(path, object);
+		return Status.UPGRADED;
+	}
+
+	/**
+	 * Upgrade every file of a directory and its subdirectories, many files at a time on the pool. The files which are
+	 * not in any of the formats are left untouched.
+	 *
+	 * @param directory the directory
+	 * @param pool the pool
+	 * @return the status of every file
+	 * @throws IOException if some files cannot be upgraded, after trying all the others
+	 */
+	@Nonnull
+	public static Map<Path, Status> migrateAll(@Nonnull Path directory, @Nonnull ForkJoinPool pool)
+			throws IOException {
+		final List<Path> paths;
+		try (final Stream<Path> stream = Files.walk(directory)) {
+			paths = stream.filter(Files::isRegularFile).sorted().collect(Collectors.toList());
+		}
+		final List<Callable<Status>> tasks = new ArrayList<>(paths.size());
+		for (final Path path : paths) tasks.add(() -> migrate(path, pool));
+
+		final Map<Path, Status> statuses = new TreeMap<>();
+		final List<Throwable> failures = new ArrayList<>();
+		final List<Future<Status>> results = pool.invokeAll(tasks);
+		for (int i = 0; i < paths.size(); i++) {
+			try {
+				statuses.put(paths.get(i), results.get(i).get());
+			} catch (ExecutionException e) {
+				failures.add(new IOException("Cannot upgrade " + paths.get(i) + "!", e.getCause()));
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IOException("Interrupted!", e);
+			}
+		}
+		if (!failures.isEmpty()) {
+			final IOException exception = new IOException("Cannot upgrade " + failures.size() + " files!");
+			for (final Throwable failure : failures) exception.addSuppressed(failure);
+			throw exception;
+		}
+		return statuses;
+	}
+
+	//endregion Loader
+
+	//region Formats
+
+	/**
+	 * @return the magic number and the format version of the content of the file, after decompression
+	 */
+	@Nonnull
+	private static int[] readHeader(@Nonnull Path path, @Nonnull ForkJoinPool pool) throws IOException {
+		try (final InputStream inputStream
+				= BlockCompressedInputStream.decompressIfNeeded(Files.newInputStream(path), pool)) {
+			final DataInputStream dataInputStream = new DataInputStream(inputStream);
+			return new int[]{dataInputStream.readInt(), dataInputStream.readInt()};
+		} catch (EOFException e) {
+			return new int[]{0, 0};
+		}
+	}
+
+	private static boolean isCurrent(@Nonnull Path path, @Nonnull ForkJoinPool pool) throws IOException {
+		final int[] header = readHeader(path, pool);
+		return header[0] == Project.FORMAT_MAGIC && header[1] == Project.FORMAT_VERSION
+				|| header[0] == ProjectVersion.FORMAT_MAGIC && header[1] == ProjectVersion.FORMAT_VERSION
+				|| header[0] == VersionDifference.FORMAT_MAGIC && header[1] == VersionDifference.FORMAT_VERSION
+				|| header[0] == ProjectHistory.FORMAT_MAGIC && header[1] == ProjectHistory.FORMAT_VERSION
+				|| header[0] == MappedProjectVersion.FORMAT_MAGIC && header[1] == MappedProjectVersion.FORMAT_VERSION
+				|| header[0] == VersionDifferenceSummary.FORMAT_MAGIC
+				&& header[1] == VersionDifferenceSummary.FORMAT_VERSION;
+	}
+
+	/**
+	 * @return the object in the file, or null if the file is not in any of the formats
+	 */
+	@Nullable
+	private static Object read(@Nonnull Path path, @Nonnull ForkJoinPool pool) throws IOException {
+		final int magic = readHeader(path, pool)[0];
+		if (magic == ProjectHistory.FORMAT_MAGIC) return ProjectHistory.open(path);
+		if (magic == MappedProjectVersion.FORMAT_MAGIC) {
+			return MappedProjectVersion.open(path, ProjectVersion.DEFAULT_BODY_CACHE_SIZE);
+		}
+		try (final InputStream inputStream = Files.newInputStream(path)) {
+			if (magic == Project.FORMAT_MAGIC) return Project.fromInputStream(inputStream, pool);
+			if (magic == ProjectVersion.FORMAT_MAGIC) return ProjectVersion.fromInputStream(inputStream, pool);
+			if (magic == VersionDifference.FORMAT_MAGIC) return VersionDifference.fromInputStream(inputStream, pool);
+			if (magic == VersionDifferenceSummary.FORMAT_MAGIC) {
+				return VersionDifferenceSummary.fromInputStream(inputStream);
+			}
+			if (!SerializationReader.isSerializationMagic(magic)) return null;
+			return SerializationReader.read(BlockCompressedInputStream.decompressIfNeeded(inputStream, pool));
+		}
+	}
+
+	/**
+	 * Write the object in the current version of its format to a temporary file, then move it in place of the file.
+	 */
+	private static void write(@Nonnull Path path, @Nonnull Object object) throws IOException {
+		final boolean compressed;
+		try (final DataInputStream inputStream = new DataInputStream(Files.newInputStream(path))) {
+			compressed = inputStream.readInt() == BlockCompressedOutputStream.FORMAT_MAGIC;
+		}
+		final Path directory = path.toAbsolutePath().getParent();
+		final Path temporaryPath = Files.createTempFile(directory, path.getFileName().toString(), ".tmp");
+		try {
+			try (final OutputStream fileOutputStream = Files.newOutputStream(temporaryPath);
+					final OutputStream outputStream = compressed
+							? new BlockCompressedOutputStream(fileOutputStream, BlockCodec.lz4())
+							: fileOutputStream) {
+				if (object instanceof Project) {
+					((Project) object).toOutputStream(outputStream);
+				} else if (object instanceof ProjectVersion) {
+					((ProjectVersion) object).toOutputStream(outputStream);
+				} else if (object instanceof VersionDifference) {
+					((VersionDifference) object).toOutputStream(outputStream);
+				} else if (object instanceof ProjectHistory) {
+					final ProjectHistory history = (ProjectHistory) object;
+					ProjectHistory.write(toProject(history), outputStream, history.getCheckpointInterval());
+				} else if (object instanceof MappedProjectVersion) {
+					((MappedProjectVersion) object).getProjectVersion().toMappedOutputStream(outputStream);
+				} else {
+					((VersionDifferenceSummary) object).toOutputStream(outputStream);
+				}
+			}
+			try {
+				Files.move(temporaryPath, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			} catch (AtomicMoveNotSupportedException e) {
+				Files.move(temporaryPath, path, StandardCopyOption.REPLACE_EXISTING);
+			}
+		} finally {
+			Files.deleteIfExists(temporaryPath);
+		}
+	}
+
+	@Nonnull
+	private static Project toProject(@Nonnull ProjectHistory history) throws IOException {
+		try {
+			return history.toProject();
+		} catch (CppException e) {
+			throw new IOException("Cannot compare the versions of the history!", e);
+		}
+	}
+
+	//endregion Formats
+
+	/**
+	 * Upgrade every file of an archive directory.
+	 *
+	 * @param args the directory, then optionally the number of threads
+	 * @throws IOException if some files cannot be upgraded
+	 */
+	public static void main(@Nonnull String[] args) throws IOException {
+		if (args.length < 1 || args.length > 2) {
+			System.err.println("Usage: ArchiveMigrator <directory> [threads]");
+			System.exit(1);
+		}
+		final int threads = args.length > 1 ? Integer.parseInt(args[1]) : Runtime.getRuntime().availableProcessors();
+		final ForkJoinPool pool = new ForkJoinPool(threads);
+		try {
+			final Map<Path, Status> statuses = migrateAll(Path.of(args[0]), pool);
+			for (final Status status : Status.values()) {
+				final long count = statuses.values().stream().filter(status::equals).count();
+				System.out.println(status + ": " + count);
+			}
+		} finally {
+			pool.shutdown();
+		}
+	}
+}
@@ -0,0 +1,332 @@
+package mrmathami.cia.cpp;
+
+import mrmathami.annotations.Nonnull;
+import mrmathami.annotations.Nullable;
+import mrmathami.cia.cpp.ast.CppNode;
+import mrmathami.cia.cpp.ast.DependencyMap;
+import mrmathami.cia.cpp.ast.DependencyType;
+import mrmathami.cia.cpp.ast.RootNode;
+import mrmathami.cia.cpp.builder.ProjectVersion;
+import mrmathami.cia.cpp.differ.VersionDifference;
+import mrmathami.utils.Pair;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Streaming export of the dependency graph of a project version into a node table and an edge table, for other tools
+ * to analyze. The rows are written while the tree is walked, so the memory used does not grow with the output.
+ * <p>
+ * The node table has the id, the parent id (-1 for the root node), the class, the name, the unique name, the
+ * signature and the weight of each node, and if a difference is given, its change status and impact weight. The edge
+ * table has a row for each depending node and depended node pair, with the count of each dependency type and the link
+ * weight computed from the dependency type weights of the version.
+ */
+public final class GraphExporter {
+	public static final String NODE_TABLE = "nodes";
+	public static final String EDGE_TABLE = "edges";
+
+	private GraphExporter() {
+	}
+
+	/**
+	 * Export the graph as two CSV tables with a header row.
+	 *
+	 * @param version the version
+	 * @param difference a difference whose version B is the version, or null
+	 * @param nodeWriter writer of the node table
+	 * @param edgeWriter writer of the edge table
+	 * @throws IOException if an I/O error occurs
+	 */
+	public static void exportCsv(@Nonnull ProjectVersion version, @Nullable VersionDifference difference,
+			@Nonnull Writer nodeWriter, @Nonnull Writer edgeWriter) throws IOException {
+		try (final TableWriter nodeTable = new CsvTableWriter(nodeWriter);
+				final TableWriter edgeTable = new CsvTableWriter(edgeWriter)) {
+			export(version, difference, nodeTable, edgeTable);
+		}
+	}
+
+	/**
+	 * Export the graph as column files in a directory. Each column of a table is a file named after the table and the
+	 * column, with the values in big-endian: "i32" and "f64" columns are fixed-width, a "utf8" column is a file of the
+	 * end offsets as "i64" followed by the ".utf8" file of the content. A table has a ".columns" file listing the
+	 * name and the type of its columns, then its row count.
+	 *
+	 * @param version the version
+	 * @param difference a difference whose version B is the version, or null
+	 * @param directory the output directory
+	 * @throws IOException if an I/O error occurs
+	 */
+	public static void exportColumns(@Nonnull ProjectVersion version, @Nullable VersionDifference difference,
+			@Nonnull Path directory) throws IOException {
+		Files.createDirectories(directory);
+		try (final TableWriter nodeTable = new ColumnTableWriter(directory, NODE_TABLE);
+				final TableWriter edgeTable = new ColumnTableWriter(directory, EDGE_TABLE)) {
+			export(version, difference, nodeTable, edgeTable);
+		}
+	}
+
+	private static void export(@Nonnull ProjectVersion version, @Nullable VersionDifference difference,
+			@Nonnull TableWriter nodeTable, @Nonnull TableWriter edgeTable) throws IOException {
+		if (difference != null && difference.getVersionB() != version) {
+			throw new IllegalArgumentException("Version is not the version B of the difference!");
+		}
+		final RootNode rootNode = version.getRootNode();
+		final Map<CppNode, Double> weights = version.getWeightMap();
+		final Map<CppNode, Double> impactWeights = difference != null ? difference.getImpactWeightMap() : null;
+		final Map<CppNode, String> statuses = difference != null ? getStatuses(difference) : null;
+
+		final List<String> nodeColumns = new ArrayList<>(List.of("id", "parent", "class", "name", "uniqueName",
+				"signature", "weight"));
+		final List<ColumnType> nodeTypes = new ArrayList<>(List.of(ColumnType.I32, ColumnType.I32, ColumnType.UTF8,
+				ColumnType.UTF8, ColumnType.UTF8, ColumnType.UTF8, ColumnType.F64));
+		if (difference != null) {
+			nodeColumns.addAll(List.of("status", "impactWeight"));
+			nodeTypes.addAll(List.of(ColumnType.UTF8, ColumnType.F64));
+		}
+		nodeTable.writeHeader(nodeColumns, nodeTypes);
+
+		final List<String> edgeColumns = new ArrayList<>(List.of("from", "to"));
+		final List<ColumnType> edgeTypes = new ArrayList<>(List.of(ColumnType.I32, ColumnType.I32));
+		for (final DependencyType type : DependencyType.values) {
+			edgeColumns.add(type.name().toLowerCase(Locale.ROOT));
+			edgeTypes.add(ColumnType.I32);
+		}
+		edgeColumns.add("weight");
+		edgeTypes.add(ColumnType.F64);
+		edgeTable.writeHeader(edgeColumns, edgeTypes);
+
+		final Map<DependencyType, Double> typeWeights = version.getDependencyTypeWeightMap();
+		final List<CppNode> dependencies = new ArrayList<>();
+		exportNode(rootNode, weights, impactWeights, statuses, nodeTable);
+		exportEdges(rootNode, typeWeights, dependencies, edgeTable);
+		for (final CppNode node : rootNode) {
+			exportNode(node, weights, impactWeights, statuses, nodeTable);
+			exportEdges(node, typeWeights, dependencies, edgeTable);
+		}
+	}
+
+	@Nonnull
+	private static Map<CppNode, String> getStatuses(@Nonnull VersionDifference difference) {
+		final Map<CppNode, String> statuses = new IdentityHashMap<>();
+		for (final CppNode node : difference.getAddedNodes()) statuses.put(node, "ADDED");
+		for (final Pair<CppNode, CppNode> pair : difference.getChangedNodes()) statuses.put(pair.getB(), "CHANGED");
+		for (final Pair<CppNode, CppNode> pair : difference.getUnchangedNodes()) {
+			statuses.put(pair.getB(), "UNCHANGED");
+		}
+		return statuses;
+	}
+
+	private static void exportNode(@Nonnull CppNode node, @Nonnull Map<CppNode, Double> weights,
+			@Nullable Map<CppNode, Double> impactWeights, @Nullable Map<CppNode, String> statuses,
+			@Nonnull TableWriter nodeTable) throws IOException {
+		final CppNode parent = node.getParent();
+		nodeTable.writeInt(node.getId());
+		nodeTable.writeInt(parent != null ? parent.getId() : -1);
+		nodeTable.writeString(node.getClass().getSimpleName());
+		nodeTable.writeString(node.getName());
+		nodeTable.writeString(node.getUniqueName());
+		nodeTable.writeString(node.getSignature());
+		nodeTable.writeDouble(weights.getOrDefault(node, 0.0));
+		if (impactWeights != null && statuses != null) {
+			nodeTable.writeString(statuses.getOrDefault(node, ""));
+			nodeTable.writeDouble(impactWeights.getOrDefault(node, 0.0));
+		}
+		nodeTable.endRow();
+	}
+
+	private static void exportEdges(@Nonnull CppNode node, @Nonnull Map<DependencyType, Double> typeWeights,
+			@Nonnull List<CppNode> dependencies, @Nonnull TableWriter edgeTable) throws IOException {
+		// sorted by id, so that the output does not depend on the identity hashes
+		dependencies.clear();
+		dependencies.addAll(node.getAllDependencyTo());
+		dependencies.sort((nodeA, nodeB) -> Integer.compare(nodeA.getId(), nodeB.getId()));
+		for (final CppNode dependency : dependencies) {
+			final DependencyMap dependencyMap = node.getNodeDependencyTo(dependency);
+			double linkWeight = 1.0;
+			edgeTable.writeInt(node.getId());
+			edgeTable.writeInt(dependency.getId());
+			for (final DependencyType type : DependencyType.values) {
+				final int count = dependencyMap.getCount(type);
+				edgeTable.writeInt(count);
+				linkWeight *= Math.pow(1.0 - typeWeights.get(type), count);
+			}
+			edgeTable.writeDouble(1.0 - linkWeight);
+			edgeTable.endRow();
+		}
+	}
+
+	private enum ColumnType {
+		I32, F64, UTF8;
+
+		@Nonnull
+		String getName() {
+			return name().toLowerCase(Locale.ROOT);
+		}
+	}
+
+	private interface TableWriter extends Closeable {
+		void writeHeader(@Nonnull List<String> names, @Nonnull List<ColumnType> types) throws IOException;
+
+		void writeInt(int value) throws IOException;
+
+		void writeDouble(double value) throws IOException;
+
+		void writeString(@Nonnull String value) throws IOException;
+
+		void endRow() throws IOException;
+	}
+
+	private static final class CsvTableWriter implements TableWriter {
+		@Nonnull private final Writer writer;
+		private boolean rowStarted;
+
+		CsvTableWriter(@Nonnull Writer writer) {
+			this.writer = writer instanceof BufferedWriter ? writer : new BufferedWriter(writer);
+		}
+
+		private void separate() throws IOException {
+			if (rowStarted) writer.write(',');
+			this.rowStarted = true;
+		}
+
+		@Override
+		public void writeHeader(@Nonnull List<String> names, @Nonnull List<ColumnType> types) throws IOException {
+			for (final String name : names) writeString(name);
+			endRow();
+		}
+
+		@Override
+		public void writeInt(int value) throws IOException {
+			separate();
+			writer.write(Integer.toString(value));
+		}
+
+		@Override
+		public void writeDouble(double value) throws IOException {
+			separate();
+			writer.write(Double.toString(value));
+		}
+
+		@Override
+		public void writeString(@Nonnull String value) throws IOException {
+			separate();
+			writer.write('"');
+			writer.write(value.replace("\"", "\"\""));
+			writer.write('"');
+		}
+
+		@Override
+		public void endRow() throws IOException {
+			writer.write('\n');
+			this.rowStarted = false;
+		}
+
+		@Override
+		public void close() throws IOException {
+			writer.flush();
+		}
+	}
+
+	private static final class ColumnTableWriter implements TableWriter {
+		@Nonnull private final Path directory;
+		@Nonnull private final String table;
+		@Nonnull private final List<DataOutputStream> outputs = new ArrayList<>();
+		@Nonnull private List<String> names = List.of();
+		@Nonnull private List<ColumnType> types = List.of();
+		@Nonnull private DataOutputStream[] columnOutputs = new DataOutputStream[0]; // offsets of string columns
+		@Nonnull private DataOutputStream[] contentOutputs = new DataOutputStream[0]; // only for string columns
+		@Nonnull private long[] contentLengths = new long[0];
+		private int column;
+		private long rowCount;
+
+		ColumnTableWriter(@Nonnull Path directory, @Nonnull String table) {
+			this.directory = directory;
+			this.table = table;
+		}
+
+		@Nonnull
+		private DataOutputStream open(@Nonnull String column, @Nonnull String type) throws IOException {
+			final DataOutputStream output = new DataOutputStream(new BufferedOutputStream(
+					Files.newOutputStream(directory.resolve(table + "." + column + "." + type))));
+			outputs.add(output);
+			return output;
+		}
+
+		@Override
+		public void writeHeader(@Nonnull List<String> names, @Nonnull List<ColumnType> types) throws IOException {
+			this.names = List.copyOf(names);
+			this.types = List.copyOf(types);
+			this.columnOutputs = new DataOutputStream[names.size()];
+			this.contentOutputs = new DataOutputStream[names.size()];
+			this.contentLengths = new long[names.size()];
+			for (int i = 0; i < names.size(); i++) {
+				if (types.get(i) == ColumnType.UTF8) {
+					columnOutputs[i] = open(names.get(i), "i64");
+					contentOutputs[i] = open(names.get(i), ColumnType.UTF8.getName());
+				} else {
+					columnOutputs[i] = open(names.get(i), types.get(i).getName());
+				}
+			}
+		}
+
+		private int nextColumn(@Nonnull ColumnType type) throws IOException {
+			if (column >= types.size() || types.get(column) != type) throw new IOException("Wrong column type!");
+			return column++;
+		}
+
+		@Override
+		public void writeInt(int value) throws IOException {
+			columnOutputs[nextColumn(ColumnType.I32)].writeInt(value);
+		}
+
+		@Override
+		public void writeDouble(double value) throws IOException {
+			columnOutputs[nextColumn(ColumnType.F64)].writeDouble(value);
+		}
+
+		@Override
+		public void writeString(@Nonnull String value) throws IOException {
+			final int index = nextColumn(ColumnType.UTF8);
+			final byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+			contentOutputs[index].write(bytes);
+			columnOutputs[index].writeLong(contentLengths[index] += bytes.length);
+		}
+
+		@Override
+		public void endRow() throws IOException {
+			if (column != types.size()) throw new IOException("Wrong column count!");
+			this.column = 0;
+			this.rowCount += 1;
+		}
+
+		@Override
+		public void close() throws IOException {
+			IOException exception = null;
+			for (final DataOutputStream output : outputs) {
+				try {
+					output.close();
+				} catch (IOException e) {
+					if (exception == null) exception = e; else exception.addSuppressed(e);
+				}
+			}
+			if (exception != null) throw exception;
+			final List<String> lines = new ArrayList<>(names.size() + 1);
+			for (int i = 0; i < names.size(); i++) lines.add(names.get(i) + " " + types.get(i).getName());
+			lines.add("rows " + rowCount);
+			Files.write(directory.resolve(table + ".columns"), lines, StandardCharsets.UTF_8);
+		}
+	}
+}
@@ -3,18 +3,37 @@ package mrmathami.cia.cpp;
 import mrmathami.annotations.Nonnull;
 import mrmathami.cia.cpp.builder.ProjectVersion;
 import mrmathami.cia.cpp.differ.VersionDifference;
+import mrmathami.utils.BlockCompressedInputStream;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
 import java.io.OutputStream;
 import java.io.Serializable;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
 
+/**
+ * A project, its versions and the differences between them. The binary format does not depend on the layout of the
+ * classes: it is a header, the project name, each version in its own binary format, then each difference as the
+ * indexes of its versions and its compact form. Files written by Java serialization are still read, using
+ * {@link SerializationReader}.
+ */
 public final class Project implements Serializable {
 	private static final long serialVersionUID = -1L;
 
+	public static final int FORMAT_MAGIC = 0x43494150; // "CIAP"
+	public static final int FORMAT_VERSION = 1;
+
 	@Nonnull private final String projectName;
 	@Nonnull private final List<ProjectVersion> versionList;
 	@Nonnull private final List<VersionDifference> differenceList;
@@ -26,20 +45,117 @@ public final class Project implements Serializable {
 		this.differenceList = List.copyOf(differenceList);
 	}
 
+	/**
+	 * Read a project, in any format version of the binary format or in the Java serialization format. Either of them
+	 * may be block compressed.
+	 *
+	 * @param inputStream input stream
+	 * @return the project
+	 * @throws IOException if the input is not a project
+	 */
 	@Nonnull
 	public static Project fromInputStream(@Nonnull InputStream inputStream) throws IOException {
-		final ObjectInputStream objectInputStream = new ObjectInputStream(inputStream);
-		try {
-			return (Project) objectInputStream.readObject();
-		} catch (ClassNotFoundException | ClassCastException e) {
-			throw new IOException("Wrong input file format!", e);
+		return fromInputStream(inputStream, ForkJoinPool.commonPool());
+	}
+
+	/**
+	 * Read a project like {@link #fromInputStream(InputStream)}, decompressing the input and decoding the versions on
+	 * the pool.
+	 *
+	 * @param inputStream input stream
+	 * @param pool the pool to decompress the input and decode the versions on
+	 * @return the project
+	 * @throws IOException if the input is not a project
+	 */
+	@Nonnull
+	public static Project fromInputStream(@Nonnull InputStream inputStream, @Nonnull ForkJoinPool pool)
+			throws IOException {
+		final BufferedInputStream bufferedInputStream
+				= new BufferedInputStream(BlockCompressedInputStream.decompressIfNeeded(inputStream, pool));
+		bufferedInputStream.mark(Integer.BYTES);
+		final DataInputStream dataInputStream = new DataInputStream(bufferedInputStream);
+		if (dataInputStream.readInt() == FORMAT_MAGIC) {
+			final int formatVersion = dataInputStream.readInt();
+			if (formatVersion == 1) return readVersion1(dataInputStream, pool);
+			throw new IOException("Unsupported file format version!");
+		}
+		bufferedInputStream.reset();
+
+		return SerializationReader.read(bufferedInputStream, Project.class);
+	}
+
+	@Nonnull
+	private static Project readVersion1(@Nonnull DataInput input, @Nonnull ForkJoinPool pool) throws IOException {
+		final String projectName = input.readUTF();
+		final int versionCount = input.readInt();
+		if (versionCount < 0) throw new IOException("Wrong input file format!");
+		final ProjectVersion[] versions = new ProjectVersion[versionCount];
+		for (int i = 0; i < versionCount; i++) {
+			versions[i] = ProjectVersion.fromInputStream(new ByteArrayInputStream(readSegment(input)), pool);
 		}
+		final int differenceCount = input.readInt();
+		if (differenceCount < 0) throw new IOException("Wrong input file format!");
+		final VersionDifference[] differences = new VersionDifference[differenceCount];
+		for (int i = 0; i < differenceCount; i++) {
+			final int versionA = input.readInt();
+			final int versionB = input.readInt();
+			if (versionA < 0 || versionA >= versionCount || versionB < 0 || versionB >= versionCount) {
+				throw new IOException("Wrong input file format!");
+			}
+			differences[i] = VersionDifference.fromCompactInputStream(new ByteArrayInputStream(readSegment(input)),
+					versions[versionA], versions[versionB]);
+		}
+		return new Project(projectName, List.of(versions), List.of(differences));
 	}
 
+	/**
+	 * Write this project in the current version of the binary format.
+	 *
+	 * @param outputStream output stream
+	 * @throws IOException if a difference is between versions not in the project, or an I/O error occurs
+	 */
 	public void toOutputStream(@Nonnull OutputStream outputStream) throws IOException {
-		final ObjectOutputStream objectOutputStream = new ObjectOutputStream(outputStream);
-		objectOutputStream.writeObject(this);
-		objectOutputStream.flush();
+		final Map<ProjectVersion, Integer> versionIndexes = new IdentityHashMap<>();
+		for (int i = 0; i < versionList.size(); i++) versionIndexes.put(versionList.get(i), i);
+
+		final DataOutputStream output = new DataOutputStream(new BufferedOutputStream(outputStream));
+		output.writeInt(FORMAT_MAGIC);
+		output.writeInt(FORMAT_VERSION);
+		output.writeUTF(projectName);
+		final ByteArrayOutputStream segment = new ByteArrayOutputStream();
+		output.writeInt(versionList.size());
+		for (final ProjectVersion version : versionList) {
+			segment.reset();
+			version.toOutputStream(segment);
+			writeSegment(output, segment);
+		}
+		output.writeInt(differenceList.size());
+		for (final VersionDifference difference : differenceList) {
+			final Integer versionA = versionIndexes.get(difference.getVersionA());
+			final Integer versionB = versionIndexes.get(difference.getVersionB());
+			if (versionA == null || versionB == null) throw new IOException("Difference of versions not in the project!");
+			output.writeInt(versionA);
+			output.writeInt(versionB);
+			segment.reset();
+			difference.toCompactOutputStream(segment);
+			writeSegment(output, segment);
+		}
+		output.flush();
+	}
+
+	private static void writeSegment(@Nonnull DataOutput output, @Nonnull ByteArrayOutputStream segment)
+			throws IOException {
+		output.writeInt(segment.size());
+		output.write(segment.toByteArray());
+	}
+
+	@Nonnull
+	private static byte[] readSegment(@Nonnull DataInput input) throws IOException {
+		final int length = input.readInt();
+		if (length < 0) throw new IOException("Wrong input file format!");
+		final byte[] segment = new byte[length];
+		input.readFully(segment);
+		return segment;
 	}
 
 	@Nonnull
@@ -0,0 +1,446 @@
+package mrmathami.cia.cpp;
+
+import mrmathami.annotations.Nonnull;
+import mrmathami.annotations.Nullable;
+import mrmathami.cia.cpp.ast.CppNode;
+import mrmathami.cia.cpp.ast.DependencyType;
+import mrmathami.cia.cpp.ast.KeyedTree;
+import mrmathami.cia.cpp.ast.RootNode;
+import mrmathami.cia.cpp.builder.ProjectVersion;
+import mrmathami.cia.cpp.differ.CancellationToken;
+import mrmathami.cia.cpp.differ.ImpactAlgorithm;
+import mrmathami.cia.cpp.differ.VersionDiffer;
+import mrmathami.cia.cpp.differ.VersionDifference;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * History of a project stored as deltas. Every checkpoint interval versions, a version is stored as a whole, the
+ * versions in between are stored as the changed nodes from their previous version, keyed by the stable identity of
+ * the nodes (see {@link KeyedTree}). Any version can be read from its nearest checkpoint without reading the others.
+ * The differences are stored in their compact form (see {@link VersionDifference#toCompactOutputStream}), so reading
+ * one only reads its two versions. The files of the format versions before 4 only store the parameters of the
+ * differences, which are compared again on the common pool when read.
+ * <p>
+ * The file is a header, one segment per version, one segment per difference, then a footer with the project name, the
+ * offset of each version segment, the node keys, the versions and the offset of the segment of each difference, and
+ * finally the offset of the footer.
+ */
+public final class ProjectHistory {
+	public static final int DEFAULT_CHECKPOINT_INTERVAL = 16;
+
+	public static final int FORMAT_MAGIC = 0x43494148; // "CIAH"
+	public static final int FORMAT_VERSION = 4;
+
+	@Nonnull private final Path path;
+	@Nonnull private final String projectName;
+	private final int checkpointInterval;
+	@Nonnull private final long[] versionPositions;
+	@Nonnull private final KeyedTree.Keys keys;
+	@Nonnull private final int[] differenceVersions; // version A and version B of each difference
+	@Nullable private final long[] differencePositions; // null before format version 4
+	// the parameters of the differences, only before format version 4
+	@Nonnull private final double[][] differenceTypeWeights;
+	@Nonnull private final int[] differenceMaxDepths;
+	@Nonnull private final ImpactAlgorithm[] differenceAlgorithms; // null if the impact was not calculated
+	@Nonnull private final double[] differenceEpsilons;
+
+	private ProjectHistory(@Nonnull Path path, @Nonnull String projectName, int checkpointInterval,
+			@Nonnull long[] versionPositions, @Nonnull KeyedTree.Keys keys, @Nonnull int[] differenceVersions,
+			@Nullable long[] differencePositions, @Nonnull double[][] differenceTypeWeights,
+			@Nonnull int[] differenceMaxDepths, @Nonnull ImpactAlgorithm[] differenceAlgorithms,
+			@Nonnull double[] differenceEpsilons) {
+		this.path = path;
+		this.projectName = projectName;
+		this.checkpointInterval = checkpointInterval;
+		this.versionPositions = versionPositions;
+		this.keys = keys;
+		this.differenceVersions = differenceVersions;
+		this.differencePositions = differencePositions;
+		this.differenceTypeWeights = differenceTypeWeights;
+		this.differenceMaxDepths = differenceMaxDepths;
+		this.differenceAlgorithms = differenceAlgorithms;
+		this.differenceEpsilons = differenceEpsilons;
+	}
+
+	//region Writer
+
+	/**
+	 * Write the history of a project.
+	 *
+	 * @param project the project
+	 * @param outputStream output stream
+	 * @param checkpointInterval number of versions between two versions stored as a whole
+	 * @throws IOException if a difference is between versions not in the project, or an I/O error occurs
+	 */
+	public static void write(@Nonnull Project project, @Nonnull OutputStream outputStream, int checkpointInterval)
+			throws IOException {
+		if (checkpointInterval <= 0) throw new IllegalArgumentException("Checkpoint interval must be positive!");
+		final List<ProjectVersion> versions = project.getVersionList();
+		final Map<ProjectVersion, Integer> versionIndexes = new IdentityHashMap<>();
+		for (int i = 0; i < versions.size(); i++) versionIndexes.put(versions.get(i), i);
+
+		final CountingOutputStream countingOutputStream
+				= new CountingOutputStream(new BufferedOutputStream(outputStream));
+		final DataOutputStream output = new DataOutputStream(countingOutputStream);
+		output.writeInt(FORMAT_MAGIC);
+		output.writeInt(FORMAT_VERSION);
+
+		final KeyedTree.Keys keys = new KeyedTree.Keys();
+		final long[] versionPositions = new long[versions.size()];
+		KeyedTree previousTree = null;
+		for (int i = 0; i < versions.size(); i++) {
+			final ProjectVersion version = versions.get(i);
+			versionPositions[i] = countingOutputStream.getCount();
+			output.writeUTF(version.getVersionName());
+			writeStrings(output, version.getProjectFiles());
+			writeStrings(output, version.getIncludePaths());
+			final Map<DependencyType, Double> typeWeights = version.getDependencyTypeWeightMap();
+			for (final DependencyType type : DependencyType.values) output.writeDouble(typeWeights.get(type));
+			output.writeInt(getMaxId(version.getRootNode()) + 1);
+
+			final KeyedTree tree = KeyedTree.of(version.getRootNode(), version.getWeightMap(), keys);
+			if (previousTree == null || i % checkpointInterval == 0) {
+				tree.write(output);
+			} else {
+				tree.writeDelta(previousTree, output);
+			}
+			previousTree = tree;
+		}
+
+		final List<VersionDifference> differences = project.getDifferenceList();
+		final int[] differenceVersions = new int[differences.size() * 2];
+		final long[] differencePositions = new long[differences.size()];
+		for (int i = 0; i < differences.size(); i++) {
+			final VersionDifference difference = differences.get(i);
+			final Integer versionA = versionIndexes.get(difference.getVersionA());
+			final Integer versionB = versionIndexes.get(difference.getVersionB());
+			if (versionA == null || versionB == null) {
+				throw new IOException("Difference of versions not in the project!");
+			}
+			differenceVersions[i * 2] = versionA;
+			differenceVersions[i * 2 + 1] = versionB;
+			differencePositions[i] = countingOutputStream.getCount();
+			difference.toCompactOutputStream(countingOutputStream);
+		}
+
+		final long footerPosition = countingOutputStream.getCount();
+		output.writeUTF(project.getProjectName());
+		output.writeInt(checkpointInterval);
+		output.writeInt(versions.size());
+		for (final long versionPosition : versionPositions) output.writeLong(versionPosition);
+		keys.write(output);
+		output.writeInt(differences.size());
+		for (int i = 0; i < differences.size(); i++) {
+			output.writeInt(differenceVersions[i * 2]);
+			output.writeInt(differenceVersions[i * 2 + 1]);
+			output.writeLong(differencePositions[i]);
+		}
+		output.writeLong(footerPosition);
+		output.flush();
+	}
+
+	private static int getMaxId(@Nonnull RootNode rootNode) {
+		int maxId = Math.max(rootNode.getId(), rootNode.getNodeCount() - 1);
+		for (final CppNode node : rootNode) maxId = Math.max(maxId, node.getId());
+		return maxId;
+	}
+
+	private static void writeStrings(@Nonnull DataOutput output, @Nonnull List<String> strings) throws IOException {
+		output.writeInt(strings.size());
+		for (final String string : strings) output.writeUTF(string);
+	}
+
+	//endregion Writer
+
+	//region Reader
+
+	/**
+	 * Open a project history file. Only the footer is read, the versions are read when they are requested.
+	 *
+	 * @param path the file
+	 * @return the project history
+	 * @throws IOException if the file is not a project history
+	 */
+	@Nonnull
+	public static ProjectHistory open(@Nonnull Path path) throws IOException {
+		try (final FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+			final ByteBuffer header = ByteBuffer.allocate(Integer.BYTES * 2);
+			readFully(channel, header, 0);
+			if (header.getInt(0) != FORMAT_MAGIC) throw new IOException("Wrong input file format!");
+			final int formatVersion = header.getInt(Integer.BYTES);
+			if (formatVersion < 1 || formatVersion > 4) throw new IOException("Unsupported file format version!");
+
+			final ByteBuffer trailer = ByteBuffer.allocate(Long.BYTES);
+			readFully(channel, trailer, channel.size() - Long.BYTES);
+			final long footerPosition = trailer.getLong(0);
+			if (footerPosition < header.capacity() || footerPosition > channel.size() - Long.BYTES) {
+				throw new IOException("Wrong input file format!");
+			}
+
+			final DataInputStream input = new DataInputStream(new BufferedInputStream(
+					Channels.newInputStream(channel.position(footerPosition))));
+			final String projectName = input.readUTF();
+			final int checkpointInterval = input.readInt();
+			final int versionCount = input.readInt();
+			if (checkpointInterval <= 0 || versionCount < 0) throw new IOException("Wrong input file format!");
+			final long[] versionPositions = new long[versionCount];
+			for (int i = 0; i < versionCount; i++) versionPositions[i] = input.readLong();
+			final KeyedTree.Keys keys = KeyedTree.Keys.read(input);
+
+			final int differenceCount = input.readInt();
+			if (differenceCount < 0) throw new IOException("Wrong input file format!");
+			final int[] differenceVersions = new int[differenceCount * 2];
+			final long[] differencePositions = formatVersion >= 4 ? new long[differenceCount] : null;
+			final double[][] differenceTypeWeights = new double[differenceCount][];
+			final int[] differenceMaxDepths = new int[differenceCount];
+			final ImpactAlgorithm[] differenceAlgorithms = new ImpactAlgorithm[differenceCount];
+			final double[] differenceEpsilons = new double[differenceCount];
+			for (int i = 0; i < differenceCount; i++) {
+				differenceVersions[i * 2] = checkIndex(input.readInt(), versionCount);
+				differenceVersions[i * 2 + 1] = checkIndex(input.readInt(), versionCount);
+				if (differencePositions != null) {
+					final long differencePosition = input.readLong();
+					if (differencePosition < header.capacity() || differencePosition >= footerPosition) {
+						throw new IOException("Wrong input file format!");
+					}
+					differencePositions[i] = differencePosition;
+					continue;
+				}
+				differenceTypeWeights[i] = readTypeWeights(input);
+				final int maxDepth = input.readInt();
+				if (maxDepth < VersionDifference.NO_IMPACT_DEPTH) throw new IOException("Wrong input file format!");
+				differenceMaxDepths[i] = maxDepth;
+				differenceAlgorithms[i] = formatVersion >= 2
+						? readImpactAlgorithm(input, maxDepth)
+						: maxDepth >= 0 ? ImpactAlgorithm.PATHS : null; // version 1 only had the paths
+				if (formatVersion >= 3) {
+					final double epsilon = input.readDouble();
+					if (!(epsilon >= 0.0) || maxDepth < 0 && epsilon != 0.0) {
+						throw new IOException("Wrong input file format!");
+					}
+					differenceEpsilons[i] = epsilon;
+				}
+			}
+			return new ProjectHistory(path, projectName, checkpointInterval, versionPositions, keys,
+					differenceVersions, differencePositions, differenceTypeWeights, differenceMaxDepths,
+					differenceAlgorithms, differenceEpsilons);
+		}
+	}
+
+	@Nullable
+	private static ImpactAlgorithm readImpactAlgorithm(@Nonnull DataInput input, int maxDepth) throws IOException {
+		final int ordinal = input.readByte();
+		if (ordinal < -1 || ordinal >= ImpactAlgorithm.values.size() || (ordinal >= 0) != (maxDepth >= 0)) {
+			throw new IOException("Wrong input file format!");
+		}
+		return ordinal >= 0 ? ImpactAlgorithm.values.get(ordinal) : null;
+	}
+
+	private static void readFully(@Nonnull FileChannel channel, @Nonnull ByteBuffer buffer, long position)
+			throws IOException {
+		while (buffer.hasRemaining()) {
+			if (channel.read(buffer, position + buffer.position()) < 0) throw new EOFException("Unexpected end of file!");
+		}
+	}
+
+	private static int checkIndex(int index, int size) throws IOException {
+		if (index < 0 || index >= size) throw new IOException("Wrong input file format!");
+		return index;
+	}
+
+	@Nonnull
+	private static List<String> readStrings(@Nonnull DataInput input) throws IOException {
+		final int size = input.readInt();
+		if (size < 0) throw new IOException("Wrong input file format!");
+		final String[] strings = new String[size];
+		for (int i = 0; i < size; i++) strings[i] = input.readUTF();
+		return List.of(strings);
+	}
+
+	@Nonnull
+	private static double[] readTypeWeights(@Nonnull DataInput input) throws IOException {
+		final double[] typeWeights = new double[DependencyType.values.size()];
+		for (int i = 0; i < typeWeights.length; i++) typeWeights[i] = input.readDouble();
+		return typeWeights;
+	}
+
+	@Nonnull
+	public String getProjectName() {
+		return projectName;
+	}
+
+	/**
+	 * @return number of versions between two versions stored as a whole
+	 */
+	public int getCheckpointInterval() {
+		return checkpointInterval;
+	}
+
+	public int getVersionCount() {
+		return versionPositions.length;
+	}
+
+	public int getDifferenceCount() {
+		return differenceVersions.length / 2;
+	}
+
+	/**
+	 * Read a version, starting from its nearest checkpoint.
+	 *
+	 * @param index index of the version
+	 * @return the version
+	 * @throws IOException if the file is not a valid project history
+	 */
+	@Nonnull
+	public ProjectVersion getVersion(int index) throws IOException {
+		if (index < 0 || index >= versionPositions.length) throw new IndexOutOfBoundsException("Invalid version index!");
+		final List<ProjectVersion> versions = readVersions(index - index % checkpointInterval, index + 1, false);
+		return versions.get(versions.size() - 1);
+	}
+
+	/**
+	 * Read a difference. Both of its versions are read, then its compact form, or, in a file of a format version before
+	 * 4, the versions are compared again.
+	 *
+	 * @param index index of the difference
+	 * @return the difference
+	 * @throws IOException if the file is not a valid project history
+	 * @throws CppException if the versions cannot be compared
+	 */
+	@Nonnull
+	public VersionDifference getDifference(int index) throws IOException, CppException {
+		if (index < 0 || index >= getDifferenceCount()) {
+			throw new IndexOutOfBoundsException("Invalid difference index!");
+		}
+		return readDifference(index, getVersion(differenceVersions[index * 2]),
+				getVersion(differenceVersions[index * 2 + 1]));
+	}
+
+	/**
+	 * Read the whole project. The versions are read one after another, each from the previous one.
+	 *
+	 * @return the project
+	 * @throws IOException if the file is not a valid project history
+	 * @throws CppException if the versions of a difference cannot be compared
+	 */
+	@Nonnull
+	public Project toProject() throws IOException, CppException {
+		final List<ProjectVersion> versions = readVersions(0, versionPositions.length, true);
+		final List<VersionDifference> differences = new ArrayList<>(getDifferenceCount());
+		for (int i = 0; i < getDifferenceCount(); i++) {
+			differences.add(readDifference(i, versions.get(differenceVersions[i * 2]),
+					versions.get(differenceVersions[i * 2 + 1])));
+		}
+		return new Project(projectName, versions, differences);
+	}
+
+	@Nonnull
+	private VersionDifference readDifference(int index, @Nonnull ProjectVersion versionA,
+			@Nonnull ProjectVersion versionB) throws IOException, CppException {
+		if (differencePositions == null) return compare(index, versionA, versionB);
+		try (final FileChannel channel = FileChannel.open(path, StandardOpenOption.READ);
+				final InputStream inputStream = Channels.newInputStream(channel.position(differencePositions[index]))) {
+			return VersionDifference.fromCompactInputStream(new BufferedInputStream(inputStream), versionA, versionB);
+		}
+	}
+
+	/**
+	 * Compare the versions of a difference again from its parameters, for the format versions before 4.
+	 */
+	@Nonnull
+	private VersionDifference compare(int index, @Nonnull ProjectVersion versionA, @Nonnull ProjectVersion versionB)
+			throws CppException {
+		final Map<DependencyType, Double> typeWeights = new EnumMap<>(DependencyType.class);
+		for (final DependencyType type : DependencyType.values) {
+			typeWeights.put(type, differenceTypeWeights[index][type.ordinal()]);
+		}
+		final ImpactAlgorithm algorithm = differenceAlgorithms[index];
+		final VersionDifference difference
+				= VersionDiffer.compareStructure(versionA, versionB, ForkJoinPool.commonPool(), true);
+		return algorithm != null
+				? VersionDiffer.calculateImpact(difference, typeWeights, differenceMaxDepths[index], algorithm,
+						differenceEpsilons[index], ForkJoinPool.commonPool(), new CancellationToken())
+				: difference;
+	}
+
+	/**
+	 * Read the segments from a checkpoint up to a version, the segments are next to each other in the file.
+	 *
+	 * @param start index of a checkpoint version
+	 * @param end index after the last version
+	 * @param keepAll create all the versions instead of only the last one
+	 * @return the created versions
+	 */
+	@Nonnull
+	private List<ProjectVersion> readVersions(int start, int end, boolean keepAll) throws IOException {
+		final List<ProjectVersion> versions = new ArrayList<>();
+		try (final FileChannel channel = FileChannel.open(path, StandardOpenOption.READ);
+				final InputStream inputStream = Channels.newInputStream(channel.position(versionPositions[start]))) {
+			final DataInputStream input = new DataInputStream(new BufferedInputStream(inputStream));
+			KeyedTree tree = null;
+			for (int i = start; i < end; i++) {
+				final String versionName = input.readUTF();
+				final List<String> projectFiles = readStrings(input);
+				final List<String> includePaths = readStrings(input);
+				final double[] typeWeights = readTypeWeights(input);
+				final int weightCount = input.readInt();
+				if (weightCount <= 0) throw new IOException("Wrong input file format!");
+
+				tree = tree == null || i % checkpointInterval == 0 ? KeyedTree.read(input) : tree.readDelta(input);
+				if (keepAll || i == end - 1) {
+					versions.add(ProjectVersion.of(versionName, projectFiles, includePaths, tree.toRootNode(keys),
+							typeWeights, tree.toWeights(weightCount)));
+				}
+			}
+		}
+		return versions;
+	}
+
+	//endregion Reader
+
+	private static final class CountingOutputStream extends FilterOutputStream {
+		private long count;
+
+		CountingOutputStream(@Nonnull OutputStream outputStream) {
+			super(outputStream);
+		}
+
+		long getCount() {
+			return count;
+		}
+
+		@Override
+		public void write(int value) throws IOException {
+			out.write(value);
+			count += 1;
+		}
+
+		@Override
+		public void write(@Nonnull byte[] bytes, int offset, int length) throws IOException {
+			out.write(bytes, offset, length);
+			count += length;
+		}
+	}
+}
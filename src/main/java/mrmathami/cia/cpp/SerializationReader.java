@@ -0,0 +1,685 @@
+package mrmathami.cia.cpp;
+
+import mrmathami.annotations.Nonnull;
+import mrmathami.annotations.Nullable;
+import mrmathami.cia.cpp.ast.ClassNode;
+import mrmathami.cia.cpp.ast.CppNode;
+import mrmathami.cia.cpp.ast.DependencyType;
+import mrmathami.cia.cpp.ast.EnumNode;
+import mrmathami.cia.cpp.ast.FunctionNode;
+import mrmathami.cia.cpp.ast.IntegralNode;
+import mrmathami.cia.cpp.ast.NamespaceNode;
+import mrmathami.cia.cpp.ast.RootNode;
+import mrmathami.cia.cpp.ast.TypedefNode;
+import mrmathami.cia.cpp.ast.VariableNode;
+import mrmathami.cia.cpp.builder.ProjectVersion;
+import mrmathami.cia.cpp.differ.ImpactAlgorithm;
+import mrmathami.cia.cpp.differ.VersionDifference;
+import mrmathami.utils.Pair;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InvalidObjectException;
+import java.io.ObjectInput;
+import java.io.ObjectStreamConstants;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Reader of the projects, project versions and differences written by Java serialization. The stream is decoded here
+ * instead of by {@link java.io.ObjectInputStream}, so that the files stay readable whatever the layout of the current
+ * classes is: the stream is first read as records of plain values, then the records of the known classes are
+ * converted by the names of their fields, a missing field taking its default value. The trees are decoded from their
+ * block data by {@link RootNode#readExternal}, which reads both its current layout and the legacy one.
+ */
+public final class SerializationReader {
+	private static final int SERIALIZATION_MAGIC
+			= (ObjectStreamConstants.STREAM_MAGIC & 0xFFFF) << 16 | ObjectStreamConstants.STREAM_VERSION;
+
+	// classes of the objects which can be read
+	@Nonnull private static final Set<String> TOP_CLASSES = Set.of("mrmathami.cia.cpp.Project",
+			"mrmathami.cia.cpp.builder.ProjectVersion", "mrmathami.cia.cpp.differ.VersionDifference");
+
+	@Nonnull private final DataInputStream input;
+	@Nonnull private final List<Object> handles = new ArrayList<>(); // by handle - baseWireHandle
+	@Nonnull private final Map<Object, Object> converted = new IdentityHashMap<>(); // by record
+
+	private SerializationReader(@Nonnull DataInputStream input) {
+		this.input = input;
+	}
+
+	/**
+	 * @param magic the first four bytes of a file
+	 * @return true if the file is a Java serialization stream
+	 */
+	public static boolean isSerializationMagic(int magic) {
+		return magic == SERIALIZATION_MAGIC;
+	}
+
+	/**
+	 * Read a project, a project version or a difference written by Java serialization.
+	 *
+	 * @param inputStream input stream, at the start of the serialization stream
+	 * @param type the class of the object
+	 * @param <E> the type of the object
+	 * @return the object
+	 * @throws IOException if the input is not an object of the type, or an I/O error occurs
+	 */
+	@Nonnull
+	public static <E> E read(@Nonnull InputStream inputStream, @Nonnull Class<E> type) throws IOException {
+		final Object object = read(inputStream);
+		if (!type.isInstance(object)) throw new IOException("Wrong input file format!");
+		return type.cast(object);
+	}
+
+	/**
+	 * Read a project, a project version or a difference written by Java serialization.
+	 *
+	 * @param inputStream input stream, at the start of the serialization stream
+	 * @return the object, or null if the stream holds an object of another class
+	 * @throws IOException if the input is not a Java serialization stream, is corrupted, or an I/O error occurs
+	 */
+	@Nullable
+	public static Object read(@Nonnull InputStream inputStream) throws IOException {
+		final DataInputStream dataInputStream = new DataInputStream(inputStream instanceof BufferedInputStream
+				? inputStream : new BufferedInputStream(inputStream));
+		if (!isSerializationMagic(dataInputStream.readInt())) throw new IOException("Wrong input file format!");
+		final SerializationReader reader = new SerializationReader(dataInputStream);
+		final Object record = reader.readContent();
+		if (!(record instanceof ObjectRecord) || !TOP_CLASSES.contains(((ObjectRecord) record).className)) return null;
+		return reader.convert(record);
+	}
+
+	//region Stream
+
+	@Nullable
+	private Object readContent() throws IOException {
+		return readContent(input.readUnsignedByte());
+	}
+
+	@Nullable
+	private Object readContent(int tag) throws IOException {
+		switch (tag) {
+			case ObjectStreamConstants.TC_NULL:
+				return null;
+			case ObjectStreamConstants.TC_REFERENCE:
+				return readReference();
+			case ObjectStreamConstants.TC_STRING:
+				return newHandle(input.readUTF());
+			case ObjectStreamConstants.TC_LONGSTRING:
+				return newHandle(readLongString());
+			case ObjectStreamConstants.TC_OBJECT:
+				return readObjectRecord();
+			case ObjectStreamConstants.TC_ARRAY:
+				return readArray();
+			case ObjectStreamConstants.TC_ENUM:
+				return readEnum();
+			case ObjectStreamConstants.TC_CLASS:
+				final ClassDesc desc = readClassDesc();
+				if (desc == null) throw new InvalidObjectException("Invalid class descriptor!");
+				return newHandle(desc);
+			case ObjectStreamConstants.TC_CLASSDESC:
+				return readNewClassDesc();
+			case ObjectStreamConstants.TC_RESET:
+				handles.clear();
+				return readContent();
+			default:
+				throw new InvalidObjectException("Unsupported stream content!");
+		}
+	}
+
+	@Nonnull
+	private <E> E newHandle(@Nonnull E object) {
+		handles.add(object);
+		return object;
+	}
+
+	@Nonnull
+	private Object readReference() throws IOException {
+		final int handle = input.readInt() - ObjectStreamConstants.baseWireHandle;
+		if (handle < 0 || handle >= handles.size()) throw new InvalidObjectException("Invalid handle!");
+		return handles.get(handle);
+	}
+
+	@Nonnull
+	private String readLongString() throws IOException {
+		final long length = input.readLong();
+		if (length < 0 || length > Integer.MAX_VALUE) throw new InvalidObjectException("Invalid string length!");
+		final byte[] bytes = new byte[(int) length];
+		input.readFully(bytes);
+		// modified UTF-8, as written by DataOutput.writeUTF but without the length limit
+		final StringBuilder builder = new StringBuilder(bytes.length);
+		for (int i = 0; i < bytes.length; ) {
+			final int first = bytes[i++] & 0xFF;
+			if (first < 0x80) {
+				builder.append((char) first);
+			} else if ((first & 0xE0) == 0xC0 && i < bytes.length) {
+				builder.append((char) ((first & 0x1F) << 6 | bytes[i++] & 0x3F));
+			} else if ((first & 0xF0) == 0xE0 && i + 1 < bytes.length) {
+				builder.append((char) ((first & 0x0F) << 12 | (bytes[i++] & 0x3F) << 6 | bytes[i++] & 0x3F));
+			} else {
+				throw new InvalidObjectException("Invalid string encoding!");
+			}
+		}
+		return builder.toString();
+	}
+
+	@Nullable
+	private ClassDesc readClassDesc() throws IOException {
+		final int tag = input.readUnsignedByte();
+		switch (tag) {
+			case ObjectStreamConstants.TC_NULL:
+				return null;
+			case ObjectStreamConstants.TC_REFERENCE:
+				final Object reference = readReference();
+				if (!(reference instanceof ClassDesc)) throw new InvalidObjectException("Invalid class descriptor!");
+				return (ClassDesc) reference;
+			case ObjectStreamConstants.TC_CLASSDESC:
+				return readNewClassDesc();
+			default:
+				throw new InvalidObjectException("Unsupported class descriptor!");
+		}
+	}
+
+	@Nonnull
+	private ClassDesc readNewClassDesc() throws IOException {
+		final String name = input.readUTF();
+		input.readLong(); // serialVersionUID, the fields are matched by name instead
+		final ClassDesc desc = newHandle(new ClassDesc(name));
+		desc.flags = input.readUnsignedByte();
+		final int fieldCount = input.readUnsignedShort();
+		desc.fieldTypes = new char[fieldCount];
+		desc.fieldNames = new String[fieldCount];
+		for (int i = 0; i < fieldCount; i++) {
+			desc.fieldTypes[i] = (char) input.readUnsignedByte();
+			desc.fieldNames[i] = input.readUTF();
+			if (desc.fieldTypes[i] == 'L' || desc.fieldTypes[i] == '[') readContent(); // the class name of the field
+		}
+		readAnnotation(new ArrayList<>());
+		desc.superDesc = readClassDesc();
+		return desc;
+	}
+
+	@Nonnull
+	private ObjectRecord readObjectRecord() throws IOException {
+		final ClassDesc desc = readClassDesc();
+		if (desc == null) throw new InvalidObjectException("Invalid class descriptor!");
+		final ObjectRecord record = newHandle(new ObjectRecord(desc.name));
+		if ((desc.flags & ObjectStreamConstants.SC_EXTERNALIZABLE) != 0) {
+			if ((desc.flags & ObjectStreamConstants.SC_BLOCK_DATA) == 0) {
+				throw new InvalidObjectException("Unsupported stream protocol!");
+			}
+			readAnnotation(record.annotation);
+			return record;
+		}
+		// the data of the super classes comes first
+		final List<ClassDesc> descs = new ArrayList<>();
+		for (ClassDesc current = desc; current != null; current = current.superDesc) descs.add(0, current);
+		for (final ClassDesc current : descs) {
+			if ((current.flags & ObjectStreamConstants.SC_SERIALIZABLE) == 0) continue;
+			for (int i = 0; i < current.fieldTypes.length; i++) {
+				record.fields.put(current.fieldNames[i], readValue(current.fieldTypes[i]));
+			}
+			if ((current.flags & ObjectStreamConstants.SC_WRITE_METHOD) != 0) readAnnotation(record.annotation);
+		}
+		return record;
+	}
+
+	@Nullable
+	private Object readValue(char type) throws IOException {
+		switch (type) {
+			case 'B':
+				return input.readByte();
+			case 'C':
+				return input.readChar();
+			case 'D':
+				return input.readDouble();
+			case 'F':
+				return input.readFloat();
+			case 'I':
+				return input.readInt();
+			case 'J':
+				return input.readLong();
+			case 'S':
+				return input.readShort();
+			case 'Z':
+				return input.readBoolean();
+			case 'L':
+			case '[':
+				return readContent();
+			default:
+				throw new InvalidObjectException("Invalid field type!");
+		}
+	}
+
+	/**
+	 * Read the custom data of an object, as block data and objects, up to its end marker.
+	 */
+	private void readAnnotation(@Nonnull List<Object> annotation) throws IOException {
+		while (true) {
+			final int tag = input.readUnsignedByte();
+			if (tag == ObjectStreamConstants.TC_ENDBLOCKDATA) return;
+			if (tag == ObjectStreamConstants.TC_BLOCKDATA || tag == ObjectStreamConstants.TC_BLOCKDATALONG) {
+				final int length = tag == ObjectStreamConstants.TC_BLOCKDATA
+						? input.readUnsignedByte() : input.readInt();
+				if (length < 0) throw new InvalidObjectException("Invalid block data length!");
+				final byte[] bytes = new byte[length];
+				input.readFully(bytes);
+				annotation.add(new BlockData(bytes));
+			} else {
+				annotation.add(readContent(tag));
+			}
+		}
+	}
+
+	@Nonnull
+	private Object readArray() throws IOException {
+		final ClassDesc desc = readClassDesc();
+		if (desc == null || desc.name.length() < 2) throw new InvalidObjectException("Invalid class descriptor!");
+		final int length = input.readInt();
+		if (length < 0) throw new InvalidObjectException("Invalid array length!");
+		switch (desc.name) {
+			case "[I":
+				final int[] ints = newHandle(new int[length]);
+				for (int i = 0; i < length; i++) ints[i] = input.readInt();
+				return ints;
+			case "[D":
+				final double[] doubles = newHandle(new double[length]);
+				for (int i = 0; i < length; i++) doubles[i] = input.readDouble();
+				return doubles;
+			case "[J":
+				final long[] longs = newHandle(new long[length]);
+				for (int i = 0; i < length; i++) longs[i] = input.readLong();
+				return longs;
+			case "[B":
+				final byte[] bytes = newHandle(new byte[length]);
+				input.readFully(bytes);
+				return bytes;
+			default:
+				if (desc.name.charAt(1) != 'L' && desc.name.charAt(1) != '[') {
+					throw new InvalidObjectException("Unsupported array type!");
+				}
+				final ArrayRecord record = newHandle(new ArrayRecord(desc.name, length));
+				for (int i = 0; i < length; i++) record.elements[i] = readContent();
+				return record;
+		}
+	}
+
+	@Nonnull
+	private EnumRecord readEnum() throws IOException {
+		final ClassDesc desc = readClassDesc();
+		if (desc == null) throw new InvalidObjectException("Invalid class descriptor!");
+		final EnumRecord record = newHandle(new EnumRecord(desc.name));
+		final Object name = readContent();
+		if (!(name instanceof String)) throw new InvalidObjectException("Invalid enum constant!");
+		record.name = (String) name;
+		return record;
+	}
+
+	//endregion Stream
+
+	//region Conversion
+
+	/**
+	 * Convert a record to the object of the current classes. Each record is converted once, so the objects are
+	 * shared the same way as in the stream.
+	 */
+	@Nullable
+	private Object convert(@Nullable Object value) throws IOException {
+		if (!(value instanceof ObjectRecord || value instanceof ArrayRecord || value instanceof EnumRecord)) {
+			if (value instanceof ClassDesc || value instanceof BlockData) {
+				throw new InvalidObjectException("Unexpected stream content!");
+			}
+			return value; // null, string or primitive array
+		}
+		final Object convertedValue = converted.get(value);
+		if (convertedValue != null) return convertedValue;
+		if (value instanceof ArrayRecord) return convertArray((ArrayRecord) value);
+		if (value instanceof EnumRecord) return convertEnum((EnumRecord) value);
+		return convertObject((ObjectRecord) value);
+	}
+
+	@Nonnull
+	private Object convertArray(@Nonnull ArrayRecord record) throws IOException {
+		final Object[] array = record.className.equals("[Lmrmathami.cia.cpp.ast.CppNode;")
+				? new CppNode[record.elements.length]
+				: record.className.equals("[Ljava.lang.String;")
+				? new String[record.elements.length]
+				: new Object[record.elements.length];
+		converted.put(record, array);
+		for (int i = 0; i < array.length; i++) {
+			final Object element = convert(record.elements[i]);
+			if (element != null && !array.getClass().getComponentType().isInstance(element)) {
+				throw new InvalidObjectException("Invalid array element!");
+			}
+			array[i] = element;
+		}
+		return array;
+	}
+
+	@Nonnull
+	private Object convertEnum(@Nonnull EnumRecord record) throws IOException {
+		try {
+			final Object constant;
+			if (record.className.equals("mrmathami.cia.cpp.differ.ImpactAlgorithm")) {
+				constant = ImpactAlgorithm.valueOf(record.name);
+			} else if (record.className.equals("mrmathami.cia.cpp.ast.DependencyType")) {
+				constant = DependencyType.valueOf(record.name);
+			} else {
+				throw new InvalidObjectException("Unsupported enum " + record.className + "!");
+			}
+			converted.put(record, constant);
+			return constant;
+		} catch (IllegalArgumentException e) {
+			throw new InvalidObjectException("Unknown enum constant " + record.name + "!");
+		}
+	}
+
+	@Nonnull
+	private Object convertObject(@Nonnull ObjectRecord record) throws IOException {
+		final String className = record.className;
+		if (className.startsWith("mrmathami.cia.cpp.ast.")) return convertNode(record);
+		switch (className) {
+			case "java.lang.Integer":
+			case "java.lang.Long":
+			case "java.lang.Double":
+			case "java.lang.Boolean":
+				return put(record, field(record, "value", Object.class));
+			case "java.util.CollSer": // List.of and Set.of
+			case "java.util.ArrayList":
+			case "java.util.HashSet":
+			case "java.util.LinkedHashSet":
+				return convertCollection(record);
+			case "java.util.Collections$UnmodifiableCollection":
+			case "java.util.Collections$UnmodifiableSet":
+			case "java.util.Collections$UnmodifiableList":
+			case "java.util.Collections$UnmodifiableRandomAccessList":
+				return put(record, field(record, "c", List.class));
+			case "java.util.Collections$EmptyList":
+			case "java.util.Collections$EmptySet":
+				return put(record, List.of());
+			case "mrmathami.utils.Pair":
+			case "mrmathami.utils.ImmutablePair":
+			case "mrmathami.utils.MutablePair":
+				return put(record, Pair.immutableOf(field(record, "a", Object.class),
+						field(record, "b", Object.class)));
+			case "mrmathami.cia.cpp.builder.ProjectVersion":
+				return convertProjectVersion(record);
+			case "mrmathami.cia.cpp.differ.VersionDifference":
+				return convertVersionDifference(record);
+			case "mrmathami.cia.cpp.Project":
+				return convertProject(record);
+			default:
+				throw new InvalidObjectException("Unsupported class " + className + "!");
+		}
+	}
+
+	@Nonnull
+	private Object put(@Nonnull Object record, @Nonnull Object object) {
+		converted.put(record, object);
+		return object;
+	}
+
+	@Nonnull
+	private CppNode convertNode(@Nonnull ObjectRecord record) throws IOException {
+		final CppNode node = createNode(record.className);
+		converted.put(record, node);
+		if (node instanceof RootNode) {
+			try {
+				node.readExternal(new AnnotationInput(record.annotation));
+			} catch (ClassNotFoundException e) {
+				throw new IOException("Wrong input file format!", e);
+			}
+		}
+		return node;
+	}
+
+	@Nonnull
+	private static CppNode createNode(@Nonnull String className) throws InvalidObjectException {
+		switch (className) {
+			case "mrmathami.cia.cpp.ast.RootNode":
+				return new RootNode();
+			case "mrmathami.cia.cpp.ast.NamespaceNode":
+				return new NamespaceNode();
+			case "mrmathami.cia.cpp.ast.IntegralNode":
+				return new IntegralNode();
+			case "mrmathami.cia.cpp.ast.ClassNode":
+				return new ClassNode();
+			case "mrmathami.cia.cpp.ast.EnumNode":
+				return new EnumNode();
+			case "mrmathami.cia.cpp.ast.FunctionNode":
+				return new FunctionNode();
+			case "mrmathami.cia.cpp.ast.VariableNode":
+				return new VariableNode();
+			case "mrmathami.cia.cpp.ast.TypedefNode":
+				return new TypedefNode();
+			default:
+				throw new InvalidObjectException("Unsupported class " + className + "!");
+		}
+	}
+
+	@Nonnull
+	private List<Object> convertCollection(@Nonnull ObjectRecord record) throws IOException {
+		final List<Object> list = new ArrayList<>();
+		converted.put(record, list);
+		final AnnotationInput annotationInput = new AnnotationInput(record.annotation);
+		final int size;
+		if (record.className.equals("java.util.CollSer")) {
+			size = annotationInput.readInt();
+		} else if (record.className.equals("java.util.ArrayList")) {
+			annotationInput.readInt(); // capacity
+			size = field(record, "size", Integer.class);
+		} else {
+			annotationInput.readInt(); // capacity
+			annotationInput.readFloat(); // load factor
+			size = annotationInput.readInt();
+		}
+		if (size < 0) throw new InvalidObjectException("Invalid collection size!");
+		for (int i = 0; i < size; i++) list.add(annotationInput.readObject());
+		return list;
+	}
+
+	@Nonnull
+	private ProjectVersion convertProjectVersion(@Nonnull ObjectRecord record) throws IOException {
+		final String versionName = field(record, "versionName", String.class);
+		final List<String> projectFiles = listField(record, "projectFiles", String.class);
+		final List<String> includePaths = listField(record, "includePaths", String.class);
+		final RootNode rootNode = field(record, "rootNode", RootNode.class);
+		final double[] typeWeights = field(record, "typeWeights", double[].class);
+		final double[] weights = field(record, "weights", double[].class);
+		if (typeWeights.length != DependencyType.values.size()) throw new IOException("Wrong input file format!");
+		return (ProjectVersion) put(record, ProjectVersion.of(versionName, projectFiles, includePaths, rootNode,
+				typeWeights, weights));
+	}
+
+	@Nonnull
+	@SuppressWarnings("unchecked")
+	private VersionDifference convertVersionDifference(@Nonnull ObjectRecord record) throws IOException {
+		// the versions first, so that the nodes are read before they are put in the sets
+		final ProjectVersion versionA = field(record, "versionA", ProjectVersion.class);
+		final ProjectVersion versionB = field(record, "versionB", ProjectVersion.class);
+		final List<CppNode> addedNodes = listField(record, "addedNodes", CppNode.class);
+		final List<Pair<CppNode, CppNode>> changedNodes = listField(record, "changedNodes", Pair.class);
+		final List<Pair<CppNode, CppNode>> unchangedNodes = listField(record, "unchangedNodes", Pair.class);
+		final List<CppNode> removedNodes = listField(record, "removedNodes", CppNode.class);
+		final double[] typeImpactWeights = nullableField(record, "typeImpactWeights", double[].class);
+		final double[] impactWeights = nullableField(record, "impactWeights", double[].class);
+		final Integer maxDepth = nullableField(record, "maxDepth", Integer.class);
+		final ImpactAlgorithm algorithm = nullableField(record, "impactAlgorithm", ImpactAlgorithm.class);
+		final Double epsilon = nullableField(record, "impactEpsilon", Double.class);
+		try {
+			return (VersionDifference) put(record, VersionDifference.of(versionA, versionB,
+					Set.copyOf(addedNodes), Set.copyOf(changedNodes), Set.copyOf(unchangedNodes),
+					Set.copyOf(removedNodes), typeImpactWeights, impactWeights,
+					maxDepth != null ? maxDepth : VersionDifference.NO_IMPACT_DEPTH, algorithm,
+					epsilon != null ? epsilon : 0.0));
+		} catch (IllegalArgumentException | NullPointerException e) {
+			throw new IOException("Wrong input file format!", e);
+		}
+	}
+
+	@Nonnull
+	private Project convertProject(@Nonnull ObjectRecord record) throws IOException {
+		final String projectName = field(record, "projectName", String.class);
+		final List<ProjectVersion> versionList = listField(record, "versionList", ProjectVersion.class);
+		final List<VersionDifference> differenceList = listField(record, "differenceList", VersionDifference.class);
+		return (Project) put(record, new Project(projectName, versionList, differenceList));
+	}
+
+	@Nonnull
+	private <E> E field(@Nonnull ObjectRecord record, @Nonnull String name, @Nonnull Class<E> type)
+			throws IOException {
+		final E value = nullableField(record, name, type);
+		if (value == null) throw new IOException("Wrong input file format!");
+		return value;
+	}
+
+	@Nullable
+	private <E> E nullableField(@Nonnull ObjectRecord record, @Nonnull String name, @Nonnull Class<E> type)
+			throws IOException {
+		final Object value = convert(record.fields.get(name));
+		if (value != null && !type.isInstance(value)) throw new IOException("Wrong input file format!");
+		return type.cast(value);
+	}
+
+	@Nonnull
+	@SuppressWarnings("unchecked")
+	private <E> List<E> listField(@Nonnull ObjectRecord record, @Nonnull String name, @Nonnull Class<?> type)
+			throws IOException {
+		final List<?> list = field(record, name, List.class);
+		for (final Object element : list) {
+			if (!type.isInstance(element)) throw new IOException("Wrong input file format!");
+		}
+		return (List<E>) list;
+	}
+
+	//endregion Conversion
+
+	private static final class ClassDesc {
+		@Nonnull private final String name;
+		private int flags;
+		@Nonnull private char[] fieldTypes = new char[0];
+		@Nonnull private String[] fieldNames = new String[0];
+		@Nullable private ClassDesc superDesc;
+
+		ClassDesc(@Nonnull String name) {
+			this.name = name;
+		}
+	}
+
+	private static final class ObjectRecord {
+		@Nonnull private final String className;
+		@Nonnull private final Map<String, Object> fields = new HashMap<>(); // of all the classes, by name
+		@Nonnull private final List<Object> annotation = new ArrayList<>(); // block data and objects, in order
+
+		ObjectRecord(@Nonnull String className) {
+			this.className = className;
+		}
+	}
+
+	private static final class ArrayRecord {
+		@Nonnull private final String className;
+		@Nonnull private final Object[] elements;
+
+		ArrayRecord(@Nonnull String className, int length) {
+			this.className = className;
+			this.elements = new Object[length];
+		}
+	}
+
+	private static final class EnumRecord {
+		@Nonnull private final String className;
+		@Nonnull private String name = "";
+
+		EnumRecord(@Nonnull String className) {
+			this.className = className;
+		}
+	}
+
+	private static final class BlockData {
+		@Nonnull private final byte[] bytes;
+
+		BlockData(@Nonnull byte[] bytes) {
+			this.bytes = bytes;
+		}
+	}
+
+	/**
+	 * The custom data of an object, read the same way as by an object input stream: the primitive values from the
+	 * block data, which may be split in many blocks, and the objects, converted, from the records between them.
+	 */
+	private final class AnnotationInput extends DataInputStream implements ObjectInput {
+		AnnotationInput(@Nonnull List<Object> annotation) {
+			super(new BlockInputStream(annotation));
+		}
+
+		@Nullable
+		@Override
+		public Object readObject() throws IOException {
+			final BlockInputStream blockInputStream = (BlockInputStream) in;
+			if (blockInputStream.available() > 0) throw new InvalidObjectException("Unexpected block data!");
+			return convert(blockInputStream.nextObject());
+		}
+	}
+
+	private static final class BlockInputStream extends InputStream {
+		@Nonnull private final List<Object> annotation;
+		private int index; // of the current item
+		private int position; // in the current block data
+
+		BlockInputStream(@Nonnull List<Object> annotation) {
+			this.annotation = annotation;
+		}
+
+		/**
+		 * @return the current block data, skipping the ones already read, or null if the next item is an object
+		 */
+		@Nullable
+		private byte[] currentBlock() {
+			while (index < annotation.size() && annotation.get(index) instanceof BlockData) {
+				final byte[] bytes = ((BlockData) annotation.get(index)).bytes;
+				if (position < bytes.length) return bytes;
+				this.index += 1;
+				this.position = 0;
+			}
+			return null;
+		}
+
+		@Nullable
+		Object nextObject() throws IOException {
+			currentBlock();
+			if (index >= annotation.size()) throw new EOFException("Unexpected end of object data!");
+			return annotation.get(index++);
+		}
+
+		@Override
+		public int read() {
+			final byte[] bytes = currentBlock();
+			return bytes != null ? bytes[position++] & 0xFF : -1;
+		}
+
+		@Override
+		public int read(@Nonnull byte[] buffer, int offset, int length) {
+			if (length == 0) return 0;
+			final byte[] bytes = currentBlock();
+			if (bytes == null) return -1;
+			final int readLength = Math.min(length, bytes.length - position);
+			System.arraycopy(bytes, position, buffer, offset, readLength);
+			this.position += readLength;
+			return readLength;
+		}
+
+		@Override
+		public int available() {
+			final byte[] bytes = currentBlock();
+			return bytes != null ? bytes.length - position : 0;
+		}
+	}
+}
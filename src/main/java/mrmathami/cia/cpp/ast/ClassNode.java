@@ -6,8 +6,8 @@ import mrmathami.annotations.Nullable;
 import mrmathami.utils.Utilities;
 
 import java.io.IOException;
+import java.io.InvalidObjectException;
 import java.io.ObjectInput;
-import java.io.ObjectOutput;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -120,9 +120,9 @@ public final class ClassNode extends CppNode implements IClassContainer, IEnumCo
 	}
 
 	@Override
-	protected int similarHashcode(@Nonnull Matcher matcher) {
-		int result = super.similarHashcode(matcher);
-		result = 31 * result + bases.size();
+	protected long similarHashcode(@Nonnull Matcher matcher) {
+		long result = super.similarHashcode(matcher);
+		result = combineHash(result, bases.size());
 		return result;
 	}
 
@@ -148,9 +148,18 @@ public final class ClassNode extends CppNode implements IClassContainer, IEnumCo
 	}
 
 	@Override
-	protected int identicalHashcode(@Nonnull Matcher matcher) {
-		int result = super.identicalHashcode(matcher);
-		result = 31 * result + bases.size();
+	protected long identicalHashcode(@Nonnull Matcher matcher) {
+		long result = super.identicalHashcode(matcher);
+		result = combineHash(result, bases.size());
+		return result;
+	}
+
+	@Override
+	long referenceHash() {
+		long result = bases.size();
+		for (final CppNode base : bases) {
+			result += combineHash(base.getMatchHash(MatchLevel.IDENTICAL), base.dependencyHash());
+		}
 		return result;
 	}
 	//</editor-fold>
@@ -158,8 +167,9 @@ public final class ClassNode extends CppNode implements IClassContainer, IEnumCo
 	//region TreeNode
 
 	@Override
-	void internalLock(@Nonnull Map<String, String> stringPool, @Nonnull Map<DependencyMap, DependencyMap> countsPool) {
-		super.internalLock(stringPool, countsPool);
+	void internalLock(@Nonnull StringTable stringTable, @Nonnull StringTable bodyTable,
+			@Nonnull Map<DependencyMap, DependencyMap> countsPool) {
+		super.internalLock(stringTable, bodyTable, countsPool);
 		this.bases = Set.copyOf(bases);
 	}
 
@@ -180,24 +190,45 @@ public final class ClassNode extends CppNode implements IClassContainer, IEnumCo
 	//region Object Helper
 
 	@Override
-	void write(@Nonnull ObjectOutput output) throws IOException {
+	void write(@Nonnull NodeOutput output) throws IOException {
 		super.write(output);
 
-		output.writeInt(bases.size());
+		output.writeVarInt(bases.size());
 		for (final CppNode base : bases) {
-			output.writeObject(base);
+			output.writeNode(base);
 		}
 	}
 
 	@Override
-	void read(@Nonnull ObjectInput input) throws IOException, ClassNotFoundException {
+	void read(@Nonnull NodeInput input) throws IOException {
 		super.read(input);
 
+		final int basesSize = input.readVarInt();
+		for (int i = 0; i < basesSize; i++) {
+			bases.add(input.readNonnullNode());
+		}
+	}
+
+	@Override
+	void readLegacy(@Nonnull ObjectInput input) throws IOException, ClassNotFoundException {
+		super.readLegacy(input);
+
 		final int basesSize = input.readInt();
+		if (basesSize < 0) throw new InvalidObjectException("Invalid bases count!");
 		for (int i = 0; i < basesSize; i++) {
 			bases.add(castNonnull(input.readObject(), CppNode.class));
 		}
 	}
 
+	@Override
+	void readMapped(@Nonnull MappedTree tree, int index, @Nonnull CppNode[] nodes,
+			@Nonnull Map<DependencyMap, DependencyMap> countsPool) throws IOException {
+		super.readMapped(tree, index, nodes, countsPool);
+
+		for (final int base : tree.getBases(index)) {
+			bases.add(getMappedNode(nodes, base));
+		}
+	}
+
 	//endregion Object Helper
 }
@@ -30,6 +30,11 @@ import static mrmathami.cia.cpp.ast.DependencyMap.DEPENDENCY_ZERO;
 
 /**
  * Base of AST Tree.
+ * <p>
+ * A tree is not thread-safe while it is writable. Once it is locked (or read from a stream), it is never modified
+ * again: all of its caches are filled at that time and every read-only method is safe to be called concurrently. A
+ * locked tree still has to be safely published to other threads, e.g. through a final field such as the one in
+ * {@link mrmathami.cia.cpp.builder.ProjectVersion}, a volatile field, a concurrent collection or an executor.
  */
 public abstract class CppNode implements Iterable<CppNode>, Externalizable {
 	private static final long serialVersionUID = -1L;
@@ -45,6 +50,9 @@ public abstract class CppNode implements Iterable<CppNode>, Externalizable {
 	@Nonnull private Map<CppNode, int[]> dependencyFrom = new IdentityHashMap<>();
 	@Nonnull private Map<CppNode, int[]> dependencyTo = new IdentityHashMap<>();
 
+	@Nullable private long[] matchHashes; // precomputed by MatchLevel when locked
+	private long subtreeHash; // precomputed when locked
+
 	private boolean writable = true; // should not access this directly
 	@Nullable private CppNode rootNode; // should not access this directly
 
@@ -416,10 +424,11 @@ public abstract class CppNode implements Iterable<CppNode>, Externalizable {
 
 	//region Object Helper
 
-	void internalLock(@Nonnull Map<String, String> stringPool, @Nonnull Map<DependencyMap, DependencyMap> countsPool) {
-		this.name = stringPool.computeIfAbsent(name, String::toString);
-		this.uniqueName = stringPool.computeIfAbsent(uniqueName, String::toString);
-		this.signature = stringPool.computeIfAbsent(signature, String::toString);
+	void internalLock(@Nonnull StringTable stringTable, @Nonnull StringTable bodyTable,
+			@Nonnull Map<DependencyMap, DependencyMap> countsPool) {
+		this.name = stringTable.toShared(name);
+		this.uniqueName = stringTable.toShared(uniqueName);
+		this.signature = stringTable.toShared(signature);
 		this.children = List.copyOf(children);
 
 		for (final Map.Entry<CppNode, int[]> entry : dependencyFrom.entrySet()) {
@@ -434,9 +443,32 @@ public abstract class CppNode implements Iterable<CppNode>, Externalizable {
 		}
 		this.dependencyTo = Map.copyOf(dependencyTo);
 
+		this.rootNode = parent != null ? parent.getRoot() : this;
 		this.writable = false;
 	}
 
+	void internalLockHashes(@Nonnull Matcher matcher) {
+		final long[] hashes = new long[MatchLevel.values.length];
+		for (final MatchLevel level : MatchLevel.values) {
+			hashes[level.ordinal()] = matcher.nodeHashcode(this, level);
+		}
+		this.matchHashes = hashes;
+	}
+
+	final boolean hasMatchHashes() {
+		return matchHashes != null;
+	}
+
+	/**
+	 * Should only be called after the subtree hashes of all the children are computed.
+	 */
+	final void internalLockSubtreeHash() {
+		long childrenHash = children.size();
+		for (final CppNode child : children) childrenHash += child.subtreeHash;
+		this.subtreeHash = combineHash(combineHash(getMatchHash(MatchLevel.IDENTICAL), dependencyHash()),
+				combineHash(referenceHash(), childrenHash));
+	}
+
 	final void checkReadOnly() {
 		if (!writable) throw new UnsupportedOperationException("Read-only Node!");
 	}
@@ -445,6 +477,16 @@ public abstract class CppNode implements Iterable<CppNode>, Externalizable {
 		return writable;
 	}
 
+	@Nonnull
+	final StringTable getRootStringTable() {
+		return ((RootNode) getRoot()).getStringTable();
+	}
+
+	@Nonnull
+	final StringTable getRootBodyTable() {
+		return ((RootNode) getRoot()).getBodyTable();
+	}
+
 	@Nullable
 	static <E> E castNullable(@Nullable Object object, @Nonnull Class<E> checkingClass) throws InvalidObjectException {
 		if (object != null && !checkingClass.isInstance(object)) {
@@ -470,60 +512,251 @@ public abstract class CppNode implements Iterable<CppNode>, Externalizable {
 	public void readExternal(@Nonnull ObjectInput input) throws IOException, ClassNotFoundException {
 	}
 
-	void write(@Nonnull ObjectOutput output) throws IOException {
-		output.writeInt(id);
-		output.writeObject(name);
-		output.writeObject(uniqueName);
-		output.writeObject(signature);
+	/**
+	 * Read this node in the legacy layout of the Java serialization format, in which the strings, the bodies and the
+	 * dependency counts are objects. The node stays writable, the tree is locked once all of its nodes are read.
+	 */
+	void readLegacy(@Nonnull ObjectInput input) throws IOException, ClassNotFoundException {
+		this.id = input.readInt();
+		this.name = castNonnull(input.readObject(), String.class);
+		this.uniqueName = castNonnull(input.readObject(), String.class);
+		this.signature = castNonnull(input.readObject(), String.class);
+
+		final int childrenSize = input.readInt();
+		if (childrenSize < 0) throw new InvalidObjectException("Invalid children count!");
+		for (int i = 0; i < childrenSize; i++) {
+			final CppNode child = castNonnull(input.readObject(), CppNode.class);
+			if (child.parent != null || child instanceof RootNode) {
+				throw new InvalidObjectException("Node has two parents!");
+			}
+			children.add(child);
+			child.parent = this;
+		}
+
+		final int dependencySize = input.readInt();
+		if (dependencySize < 0) throw new InvalidObjectException("Invalid dependency count!");
+		for (int i = 0; i < dependencySize; i++) {
+			final CppNode dependingNode = castNonnull(input.readObject(), CppNode.class);
+			final int[] dependencyCounts = castNonnull(input.readObject(), int[].class);
+			if (dependencyCounts.length != DependencyType.values.size()) {
+				throw new InvalidObjectException("Invalid dependency counts!");
+			}
+
+			dependencyFrom.put(dependingNode, dependencyCounts);
+			dependingNode.dependencyTo.put(this, dependencyCounts);
+		}
+	}
+
+	void write(@Nonnull NodeOutput output) throws IOException {
+		final StringTable stringTable = getRootStringTable();
+		output.writeVarInt(id);
+		output.writeVarInt(writeHandle(stringTable, name));
+		output.writeVarInt(writeHandle(stringTable, uniqueName));
+		output.writeVarInt(writeHandle(stringTable, signature));
+		assert matchHashes != null;
+		for (final long hash : matchHashes) output.writeLong(hash);
+		output.writeLong(subtreeHash);
 
-		output.writeInt(children.size());
+		output.writeVarInt(children.size());
 		for (final CppNode childNode : children) {
-			output.writeObject(childNode);
+			output.writeNode(childNode);
 		}
 
-		output.writeInt(dependencyFrom.size());
+		// sorted by index, so each index is written as the difference to the previous one
+		final long[] dependencies = new long[dependencyFrom.size()];
+		final int[][] dependencyCounts = new int[dependencies.length][];
+		int size = 0;
 		for (final Map.Entry<CppNode, int[]> entry : dependencyFrom.entrySet()) {
-			output.writeObject(entry.getKey());
-			output.writeObject(entry.getValue());
-//			for (int count : entry.getValue()) output.writeInt(count);
+			dependencyCounts[size] = entry.getValue();
+			dependencies[size] = (long) output.indexOf(entry.getKey()) << 32 | size;
+			size += 1;
+		}
+		Arrays.sort(dependencies);
+		output.writeVarInt(size);
+		int previousIndex = 0;
+		for (final long dependency : dependencies) {
+			final int index = (int) (dependency >>> 32);
+			output.writeVarInt(index - previousIndex);
+			output.writeCounts(dependencyCounts[(int) dependency]);
+			previousIndex = index;
 		}
 	}
 
-	void read(@Nonnull ObjectInput input) throws IOException, ClassNotFoundException {
-		this.writable = false;
+	private static int writeHandle(@Nonnull StringTable stringTable, @Nonnull String string) throws IOException {
+		// the strings are interned when locked, a lookup never modifies a possibly shared table
+		final int handle = stringTable.getHandle(string);
+		if (handle == StringTable.NULL_HANDLE) throw new IOException("String is not in the string table!");
+		return handle;
+	}
 
-		this.id = input.readInt();
-		this.name = castNonnull(input.readObject(), String.class);
-		this.uniqueName = castNonnull(input.readObject(), String.class);
-		this.signature = castNonnull(input.readObject(), String.class);
+	void read(@Nonnull NodeInput input) throws IOException {
+		this.rootNode = input.getRoot();
+		this.writable = false;
 
-		final int childrenSize = input.readInt();
+		final StringTable stringTable = getRootStringTable();
+		this.id = input.readVarInt();
+		this.name = readString(stringTable, input.readVarInt());
+		this.uniqueName = readString(stringTable, input.readVarInt());
+		this.signature = readString(stringTable, input.readVarInt());
+		final long[] hashes = new long[MatchLevel.values.length];
+		for (int i = 0; i < hashes.length; i++) hashes[i] = input.readLong();
+		this.matchHashes = hashes;
+		this.subtreeHash = input.readLong();
+
+		final int childrenSize = input.readVarInt();
 		final CppNode[] children = new CppNode[childrenSize];
 		for (int i = 0; i < childrenSize; i++) {
-			final CppNode child = castNonnull(input.readObject(), CppNode.class);
+			final CppNode child = input.readNonnullNode();
+			if (child.parent != null || child == rootNode) throw new InvalidObjectException("Node has two parents!");
 			children[i] = child;
 			child.parent = this;
 		}
 		this.children = List.of(children);
 
-		final int dependencySize = input.readInt();
+		final int dependencySize = input.readVarInt();
+		int index = 0;
 		for (int i = 0; i < dependencySize; i++) {
-			final CppNode dependingNode = castNonnull(input.readObject(), CppNode.class);
-			final int[] dependencyCounts = castNonnull(input.readObject(), int[].class);
-//			final int[] dependencyCounts = DEPENDENCY_ZERO.clone();
-//			for (int j = 0; j < dependencyCounts.length; j++) {
-//				dependencyCounts[j] = input.readInt();
-//			}
+			index += input.readVarInt();
+			final CppNode dependingNode = input.getNode(index);
+			final int[] dependencyCounts = input.readCounts();
+
+			dependencyFrom.put(dependingNode, dependencyCounts);
+			input.linkDependency(index, this, dependencyCounts);
+		}
+	}
+
+	final void putDependencyTo(@Nonnull CppNode node, @Nonnull int[] dependencyCounts) {
+		dependencyTo.put(node, dependencyCounts);
+	}
+
+	@Nonnull
+	private static String readString(@Nonnull StringTable stringTable, int handle) throws InvalidObjectException {
+		if (handle < 0 || handle >= stringTable.size()) throw new InvalidObjectException("Invalid string handle!");
+		final String string = stringTable.getString(handle);
+		assert string != null;
+		return string;
+	}
+
+	final int readBodyHandle(@Nonnull NodeInput input) throws IOException {
+		return checkBodyHandle(input.readVarInt() - 1);
+	}
+
+	final int checkBodyHandle(int handle) throws InvalidObjectException {
+		if (handle < StringTable.NULL_HANDLE || handle >= getRootBodyTable().size()) {
+			throw new InvalidObjectException("Invalid body handle!");
+		}
+		return handle;
+	}
+
+	/**
+	 * Read this node from a mapped tree. Nodes are read in order of their index, parents before their children.
+	 */
+	void readMapped(@Nonnull MappedTree tree, int index, @Nonnull CppNode[] nodes,
+			@Nonnull Map<DependencyMap, DependencyMap> countsPool) throws IOException {
+		this.rootNode = nodes[0];
+		this.writable = false;
+
+		final StringTable stringTable = getRootStringTable();
+		this.id = tree.getId(index);
+		this.name = readString(stringTable, tree.getNameHandle(index));
+		this.uniqueName = readString(stringTable, tree.getUniqueNameHandle(index));
+		this.signature = readString(stringTable, tree.getSignatureHandle(index));
+		final long[] hashes = new long[MatchLevel.values.length];
+		for (final MatchLevel level : MatchLevel.values) hashes[level.ordinal()] = tree.getMatchHash(index, level);
+		this.matchHashes = hashes;
+		this.subtreeHash = tree.getSubtreeHash(index);
+
+		final int[] childIndexes = tree.getChildren(index);
+		final CppNode[] children = new CppNode[childIndexes.length];
+		for (int i = 0; i < childIndexes.length; i++) {
+			final CppNode child = getMappedNode(nodes, childIndexes[i]);
+			if (child.parent != null || tree.getParent(childIndexes[i]) != index) {
+				throw new InvalidObjectException("Invalid node children!");
+			}
+			children[i] = child;
+			child.parent = this;
+		}
+		this.children = List.of(children);
+
+		final int[] dependencyIndexes = tree.getAllDependencyFrom(index);
+		for (int i = 0; i < dependencyIndexes.length; i++) {
+			final CppNode dependingNode = getMappedNode(nodes, dependencyIndexes[i]);
+			final int[] dependencyCounts = tree.getEdgeCounts(index, true, i, countsPool);
 
 			dependencyFrom.put(dependingNode, dependencyCounts);
 			dependingNode.dependencyTo.put(this, dependencyCounts);
 		}
 	}
 
+	@Nonnull
+	static CppNode getMappedNode(@Nonnull CppNode[] nodes, int index) throws InvalidObjectException {
+		if (index < 0 || index >= nodes.length) throw new InvalidObjectException("Invalid node index!");
+		return nodes[index];
+	}
+
+	@Nullable
+	static CppNode getMappedNullableNode(@Nonnull CppNode[] nodes, int index) throws InvalidObjectException {
+		return index != -1 ? getMappedNode(nodes, index) : null;
+	}
+
 	//endregion Object Helper
 
 	//region Node Comparator
 
+	static long combineHash(long hash, long value) {
+		final long result = (Long.rotateLeft(hash, 31) ^ value) * 0x9E3779B97F4A7C15L;
+		return result ^ (result >>> 32);
+	}
+
+	/**
+	 * Return the 64-bit structural hash of this node at the specified level. Two nodes matching at a level always
+	 * have the same hash at that level. The hashes of a locked node are computed once when the tree is locked, are
+	 * stable between runs and are persisted with the tree.
+	 *
+	 * @param level match level
+	 * @return the hash
+	 */
+	public final long getMatchHash(@Nonnull MatchLevel level) {
+		return matchHashes != null ? matchHashes[level.ordinal()] : new Matcher().nodeHashcode(this, level);
+	}
+
+	/**
+	 * Return the Merkle hash of the subtree rooted at this node, computed when the tree is locked. It covers the
+	 * IDENTICAL hash of every node in the subtree, their outgoing dependencies and the nodes they refer to at
+	 * IDENTICAL level, so two subtrees with the same hash can be considered unchanged without comparing them node by
+	 * node.
+	 *
+	 * @return the subtree hash, or 0 if the tree is not locked
+	 */
+	public final long getSubtreeHash() {
+		return subtreeHash;
+	}
+
+	/**
+	 * Order-independent hash of the outgoing dependencies: the PROTOTYPE_IDENTICAL hash of each dependency target
+	 * together with the dependency counts.
+	 *
+	 * @return the hash
+	 */
+	final long dependencyHash() {
+		long result = dependencyTo.size();
+		for (final Map.Entry<CppNode, int[]> entry : dependencyTo.entrySet()) {
+			long entryHash = entry.getKey().getMatchHash(MatchLevel.PROTOTYPE_IDENTICAL);
+			for (final int count : entry.getValue()) entryHash = combineHash(entryHash, count);
+			result += entryHash;
+		}
+		return result;
+	}
+
+	/**
+	 * Hash of the nodes that this node compares with at IDENTICAL level, which are not covered by its IDENTICAL hash.
+	 *
+	 * @return the hash
+	 */
+	long referenceHash() {
+		return 0;
+	}
+
 	/**
 	 * If two nodes have the similar prototype, aka same type.
 	 *
@@ -535,8 +768,8 @@ public abstract class CppNode implements Iterable<CppNode>, Externalizable {
 		return this == node || getClass() == node.getClass();
 	}
 
-	protected int prototypeSimilarHashcode(@Nonnull Matcher matcher) {
-		return getClass().hashCode();
+	protected long prototypeSimilarHashcode(@Nonnull Matcher matcher) {
+		return StringTable.hash(getClass().getName());
 	}
 
 	/**
@@ -552,10 +785,10 @@ public abstract class CppNode implements Iterable<CppNode>, Externalizable {
 				&& signature.equals(node.signature);
 	}
 
-	protected int prototypeIdenticalHashcode(@Nonnull Matcher matcher) {
-		int result = getClass().hashCode();
-		result = 31 * result + name.hashCode();
-		result = 31 * result + signature.hashCode();
+	protected long prototypeIdenticalHashcode(@Nonnull Matcher matcher) {
+		long result = StringTable.hash(getClass().getName());
+		result = combineHash(result, StringTable.hash(name));
+		result = combineHash(result, StringTable.hash(signature));
 		return result;
 	}
 
@@ -575,12 +808,12 @@ public abstract class CppNode implements Iterable<CppNode>, Externalizable {
 				&& matcher.isNodeMatch(parent, node.parent, MatchLevel.SIMILAR);
 	}
 
-	protected int similarHashcode(@Nonnull Matcher matcher) {
-		int result = getClass().hashCode();
-		result = 31 * result + name.hashCode();
-		result = 31 * result + uniqueName.hashCode();
-		result = 31 * result + signature.hashCode();
-		result = 31 * result + matcher.nodeHashcode(parent, MatchLevel.SIMILAR);
+	protected long similarHashcode(@Nonnull Matcher matcher) {
+		long result = StringTable.hash(getClass().getName());
+		result = combineHash(result, StringTable.hash(name));
+		result = combineHash(result, StringTable.hash(uniqueName));
+		result = combineHash(result, StringTable.hash(signature));
+		result = combineHash(result, matcher.nodeHashcode(parent, MatchLevel.SIMILAR));
 		return result;
 	}
 
@@ -601,13 +834,13 @@ public abstract class CppNode implements Iterable<CppNode>, Externalizable {
 				&& equalsAllDependencyTo(node, matcher);
 	}
 
-	protected int identicalHashcode(@Nonnull Matcher matcher) {
-		int result = getClass().hashCode();
-		result = 31 * result + name.hashCode();
-		result = 31 * result + uniqueName.hashCode();
-		result = 31 * result + signature.hashCode();
-		result = 31 * result + matcher.nodeHashcode(parent, MatchLevel.SIMILAR);
-		result = 31 * result + dependencyTo.size();
+	protected long identicalHashcode(@Nonnull Matcher matcher) {
+		long result = StringTable.hash(getClass().getName());
+		result = combineHash(result, StringTable.hash(name));
+		result = combineHash(result, StringTable.hash(uniqueName));
+		result = combineHash(result, StringTable.hash(signature));
+		result = combineHash(result, matcher.nodeHashcode(parent, MatchLevel.SIMILAR));
+		result = combineHash(result, dependencyTo.size());
 		return result;
 	}
 
@@ -628,16 +861,56 @@ public abstract class CppNode implements Iterable<CppNode>, Externalizable {
 		}
 	}
 
+	/**
+	 * Matcher of nodes, remembering the results of the comparisons. A matcher made by the constructor keeps every
+	 * result and must only be used by one thread at a time. A matcher made by {@link #concurrent} keeps a bounded
+	 * number of results and is safe to be used by many threads at once.
+	 */
 	public static final class Matcher {
-		@Nonnull private final Map<Pair<CppNode, CppNode>, Pair<MatchLevel, MatchLevel>> map = new HashMap<>();
-		@Nonnull private final Map<CppNode, int[]> hashcodeMap = new IdentityHashMap<>();
+		@Nullable private final Map<Pair<CppNode, CppNode>, Pair<MatchLevel, MatchLevel>> map;
+		@Nullable private final Map<CppNode, long[]> hashcodeMap;
+		@Nullable private final MatchMemo memo;
+		@Nullable private final ThreadLocal<Assumptions> assumptions;
 
 		public Matcher() {
+			this.map = new HashMap<>();
+			this.hashcodeMap = new IdentityHashMap<>();
+			this.memo = null;
+			this.assumptions = null;
+		}
+
+		private Matcher(@Nonnull MatchMemo memo) {
+			this.map = null;
+			this.hashcodeMap = null;
+			this.memo = memo;
+			this.assumptions = ThreadLocal.withInitial(Assumptions::new);
+		}
+
+		/**
+		 * Create a matcher safe to be used by many threads at once, to compare the nodes of two locked trees. The
+		 * result of each comparison is kept in a single long, the oldest ones are dropped when there is no room.
+		 *
+		 * @param rootA root of tree A
+		 * @param rootB root of tree B
+		 * @param maxSize maximum number of remembered pairs of nodes
+		 * @return the matcher
+		 */
+		@Nonnull
+		public static Matcher concurrent(@Nonnull CppNode rootA, @Nonnull CppNode rootB, int maxSize) {
+			return new Matcher(new MatchMemo(rootA, rootB, maxSize));
 		}
 
 		public boolean isNodeMatch(@Nullable CppNode nodeA, @Nullable CppNode nodeB, @Nonnull MatchLevel level) {
 			if (nodeA == nodeB) return true;
 			if (nodeA == null || nodeB == null) return false;
+			// matching nodes always have the same hash
+			final long[] hashesA = nodeA.matchHashes, hashesB = nodeB.matchHashes;
+			if (hashesA != null && hashesB != null && hashesA[level.ordinal()] != hashesB[level.ordinal()]) {
+				return false;
+			}
+			final Map<Pair<CppNode, CppNode>, Pair<MatchLevel, MatchLevel>> map = this.map;
+			if (map == null) return isNodeMatchConcurrent(nodeA, nodeB, level);
+
 			final Pair<CppNode, CppNode> nodePair = Pair.immutableOf(nodeA, nodeB);
 			final Pair<MatchLevel, MatchLevel> levelPair = map.get(nodePair);
 			if (levelPair != null) {
@@ -660,17 +933,59 @@ public abstract class CppNode implements Iterable<CppNode>, Externalizable {
 			}
 		}
 
-		public int nodeHashcode(@Nullable CppNode node, @Nonnull MatchLevel level) {
+		/**
+		 * Same as the single thread matcher, except that the optimistic assumptions are only seen by the thread
+		 * which made them, and only the results which do not depend on them are shared: the mismatches, and the
+		 * matches found without any assumption left. The other matches are only kept by the thread, until the
+		 * assumption they depend on turns out to be wrong or the outermost comparison ends.
+		 */
+		private boolean isNodeMatchConcurrent(@Nonnull CppNode nodeA, @Nonnull CppNode nodeB,
+				@Nonnull MatchLevel level) {
+			final MatchMemo memo = this.memo;
+			final ThreadLocal<Assumptions> assumptions = this.assumptions;
+			assert memo != null && assumptions != null;
+			final long key = memo.keyOf(nodeA, nodeB);
+			if (key != MatchMemo.NO_KEY) {
+				final int levels = memo.get(key);
+				if (MatchMemo.matchedLevel(levels) >= level.ordinal()) return true;
+				final int mismatchedLevel = MatchMemo.mismatchedLevel(levels);
+				if (mismatchedLevel != MatchMemo.UNKNOWN && mismatchedLevel <= level.ordinal()) return false;
+			}
+			final Assumptions threadAssumptions = assumptions.get();
+			if (threadAssumptions.isAssumed(nodeA, nodeB, level) || threadAssumptions.isMatched(key, level)) {
+				return true;
+			}
+			threadAssumptions.push(nodeA, nodeB, level);
+			boolean match = false;
+			try {
+				match = level.matcher.isNodeMatch(nodeA, nodeB, this);
+			} finally {
+				threadAssumptions.pop(match);
+			}
+			if (key != MatchMemo.NO_KEY) {
+				if (!match || threadAssumptions.isEmpty()) {
+					memo.put(key, level, match);
+				} else {
+					threadAssumptions.putMatch(key, level);
+				}
+			}
+			return match;
+		}
+
+		public long nodeHashcode(@Nullable CppNode node, @Nonnull MatchLevel level) {
 			if (node == null) return 0;
-			final int[] hashcodes = hashcodeMap.get(node);
+			if (node.matchHashes != null) return node.matchHashes[level.ordinal()];
+			final Map<CppNode, long[]> hashcodeMap = this.hashcodeMap;
+			if (hashcodeMap == null) return level.hasher.nodeHashcode(node, this);
+			final long[] hashcodes = hashcodeMap.get(node);
 			if (hashcodes == null) {
-				final int[] newHashcodes = new int[MatchLevel.values.length];
-				final int newHashcode = level.hasher.nodeHashcode(node, this);
+				final long[] newHashcodes = new long[MatchLevel.values.length];
+				final long newHashcode = level.hasher.nodeHashcode(node, this);
 				newHashcodes[level.ordinal()] = newHashcode;
 				hashcodeMap.put(node, newHashcodes);
 				return newHashcode;
 			} else if (hashcodes[level.ordinal()] == 0) {
-				final int newHashcode = level.hasher.nodeHashcode(node, this);
+				final long newHashcode = level.hasher.nodeHashcode(node, this);
 				hashcodes[level.ordinal()] = newHashcode;
 				return newHashcode;
 			} else {
@@ -679,19 +994,88 @@ public abstract class CppNode implements Iterable<CppNode>, Externalizable {
 		}
 	}
 
+	/**
+	 * Pairs of nodes assumed to match while they are being compared by a thread, innermost last, and the matches
+	 * found by the thread while depending on them.
+	 */
+	private static final class Assumptions {
+		@Nonnull private CppNode[] nodes = new CppNode[32]; // node A and node B of each pair
+		@Nonnull private MatchLevel[] levels = new MatchLevel[16];
+		@Nonnull private int[] marks = new int[16]; // match count when each pair was assumed
+		private int size;
+
+		@Nonnull private final Map<Long, MatchLevel> matches = new HashMap<>();
+		@Nonnull private long[] matchKeys = new long[16]; // keys of the matches, in the order they were found
+		private int matchCount;
+
+		boolean isEmpty() {
+			return size == 0;
+		}
+
+		boolean isMatched(long key, @Nonnull MatchLevel level) {
+			if (key == MatchMemo.NO_KEY) return false;
+			final MatchLevel matchedLevel = matches.get(key);
+			return matchedLevel != null && matchedLevel.compareTo(level) >= 0;
+		}
+
+		void putMatch(long key, @Nonnull MatchLevel level) {
+			final MatchLevel matchedLevel = matches.get(key);
+			if (matchedLevel != null && matchedLevel.compareTo(level) >= 0) return;
+			matches.put(key, level);
+			if (matchCount == matchKeys.length) this.matchKeys = Arrays.copyOf(matchKeys, matchCount * 2);
+			matchKeys[matchCount++] = key;
+		}
+
+		boolean isAssumed(@Nonnull CppNode nodeA, @Nonnull CppNode nodeB, @Nonnull MatchLevel level) {
+			for (int i = size - 1; i >= 0; i--) {
+				if (nodes[i * 2] == nodeA && nodes[i * 2 + 1] == nodeB && levels[i].compareTo(level) >= 0) return true;
+			}
+			return false;
+		}
+
+		void push(@Nonnull CppNode nodeA, @Nonnull CppNode nodeB, @Nonnull MatchLevel level) {
+			if (size == levels.length) {
+				this.nodes = Arrays.copyOf(nodes, nodes.length * 2);
+				this.levels = Arrays.copyOf(levels, levels.length * 2);
+				this.marks = Arrays.copyOf(marks, marks.length * 2);
+			}
+			nodes[size * 2] = nodeA;
+			nodes[size * 2 + 1] = nodeB;
+			levels[size] = level;
+			marks[size] = matchCount;
+			size += 1;
+		}
+
+		/**
+		 * @param match false to drop the matches found while the pair was assumed to match
+		 */
+		void pop(boolean match) {
+			size -= 1;
+			nodes[size * 2] = null;
+			nodes[size * 2 + 1] = null;
+			levels[size] = null;
+			if (size == 0) {
+				matches.clear();
+				this.matchCount = 0;
+			} else if (!match) {
+				while (matchCount > marks[size]) matches.remove(matchKeys[--matchCount]);
+			}
+		}
+	}
+
 	private interface InternalMatcher {
 		boolean isNodeMatch(@Nonnull CppNode nodeA, @Nonnull CppNode nodeB, @Nonnull Matcher matcher);
 	}
 
 	private interface InternalHasher {
-		int nodeHashcode(@Nonnull CppNode node, @Nonnull Matcher matcher);
+		long nodeHashcode(@Nonnull CppNode node, @Nonnull Matcher matcher);
 	}
 
 	public static final class Wrapper {
 		@Nonnull private final CppNode node;
 		@Nonnull private final MatchLevel level;
 		@Nonnull private final Matcher matcher;
-		private final int hashcode;
+		private final long hashcode;
 
 		public Wrapper(@Nonnull CppNode node, @Nonnull MatchLevel level, @Nonnull Matcher matcher) {
 			this.node = node;
@@ -717,7 +1101,7 @@ public abstract class CppNode implements Iterable<CppNode>, Externalizable {
 
 		@Override
 		public int hashCode() {
-			return hashcode;
+			return Long.hashCode(hashcode);
 		}
 
 		@Override
@@ -733,7 +1117,7 @@ public abstract class CppNode implements Iterable<CppNode>, Externalizable {
 	//region TreeNode
 
 	/**
-	 * Return the root node.
+	 * Return the root node. The root node of a locked node is cached when it is locked, so this never writes.
 	 *
 	 * @return root node
 	 */
@@ -6,8 +6,8 @@ import mrmathami.annotations.Nullable;
 
 import java.io.IOException;
 import java.io.ObjectInput;
-import java.io.ObjectOutput;
 import java.util.List;
+import java.util.Map;
 
 public final class EnumNode extends CppNode implements ITypeContainer, IVariableContainer, ITypedefContainer {
 	private static final long serialVersionUID = -1L;
@@ -58,9 +58,9 @@ public final class EnumNode extends CppNode implements ITypeContainer, IVariable
 	}
 
 	@Override
-	protected int prototypeSimilarHashcode(@Nonnull Matcher matcher) {
-		int result = super.prototypeSimilarHashcode(matcher);
-		result = 31 * result + matcher.nodeHashcode(type, MatchLevel.SIMILAR);
+	protected long prototypeSimilarHashcode(@Nonnull Matcher matcher) {
+		long result = super.prototypeSimilarHashcode(matcher);
+		result = combineHash(result, matcher.nodeHashcode(type, MatchLevel.SIMILAR));
 		return result;
 	}
 
@@ -70,9 +70,9 @@ public final class EnumNode extends CppNode implements ITypeContainer, IVariable
 	}
 
 	@Override
-	protected int prototypeIdenticalHashcode(@Nonnull Matcher matcher) {
-		int result = super.prototypeIdenticalHashcode(matcher);
-		result = 31 * result + matcher.nodeHashcode(type, MatchLevel.SIMILAR);
+	protected long prototypeIdenticalHashcode(@Nonnull Matcher matcher) {
+		long result = super.prototypeIdenticalHashcode(matcher);
+		result = combineHash(result, matcher.nodeHashcode(type, MatchLevel.SIMILAR));
 		return result;
 	}
 
@@ -82,9 +82,9 @@ public final class EnumNode extends CppNode implements ITypeContainer, IVariable
 	}
 
 	@Override
-	protected int similarHashcode(@Nonnull Matcher matcher) {
-		int result = super.similarHashcode(matcher);
-		result = 31 * result + matcher.nodeHashcode(type, MatchLevel.SIMILAR);
+	protected long similarHashcode(@Nonnull Matcher matcher) {
+		long result = super.similarHashcode(matcher);
+		result = combineHash(result, matcher.nodeHashcode(type, MatchLevel.SIMILAR));
 		return result;
 	}
 
@@ -95,12 +95,17 @@ public final class EnumNode extends CppNode implements ITypeContainer, IVariable
 	}
 
 	@Override
-	protected int identicalHashcode(@Nonnull Matcher matcher) {
-		int result = super.identicalHashcode(matcher);
-		result = 31 * result + matcher.nodeHashcode(type, MatchLevel.SIMILAR);
+	protected long identicalHashcode(@Nonnull Matcher matcher) {
+		long result = super.identicalHashcode(matcher);
+		result = combineHash(result, matcher.nodeHashcode(type, MatchLevel.SIMILAR));
 		return result;
 	}
 
+	@Override
+	long referenceHash() {
+		return type != null ? combineHash(type.getMatchHash(MatchLevel.IDENTICAL), type.dependencyHash()) : 0;
+	}
+
 	//endregion Node Comparator
 
 	@Override
@@ -117,19 +122,34 @@ public final class EnumNode extends CppNode implements ITypeContainer, IVariable
 	//region Object Helper
 
 	@Override
-	void write(@Nonnull ObjectOutput output) throws IOException {
+	void write(@Nonnull NodeOutput output) throws IOException {
 		super.write(output);
 
-		output.writeObject(type);
+		output.writeNode(type);
 	}
 
 	@Override
-	void read(@Nonnull ObjectInput input) throws IOException, ClassNotFoundException {
+	void read(@Nonnull NodeInput input) throws IOException {
 		super.read(input);
 
+		this.type = input.readNode();
+	}
+
+	@Override
+	void readLegacy(@Nonnull ObjectInput input) throws IOException, ClassNotFoundException {
+		super.readLegacy(input);
+
 		this.type = castNullable(input.readObject(), CppNode.class);
 	}
 
+	@Override
+	void readMapped(@Nonnull MappedTree tree, int index, @Nonnull CppNode[] nodes,
+			@Nonnull Map<DependencyMap, DependencyMap> countsPool) throws IOException {
+		super.readMapped(tree, index, nodes, countsPool);
+
+		this.type = getMappedNullableNode(nodes, tree.getType(index));
+	}
+
 	//endregion Object Helper
 }
 
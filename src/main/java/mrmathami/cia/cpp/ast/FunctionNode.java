@@ -6,8 +6,8 @@ import mrmathami.annotations.Nullable;
 import mrmathami.utils.Utilities;
 
 import java.io.IOException;
+import java.io.InvalidObjectException;
 import java.io.ObjectInput;
-import java.io.ObjectOutput;
 import java.util.Collections;
 import java.util.Iterator;
 import java.util.LinkedList;
@@ -20,7 +20,8 @@ public final class FunctionNode extends CppNode implements IBodyContainer, IType
 	private static final long serialVersionUID = -1L;
 
 	@Nonnull private transient List<CppNode> parameters = new LinkedList<>();
-	@Nullable private String body;
+	@Nullable private String body; // only used when the node is writable
+	private int bodyHandle = StringTable.NULL_HANDLE;
 	@Nullable private CppNode type;
 
 	public FunctionNode() {
@@ -67,7 +68,7 @@ public final class FunctionNode extends CppNode implements IBodyContainer, IType
 	@Nullable
 	@Override
 	public String getBody() {
-		return body;
+		return isWritable() ? body : getRootBodyTable().getString(bodyHandle);
 	}
 
 	@Internal
@@ -94,6 +95,10 @@ public final class FunctionNode extends CppNode implements IBodyContainer, IType
 		if (type != null) addDependencyTo(type, DependencyType.USE);
 	}
 
+	int getBodyHandle() {
+		return bodyHandle;
+	}
+
 	//endregion Getter & Setter
 
 	//region Containers
@@ -141,10 +146,10 @@ public final class FunctionNode extends CppNode implements IBodyContainer, IType
 	}
 
 	@Override
-	protected int prototypeSimilarHashcode(@Nonnull Matcher matcher) {
-		int result = super.prototypeSimilarHashcode(matcher);
-//		result = 31 * result + matcher.nodeHashcode(type, MatchLevel.SIMILAR);
-		result = 31 * result + parameters.size(); // prototype similar
+	protected long prototypeSimilarHashcode(@Nonnull Matcher matcher) {
+		long result = super.prototypeSimilarHashcode(matcher);
+//		result = combineHash(result, matcher.nodeHashcode(type, MatchLevel.SIMILAR));
+		result = combineHash(result, parameters.size()); // prototype similar
 		return result;
 	}
 
@@ -163,10 +168,10 @@ public final class FunctionNode extends CppNode implements IBodyContainer, IType
 	}
 
 	@Override
-	protected int prototypeIdenticalHashcode(@Nonnull Matcher matcher) {
-		int result = super.prototypeIdenticalHashcode(matcher);
-//		result = 31 * result + matcher.nodeHashcode(type, MatchLevel.SIMILAR);
-		result = 31 * result + parameters.size(); // prototype similar
+	protected long prototypeIdenticalHashcode(@Nonnull Matcher matcher) {
+		long result = super.prototypeIdenticalHashcode(matcher);
+//		result = combineHash(result, matcher.nodeHashcode(type, MatchLevel.SIMILAR));
+		result = combineHash(result, parameters.size()); // prototype similar
 		return result;
 	}
 
@@ -185,10 +190,10 @@ public final class FunctionNode extends CppNode implements IBodyContainer, IType
 	}
 
 	@Override
-	protected int similarHashcode(@Nonnull Matcher matcher) {
-		int result = super.similarHashcode(matcher);
-		result = 31 * result + matcher.nodeHashcode(type, MatchLevel.PROTOTYPE_IDENTICAL);
-		result = 31 * result + parameters.size(); // similar
+	protected long similarHashcode(@Nonnull Matcher matcher) {
+		long result = super.similarHashcode(matcher);
+		result = combineHash(result, matcher.nodeHashcode(type, MatchLevel.PROTOTYPE_IDENTICAL));
+		result = combineHash(result, parameters.size()); // similar
 		return result;
 	}
 
@@ -196,7 +201,7 @@ public final class FunctionNode extends CppNode implements IBodyContainer, IType
 	protected boolean isIdentical(@Nonnull CppNode node, @Nonnull Matcher matcher) {
 		if (!super.isIdentical(node, matcher)) return false;
 		final FunctionNode function = (FunctionNode) node;
-		if (!Objects.equals(body, function.body)
+		if (!isBodyIdentical(function)
 				|| !matcher.isNodeMatch(type, function.type, MatchLevel.PROTOTYPE_IDENTICAL)) {
 			return false;
 		}
@@ -210,22 +215,34 @@ public final class FunctionNode extends CppNode implements IBodyContainer, IType
 	}
 
 	@Override
-	protected int identicalHashcode(@Nonnull Matcher matcher) {
-		int result = super.identicalHashcode(matcher);
-		result = 31 * result + (body != null ? body.hashCode() : 0);
-		result = 31 * result + matcher.nodeHashcode(type, MatchLevel.PROTOTYPE_IDENTICAL);
-		result = 31 * result + parameters.size(); // identical
+	protected long identicalHashcode(@Nonnull Matcher matcher) {
+		long result = super.identicalHashcode(matcher);
+		result = combineHash(result, bodyHash());
+		result = combineHash(result, matcher.nodeHashcode(type, MatchLevel.PROTOTYPE_IDENTICAL));
+		result = combineHash(result, parameters.size()); // identical
 		return result;
 	}
 
+	private boolean isBodyIdentical(@Nonnull FunctionNode function) {
+		return isWritable() || function.isWritable()
+				? Objects.equals(getBody(), function.getBody())
+				: StringTable.isEquals(getRootBodyTable(), bodyHandle, function.getRootBodyTable(), function.bodyHandle);
+	}
+
+	private long bodyHash() {
+		return isWritable() ? StringTable.hash(body) : getRootBodyTable().getHash(bodyHandle);
+	}
+
 	//endregion Node Comparator
 
 	//region TreeNode
 
 	@Override
-	void internalLock(@Nonnull Map<String, String> stringPool, @Nonnull Map<DependencyMap, DependencyMap> countsPool) {
-		super.internalLock(stringPool, countsPool);
-		if (body != null) this.body = stringPool.computeIfAbsent(body, String::toString);
+	void internalLock(@Nonnull StringTable stringTable, @Nonnull StringTable bodyTable,
+			@Nonnull Map<DependencyMap, DependencyMap> countsPool) {
+		super.internalLock(stringTable, bodyTable, countsPool);
+		this.bodyHandle = bodyTable.intern(body);
+		this.body = null;
 		this.parameters = List.copyOf(parameters);
 	}
 
@@ -252,6 +269,7 @@ public final class FunctionNode extends CppNode implements IBodyContainer, IType
 				.append(", \"type\": ").append(type)
 				.append(", \"parameters\": ").append(Utilities.collectionToString(parameters))
 				.append(", \"body\": ");
+		final String body = getBody();
 		if (body != null) {
 			builder.append("\"");
 			escapeBody(builder, body);
@@ -265,29 +283,59 @@ public final class FunctionNode extends CppNode implements IBodyContainer, IType
 	//region Object Helper
 
 	@Override
-	void write(@Nonnull ObjectOutput output) throws IOException {
+	void write(@Nonnull NodeOutput output) throws IOException {
 		super.write(output);
 
-		output.writeObject(body);
-		output.writeObject(type);
+		output.writeVarInt(bodyHandle + 1);
+		output.writeNode(type);
 
-		output.writeInt(parameters.size());
+		output.writeVarInt(parameters.size());
 		for (final CppNode parameter : parameters) {
-			output.writeObject(parameter);
+			output.writeNode(parameter);
 		}
 	}
 
 	@Override
-	void read(@Nonnull ObjectInput input) throws IOException, ClassNotFoundException {
+	void read(@Nonnull NodeInput input) throws IOException {
 		super.read(input);
 
+		this.bodyHandle = readBodyHandle(input);
+		this.type = input.readNode();
+
+		final int parametersSize = input.readVarInt();
+		final CppNode[] parameters = new CppNode[parametersSize];
+		for (int i = 0; i < parametersSize; i++) {
+			parameters[i] = input.readNonnullNode();
+		}
+		this.parameters = List.of(parameters);
+	}
+
+	@Override
+	void readLegacy(@Nonnull ObjectInput input) throws IOException, ClassNotFoundException {
+		super.readLegacy(input);
+
 		this.body = castNullable(input.readObject(), String.class);
 		this.type = castNullable(input.readObject(), CppNode.class);
 
 		final int parametersSize = input.readInt();
-		final CppNode[] parameters = new CppNode[parametersSize];
+		if (parametersSize < 0) throw new InvalidObjectException("Invalid parameters count!");
 		for (int i = 0; i < parametersSize; i++) {
-			parameters[i] = castNonnull(input.readObject(), CppNode.class);
+			parameters.add(castNonnull(input.readObject(), CppNode.class));
+		}
+	}
+
+	@Override
+	void readMapped(@Nonnull MappedTree tree, int index, @Nonnull CppNode[] nodes,
+			@Nonnull Map<DependencyMap, DependencyMap> countsPool) throws IOException {
+		super.readMapped(tree, index, nodes, countsPool);
+
+		this.bodyHandle = checkBodyHandle(tree.getBodyHandle(index));
+		this.type = getMappedNullableNode(nodes, tree.getType(index));
+
+		final int[] parameterIndexes = tree.getParameters(index);
+		final CppNode[] parameters = new CppNode[parameterIndexes.length];
+		for (int i = 0; i < parameterIndexes.length; i++) {
+			parameters[i] = getMappedNode(nodes, parameterIndexes[i]);
 		}
 		this.parameters = List.of(parameters);
 	}
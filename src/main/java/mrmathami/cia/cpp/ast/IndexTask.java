@@ -0,0 +1,61 @@
+package mrmathami.cia.cpp.ast;
+
+import mrmathami.annotations.Nonnull;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Fork-join task running an action on every index of a range, splitting the range between the threads of a pool.
+ */
+final class IndexTask extends RecursiveAction {
+	private static final long serialVersionUID = -1L;
+
+	@Nonnull private final Action action;
+	private final int start;
+	private final int end;
+
+	private IndexTask(@Nonnull Action action, int start, int end) {
+		this.action = action;
+		this.start = start;
+		this.end = end;
+	}
+
+	/**
+	 * Run the action on every index from 0 to count and wait for all of them.
+	 *
+	 * @param pool the pool
+	 * @param count number of indexes
+	 * @param action the action
+	 * @throws IOException the first error thrown by the action
+	 */
+	static void invoke(@Nonnull ForkJoinPool pool, int count, @Nonnull Action action) throws IOException {
+		if (count <= 0) return;
+		try {
+			pool.invoke(new IndexTask(action, 0, count));
+		} catch (UncheckedIOException exception) {
+			throw exception.getCause();
+		}
+	}
+
+	@Override
+	protected void compute() {
+		if (end - start > 1) {
+			final int middle = (start + end) >>> 1;
+			invokeAll(new IndexTask(action, start, middle), new IndexTask(action, middle, end));
+		} else {
+			try {
+				action.run(start);
+			} catch (IOException exception) {
+				throw new UncheckedIOException(exception);
+			}
+		}
+	}
+
+	@FunctionalInterface
+	interface Action {
+		void run(int index) throws IOException;
+	}
+}
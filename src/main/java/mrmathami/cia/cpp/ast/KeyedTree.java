@@ -0,0 +1,454 @@
+package mrmathami.cia.cpp.ast;
+
+import mrmathami.annotations.Nonnull;
+import mrmathami.annotations.Nullable;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InvalidObjectException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * A locked tree flattened into one record per node, keyed by the stable identity of the node: its class, unique name,
+ * signature and its occurrence among the nodes with the same ones. Nodes of different versions with the same key are
+ * the same node, so two versions can be stored as the records of one of them and the records that differ.
+ * <p>
+ * The references of a record to other nodes are keys, so a record only changes when the node itself changes.
+ */
+public final class KeyedTree {
+	@Nonnull private final Map<Integer, byte[]> records;
+	private final int rootKey;
+
+	private KeyedTree(@Nonnull Map<Integer, byte[]> records, int rootKey) {
+		this.records = records;
+		this.rootKey = rootKey;
+	}
+
+	/**
+	 * Flatten a locked tree.
+	 *
+	 * @param rootNode the root node
+	 * @param weights weight of each node, stored with it
+	 * @param keys the keys shared by all versions, new keys are added to it
+	 * @return the flattened tree
+	 * @throws IOException if the tree is not locked
+	 */
+	@Nonnull
+	public static KeyedTree of(@Nonnull RootNode rootNode, @Nonnull Map<CppNode, Double> weights,
+			@Nonnull Keys keys) throws IOException {
+		if (rootNode.isWritable()) throw new IOException("Only locked RootNode can be flattened!");
+		final Map<CppNode, Integer> nodeKeys = new IdentityHashMap<>();
+		final Map<Key, Integer> occurrences = new HashMap<>();
+		nodeKeys.put(rootNode, keys.intern(new Key(-1, rootNode.getUniqueName(), rootNode.getSignature(), 0)));
+		for (final CppNode node : rootNode) {
+			final Key key = new Key(RootNode.NODE_CLASSES.indexOf(node.getClass()), node.getUniqueName(),
+					node.getSignature(), 0);
+			final int occurrence = occurrences.merge(key, 1, Integer::sum) - 1;
+			nodeKeys.put(node, keys.intern(occurrence == 0 ? key
+					: new Key(key.nodeClass, key.uniqueName, key.signature, occurrence)));
+		}
+
+		final Map<Integer, byte[]> records = new HashMap<>();
+		final ByteArrayOutputStream recordBytes = new ByteArrayOutputStream();
+		final DataOutputStream output = new DataOutputStream(recordBytes);
+		for (final Map.Entry<CppNode, Integer> entry : nodeKeys.entrySet()) {
+			recordBytes.reset();
+			writeRecord(output, entry.getKey(), nodeKeys, weights);
+			output.flush();
+			records.put(entry.getValue(), recordBytes.toByteArray());
+		}
+		return new KeyedTree(records, nodeKeys.get(rootNode));
+	}
+
+	private static void writeRecord(@Nonnull DataOutput output, @Nonnull CppNode node,
+			@Nonnull Map<CppNode, Integer> nodeKeys, @Nonnull Map<CppNode, Double> weights) throws IOException {
+		NodeOutput.writeVarInt(output, node.getId());
+		output.writeDouble(weights.getOrDefault(node, 0.0));
+		writeString(output, node.getName());
+		writeString(output, node instanceof IBodyContainer ? ((IBodyContainer) node).getBody() : null);
+		final CppNode type = node instanceof ITypeContainer ? ((ITypeContainer) node).getType() : null;
+		NodeOutput.writeVarInt(output, type != null ? nodeKeys.get(type) + 1 : 0);
+		writeKeys(output, node.getChildren(), nodeKeys);
+		writeKeys(output, node instanceof ClassNode ? ((ClassNode) node).getBases()
+				: node instanceof FunctionNode ? ((FunctionNode) node).getParameters() : List.of(), nodeKeys);
+
+		// sorted by key, so that the same dependencies always give the same record
+		final Collection<CppNode> dependencies = node.getAllDependencyTo();
+		final long[] sortedDependencies = new long[dependencies.size()];
+		final int[][] dependencyCounts = new int[sortedDependencies.length][];
+		int size = 0;
+		for (final CppNode dependency : dependencies) {
+			dependencyCounts[size] = node.getNodeDependencyTo(dependency).getDependencies();
+			sortedDependencies[size] = (long) nodeKeys.get(dependency) << 32 | size;
+			size += 1;
+		}
+		Arrays.sort(sortedDependencies);
+		NodeOutput.writeVarInt(output, size);
+		for (final long dependency : sortedDependencies) {
+			NodeOutput.writeVarInt(output, (int) (dependency >>> 32));
+			for (final int count : dependencyCounts[(int) dependency]) NodeOutput.writeVarInt(output, count);
+		}
+
+		if (node instanceof RootNode) NodeOutput.writeVarInt(output, ((RootNode) node).getNodeCount());
+	}
+
+	private static void writeKeys(@Nonnull DataOutput output, @Nonnull Collection<CppNode> nodes,
+			@Nonnull Map<CppNode, Integer> nodeKeys) throws IOException {
+		NodeOutput.writeVarInt(output, nodes.size());
+		for (final CppNode node : nodes) NodeOutput.writeVarInt(output, nodeKeys.get(node));
+	}
+
+	private static void writeString(@Nonnull DataOutput output, @Nullable String string) throws IOException {
+		if (string == null) {
+			NodeOutput.writeVarInt(output, 0);
+		} else {
+			final byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+			NodeOutput.writeVarInt(output, bytes.length + 1);
+			output.write(bytes);
+		}
+	}
+
+	@Nullable
+	private static String readString(@Nonnull DataInput input) throws IOException {
+		final int length = NodeInput.readVarInt(input) - 1;
+		if (length < 0) return null;
+		final byte[] bytes = new byte[length];
+		input.readFully(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	@Nonnull
+	private static String readNonnullString(@Nonnull DataInput input) throws IOException {
+		final String string = readString(input);
+		if (string == null) throw new InvalidObjectException("Expecting a string!");
+		return string;
+	}
+
+	//region Full & Delta
+
+	public int size() {
+		return records.size();
+	}
+
+	/**
+	 * Write all the records.
+	 *
+	 * @param output the output
+	 * @throws IOException if an I/O error occurs
+	 */
+	public void write(@Nonnull DataOutput output) throws IOException {
+		NodeOutput.writeVarInt(output, rootKey);
+		NodeOutput.writeVarInt(output, records.size());
+		for (final Map.Entry<Integer, byte[]> entry : records.entrySet()) {
+			NodeOutput.writeVarInt(output, entry.getKey());
+			NodeOutput.writeVarInt(output, entry.getValue().length);
+			output.write(entry.getValue());
+		}
+	}
+
+	@Nonnull
+	public static KeyedTree read(@Nonnull DataInput input) throws IOException {
+		final int rootKey = NodeInput.readVarInt(input);
+		final Map<Integer, byte[]> records = new HashMap<>();
+		readRecords(input, records);
+		return new KeyedTree(records, rootKey);
+	}
+
+	private static void readRecords(@Nonnull DataInput input, @Nonnull Map<Integer, byte[]> records)
+			throws IOException {
+		final int size = NodeInput.readVarInt(input);
+		for (int i = 0; i < size; i++) {
+			final int key = NodeInput.readVarInt(input);
+			final byte[] record = new byte[NodeInput.readVarInt(input)];
+			input.readFully(record);
+			records.put(key, record);
+		}
+	}
+
+	/**
+	 * Write the changes from a previous tree to this tree: the keys of the removed nodes, then the records of the added
+	 * and changed nodes.
+	 *
+	 * @param previousTree the previous tree
+	 * @param output the output
+	 * @throws IOException if an I/O error occurs
+	 */
+	public void writeDelta(@Nonnull KeyedTree previousTree, @Nonnull DataOutput output) throws IOException {
+		final List<Integer> removedKeys = new ArrayList<>();
+		for (final Integer key : previousTree.records.keySet()) {
+			if (!records.containsKey(key)) removedKeys.add(key);
+		}
+		final List<Map.Entry<Integer, byte[]>> changedRecords = new ArrayList<>();
+		for (final Map.Entry<Integer, byte[]> entry : records.entrySet()) {
+			if (!Arrays.equals(entry.getValue(), previousTree.records.get(entry.getKey()))) changedRecords.add(entry);
+		}
+
+		NodeOutput.writeVarInt(output, rootKey);
+		NodeOutput.writeVarInt(output, removedKeys.size());
+		for (final Integer key : removedKeys) NodeOutput.writeVarInt(output, key);
+		NodeOutput.writeVarInt(output, changedRecords.size());
+		for (final Map.Entry<Integer, byte[]> entry : changedRecords) {
+			NodeOutput.writeVarInt(output, entry.getKey());
+			NodeOutput.writeVarInt(output, entry.getValue().length);
+			output.write(entry.getValue());
+		}
+	}
+
+	/**
+	 * Read the changes written by {@link #writeDelta} and apply them to this tree.
+	 *
+	 * @param input the input
+	 * @return the changed tree
+	 * @throws IOException if the input is not a delta, or an I/O error occurs
+	 */
+	@Nonnull
+	public KeyedTree readDelta(@Nonnull DataInput input) throws IOException {
+		final int rootKey = NodeInput.readVarInt(input);
+		final Map<Integer, byte[]> newRecords = new HashMap<>(records);
+		final int removedSize = NodeInput.readVarInt(input);
+		for (int i = 0; i < removedSize; i++) {
+			if (newRecords.remove(NodeInput.readVarInt(input)) == null) {
+				throw new InvalidObjectException("Removing a node that does not exist!");
+			}
+		}
+		readRecords(input, newRecords);
+		return new KeyedTree(newRecords, rootKey);
+	}
+
+	//endregion Full & Delta
+
+	//region Reconstruction
+
+	/**
+	 * Create the locked tree.
+	 *
+	 * @param keys the keys shared by all versions
+	 * @return the root node
+	 * @throws IOException if the records do not make a valid tree
+	 */
+	@Nonnull
+	public RootNode toRootNode(@Nonnull Keys keys) throws IOException {
+		final Map<Integer, CppNode> nodes = new HashMap<>();
+		final Map<Integer, NodeRecord> nodeRecords = new HashMap<>();
+		for (final Map.Entry<Integer, byte[]> entry : records.entrySet()) {
+			final int key = entry.getKey();
+			final Key nodeKey = keys.get(key);
+			final CppNode node = key == rootKey ? new RootNode() : RootNode.createNode(nodeKey.nodeClass);
+			final NodeRecord record = NodeRecord.read(entry.getValue(), node instanceof RootNode);
+			node.setId(record.id);
+			node.setName(record.name);
+			node.setUniqueName(nodeKey.uniqueName);
+			node.setSignature(nodeKey.signature);
+			nodes.put(key, node);
+			nodeRecords.put(key, record);
+		}
+		final CppNode root = nodes.get(rootKey);
+		if (!(root instanceof RootNode)) throw new InvalidObjectException("Invalid root node!");
+		final RootNode rootNode = (RootNode) root;
+
+		// children from the top, so every node is added to the tree only once
+		final Deque<Integer> queue = new ArrayDeque<>(List.of(rootKey));
+		int nodeCount = 1;
+		while (!queue.isEmpty()) {
+			final int key = queue.poll();
+			final CppNode node = nodes.get(key);
+			for (final int childKey : nodeRecords.get(key).children) {
+				final CppNode child = getNode(nodes, childKey);
+				if (child.getParent() != null || child == rootNode) throw new InvalidObjectException("Node has two parents!");
+				node.addChild(child);
+				queue.add(childKey);
+				nodeCount += 1;
+			}
+		}
+		if (nodeCount != nodes.size()) throw new InvalidObjectException("Node is not in the tree!");
+
+		for (final Map.Entry<Integer, NodeRecord> entry : nodeRecords.entrySet()) {
+			final CppNode node = nodes.get(entry.getKey());
+			final NodeRecord record = entry.getValue();
+			if (node instanceof IBodyContainer) ((IBodyContainer) node).setBody(record.body);
+			if (node instanceof ITypeContainer && record.type >= 0) {
+				((ITypeContainer) node).setType(getNode(nodes, record.type));
+			}
+			for (final int extra : record.extras) {
+				if (node instanceof ClassNode) {
+					((ClassNode) node).addBase(getNode(nodes, extra));
+				} else if (node instanceof FunctionNode) {
+					((FunctionNode) node).addParameter(getNode(nodes, extra));
+				}
+			}
+		}
+		// the dependencies are stored as they are, including the ones added with the types, bases and parameters
+		for (final Map.Entry<Integer, NodeRecord> entry : nodeRecords.entrySet()) {
+			final CppNode node = nodes.get(entry.getKey());
+			final NodeRecord record = entry.getValue();
+			node.removeAllDependencyTo();
+			for (int i = 0; i < record.dependencies.length; i++) {
+				node.addNodeDependencyTo(getNode(nodes, record.dependencies[i]),
+						new DependencyMap(record.dependencyCounts[i]));
+			}
+		}
+		rootNode.setNodeCount(nodeRecords.get(rootKey).nodeCount);
+		rootNode.lock();
+		return rootNode;
+	}
+
+	/**
+	 * @param length length of the weight array
+	 * @return weight of each node, by its id
+	 * @throws IOException if an id is out of the array
+	 */
+	@Nonnull
+	public double[] toWeights(int length) throws IOException {
+		final double[] weights = new double[length];
+		for (final Map.Entry<Integer, byte[]> entry : records.entrySet()) {
+			final NodeRecord record = NodeRecord.read(entry.getValue(), entry.getKey() == rootKey);
+			if (record.id < 0 || record.id >= length) throw new InvalidObjectException("Invalid node id!");
+			weights[record.id] = record.weight;
+		}
+		return weights;
+	}
+
+	@Nonnull
+	private static CppNode getNode(@Nonnull Map<Integer, CppNode> nodes, int key) throws InvalidObjectException {
+		final CppNode node = nodes.get(key);
+		if (node == null) throw new InvalidObjectException("Invalid node key!");
+		return node;
+	}
+
+	private static final class NodeRecord {
+		private int id;
+		private double weight;
+		@Nonnull private String name = "";
+		@Nullable private String body;
+		private int type;
+		@Nonnull private int[] children = new int[0];
+		@Nonnull private int[] extras = new int[0];
+		@Nonnull private int[] dependencies = new int[0];
+		@Nonnull private int[][] dependencyCounts = new int[0][];
+		private int nodeCount;
+
+		@Nonnull
+		static NodeRecord read(@Nonnull byte[] bytes, boolean isRoot) throws IOException {
+			final DataInputStream input = new DataInputStream(new ByteArrayInputStream(bytes));
+			final NodeRecord record = new NodeRecord();
+			record.id = NodeInput.readVarInt(input);
+			record.weight = input.readDouble();
+			record.name = readNonnullString(input);
+			record.body = readString(input);
+			record.type = NodeInput.readVarInt(input) - 1;
+			record.children = readKeys(input);
+			record.extras = readKeys(input);
+			final int size = NodeInput.readVarInt(input);
+			record.dependencies = new int[size];
+			record.dependencyCounts = new int[size][];
+			for (int i = 0; i < size; i++) {
+				record.dependencies[i] = NodeInput.readVarInt(input);
+				final int[] counts = new int[DependencyType.values.size()];
+				for (int type = 0; type < counts.length; type++) counts[type] = NodeInput.readVarInt(input);
+				record.dependencyCounts[i] = counts;
+			}
+			if (isRoot) record.nodeCount = NodeInput.readVarInt(input);
+			return record;
+		}
+
+		@Nonnull
+		private static int[] readKeys(@Nonnull DataInput input) throws IOException {
+			final int[] keys = new int[NodeInput.readVarInt(input)];
+			for (int i = 0; i < keys.length; i++) keys[i] = NodeInput.readVarInt(input);
+			return keys;
+		}
+	}
+
+	//endregion Reconstruction
+
+	private static final class Key {
+		private final int nodeClass; // -1 for the root node
+		@Nonnull private final String uniqueName;
+		@Nonnull private final String signature;
+		private final int occurrence;
+
+		Key(int nodeClass, @Nonnull String uniqueName, @Nonnull String signature, int occurrence) {
+			this.nodeClass = nodeClass;
+			this.uniqueName = uniqueName;
+			this.signature = signature;
+			this.occurrence = occurrence;
+		}
+
+		@Override
+		public boolean equals(@Nullable Object object) {
+			if (this == object) return true;
+			if (!(object instanceof Key)) return false;
+			final Key key = (Key) object;
+			return nodeClass == key.nodeClass && occurrence == key.occurrence
+					&& uniqueName.equals(key.uniqueName) && signature.equals(key.signature);
+		}
+
+		@Override
+		public int hashCode() {
+			return Objects.hash(nodeClass, uniqueName, signature, occurrence);
+		}
+	}
+
+	/**
+	 * Append-only table of node keys, shared by all the versions of a project. Not thread-safe.
+	 */
+	public static final class Keys {
+		@Nonnull private final List<Key> keys = new ArrayList<>();
+		@Nonnull private final Map<Key, Integer> keyIndexes = new HashMap<>();
+
+		private int intern(@Nonnull Key key) {
+			final Integer index = keyIndexes.get(key);
+			if (index != null) return index;
+			keys.add(key);
+			keyIndexes.put(key, keys.size() - 1);
+			return keys.size() - 1;
+		}
+
+		@Nonnull
+		private Key get(int index) throws InvalidObjectException {
+			if (index < 0 || index >= keys.size()) throw new InvalidObjectException("Invalid node key!");
+			return keys.get(index);
+		}
+
+		public int size() {
+			return keys.size();
+		}
+
+		public void write(@Nonnull DataOutput output) throws IOException {
+			NodeOutput.writeVarInt(output, keys.size());
+			for (final Key key : keys) {
+				NodeOutput.writeVarInt(output, key.nodeClass + 1);
+				writeString(output, key.uniqueName);
+				writeString(output, key.signature);
+				NodeOutput.writeVarInt(output, key.occurrence);
+			}
+		}
+
+		@Nonnull
+		public static Keys read(@Nonnull DataInput input) throws IOException {
+			final Keys keys = new Keys();
+			final int size = NodeInput.readVarInt(input);
+			for (int i = 0; i < size; i++) {
+				final Key key = new Key(NodeInput.readVarInt(input) - 1, readNonnullString(input),
+						readNonnullString(input), NodeInput.readVarInt(input));
+				if (keys.intern(key) != i) throw new InvalidObjectException("Duplicated node key!");
+			}
+			return keys;
+		}
+	}
+}
@@ -0,0 +1,512 @@
+package mrmathami.cia.cpp.ast;
+
+import mrmathami.annotations.Internal;
+import mrmathami.annotations.Nonnull;
+import mrmathami.annotations.Nullable;
+
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.InvalidObjectException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.StreamSupport;
+
+/**
+ * Read-only view of a locked tree stored in the mapped layout, which is made to be read directly from a memory mapped
+ * file. Nodes are referred to by their index, the root node is 0 and the other nodes follow in pre-order. Every query
+ * is answered from the buffer without creating any node, {@link #toRootNode} creates the whole tree when needed.
+ * <p>
+ * The layout is a header, the fixed-width node records, the node references, the fixed-width edge records, then the
+ * name table and the body table, each of them with an offset index. All values are big-endian. The view is immutable
+ * and safe to be shared between threads.
+ */
+public final class MappedTree {
+	private static final int HEADER_SIZE = Integer.BYTES * 4;
+
+	//region Node record
+	private static final int NODE_CLASS = 0; // -1 for the root node
+	private static final int NODE_ID = 4;
+	private static final int NODE_PARENT = 8; // -1 for the root node
+	private static final int NODE_NAME = 12;
+	private static final int NODE_UNIQUE_NAME = 16;
+	private static final int NODE_SIGNATURE = 20;
+	private static final int NODE_BODY = 24;
+	private static final int NODE_TYPE = 28;
+	private static final int NODE_CHILDREN = 32; // reference start, reference count
+	private static final int NODE_EXTRAS = 40; // reference start, reference count of the bases or parameters
+	private static final int NODE_DEPENDENCY_FROM = 48; // edge start, edge count
+	private static final int NODE_DEPENDENCY_TO = 56; // edge start, edge count
+	private static final int NODE_MATCH_HASHES = 64;
+	private static final int NODE_SUBTREE_HASH = NODE_MATCH_HASHES + Long.BYTES * CppNode.MatchLevel.values.length;
+	private static final int NODE_SIZE = NODE_SUBTREE_HASH + Long.BYTES;
+	//endregion Node record
+
+	// node index, then the count of each dependency type
+	private static final int EDGE_SIZE = Integer.BYTES * (1 + DependencyType.values.size());
+
+	@Nonnull private final ByteBuffer buffer;
+	private final int nodeCount;
+	private final int referencePosition;
+	private final int edgePosition;
+	@Nonnull private final Strings names;
+	@Nonnull private final Strings bodies;
+
+	private MappedTree(@Nonnull ByteBuffer buffer, int nodeCount, int referencePosition, int edgePosition,
+			@Nonnull Strings names, @Nonnull Strings bodies) {
+		this.buffer = buffer;
+		this.nodeCount = nodeCount;
+		this.referencePosition = referencePosition;
+		this.edgePosition = edgePosition;
+		this.names = names;
+		this.bodies = bodies;
+	}
+
+	/**
+	 * Create a view of a tree written by {@link #write}, starting at the current position of the buffer.
+	 *
+	 * @param buffer the buffer, usually a mapped file
+	 * @return the view
+	 * @throws IOException if the buffer does not contain a tree
+	 */
+	@Nonnull
+	public static MappedTree of(@Nonnull ByteBuffer buffer) throws IOException {
+		final ByteBuffer slice = buffer.slice().asReadOnlyBuffer();
+		if (slice.limit() < HEADER_SIZE) throw new InvalidObjectException("Invalid mapped tree!");
+		final int nodeCount = slice.getInt(0);
+		final int referenceCount = slice.getInt(Integer.BYTES * 2);
+		final int edgeCount = slice.getInt(Integer.BYTES * 3);
+		if (nodeCount <= 0 || referenceCount < 0 || edgeCount < 0) throw new InvalidObjectException("Invalid mapped tree!");
+
+		final long referencePosition = HEADER_SIZE + (long) nodeCount * NODE_SIZE;
+		final long edgePosition = referencePosition + (long) referenceCount * Integer.BYTES;
+		final long namePosition = edgePosition + (long) edgeCount * EDGE_SIZE;
+		if (namePosition > slice.limit()) throw new InvalidObjectException("Invalid mapped tree!");
+		final Strings names = Strings.of(slice, (int) namePosition);
+		final Strings bodies = Strings.of(slice, names.end);
+		return new MappedTree(slice, nodeCount, (int) referencePosition, (int) edgePosition, names, bodies);
+	}
+
+	//region Writer
+
+	/**
+	 * Write a locked tree in the mapped layout.
+	 *
+	 * @param rootNode the root node
+	 * @param output the output
+	 * @throws IOException if the tree is not locked, or an I/O error occurs
+	 */
+	@Internal
+	public static void write(@Nonnull RootNode rootNode, @Nonnull DataOutput output) throws IOException {
+		if (rootNode.isWritable()) throw new IOException("Only locked RootNode is Serializable!");
+		final CppNode[] nodes = StreamSupport.stream(rootNode.spliterator(), false).toArray(CppNode[]::new);
+		final NodeOutput indexes = new NodeOutput(output, rootNode, nodes);
+		final CppNode[] allNodes = new CppNode[nodes.length + 1];
+		allNodes[0] = rootNode;
+		System.arraycopy(nodes, 0, allNodes, 1, nodes.length);
+
+		int referenceCount = 0;
+		int edgeCount = 0;
+		for (final CppNode node : allNodes) {
+			referenceCount += node.getChildren().size() + getExtras(node).size();
+			edgeCount += node.getAllDependencyFrom().size() + node.getAllDependencyTo().size();
+		}
+		output.writeInt(allNodes.length);
+		output.writeInt(rootNode.getNodeCount());
+		output.writeInt(referenceCount);
+		output.writeInt(edgeCount);
+
+		final StringTable stringTable = rootNode.getStringTable();
+		int referenceStart = 0;
+		int edgeStart = 0;
+		for (final CppNode node : allNodes) {
+			final CppNode parent = node.getParent();
+			final CppNode type = node instanceof ITypeContainer ? ((ITypeContainer) node).getType() : null;
+			final int childrenSize = node.getChildren().size();
+			final int extrasSize = getExtras(node).size();
+			final int dependencyFromSize = node.getAllDependencyFrom().size();
+			final int dependencyToSize = node.getAllDependencyTo().size();
+
+			output.writeInt(node != rootNode ? RootNode.NODE_CLASSES.indexOf(node.getClass()) : -1);
+			output.writeInt(node.getId());
+			output.writeInt(parent != null ? indexes.indexOf(parent) : -1);
+			output.writeInt(stringTable.getHandle(node.getName()));
+			output.writeInt(stringTable.getHandle(node.getUniqueName()));
+			output.writeInt(stringTable.getHandle(node.getSignature()));
+			output.writeInt(getBodyHandle(node));
+			output.writeInt(type != null ? indexes.indexOf(type) : -1);
+			output.writeInt(referenceStart);
+			output.writeInt(childrenSize);
+			output.writeInt(referenceStart + childrenSize);
+			output.writeInt(extrasSize);
+			output.writeInt(edgeStart);
+			output.writeInt(dependencyFromSize);
+			output.writeInt(edgeStart + dependencyFromSize);
+			output.writeInt(dependencyToSize);
+			for (final CppNode.MatchLevel level : CppNode.MatchLevel.values) output.writeLong(node.getMatchHash(level));
+			output.writeLong(node.getSubtreeHash());
+			referenceStart += childrenSize + extrasSize;
+			edgeStart += dependencyFromSize + dependencyToSize;
+		}
+
+		for (final CppNode node : allNodes) {
+			for (final CppNode child : node.getChildren()) output.writeInt(indexes.indexOf(child));
+			for (final CppNode extra : getExtras(node)) output.writeInt(indexes.indexOf(extra));
+		}
+
+		for (final CppNode node : allNodes) {
+			writeEdges(output, indexes, node.getAllDependencyFrom(), node::getNodeDependencyFrom);
+			writeEdges(output, indexes, node.getAllDependencyTo(), node::getNodeDependencyTo);
+		}
+
+		stringTable.writeMapped(output);
+		rootNode.getBodyTable().writeMapped(output);
+	}
+
+	@Nonnull
+	private static Collection<CppNode> getExtras(@Nonnull CppNode node) {
+		if (node instanceof ClassNode) return ((ClassNode) node).getBases();
+		if (node instanceof FunctionNode) return ((FunctionNode) node).getParameters();
+		return List.of();
+	}
+
+	private static int getBodyHandle(@Nonnull CppNode node) {
+		if (node instanceof FunctionNode) return ((FunctionNode) node).getBodyHandle();
+		if (node instanceof VariableNode) return ((VariableNode) node).getBodyHandle();
+		return StringTable.NULL_HANDLE;
+	}
+
+	private interface DependencyGetter {
+		@Nonnull
+		DependencyMap get(@Nonnull CppNode node);
+	}
+
+	/**
+	 * Edges are sorted by node index, so a single edge can be found using binary search.
+	 */
+	private static void writeEdges(@Nonnull DataOutput output, @Nonnull NodeOutput indexes,
+			@Nonnull Collection<CppNode> nodes, @Nonnull DependencyGetter getter) throws IOException {
+		final long[] edges = new long[nodes.size()];
+		final int[][] edgeCounts = new int[edges.length][];
+		int size = 0;
+		for (final CppNode node : nodes) {
+			edgeCounts[size] = getter.get(node).getDependencies();
+			edges[size] = (long) indexes.indexOf(node) << 32 | size;
+			size += 1;
+		}
+		Arrays.sort(edges);
+		for (final long edge : edges) {
+			output.writeInt((int) (edge >>> 32));
+			for (final int count : edgeCounts[(int) edge]) output.writeInt(count);
+		}
+	}
+
+	//endregion Writer
+
+	//region Queries
+
+	/**
+	 * @return the number of nodes, including the root node
+	 */
+	public int getNodeCount() {
+		return nodeCount;
+	}
+
+	@Nonnull
+	public Class<? extends CppNode> getNodeClass(int index) {
+		final int nodeClass = getNodeInt(index, NODE_CLASS);
+		return nodeClass >= 0 ? RootNode.NODE_CLASSES.get(nodeClass) : RootNode.class;
+	}
+
+	public int getId(int index) {
+		return getNodeInt(index, NODE_ID);
+	}
+
+	/**
+	 * @return index of the parent, or -1 for the root node
+	 */
+	public int getParent(int index) {
+		return getNodeInt(index, NODE_PARENT);
+	}
+
+	@Nonnull
+	public String getName(int index) {
+		return names.getString(getNodeInt(index, NODE_NAME));
+	}
+
+	@Nonnull
+	public String getUniqueName(int index) {
+		return names.getString(getNodeInt(index, NODE_UNIQUE_NAME));
+	}
+
+	@Nonnull
+	public String getSignature(int index) {
+		return names.getString(getNodeInt(index, NODE_SIGNATURE));
+	}
+
+	@Nullable
+	public String getBody(int index) {
+		final int handle = getNodeInt(index, NODE_BODY);
+		return handle != StringTable.NULL_HANDLE ? bodies.getString(handle) : null;
+	}
+
+	/**
+	 * @return index of the type, or -1 if there is none
+	 */
+	public int getType(int index) {
+		return getNodeInt(index, NODE_TYPE);
+	}
+
+	@Nonnull
+	public int[] getChildren(int index) {
+		return getReferences(index, NODE_CHILDREN);
+	}
+
+	/**
+	 * @return indexes of the bases of a class node, or empty for other nodes
+	 */
+	@Nonnull
+	public int[] getBases(int index) {
+		return getNodeClass(index) == ClassNode.class ? getReferences(index, NODE_EXTRAS) : new int[0];
+	}
+
+	/**
+	 * @return indexes of the parameters of a function node, or empty for other nodes
+	 */
+	@Nonnull
+	public int[] getParameters(int index) {
+		return getNodeClass(index) == FunctionNode.class ? getReferences(index, NODE_EXTRAS) : new int[0];
+	}
+
+	/**
+	 * @return indexes of the nodes depending on this node, in ascending order
+	 */
+	@Nonnull
+	public int[] getAllDependencyFrom(int index) {
+		return getEdgeNodes(index, NODE_DEPENDENCY_FROM);
+	}
+
+	/**
+	 * @return indexes of the nodes this node depends on, in ascending order
+	 */
+	@Nonnull
+	public int[] getAllDependencyTo(int index) {
+		return getEdgeNodes(index, NODE_DEPENDENCY_TO);
+	}
+
+	public int getDependencyFrom(int index, int fromIndex, @Nonnull DependencyType type) {
+		return getEdgeCount(index, NODE_DEPENDENCY_FROM, fromIndex, type);
+	}
+
+	public int getDependencyTo(int index, int toIndex, @Nonnull DependencyType type) {
+		return getEdgeCount(index, NODE_DEPENDENCY_TO, toIndex, type);
+	}
+
+	public long getMatchHash(int index, @Nonnull CppNode.MatchLevel level) {
+		return buffer.getLong(nodePosition(index) + NODE_MATCH_HASHES + Long.BYTES * level.ordinal());
+	}
+
+	public long getSubtreeHash(int index) {
+		return buffer.getLong(nodePosition(index) + NODE_SUBTREE_HASH);
+	}
+
+	private int nodePosition(int index) {
+		if (index < 0 || index >= nodeCount) throw new IndexOutOfBoundsException("Invalid node index " + index);
+		return HEADER_SIZE + index * NODE_SIZE;
+	}
+
+	private int getNodeInt(int index, int field) {
+		return buffer.getInt(nodePosition(index) + field);
+	}
+
+	@Nonnull
+	private int[] getReferences(int index, int field) {
+		final int start = getNodeInt(index, field);
+		final int[] references = new int[getNodeInt(index, field + Integer.BYTES)];
+		for (int i = 0; i < references.length; i++) {
+			references[i] = buffer.getInt(referencePosition + (start + i) * Integer.BYTES);
+		}
+		return references;
+	}
+
+	@Nonnull
+	private int[] getEdgeNodes(int index, int field) {
+		final int start = getNodeInt(index, field);
+		final int[] edgeNodes = new int[getNodeInt(index, field + Integer.BYTES)];
+		for (int i = 0; i < edgeNodes.length; i++) edgeNodes[i] = buffer.getInt(edgePosition + (start + i) * EDGE_SIZE);
+		return edgeNodes;
+	}
+
+	private int getEdgeCount(int index, int field, int otherIndex, @Nonnull DependencyType type) {
+		final int start = getNodeInt(index, field);
+		int low = 0;
+		int high = getNodeInt(index, field + Integer.BYTES) - 1;
+		while (low <= high) {
+			final int middle = (low + high) >>> 1;
+			final int position = edgePosition + (start + middle) * EDGE_SIZE;
+			final int edgeNode = buffer.getInt(position);
+			if (edgeNode < otherIndex) {
+				low = middle + 1;
+			} else if (edgeNode > otherIndex) {
+				high = middle - 1;
+			} else {
+				return buffer.getInt(position + Integer.BYTES * (1 + type.ordinal()));
+			}
+		}
+		return 0;
+	}
+
+	//endregion Queries
+
+	//region Materialization
+
+	/**
+	 * Create the whole tree. The names are copied to the heap, the bodies are loaded on demand from the buffer.
+	 *
+	 * @param bodyCacheSize maximum number of loaded bodies kept in memory
+	 * @return the locked root node
+	 * @throws IOException if the buffer does not contain a valid tree
+	 */
+	@Nonnull
+	public RootNode toRootNode(int bodyCacheSize) throws IOException {
+		final RootNode rootNode = new RootNode();
+		final CppNode[] nodes = new CppNode[nodeCount];
+		nodes[0] = rootNode;
+		if (getNodeInt(0, NODE_CLASS) != -1 || getParent(0) != -1) throw new InvalidObjectException("Invalid root node!");
+		for (int index = 1; index < nodeCount; index++) {
+			final int nodeClass = getNodeInt(index, NODE_CLASS);
+			if (getParent(index) < 0 || getParent(index) >= index) throw new InvalidObjectException("Invalid node parent!");
+			nodes[index] = RootNode.createNode(nodeClass);
+		}
+		rootNode.setStringTables(names.toStringTable(true),
+				bodies.toLazyStringTable(bodyCacheSize));
+
+		final Map<DependencyMap, DependencyMap> countsPool = new HashMap<>();
+		for (int index = 0; index < nodeCount; index++) nodes[index].readMapped(this, index, nodes, countsPool);
+		for (int index = 1; index < nodeCount; index++) {
+			if (nodes[index].getParent() == null) throw new InvalidObjectException("Node is not in the tree!");
+		}
+		return rootNode;
+	}
+
+	int getRootNodeCount() {
+		return buffer.getInt(Integer.BYTES);
+	}
+
+	int getNameHandle(int index) {
+		return getNodeInt(index, NODE_NAME);
+	}
+
+	int getUniqueNameHandle(int index) {
+		return getNodeInt(index, NODE_UNIQUE_NAME);
+	}
+
+	int getSignatureHandle(int index) {
+		return getNodeInt(index, NODE_SIGNATURE);
+	}
+
+	int getBodyHandle(int index) {
+		return getNodeInt(index, NODE_BODY);
+	}
+
+	/**
+	 * @return the counts of the dependency types of an edge, equal counts share the same array
+	 */
+	@Nonnull
+	int[] getEdgeCounts(int index, boolean dependencyFrom, int edge,
+			@Nonnull Map<DependencyMap, DependencyMap> countsPool) {
+		final int field = dependencyFrom ? NODE_DEPENDENCY_FROM : NODE_DEPENDENCY_TO;
+		final int position = edgePosition + (getNodeInt(index, field) + edge) * EDGE_SIZE + Integer.BYTES;
+		final int[] counts = new int[DependencyType.values.size()];
+		for (int type = 0; type < counts.length; type++) counts[type] = buffer.getInt(position + type * Integer.BYTES);
+		return countsPool.computeIfAbsent(new DependencyMap(counts), DependencyMap::identity).getDependencies();
+	}
+
+	//endregion Materialization
+
+	/**
+	 * A string table section: the entry count, the content length, the offsets, the hashes then the content.
+	 */
+	private static final class Strings {
+		@Nonnull private final ByteBuffer buffer;
+		private final int count;
+		private final int offsetPosition;
+		private final int hashPosition;
+		private final int contentPosition;
+		private final int end;
+
+		private Strings(@Nonnull ByteBuffer buffer, int count, int offsetPosition, int hashPosition,
+				int contentPosition, int end) {
+			this.buffer = buffer;
+			this.count = count;
+			this.offsetPosition = offsetPosition;
+			this.hashPosition = hashPosition;
+			this.contentPosition = contentPosition;
+			this.end = end;
+		}
+
+		@Nonnull
+		static Strings of(@Nonnull ByteBuffer buffer, int position) throws InvalidObjectException {
+			if (position + Integer.BYTES * 2L > buffer.limit()) throw new InvalidObjectException("Invalid string table!");
+			final int count = buffer.getInt(position);
+			final int byteCount = buffer.getInt(position + Integer.BYTES);
+			if (count < 0 || byteCount < 0) throw new InvalidObjectException("Invalid string table!");
+			final long offsetPosition = position + Integer.BYTES * 2L;
+			final long hashPosition = offsetPosition + (count + 1L) * Integer.BYTES;
+			final long contentPosition = hashPosition + (long) count * Long.BYTES;
+			final long end = contentPosition + byteCount;
+			if (end > buffer.limit()) throw new InvalidObjectException("Invalid string table!");
+			return new Strings(buffer, count, (int) offsetPosition, (int) hashPosition, (int) contentPosition, (int) end);
+		}
+
+		private int getOffset(int handle) {
+			return buffer.getInt(offsetPosition + handle * Integer.BYTES);
+		}
+
+		@Nonnull
+		String getString(int handle) {
+			if (handle < 0 || handle >= count) throw new IndexOutOfBoundsException("Invalid string handle " + handle);
+			final int offset = getOffset(handle);
+			return new String(getBytes(offset, getOffset(handle + 1) - offset), StandardCharsets.UTF_8);
+		}
+
+		@Nonnull
+		byte[] getBytes(long offset, int length) throws IndexOutOfBoundsException {
+			if (offset < 0 || length < 0 || contentPosition + offset + length > end) {
+				throw new IndexOutOfBoundsException("Invalid string table content!");
+			}
+			final byte[] bytes = new byte[length];
+			buffer.duplicate().position(contentPosition + (int) offset).get(bytes);
+			return bytes;
+		}
+
+		@Nonnull
+		private StringTable toStringTable(@Nullable byte[] bytes, boolean cacheStrings) throws InvalidObjectException {
+			final int[] offsets = new int[count + 1];
+			final long[] hashes = new long[count];
+			for (int handle = 0; handle < count; handle++) {
+				offsets[handle + 1] = getOffset(handle + 1);
+				hashes[handle] = buffer.getLong(hashPosition + handle * Long.BYTES);
+				if (offsets[handle + 1] < offsets[handle]) throw new InvalidObjectException("Invalid string table!");
+			}
+			if (offsets[count] != end - contentPosition) throw new InvalidObjectException("Invalid string table!");
+			return StringTable.create(bytes, offsets, hashes, count, cacheStrings);
+		}
+
+		@Nonnull
+		StringTable toStringTable(boolean cacheStrings) throws InvalidObjectException {
+			return toStringTable(getBytes(0, end - contentPosition), cacheStrings);
+		}
+
+		@Nonnull
+		StringTable toLazyStringTable(int cacheSize) throws InvalidObjectException {
+			final StringTable table = toStringTable(null, false);
+			table.setLoader(this::getBytes, cacheSize);
+			return table;
+		}
+	}
+}
@@ -0,0 +1,110 @@
+package mrmathami.cia.cpp.ast;
+
+import mrmathami.annotations.Nonnull;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Bounded memo of the match levels of pairs of nodes from two trees, safe to be used by many threads at once. Each
+ * entry is a single long: the pair of nodes packed as the tree and the id of each node, the highest level they are
+ * known to match at and the lowest level they are known not to match at. A pair replaces the one in its slot, so the
+ * memo never grows.
+ */
+final class MatchMemo {
+	static final long NO_KEY = -1L;
+	static final int UNKNOWN = -1;
+
+	private static final int ID_BITS = 28;
+	private static final int NODE_BITS = ID_BITS + 1; // tree + id
+	private static final int LEVEL_BITS = 3; // level + 1, 0 means unknown
+	private static final int LEVEL_MASK = (1 << LEVEL_BITS) - 1;
+	private static final int LEVELS_BITS = LEVEL_BITS * 2;
+	private static final int MIN_SIZE = 64;
+
+	@Nonnull private final CppNode rootA;
+	@Nonnull private final CppNode rootB;
+	@Nonnull private final AtomicLongArray entries;
+	private final int mask;
+
+	/**
+	 * @param rootA root of tree A
+	 * @param rootB root of tree B
+	 * @param maxSize maximum number of pairs, rounded up to a power of two
+	 */
+	MatchMemo(@Nonnull CppNode rootA, @Nonnull CppNode rootB, int maxSize) {
+		if (maxSize <= 0 || maxSize > 1 << 30) throw new IllegalArgumentException("Invalid memo size!");
+		final int size = Math.max(MIN_SIZE, Integer.highestOneBit(maxSize * 2 - 1));
+		this.rootA = rootA;
+		this.rootB = rootB;
+		this.entries = new AtomicLongArray(size);
+		this.mask = size - 1;
+	}
+
+	private long nodeKey(@Nonnull CppNode node) {
+		final int id = node.getId();
+		if (id < 0 || id >= 1 << ID_BITS) return NO_KEY;
+		final CppNode root = node.getRoot();
+		if (root == rootA) return id;
+		if (root == rootB) return 1L << ID_BITS | id;
+		return NO_KEY;
+	}
+
+	/**
+	 * @return the key of the pair, or {@link #NO_KEY} if one of the nodes is not in the two trees
+	 */
+	long keyOf(@Nonnull CppNode nodeA, @Nonnull CppNode nodeB) {
+		final long keyA = nodeKey(nodeA);
+		final long keyB = nodeKey(nodeB);
+		return keyA != NO_KEY && keyB != NO_KEY ? keyA << NODE_BITS | keyB : NO_KEY;
+	}
+
+	private int slotOf(long key) {
+		final long hash = key * 0x9E3779B97F4A7C15L;
+		return (int) (hash ^ (hash >>> 32)) & mask;
+	}
+
+	/**
+	 * @return the known levels of the pair, see {@link #matchedLevel} and {@link #mismatchedLevel}
+	 */
+	int get(long key) {
+		final long entry = entries.get(slotOf(key));
+		return entry != 0 && entry >>> LEVELS_BITS == key ? (int) entry & ((1 << LEVELS_BITS) - 1) : 0;
+	}
+
+	/**
+	 * @return ordinal of the highest level the pair is known to match at, or {@link #UNKNOWN}
+	 */
+	static int matchedLevel(int levels) {
+		return (levels & LEVEL_MASK) - 1;
+	}
+
+	/**
+	 * @return ordinal of the lowest level the pair is known not to match at, or {@link #UNKNOWN}
+	 */
+	static int mismatchedLevel(int levels) {
+		return (levels >>> LEVEL_BITS) - 1;
+	}
+
+	/**
+	 * Record whether the pair matches at the level.
+	 */
+	void put(long key, @Nonnull CppNode.MatchLevel level, boolean match) {
+		final int slot = slotOf(key);
+		final int levelValue = level.ordinal() + 1;
+		while (true) {
+			final long entry = entries.get(slot);
+			final int levels = entry != 0 && entry >>> LEVELS_BITS == key
+					? (int) entry & ((1 << LEVELS_BITS) - 1)
+					: 0; // empty or evicted
+			int matched = levels & LEVEL_MASK;
+			int mismatched = levels >>> LEVEL_BITS;
+			if (match) {
+				matched = Math.max(matched, levelValue);
+			} else {
+				mismatched = mismatched == 0 ? levelValue : Math.min(mismatched, levelValue);
+			}
+			final long newEntry = key << LEVELS_BITS | (long) mismatched << LEVEL_BITS | matched;
+			if (newEntry == entry || entries.compareAndSet(slot, entry, newEntry)) return;
+		}
+	}
+}
@@ -0,0 +1,177 @@
+package mrmathami.cia.cpp.ast;
+
+import mrmathami.annotations.Nonnull;
+import mrmathami.annotations.Nullable;
+
+import java.io.DataInput;
+import java.io.IOException;
+import java.io.InvalidObjectException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Compact binary input of the nodes of a tree, the counterpart of {@link NodeOutput}.
+ */
+final class NodeInput {
+	@Nonnull private final DataInput input;
+	@Nonnull private final CppNode[] nodes; // root node at 0
+	@Nonnull private final Map<DependencyMap, DependencyMap> countsPool = new HashMap<>();
+	@Nullable private final DependencyLinks links; // null to link the dependencies right away
+
+	NodeInput(@Nonnull DataInput input, @Nonnull RootNode rootNode, @Nonnull CppNode[] nodes) {
+		this.input = input;
+		this.nodes = new CppNode[nodes.length + 1];
+		this.nodes[0] = rootNode;
+		System.arraycopy(nodes, 0, this.nodes, 1, nodes.length);
+		this.links = null;
+	}
+
+	/**
+	 * Input of a chunk of nodes, while the other chunks of the same tree are read concurrently. A node read from it
+	 * only modifies itself and the parent of its children, the dependencies to other nodes are kept in the links to be
+	 * linked later.
+	 *
+	 * @param input the input
+	 * @param nodes all nodes of the tree, root node at 0
+	 * @param links the links of the dependencies read from this chunk
+	 */
+	NodeInput(@Nonnull DataInput input, @Nonnull CppNode[] nodes, @Nonnull DependencyLinks links) {
+		this.input = input;
+		this.nodes = nodes;
+		this.links = links;
+	}
+
+	@Nonnull
+	CppNode getRoot() {
+		return nodes[0];
+	}
+
+	long readLong() throws IOException {
+		return input.readLong();
+	}
+
+	int readVarInt() throws IOException {
+		return readVarInt(input);
+	}
+
+	static int readVarInt(@Nonnull DataInput input) throws IOException {
+		int value = 0;
+		for (int shift = 0; shift < Integer.SIZE; shift += 7) {
+			final int b = input.readUnsignedByte();
+			value |= (b & 0x7F) << shift;
+			if ((b & 0x80) == 0) return value;
+		}
+		throw new InvalidObjectException("Invalid variable-length integer!");
+	}
+
+	/**
+	 * @param index index of the node, the root node is 0 and the other nodes follow in pre-order
+	 * @return the node
+	 * @throws InvalidObjectException if the index is invalid
+	 */
+	@Nonnull
+	CppNode getNode(int index) throws InvalidObjectException {
+		if (index < 0 || index >= nodes.length) throw new InvalidObjectException("Invalid node index!");
+		return nodes[index];
+	}
+
+	@Nullable
+	CppNode readNode() throws IOException {
+		final int index = readVarInt();
+		return index != 0 ? getNode(index - 1) : null;
+	}
+
+	@Nonnull
+	CppNode readNonnullNode() throws IOException {
+		final CppNode node = readNode();
+		if (node == null) throw new InvalidObjectException("Expecting a node!");
+		return node;
+	}
+
+	/**
+	 * Read dependency counts written by {@link NodeOutput#writeCounts}. Equal counts share the same array.
+	 *
+	 * @return the dependency counts
+	 * @throws IOException if the input is invalid, or an I/O error occurs
+	 */
+	@Nonnull
+	int[] readCounts() throws IOException {
+		final int mask = readVarInt();
+		final int[] counts = new int[DependencyType.values.size()];
+		if ((mask & -(1 << counts.length)) != 0) throw new InvalidObjectException("Invalid dependency types!");
+		for (int type = 0; type < counts.length; type++) {
+			if ((mask & (1 << type)) != 0) counts[type] = readVarInt();
+		}
+		return countsPool.computeIfAbsent(new DependencyMap(counts), DependencyMap::identity).getDependencies();
+	}
+
+	/**
+	 * Add a dependency from a depending node to a node to the dependency-to map of the depending node.
+	 *
+	 * @param dependingIndex index of the depending node
+	 * @param node the node
+	 * @param counts the dependency counts
+	 */
+	void linkDependency(int dependingIndex, @Nonnull CppNode node, @Nonnull int[] counts) {
+		if (links != null) {
+			links.add(dependingIndex, node, counts);
+		} else {
+			nodes[dependingIndex].putDependencyTo(node, counts);
+		}
+	}
+
+	/**
+	 * Dependencies read from a chunk of nodes, grouped by the range of their depending node, so that every range can
+	 * be linked by its own thread.
+	 */
+	static final class DependencyLinks {
+		private final int rangeSize;
+		@Nonnull private final int[][] dependingIndexes;
+		@Nonnull private final CppNode[][] dependedNodes;
+		@Nonnull private final int[][][] dependencyCounts;
+		@Nonnull private final int[] sizes;
+
+		/**
+		 * @param rangeSize number of nodes in a range
+		 * @param rangeCount number of ranges
+		 */
+		DependencyLinks(int rangeSize, int rangeCount) {
+			this.rangeSize = rangeSize;
+			this.dependingIndexes = new int[rangeCount][0];
+			this.dependedNodes = new CppNode[rangeCount][0];
+			this.dependencyCounts = new int[rangeCount][0][];
+			this.sizes = new int[rangeCount];
+		}
+
+		private void add(int dependingIndex, @Nonnull CppNode node, @Nonnull int[] counts) {
+			final int range = dependingIndex / rangeSize;
+			final int size = sizes[range];
+			if (size == dependingIndexes[range].length) {
+				final int capacity = Math.max(16, size * 2);
+				dependingIndexes[range] = Arrays.copyOf(dependingIndexes[range], capacity);
+				dependedNodes[range] = Arrays.copyOf(dependedNodes[range], capacity);
+				dependencyCounts[range] = Arrays.copyOf(dependencyCounts[range], capacity);
+			}
+			dependingIndexes[range][size] = dependingIndex;
+			dependedNodes[range][size] = node;
+			dependencyCounts[range][size] = counts;
+			sizes[range] = size + 1;
+		}
+
+		/**
+		 * Link the dependencies of the depending nodes in a range. Only the nodes in the range are modified.
+		 *
+		 * @param range the range
+		 * @param nodes all nodes of the tree, root node at 0
+		 */
+		void link(int range, @Nonnull CppNode[] nodes) {
+			final int[] indexes = dependingIndexes[range];
+			final CppNode[] dependedNodes = this.dependedNodes[range];
+			final int[][] counts = dependencyCounts[range];
+			for (int i = 0, size = sizes[range]; i < size; i++) {
+				nodes[indexes[i]].putDependencyTo(dependedNodes[i], counts[i]);
+			}
+		}
+	}
+}
@@ -0,0 +1,81 @@
+package mrmathami.cia.cpp.ast;
+
+import mrmathami.annotations.Nonnull;
+import mrmathami.annotations.Nullable;
+
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+/**
+ * Compact binary output of the nodes of a tree. Nodes are referred to by their index in the tree, the root node is 0
+ * and the other nodes follow in pre-order. Indexes and sizes are written as variable-length integers.
+ */
+final class NodeOutput {
+	@Nonnull private final DataOutput output;
+	@Nonnull private final Map<CppNode, Integer> indexes;
+
+	NodeOutput(@Nonnull DataOutput output, @Nonnull RootNode rootNode, @Nonnull CppNode[] nodes) {
+		this.output = output;
+		this.indexes = new IdentityHashMap<>();
+		indexes.put(rootNode, 0);
+		for (int i = 0; i < nodes.length; i++) indexes.put(nodes[i], i + 1);
+	}
+
+	/**
+	 * @param output the output
+	 * @param nodeOutput another output of the same tree, whose node indexes are shared
+	 */
+	NodeOutput(@Nonnull DataOutput output, @Nonnull NodeOutput nodeOutput) {
+		this.output = output;
+		this.indexes = nodeOutput.indexes;
+	}
+
+	int indexOf(@Nonnull CppNode node) throws IOException {
+		final Integer index = indexes.get(node);
+		if (index == null) throw new IOException("Node is not in the tree!");
+		return index;
+	}
+
+	void writeLong(long value) throws IOException {
+		output.writeLong(value);
+	}
+
+	void writeVarInt(int value) throws IOException {
+		writeVarInt(output, value);
+	}
+
+	static void writeVarInt(@Nonnull DataOutput output, int value) throws IOException {
+		while ((value & ~0x7F) != 0) {
+			output.writeByte((value & 0x7F) | 0x80);
+			value >>>= 7;
+		}
+		output.writeByte(value);
+	}
+
+	/**
+	 * @param node the node, or null
+	 * @throws IOException if the node is not in the tree, or an I/O error occurs
+	 */
+	void writeNode(@Nullable CppNode node) throws IOException {
+		writeVarInt(node != null ? indexOf(node) + 1 : 0);
+	}
+
+	/**
+	 * Write dependency counts as a mask of the non-zero types followed by these counts.
+	 *
+	 * @param counts the dependency counts
+	 * @throws IOException if an I/O error occurs
+	 */
+	void writeCounts(@Nonnull int[] counts) throws IOException {
+		int mask = 0;
+		for (int type = 0; type < counts.length; type++) {
+			if (counts[type] != 0) mask |= 1 << type;
+		}
+		writeVarInt(mask);
+		for (final int count : counts) {
+			if (count != 0) writeVarInt(count);
+		}
+	}
+}
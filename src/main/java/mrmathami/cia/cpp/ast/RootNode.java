@@ -1,18 +1,40 @@
 package mrmathami.cia.cpp.ast;
 
+import mrmathami.annotations.Internal;
 import mrmathami.annotations.Nonnull;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
 import java.io.IOException;
+import java.io.InvalidObjectException;
 import java.io.ObjectInput;
 import java.io.ObjectOutput;
 import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
 import java.util.stream.StreamSupport;
 
 public final class RootNode extends CppNode implements IIntegralContainer, IClassContainer, IEnumContainer, IFunctionContainer, IVariableContainer, ITypedefContainer {
 	private static final long serialVersionUID = -1L;
 
+	// index is the class tag of the node in the compact binary format, should only be appended to
+	@Nonnull static final List<Class<? extends CppNode>> NODE_CLASSES = List.of(NamespaceNode.class,
+			IntegralNode.class, ClassNode.class, EnumNode.class, FunctionNode.class, VariableNode.class,
+			TypedefNode.class);
+
+	// number of nodes in a chunk of the compact binary format
+	private static final int STRUCTURE_CHUNK_SIZE = 4096;
+	// leading tag of the Java serialization layout, the legacy layout starts with the node array instead
+	private static final int EXTERNAL_FORMAT_VERSION = 1;
+
 	private int nodeCount;
+	@Nonnull private StringTable stringTable = new StringTable(true);
+	@Nonnull private StringTable bodyTable = new StringTable(false);
 
 	public RootNode() {
 		setName("ROOT");
@@ -21,14 +43,23 @@ public final class RootNode extends CppNode implements IIntegralContainer, IClas
 	}
 
 	public void lock() {
-		final HashMap<String, String> stringPool = new HashMap<>();
 		final HashMap<DependencyMap, DependencyMap> countsPool = new HashMap<>();
-		if (isWritable()) internalLock(stringPool, countsPool);
+		if (isWritable()) internalLock(stringTable, bodyTable, countsPool);
 		for (final CppNode node : this) {
-			if (node.isWritable()) node.internalLock(stringPool, countsPool);
+			if (node.isWritable()) node.internalLock(stringTable, bodyTable, countsPool);
 		}
-		stringPool.clear();
 		countsPool.clear();
+
+		final Matcher matcher = new Matcher();
+		if (!hasMatchHashes()) internalLockHashes(matcher);
+		for (final CppNode node : this) {
+			if (!node.hasMatchHashes()) node.internalLockHashes(matcher);
+		}
+
+		// children first, so compute in reversed pre-order
+		final CppNode[] nodes = StreamSupport.stream(spliterator(), false).toArray(CppNode[]::new);
+		for (int i = nodes.length - 1; i >= 0; i--) nodes[i].internalLockSubtreeHash();
+		internalLockSubtreeHash();
 	}
 
 	public int getNodeCount() {
@@ -40,6 +71,31 @@ public final class RootNode extends CppNode implements IIntegralContainer, IClas
 		this.nodeCount = nodeCount;
 	}
 
+	/**
+	 * Table of names, unique names and signatures of all nodes in this tree.
+	 *
+	 * @return the string table
+	 */
+	@Nonnull
+	public StringTable getStringTable() {
+		return stringTable;
+	}
+
+	/**
+	 * Table of bodies of all function and variable nodes in this tree.
+	 *
+	 * @return the body table
+	 */
+	@Nonnull
+	public StringTable getBodyTable() {
+		return bodyTable;
+	}
+
+	void setStringTables(@Nonnull StringTable stringTable, @Nonnull StringTable bodyTable) {
+		this.stringTable = stringTable;
+		this.bodyTable = bodyTable;
+	}
+
 	//region Containers
 
 	@Nonnull
@@ -90,34 +146,253 @@ public final class RootNode extends CppNode implements IIntegralContainer, IClas
 
 	@Override
 	public void writeExternal(@Nonnull ObjectOutput output) throws IOException {
-		final CppNode[] nodes = StreamSupport.stream(spliterator(), false).toArray(CppNode[]::new);
+		final CppNode[] nodes = getLockedNodes();
+		output.writeObject(EXTERNAL_FORMAT_VERSION);
+		// the nodes themselves are written as objects, so that they can be referred to from outside of the tree
 		output.writeObject(nodes);
-
-		write(output);
-		for (final CppNode node : nodes) node.write(output);
+		internalWrite(output, nodes);
+		bodyTable.writeContent(output);
 	}
 
+	/**
+	 * Read this tree in the layout written by {@link #writeExternal}, or in the legacy layout, which has no leading
+	 * tag and in which the strings and the bodies are objects. A tree in the legacy layout is locked once read.
+	 */
 	@Override
 	public void readExternal(@Nonnull ObjectInput input) throws IOException, ClassNotFoundException {
+		final Object head = input.readObject();
+		if (head instanceof CppNode[]) {
+			readLegacyTree(input, (CppNode[]) head);
+			return;
+		}
+		if (!Integer.valueOf(EXTERNAL_FORMAT_VERSION).equals(head)) {
+			throw new InvalidObjectException("Unsupported format version!");
+		}
 		final CppNode[] nodes = castNonnull(input.readObject(), CppNode[].class);
+		internalRead(input, nodes);
+		bodyTable.readContent(input);
+	}
+
+	private void readLegacyTree(@Nonnull ObjectInput input, @Nonnull CppNode[] nodes)
+			throws IOException, ClassNotFoundException {
+		for (final CppNode node : nodes) {
+			if (node == null || node instanceof RootNode) throw new InvalidObjectException("Invalid node!");
+		}
+		readLegacy(input);
+		for (final CppNode node : nodes) node.readLegacy(input);
+		for (final CppNode node : nodes) {
+			if (node.getParent() == null) throw new InvalidObjectException("Node is not in the tree!");
+		}
+		lock();
+	}
+
+	/**
+	 * Write this tree in the compact binary format, without the content of the bodies. The body content is expected
+	 * to be written right after it using {@link #writeBodyContent}.
+	 * <p>
+	 * The nodes are written in chunks of consecutive nodes, each of them prefixed by its length, so that the chunks
+	 * can be decoded independently by {@link #readStructure(DataInput, ForkJoinPool)}.
+	 *
+	 * @param output the output
+	 * @throws IOException if an I/O error occurs
+	 */
+	@Internal
+	public void writeStructure(@Nonnull DataOutput output) throws IOException {
+		final CppNode[] nodes = getLockedNodes();
+		output.writeInt(nodes.length);
+		for (final CppNode node : nodes) output.writeByte(NODE_CLASSES.indexOf(node.getClass()));
+		stringTable.write(output);
+		bodyTable.writeIndex(output);
+
+		final ByteArrayOutputStream chunkBytes = new ByteArrayOutputStream();
+		final NodeOutput nodeOutput = new NodeOutput(new DataOutputStream(chunkBytes), this, nodes);
+		output.writeInt(STRUCTURE_CHUNK_SIZE);
+		for (int start = 0; start <= nodes.length; start += STRUCTURE_CHUNK_SIZE) {
+			final int end = Math.min(start + STRUCTURE_CHUNK_SIZE, nodes.length + 1);
+			chunkBytes.reset();
+			for (int index = start; index < end; index++) (index != 0 ? nodes[index - 1] : this).write(nodeOutput);
+			output.writeInt(chunkBytes.size());
+			output.write(chunkBytes.toByteArray());
+		}
+	}
+
+	/**
+	 * Read a tree written by {@link #writeStructure} into this empty root node. The string table and the chunks of
+	 * nodes are decoded on the threads of the pool, then the dependencies are linked, a range of nodes per task. The
+	 * body content must be either read using {@link #readBodyContent} or provided on demand using
+	 * {@link #setBodyLoader} before any body is accessed.
+	 *
+	 * @param input the input
+	 * @param pool the pool to decode the tree on
+	 * @throws IOException if the input is not a tree, or an I/O error occurs
+	 */
+	@Internal
+	public void readStructure(@Nonnull DataInput input, @Nonnull ForkJoinPool pool) throws IOException {
+		if (!isWritable() || !getChildren().isEmpty()) throw new IOException("Only empty RootNode can be read into!");
+		final int nodeCount = input.readInt();
+		if (nodeCount < 0 || nodeCount == Integer.MAX_VALUE) throw new InvalidObjectException("Invalid node count!");
+		final CppNode[] nodes = new CppNode[nodeCount + 1]; // root node at 0
+		nodes[0] = this;
+		for (int i = 1; i <= nodeCount; i++) nodes[i] = createNode(input.readUnsignedByte());
+		this.stringTable = StringTable.read(input, true, pool);
+		this.bodyTable = StringTable.readIndex(input, false);
+
+		final int chunkSize = input.readInt();
+		if (chunkSize <= 0) throw new InvalidObjectException("Invalid chunk size!");
+		final int chunkCount = (nodes.length - 1) / chunkSize + 1;
+		final byte[][] chunks = new byte[chunkCount][];
+		for (int chunk = 0; chunk < chunkCount; chunk++) {
+			final int length = input.readInt();
+			if (length < 0) throw new InvalidObjectException("Invalid chunk length!");
+			chunks[chunk] = new byte[length];
+			input.readFully(chunks[chunk]);
+		}
 
-		read(input);
-		for (final CppNode node : nodes) node.read(input);
+		// a node only modifies itself and the parent of its children, the dependencies are linked afterward
+		final NodeInput.DependencyLinks[] links = new NodeInput.DependencyLinks[chunkCount];
+		IndexTask.invoke(pool, chunkCount, chunk -> {
+			final NodeInput.DependencyLinks chunkLinks = new NodeInput.DependencyLinks(chunkSize, chunkCount);
+			final ByteArrayInputStream chunkInput = new ByteArrayInputStream(chunks[chunk]);
+			final NodeInput nodeInput = new NodeInput(new DataInputStream(chunkInput), nodes, chunkLinks);
+			final int end = Math.min((chunk + 1) * chunkSize, nodes.length);
+			for (int index = chunk * chunkSize; index < end; index++) nodes[index].read(nodeInput);
+			if (chunkInput.available() != 0) throw new InvalidObjectException("Invalid chunk length!");
+			links[chunk] = chunkLinks;
+		});
+		IndexTask.invoke(pool, chunkCount, range -> {
+			for (final NodeInput.DependencyLinks chunkLinks : links) chunkLinks.link(range, nodes);
+			final int end = Math.min((range + 1) * chunkSize, nodes.length);
+			for (int index = range * chunkSize; index < end; index++) {
+				final CppNode node = nodes[index];
+				if (index != 0 && node.getParent() == null) throw new InvalidObjectException("Node is not in the tree!");
+				for (final CppNode child : node.getChildren()) {
+					if (child.getParent() != node) throw new InvalidObjectException("Node has two parents!");
+				}
+			}
+		});
+	}
+
+	/**
+	 * Read a tree written by an earlier version of {@link #writeStructure}, with all nodes in a single sequence, into
+	 * this empty root node.
+	 *
+	 * @param input the input
+	 * @throws IOException if the input is not a tree, or an I/O error occurs
+	 */
+	@Internal
+	public void readFlatStructure(@Nonnull DataInput input) throws IOException {
+		if (!isWritable() || !getChildren().isEmpty()) throw new IOException("Only empty RootNode can be read into!");
+		final int nodeCount = input.readInt();
+		if (nodeCount < 0) throw new InvalidObjectException("Invalid node count!");
+		final CppNode[] nodes = new CppNode[nodeCount];
+		for (int i = 0; i < nodeCount; i++) nodes[i] = createNode(input.readUnsignedByte());
+		internalRead(input, nodes);
+	}
+
+	/**
+	 * Write the content of the bodies, which is all the bodies concatenated.
+	 *
+	 * @param output the output
+	 * @throws IOException if an I/O error occurs
+	 */
+	@Internal
+	public void writeBodyContent(@Nonnull DataOutput output) throws IOException {
+		bodyTable.writeContent(output);
+	}
+
+	@Internal
+	public void readBodyContent(@Nonnull DataInput input) throws IOException {
+		bodyTable.readContent(input);
+	}
+
+	/**
+	 * Load the bodies on demand instead of keeping them in memory.
+	 *
+	 * @param loader body content loader
+	 * @param cacheSize maximum number of loaded bodies kept in memory
+	 */
+	@Internal
+	public void setBodyLoader(@Nonnull StringTable.Loader loader, int cacheSize) {
+		bodyTable.setLoader(loader, cacheSize);
+	}
+
+	@Nonnull
+	private CppNode[] getLockedNodes() throws IOException {
+		if (isWritable()) throw new IOException("Only locked RootNode is Serializable!");
+		return StreamSupport.stream(spliterator(), false).toArray(CppNode[]::new);
+	}
+
+	@Nonnull
+	static CppNode createNode(int nodeClass) throws InvalidObjectException {
+		switch (nodeClass) {
+			case 0:
+				return new NamespaceNode();
+			case 1:
+				return new IntegralNode();
+			case 2:
+				return new ClassNode();
+			case 3:
+				return new EnumNode();
+			case 4:
+				return new FunctionNode();
+			case 5:
+				return new VariableNode();
+			case 6:
+				return new TypedefNode();
+			default:
+				throw new InvalidObjectException("Invalid node class!");
+		}
+	}
+
+	private void internalWrite(@Nonnull DataOutput output, @Nonnull CppNode[] nodes) throws IOException {
+		stringTable.write(output);
+		bodyTable.writeIndex(output);
+
+		final NodeOutput nodeOutput = new NodeOutput(output, this, nodes);
+		write(nodeOutput);
+		for (final CppNode node : nodes) node.write(nodeOutput);
+	}
+
+	private void internalRead(@Nonnull DataInput input, @Nonnull CppNode[] nodes) throws IOException {
+		this.stringTable = StringTable.read(input, true);
+		this.bodyTable = StringTable.readIndex(input, false);
+
+		final NodeInput nodeInput = new NodeInput(input, this, nodes);
+		read(nodeInput);
+		for (final CppNode node : nodes) node.read(nodeInput);
+		for (final CppNode node : nodes) {
+			if (node.getParent() == null) throw new InvalidObjectException("Node is not in the tree!");
+		}
 	}
 
 	@Override
-	void write(@Nonnull ObjectOutput output) throws IOException {
+	void write(@Nonnull NodeOutput output) throws IOException {
 		super.write(output);
 
-		output.writeInt(nodeCount);
+		output.writeVarInt(nodeCount);
 	}
 
 	@Override
-	void read(@Nonnull ObjectInput input) throws IOException, ClassNotFoundException {
+	void read(@Nonnull NodeInput input) throws IOException {
 		super.read(input);
 
+		this.nodeCount = input.readVarInt();
+	}
+
+	@Override
+	void readLegacy(@Nonnull ObjectInput input) throws IOException, ClassNotFoundException {
+		super.readLegacy(input);
+
 		this.nodeCount = input.readInt();
 	}
 
+	@Override
+	void readMapped(@Nonnull MappedTree tree, int index, @Nonnull CppNode[] nodes,
+			@Nonnull Map<DependencyMap, DependencyMap> countsPool) throws IOException {
+		super.readMapped(tree, index, nodes, countsPool);
+
+		this.nodeCount = tree.getRootNodeCount();
+	}
+
 	//endregion Object Helper
 }
@@ -0,0 +1,462 @@
+package mrmathami.cia.cpp.ast;
+
+import mrmathami.annotations.Nonnull;
+import mrmathami.annotations.Nullable;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.InvalidObjectException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Append-only table of strings. Each distinct string is stored once as an UTF-8 byte slice and is referred to by an
+ * int handle. A 64-bit content hash is kept for every entry, so entries can be compared across tables without
+ * decoding them.
+ * <p>
+ * Not thread-safe while being appended to. Once a table is no longer appended to (its tree is locked or read), all
+ * the read-only methods are safe to be called concurrently: the cache of decoded strings only ever stores immutable
+ * {@link String} instances, so a racy write of it at worst decodes the same entry twice, and the loaded strings cache
+ * is guarded by its own lock.
+ * <p>
+ * The content of a table can be left on disk: only the index (lengths and hashes) is kept in memory and the strings
+ * are loaded on demand through a {@link Loader} into a bounded cache. Equality of such entries is decided by their
+ * length and 64-bit hash only.
+ */
+public final class StringTable {
+	public static final int NULL_HANDLE = -1;
+
+	private static final long FNV_OFFSET_BASIS = 0xCBF29CE484222325L;
+	private static final long FNV_PRIME = 0x100000001B3L;
+	private static final int HASH_BLOCK_SIZE = 4096; // entries hashed by a task when read in parallel
+
+	@Nullable private byte[] bytes = new byte[256]; // null when the content is not loaded
+	@Nonnull private int[] offsets = new int[17]; // offsets[count] == byteCount
+	@Nonnull private long[] hashes = new long[16];
+	@Nonnull private int[] buckets = new int[32]; // handle + 1, 0 is empty
+	@Nullable private String[] strings; // decoded strings, only when caching is enabled
+	private int count;
+
+	@Nullable private Loader loader;
+	@Nullable private Map<Integer, String> loadedStrings;
+
+	/**
+	 * @param cacheStrings keep the decoded strings, should be used for short and frequently accessed strings only
+	 */
+	public StringTable(boolean cacheStrings) {
+		if (cacheStrings) this.strings = new String[16];
+	}
+
+	public static long hash(@Nullable String string) {
+		if (string == null) return 0;
+		final byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+		return hash(bytes, 0, bytes.length);
+	}
+
+	private static long hash(@Nonnull byte[] bytes, int offset, int length) {
+		long hash = FNV_OFFSET_BASIS;
+		for (int i = offset, end = offset + length; i < end; i++) {
+			hash = (hash ^ (bytes[i] & 0xFF)) * FNV_PRIME;
+		}
+		// never return 0, it is reserved for null
+		return hash != 0 ? hash : FNV_PRIME;
+	}
+
+	public static boolean isEquals(@Nonnull StringTable tableA, int handleA, @Nonnull StringTable tableB, int handleB) {
+		if (tableA == tableB) return handleA == handleB;
+		if (handleA == NULL_HANDLE || handleB == NULL_HANDLE) return handleA == handleB;
+		if (tableA.hashes[handleA] != tableB.hashes[handleB]) return false;
+		final int offsetA = tableA.offsets[handleA], endA = tableA.offsets[handleA + 1];
+		final int offsetB = tableB.offsets[handleB], endB = tableB.offsets[handleB + 1];
+		if (tableA.bytes == null || tableB.bytes == null) return endA - offsetA == endB - offsetB;
+		return Arrays.equals(tableA.bytes, offsetA, endA, tableB.bytes, offsetB, endB);
+	}
+
+	private static int bucketOf(long hash) {
+		return (int) (hash ^ (hash >>> 32));
+	}
+
+	/**
+	 * Add the string to the table if it is not there yet.
+	 *
+	 * @param string the string
+	 * @return the handle of the string, or {@link #NULL_HANDLE} if the string is null
+	 */
+	public int intern(@Nullable String string) {
+		if (string == null) return NULL_HANDLE;
+		if (bytes == null) loadAll();
+		final byte[] stringBytes = string.getBytes(StandardCharsets.UTF_8);
+		final long hash = hash(stringBytes, 0, stringBytes.length);
+		final int bucket = findBucket(stringBytes, hash);
+		if (buckets[bucket] != 0) return buckets[bucket] - 1;
+		final int handle = append(stringBytes, hash);
+		buckets[bucket] = handle + 1;
+		if (count * 2 > buckets.length) rehash(buckets.length * 2);
+		return handle;
+	}
+
+	/**
+	 * Find the string in the table without adding it, so it is safe to be called concurrently on a table that is no
+	 * longer appended to.
+	 *
+	 * @param string the string
+	 * @return the handle of the string, or {@link #NULL_HANDLE} if the string is null or is not in the table
+	 */
+	public int getHandle(@Nullable String string) {
+		if (string == null) return NULL_HANDLE;
+		final byte[] stringBytes = string.getBytes(StandardCharsets.UTF_8);
+		final long hash = hash(stringBytes, 0, stringBytes.length);
+		return buckets[findBucket(stringBytes, hash)] - 1;
+	}
+
+	/**
+	 * The buckets are built from the hashes, so they are also there when the content is not loaded, in which case
+	 * only the length and the hash of the entries are compared.
+	 *
+	 * @return the bucket containing the string, or the empty bucket where it should be added
+	 */
+	private int findBucket(@Nonnull byte[] stringBytes, long hash) {
+		final byte[] bytes = this.bytes;
+		final int mask = buckets.length - 1;
+		int bucket = bucketOf(hash) & mask;
+		while (true) {
+			final int handle = buckets[bucket] - 1;
+			if (handle < 0) return bucket;
+			if (hashes[handle] == hash && (bytes != null
+					? Arrays.equals(bytes, offsets[handle], offsets[handle + 1], stringBytes, 0, stringBytes.length)
+					: offsets[handle + 1] - offsets[handle] == stringBytes.length)) {
+				return bucket;
+			}
+			bucket = (bucket + 1) & mask;
+		}
+	}
+
+	/**
+	 * Add the string to the table if it is not there yet, and return the shared instance of it.
+	 *
+	 * @param string the string
+	 * @return the shared instance
+	 */
+	@Nonnull
+	public String toShared(@Nonnull String string) {
+		final String sharedString = getString(intern(string));
+		assert sharedString != null;
+		return sharedString;
+	}
+
+	private int append(@Nonnull byte[] stringBytes, long hash) {
+		assert bytes != null;
+		final int handle = count;
+		final int byteCount = offsets[handle];
+		final int newByteCount = byteCount + stringBytes.length;
+		if (newByteCount > bytes.length) {
+			this.bytes = Arrays.copyOf(bytes, Math.max(newByteCount, bytes.length * 2));
+		}
+		System.arraycopy(stringBytes, 0, bytes, byteCount, stringBytes.length);
+		if (handle >= hashes.length) {
+			final int capacity = Math.max(16, hashes.length * 2);
+			this.hashes = Arrays.copyOf(hashes, capacity);
+			this.offsets = Arrays.copyOf(offsets, capacity + 1);
+			if (strings != null) this.strings = Arrays.copyOf(strings, capacity);
+		}
+		hashes[handle] = hash;
+		offsets[handle + 1] = newByteCount;
+		this.count = handle + 1;
+		return handle;
+	}
+
+	private void rehash(int capacity) {
+		final int[] newBuckets = new int[capacity];
+		final int mask = capacity - 1;
+		for (int handle = 0; handle < count; handle++) {
+			int bucket = bucketOf(hashes[handle]) & mask;
+			while (newBuckets[bucket] != 0) bucket = (bucket + 1) & mask;
+			newBuckets[bucket] = handle + 1;
+		}
+		this.buckets = newBuckets;
+	}
+
+	/**
+	 * @param handle the handle
+	 * @return the string, or null if the handle is {@link #NULL_HANDLE}
+	 */
+	@Nullable
+	public String getString(int handle) {
+		if (handle == NULL_HANDLE) return null;
+		checkHandle(handle);
+		if (strings != null) {
+			final String string = strings[handle];
+			if (string != null) return string;
+			return strings[handle] = decode(handle);
+		}
+		return decode(handle);
+	}
+
+	@Nonnull
+	private String decode(int handle) {
+		final int offset = offsets[handle];
+		final int length = offsets[handle + 1] - offset;
+		if (bytes != null) return new String(bytes, offset, length, StandardCharsets.UTF_8);
+
+		final Map<Integer, String> loadedStrings = this.loadedStrings;
+		assert loader != null && loadedStrings != null;
+		synchronized (loadedStrings) {
+			final String string = loadedStrings.get(handle);
+			if (string != null) return string;
+		}
+		final String string;
+		try {
+			string = new String(loader.load(offset, length), StandardCharsets.UTF_8);
+		} catch (IOException exception) {
+			throw new UncheckedIOException("Cannot load string " + handle + " from its source!", exception);
+		}
+		synchronized (loadedStrings) {
+			loadedStrings.put(handle, string);
+		}
+		return string;
+	}
+
+	/**
+	 * @param handle the handle
+	 * @return 64-bit hash of the string content, or 0 if the handle is {@link #NULL_HANDLE}
+	 */
+	public long getHash(int handle) {
+		if (handle == NULL_HANDLE) return 0;
+		checkHandle(handle);
+		return hashes[handle];
+	}
+
+	/**
+	 * @param handle the handle
+	 * @return the UTF-8 encoded length of the string, or 0 if the handle is {@link #NULL_HANDLE}
+	 */
+	public int getByteLength(int handle) {
+		if (handle == NULL_HANDLE) return 0;
+		checkHandle(handle);
+		return offsets[handle + 1] - offsets[handle];
+	}
+
+	public int size() {
+		return count;
+	}
+
+	/**
+	 * @return true if the content of the table is in memory
+	 */
+	public boolean isLoaded() {
+		return bytes != null;
+	}
+
+	/**
+	 * Drop the content of the table from memory, the strings will be loaded on demand using the loader.
+	 *
+	 * @param loader the content loader, the position passed to it is relative to the start of the content
+	 * @param cacheSize maximum number of loaded strings kept in memory
+	 */
+	public void setLoader(@Nonnull Loader loader, int cacheSize) {
+		if (cacheSize < 0) throw new IllegalArgumentException("Negative cache size!");
+		this.loader = loader;
+		this.loadedStrings = new LinkedHashMap<>(16, 0.75f, true) {
+			private static final long serialVersionUID = -1L;
+
+			@Override
+			protected boolean removeEldestEntry(@Nonnull Map.Entry<Integer, String> eldest) {
+				return size() > cacheSize;
+			}
+		};
+		this.bytes = null;
+	}
+
+	private void loadAll() {
+		if (bytes != null) return;
+		assert loader != null;
+		try {
+			final byte[] loadedBytes = loader.load(0, offsets[count]);
+			if (loadedBytes.length != offsets[count]) throw new IOException("Wrong content length!");
+			this.bytes = loadedBytes;
+		} catch (IOException exception) {
+			throw new UncheckedIOException("Cannot load content from its source!", exception);
+		}
+		this.loader = null;
+		this.loadedStrings = null;
+	}
+
+	private void checkHandle(int handle) {
+		if (handle < 0 || handle >= count) throw new IndexOutOfBoundsException("Invalid string handle " + handle);
+	}
+
+	//region Object Helper
+
+	/**
+	 * Write the whole table: the entry count, the content length, the length of each entry and the content. The
+	 * hashes are not written, they are computed again from the content when read.
+	 *
+	 * @param output the output
+	 * @throws IOException if an I/O error occurs
+	 */
+	void write(@Nonnull DataOutput output) throws IOException {
+		NodeOutput.writeVarInt(output, count);
+		NodeOutput.writeVarInt(output, offsets[count]);
+		for (int handle = 0; handle < count; handle++) {
+			NodeOutput.writeVarInt(output, offsets[handle + 1] - offsets[handle]);
+		}
+		writeContent(output);
+	}
+
+	/**
+	 * Write the index of the table: the entry count, the content length and the length and hash of each entry.
+	 *
+	 * @param output the output
+	 * @throws IOException if an I/O error occurs
+	 */
+	void writeIndex(@Nonnull DataOutput output) throws IOException {
+		output.writeInt(count);
+		output.writeInt(offsets[count]);
+		for (int handle = 0; handle < count; handle++) {
+			output.writeInt(offsets[handle + 1] - offsets[handle]);
+			output.writeLong(hashes[handle]);
+		}
+	}
+
+	/**
+	 * Write the content of the table, which is all the strings concatenated.
+	 *
+	 * @param output the output
+	 * @throws IOException if an I/O error occurs
+	 */
+	void writeContent(@Nonnull DataOutput output) throws IOException {
+		final byte[] bytes = this.bytes;
+		if (bytes != null) {
+			output.write(bytes, 0, offsets[count]);
+		} else {
+			// stream it from the loader without keeping it, so a shared table is not modified
+			assert loader != null;
+			final byte[] loadedBytes = loader.load(0, offsets[count]);
+			if (loadedBytes.length != offsets[count]) throw new IOException("Wrong content length!");
+			output.write(loadedBytes);
+		}
+	}
+
+	/**
+	 * Write the table for {@link MappedTree}: the entry count, the content length, the offsets, the hashes and the
+	 * content, all fixed-width.
+	 *
+	 * @param output the output
+	 * @throws IOException if an I/O error occurs
+	 */
+	void writeMapped(@Nonnull DataOutput output) throws IOException {
+		output.writeInt(count);
+		output.writeInt(offsets[count]);
+		for (int handle = 0; handle <= count; handle++) output.writeInt(offsets[handle]);
+		for (int handle = 0; handle < count; handle++) output.writeLong(hashes[handle]);
+		writeContent(output);
+	}
+
+	@Nonnull
+	static StringTable read(@Nonnull DataInput input, boolean cacheStrings) throws IOException {
+		return read(input, cacheStrings, null);
+	}
+
+	/**
+	 * Read a table written by {@link #write}.
+	 *
+	 * @param input the input
+	 * @param cacheStrings keep the decoded strings
+	 * @param pool the pool to compute the hashes on, or null to compute them on the calling thread
+	 * @return the table
+	 * @throws IOException if the input is not a string table, or an I/O error occurs
+	 */
+	@Nonnull
+	static StringTable read(@Nonnull DataInput input, boolean cacheStrings, @Nullable ForkJoinPool pool)
+			throws IOException {
+		final int count = NodeInput.readVarInt(input);
+		final int byteCount = NodeInput.readVarInt(input);
+		if (count < 0 || byteCount < 0) throw new InvalidObjectException("Invalid string table size!");
+
+		final int[] offsets = new int[count + 1];
+		for (int handle = 0; handle < count; handle++) {
+			final int length = NodeInput.readVarInt(input);
+			if (length < 0 || offsets[handle] + length > byteCount) {
+				throw new InvalidObjectException("Invalid string table entry!");
+			}
+			offsets[handle + 1] = offsets[handle] + length;
+		}
+		if (offsets[count] != byteCount) throw new InvalidObjectException("Invalid string table size!");
+		final byte[] bytes = new byte[byteCount];
+		input.readFully(bytes);
+
+		final long[] hashes = new long[count];
+		if (pool != null) {
+			IndexTask.invoke(pool, (count + HASH_BLOCK_SIZE - 1) / HASH_BLOCK_SIZE,
+					block -> hashEntries(bytes, offsets, hashes, block * HASH_BLOCK_SIZE,
+							Math.min(count, (block + 1) * HASH_BLOCK_SIZE)));
+		} else {
+			hashEntries(bytes, offsets, hashes, 0, count);
+		}
+		return create(bytes, offsets, hashes, count, cacheStrings);
+	}
+
+	private static void hashEntries(@Nonnull byte[] bytes, @Nonnull int[] offsets, @Nonnull long[] hashes,
+			int start, int end) {
+		for (int handle = start; handle < end; handle++) {
+			hashes[handle] = hash(bytes, offsets[handle], offsets[handle + 1] - offsets[handle]);
+		}
+	}
+
+	@Nonnull
+	static StringTable readIndex(@Nonnull DataInput input, boolean cacheStrings) throws IOException {
+		final int count = input.readInt();
+		final int byteCount = input.readInt();
+		if (count < 0 || byteCount < 0) throw new InvalidObjectException("Invalid string table size!");
+
+		final int[] offsets = new int[count + 1];
+		final long[] hashes = new long[count];
+		for (int handle = 0; handle < count; handle++) {
+			final int length = input.readInt();
+			if (length < 0 || offsets[handle] + length > byteCount) {
+				throw new InvalidObjectException("Invalid string table entry!");
+			}
+			offsets[handle + 1] = offsets[handle] + length;
+			hashes[handle] = input.readLong();
+		}
+		if (offsets[count] != byteCount) throw new InvalidObjectException("Invalid string table size!");
+
+		return create(null, offsets, hashes, count, cacheStrings);
+	}
+
+	@Nonnull
+	static StringTable create(@Nullable byte[] bytes, @Nonnull int[] offsets, @Nonnull long[] hashes, int count,
+			boolean cacheStrings) {
+		final StringTable table = new StringTable(cacheStrings);
+		table.bytes = bytes;
+		table.offsets = offsets;
+		table.hashes = hashes;
+		table.count = count;
+		if (cacheStrings) table.strings = new String[count];
+		table.rehash(Math.max(32, Integer.highestOneBit(Math.max(count, 1)) * 4));
+		return table;
+	}
+
+	void readContent(@Nonnull DataInput input) throws IOException {
+		final byte[] bytes = new byte[offsets[count]];
+		input.readFully(bytes);
+		this.bytes = bytes;
+		this.loader = null;
+		this.loadedStrings = null;
+	}
+
+	//endregion Object Helper
+
+	/**
+	 * Load a part of the content of a table from its source.
+	 */
+	public interface Loader {
+		@Nonnull
+		byte[] load(long position, int length) throws IOException;
+	}
+}
@@ -6,8 +6,8 @@ import mrmathami.annotations.Nullable;
 
 import java.io.IOException;
 import java.io.ObjectInput;
-import java.io.ObjectOutput;
 import java.util.List;
+import java.util.Map;
 
 public final class TypedefNode extends CppNode implements ITypeContainer, ITypedefContainer {
 	private static final long serialVersionUID = -1L;
@@ -47,9 +47,9 @@ public final class TypedefNode extends CppNode implements ITypeContainer, ITyped
 	}
 
 	@Override
-	protected int similarHashcode(@Nonnull Matcher matcher) {
-		int result = super.similarHashcode(matcher);
-		result = 31 * result + matcher.nodeHashcode(type, MatchLevel.PROTOTYPE_IDENTICAL);
+	protected long similarHashcode(@Nonnull Matcher matcher) {
+		long result = super.similarHashcode(matcher);
+		result = combineHash(result, matcher.nodeHashcode(type, MatchLevel.PROTOTYPE_IDENTICAL));
 		return result;
 	}
 
@@ -59,9 +59,9 @@ public final class TypedefNode extends CppNode implements ITypeContainer, ITyped
 	}
 
 	@Override
-	protected int identicalHashcode(@Nonnull Matcher matcher) {
-		int result = super.identicalHashcode(matcher);
-		result = 31 * result + matcher.nodeHashcode(type, MatchLevel.PROTOTYPE_IDENTICAL);
+	protected long identicalHashcode(@Nonnull Matcher matcher) {
+		long result = super.identicalHashcode(matcher);
+		result = combineHash(result, matcher.nodeHashcode(type, MatchLevel.PROTOTYPE_IDENTICAL));
 		return result;
 	}
 	//</editor-fold>
@@ -80,18 +80,33 @@ public final class TypedefNode extends CppNode implements ITypeContainer, ITyped
 	//region Object Helper
 
 	@Override
-	public void write(@Nonnull ObjectOutput output) throws IOException {
+	void write(@Nonnull NodeOutput output) throws IOException {
 		super.write(output);
 
-		output.writeObject(type);
+		output.writeNode(type);
 	}
 
 	@Override
-	public void read(@Nonnull ObjectInput input) throws IOException, ClassNotFoundException {
+	void read(@Nonnull NodeInput input) throws IOException {
 		super.read(input);
 
+		this.type = input.readNode();
+	}
+
+	@Override
+	void readLegacy(@Nonnull ObjectInput input) throws IOException, ClassNotFoundException {
+		super.readLegacy(input);
+
 		this.type = castNullable(input.readObject(), CppNode.class);
 	}
 
+	@Override
+	void readMapped(@Nonnull MappedTree tree, int index, @Nonnull CppNode[] nodes,
+			@Nonnull Map<DependencyMap, DependencyMap> countsPool) throws IOException {
+		super.readMapped(tree, index, nodes, countsPool);
+
+		this.type = getMappedNullableNode(nodes, tree.getType(index));
+	}
+
 	//endregion Object Helper
 }
@@ -6,14 +6,14 @@ import mrmathami.annotations.Nullable;
 
 import java.io.IOException;
 import java.io.ObjectInput;
-import java.io.ObjectOutput;
 import java.util.Map;
 import java.util.Objects;
 
 public final class VariableNode extends CppNode implements IBodyContainer, ITypeContainer {
 	private static final long serialVersionUID = -1L;
 
-	@Nullable private String body;
+	@Nullable private String body; // only used when the node is writable
+	private int bodyHandle = StringTable.NULL_HANDLE;
 	@Nullable private CppNode type;
 
 	public VariableNode() {
@@ -22,7 +22,7 @@ public final class VariableNode extends CppNode implements IBodyContainer, IType
 	@Nullable
 	@Override
 	public String getBody() {
-		return body;
+		return isWritable() ? body : getRootBodyTable().getString(bodyHandle);
 	}
 
 	@Internal
@@ -32,6 +32,10 @@ public final class VariableNode extends CppNode implements IBodyContainer, IType
 		this.body = body;
 	}
 
+	int getBodyHandle() {
+		return bodyHandle;
+	}
+
 	@Nullable
 	@Override
 	public CppNode getType() {
@@ -56,34 +60,46 @@ public final class VariableNode extends CppNode implements IBodyContainer, IType
 	}
 
 	@Override
-	protected int similarHashcode(@Nonnull Matcher matcher) {
-		int result = super.similarHashcode(matcher);
-		result = 31 * result + matcher.nodeHashcode(type, MatchLevel.PROTOTYPE_IDENTICAL);
+	protected long similarHashcode(@Nonnull Matcher matcher) {
+		long result = super.similarHashcode(matcher);
+		result = combineHash(result, matcher.nodeHashcode(type, MatchLevel.PROTOTYPE_IDENTICAL));
 		return result;
 	}
 
 	@Override
 	protected boolean isIdentical(@Nonnull CppNode node, @Nonnull Matcher matcher) {
 		return super.isIdentical(node, matcher)
-				&& Objects.equals(body, ((VariableNode) node).body)
+				&& isBodyIdentical((VariableNode) node)
 				&& matcher.isNodeMatch(type, ((VariableNode) node).type, MatchLevel.PROTOTYPE_IDENTICAL);
 	}
 
 	@Override
-	protected int identicalHashcode(@Nonnull Matcher matcher) {
-		int result = super.identicalHashcode(matcher);
-		result = 31 * result + (body != null ? body.hashCode() : 0);
-		result = 31 * result + matcher.nodeHashcode(type, MatchLevel.PROTOTYPE_IDENTICAL);
+	protected long identicalHashcode(@Nonnull Matcher matcher) {
+		long result = super.identicalHashcode(matcher);
+		result = combineHash(result, bodyHash());
+		result = combineHash(result, matcher.nodeHashcode(type, MatchLevel.PROTOTYPE_IDENTICAL));
 		return result;
 	}
+
+	private boolean isBodyIdentical(@Nonnull VariableNode variable) {
+		return isWritable() || variable.isWritable()
+				? Objects.equals(getBody(), variable.getBody())
+				: StringTable.isEquals(getRootBodyTable(), bodyHandle, variable.getRootBodyTable(), variable.bodyHandle);
+	}
+
+	private long bodyHash() {
+		return isWritable() ? StringTable.hash(body) : getRootBodyTable().getHash(bodyHandle);
+	}
 	//endregion Node Comparator
 
 	//region TreeNode
 
 	@Override
-	void internalLock(@Nonnull Map<String, String> stringPool, @Nonnull Map<DependencyMap, DependencyMap> countsPool) {
-		super.internalLock(stringPool, countsPool);
-		if (body != null) this.body = stringPool.computeIfAbsent(body, String::toString);
+	void internalLock(@Nonnull StringTable stringTable, @Nonnull StringTable bodyTable,
+			@Nonnull Map<DependencyMap, DependencyMap> countsPool) {
+		super.internalLock(stringTable, bodyTable, countsPool);
+		this.bodyHandle = bodyTable.intern(body);
+		this.body = null;
 	}
 
 	@Override
@@ -99,6 +115,7 @@ public final class VariableNode extends CppNode implements IBodyContainer, IType
 		final StringBuilder builder = new StringBuilder();
 		builder.append(", \"type\": ").append(type)
 				.append(", \"body\": ");
+		final String body = getBody();
 		if (body != null) {
 			builder.append("\"");
 			escapeBody(builder, body);
@@ -112,20 +129,37 @@ public final class VariableNode extends CppNode implements IBodyContainer, IType
 	//region Object Helper
 
 	@Override
-	public void write(@Nonnull ObjectOutput output) throws IOException {
+	void write(@Nonnull NodeOutput output) throws IOException {
 		super.write(output);
 
-		output.writeObject(body);
-		output.writeObject(type);
+		output.writeVarInt(bodyHandle + 1);
+		output.writeNode(type);
 	}
 
 	@Override
-	public void read(@Nonnull ObjectInput input) throws IOException, ClassNotFoundException {
+	void read(@Nonnull NodeInput input) throws IOException {
 		super.read(input);
 
+		this.bodyHandle = readBodyHandle(input);
+		this.type = input.readNode();
+	}
+
+	@Override
+	void readLegacy(@Nonnull ObjectInput input) throws IOException, ClassNotFoundException {
+		super.readLegacy(input);
+
 		this.body = castNullable(input.readObject(), String.class);
 		this.type = castNullable(input.readObject(), CppNode.class);
 	}
 
+	@Override
+	void readMapped(@Nonnull MappedTree tree, int index, @Nonnull CppNode[] nodes,
+			@Nonnull Map<DependencyMap, DependencyMap> countsPool) throws IOException {
+		super.readMapped(tree, index, nodes, countsPool);
+
+		this.bodyHandle = checkBodyHandle(tree.getBodyHandle(index));
+		this.type = getMappedNullableNode(nodes, tree.getType(index));
+	}
+
 	//endregion Object Helper
 }
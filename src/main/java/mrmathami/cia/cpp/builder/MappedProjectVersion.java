@@ -0,0 +1,147 @@
+package mrmathami.cia.cpp.builder;
+
+import mrmathami.annotations.Nonnull;
+import mrmathami.annotations.Nullable;
+import mrmathami.cia.cpp.ast.DependencyType;
+import mrmathami.cia.cpp.ast.MappedTree;
+import mrmathami.cia.cpp.ast.RootNode;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+
+/**
+ * A project version written by {@link ProjectVersion#toMappedOutputStream}, opened by memory mapping its file. The
+ * queries on its tree are answered directly from the mapping, the project version with its nodes is only created
+ * when it is first needed. Safe to be shared between threads.
+ */
+public final class MappedProjectVersion {
+	public static final int FORMAT_MAGIC = 0x4349414D; // "CIAM"
+	public static final int FORMAT_VERSION = 1;
+
+	@Nonnull private final String versionName;
+	@Nonnull private final List<String> projectFiles;
+	@Nonnull private final List<String> includePaths;
+	@Nonnull private final double[] typeWeights;
+	@Nonnull private final double[] weights;
+	@Nonnull private final MappedTree tree;
+	private final int bodyCacheSize;
+
+	@Nullable private volatile ProjectVersion projectVersion;
+
+	private MappedProjectVersion(@Nonnull String versionName, @Nonnull List<String> projectFiles,
+			@Nonnull List<String> includePaths, @Nonnull double[] typeWeights, @Nonnull double[] weights,
+			@Nonnull MappedTree tree, int bodyCacheSize) {
+		this.versionName = versionName;
+		this.projectFiles = projectFiles;
+		this.includePaths = includePaths;
+		this.typeWeights = typeWeights;
+		this.weights = weights;
+		this.tree = tree;
+		this.bodyCacheSize = bodyCacheSize;
+	}
+
+	/**
+	 * Open a project version file written in the mapped layout. Only the metadata is read, the tree stays in the
+	 * mapped file.
+	 *
+	 * @param path the file
+	 * @param bodyCacheSize maximum number of loaded bodies kept in memory once the nodes are created
+	 * @return the mapped project version
+	 * @throws IOException if the file is not a project version in the mapped layout
+	 */
+	@Nonnull
+	public static MappedProjectVersion open(@Nonnull Path path, int bodyCacheSize) throws IOException {
+		if (bodyCacheSize < 0) throw new IllegalArgumentException("Negative cache size!");
+		final MappedByteBuffer buffer;
+		try (final FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+			if (channel.size() > Integer.MAX_VALUE) throw new IOException("File is too large to be mapped!");
+			buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+		}
+		if (buffer.limit() < Integer.BYTES * 3 || buffer.getInt(0) != FORMAT_MAGIC) {
+			throw new IOException("Wrong input file format!");
+		}
+		if (buffer.getInt(Integer.BYTES) != FORMAT_VERSION) throw new IOException("Unsupported file format version!");
+		final int metadataLength = buffer.getInt(Integer.BYTES * 2);
+		if (metadataLength < 0 || metadataLength > buffer.limit() - Integer.BYTES * 3) {
+			throw new IOException("Wrong input file format!");
+		}
+
+		final byte[] metadata = new byte[metadataLength];
+		buffer.position(Integer.BYTES * 3);
+		buffer.get(metadata);
+		final DataInputStream input = new DataInputStream(new ByteArrayInputStream(metadata));
+		final String versionName = input.readUTF();
+		final List<String> projectFiles = ProjectVersion.readStrings(input);
+		final List<String> includePaths = ProjectVersion.readStrings(input);
+		final double[] typeWeights = ProjectVersion.readDoubles(input);
+		final double[] weights = ProjectVersion.readDoubles(input);
+		if (typeWeights.length != DependencyType.values.size()) throw new IOException("Wrong input file format!");
+
+		final MappedTree tree = MappedTree.of(buffer);
+		return new MappedProjectVersion(versionName, projectFiles, includePaths, typeWeights, weights, tree,
+				bodyCacheSize);
+	}
+
+	@Nonnull
+	public String getVersionName() {
+		return versionName;
+	}
+
+	@Nonnull
+	public List<String> getProjectFiles() {
+		return projectFiles;
+	}
+
+	@Nonnull
+	public List<String> getIncludePaths() {
+		return includePaths;
+	}
+
+	/**
+	 * @return the tree, read directly from the mapped file
+	 */
+	@Nonnull
+	public MappedTree getTree() {
+		return tree;
+	}
+
+	public double getDependencyTypeWeight(@Nonnull DependencyType type) {
+		return typeWeights[type.ordinal()];
+	}
+
+	/**
+	 * @param index index of the node in the tree
+	 * @return the weight of the node
+	 */
+	public double getWeight(int index) {
+		return weights[tree.getId(index)];
+	}
+
+	/**
+	 * Create the project version with all of its nodes, only once. The bodies are still loaded on demand from the
+	 * mapped file.
+	 *
+	 * @return the project version
+	 * @throws IOException if the mapped file does not contain a valid tree
+	 */
+	@Nonnull
+	public ProjectVersion getProjectVersion() throws IOException {
+		final ProjectVersion projectVersion = this.projectVersion;
+		if (projectVersion != null) return projectVersion;
+		synchronized (this) {
+			final ProjectVersion currentProjectVersion = this.projectVersion;
+			if (currentProjectVersion != null) return currentProjectVersion;
+			final RootNode rootNode = tree.toRootNode(bodyCacheSize);
+			final ProjectVersion newProjectVersion = new ProjectVersion(versionName, projectFiles, includePaths,
+					rootNode, typeWeights, weights);
+			this.projectVersion = newProjectVersion;
+			return newProjectVersion;
+		}
+	}
+}
@@ -1,25 +1,54 @@
 package mrmathami.cia.cpp.builder;
 
+import mrmathami.annotations.Internal;
 import mrmathami.annotations.Nonnull;
 import mrmathami.annotations.Nullable;
+import mrmathami.cia.cpp.SerializationReader;
 import mrmathami.cia.cpp.ast.CppNode;
 import mrmathami.cia.cpp.ast.DependencyType;
+import mrmathami.cia.cpp.ast.MappedTree;
 import mrmathami.cia.cpp.ast.RootNode;
+import mrmathami.cia.cpp.ast.StringTable;
+import mrmathami.utils.BlockCompressedInputStream;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
 import java.io.OutputStream;
 import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.util.EnumMap;
 import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
 
+/**
+ * A version of a project and its locked tree. Immutable once created, so a single instance can be shared between
+ * many threads, e.g. by concurrent comparisons, without copying it.
+ */
 public final class ProjectVersion implements Serializable {
 	private static final long serialVersionUID = -1L;
 
+	public static final int DEFAULT_BODY_CACHE_SIZE = 1024;
+
+	public static final int FORMAT_MAGIC = 0x43494156; // "CIAV"
+	public static final int FORMAT_VERSION = 2;
+	private static final int FLAT_FORMAT_VERSION = 1; // nodes not in chunks, still readable
+
 	@Nonnull private final String versionName;
 	@Nonnull private final List<String> projectFiles;
 	@Nonnull private final List<String> includePaths;
@@ -27,8 +56,9 @@ public final class ProjectVersion implements Serializable {
 	@Nonnull private final double[] typeWeights;
 	@Nonnull private final double[] weights;
 
-	@Nullable private transient Map<DependencyType, Double> typeWeightMap;
-	@Nullable private transient Map<CppNode, Double> weightMap;
+	// lazily created immutable views, racy but idempotent, so no lock is needed
+	@Nullable private transient volatile Map<DependencyType, Double> typeWeightMap;
+	@Nullable private transient volatile Map<CppNode, Double> weightMap;
 
 	ProjectVersion(@Nonnull String versionName, @Nonnull List<String> projectFiles,
 			@Nonnull List<String> includePaths, @Nonnull RootNode rootNode,
@@ -41,20 +71,194 @@ public final class ProjectVersion implements Serializable {
 		this.weights = weights.clone();
 	}
 
+	/**
+	 * Create a project version from an already locked tree, e.g. one reconstructed from a stored history.
+	 *
+	 * @param versionName version name
+	 * @param projectFiles project files
+	 * @param includePaths include paths
+	 * @param rootNode the locked root node
+	 * @param typeWeights weight of each dependency type, by its ordinal
+	 * @param weights weight of each node, by its id
+	 * @return the project version
+	 */
+	@Internal
+	@Nonnull
+	public static ProjectVersion of(@Nonnull String versionName, @Nonnull List<String> projectFiles,
+			@Nonnull List<String> includePaths, @Nonnull RootNode rootNode, @Nonnull double[] typeWeights,
+			@Nonnull double[] weights) {
+		if (typeWeights.length != DependencyType.values.size()) {
+			throw new IllegalArgumentException("Wrong dependency type weight count!");
+		}
+		return new ProjectVersion(versionName, projectFiles, includePaths, rootNode, typeWeights, weights);
+	}
+
 	@Nonnull
 	public static ProjectVersion fromInputStream(@Nonnull InputStream inputStream) throws IOException {
-		final ObjectInputStream objectInputStream = new ObjectInputStream(inputStream);
-		try {
-			return (ProjectVersion) objectInputStream.readObject();
-		} catch (ClassNotFoundException | ClassCastException e) {
-			throw new IOException("Wrong input file format!", e);
+		return fromInputStream(inputStream, ForkJoinPool.commonPool());
+	}
+
+	/**
+	 * Read a project version, including all of its bodies. Both the compact binary format and the Java serialization
+	 * format are accepted, either of them may be block compressed. Files written by Java serialization are decoded by
+	 * {@link SerializationReader}, whatever the layout of the classes they were written with.
+	 *
+	 * @param inputStream input stream
+	 * @param pool the pool to decompress the input and decode the tree on
+	 * @return the project version
+	 * @throws IOException if the input is not a project version
+	 */
+	@Nonnull
+	public static ProjectVersion fromInputStream(@Nonnull InputStream inputStream, @Nonnull ForkJoinPool pool)
+			throws IOException {
+		final BufferedInputStream bufferedInputStream
+				= new BufferedInputStream(BlockCompressedInputStream.decompressIfNeeded(inputStream, pool));
+		bufferedInputStream.mark(Integer.BYTES);
+		final DataInputStream dataInputStream = new DataInputStream(bufferedInputStream);
+		if (dataInputStream.readInt() == FORMAT_MAGIC) {
+			final ProjectVersion projectVersion = readStructure(dataInputStream, pool);
+			projectVersion.rootNode.readBodyContent(dataInputStream);
+			return projectVersion;
 		}
+		bufferedInputStream.reset();
+
+		return SerializationReader.read(bufferedInputStream, ProjectVersion.class);
 	}
 
+	@Nonnull
+	public static ProjectVersion fromPath(@Nonnull Path path, int bodyCacheSize) throws IOException {
+		return fromPath(path, bodyCacheSize, ForkJoinPool.commonPool());
+	}
+
+	/**
+	 * Read a project version from a file. If the file is in the compact binary format, only the structure is read
+	 * and the bodies are loaded on demand from the file, keeping at most bodyCacheSize of them in memory. Any other
+	 * file, including a block compressed one, is read as a whole.
+	 *
+	 * @param path the file
+	 * @param bodyCacheSize maximum number of loaded bodies kept in memory
+	 * @param pool the pool to decode the tree on
+	 * @return the project version
+	 * @throws IOException if the file is not a project version
+	 */
+	@Nonnull
+	public static ProjectVersion fromPath(@Nonnull Path path, int bodyCacheSize, @Nonnull ForkJoinPool pool)
+			throws IOException {
+		final ProjectVersion projectVersion;
+		final long bodyPosition;
+		try (final CountingInputStream countingInputStream
+				= new CountingInputStream(new BufferedInputStream(Files.newInputStream(path)))) {
+			final DataInputStream dataInputStream = new DataInputStream(countingInputStream);
+			if (dataInputStream.readInt() != FORMAT_MAGIC) {
+				try (final InputStream inputStream = Files.newInputStream(path)) {
+					return fromInputStream(inputStream, pool);
+				}
+			}
+			projectVersion = readStructure(dataInputStream, pool);
+			bodyPosition = countingInputStream.getCount();
+		}
+		projectVersion.rootNode.setBodyLoader(BodyLoader.map(path, bodyPosition), bodyCacheSize);
+		return projectVersion;
+	}
+
+	/**
+	 * Write this project version in the compact binary format: a header, the structure of the tree, then the content
+	 * of the bodies in their own segment, so that the structure can be loaded without them using {@link #fromPath}.
+	 *
+	 * @param outputStream output stream
+	 * @throws IOException if an I/O error occurs
+	 */
 	public void toOutputStream(@Nonnull OutputStream outputStream) throws IOException {
-		final ObjectOutputStream objectOutputStream = new ObjectOutputStream(outputStream);
-		objectOutputStream.writeObject(this);
-		objectOutputStream.flush();
+		final DataOutputStream dataOutputStream = new DataOutputStream(new BufferedOutputStream(outputStream));
+		dataOutputStream.writeInt(FORMAT_MAGIC);
+		dataOutputStream.writeInt(FORMAT_VERSION);
+		dataOutputStream.writeUTF(versionName);
+		writeStrings(dataOutputStream, projectFiles);
+		writeStrings(dataOutputStream, includePaths);
+		writeDoubles(dataOutputStream, typeWeights);
+		writeDoubles(dataOutputStream, weights);
+		rootNode.writeStructure(dataOutputStream);
+		rootNode.writeBodyContent(dataOutputStream);
+		dataOutputStream.flush();
+	}
+
+	/**
+	 * Write this project version in the mapped layout, which can be opened without reading it using
+	 * {@link MappedProjectVersion#open}.
+	 *
+	 * @param outputStream output stream
+	 * @throws IOException if an I/O error occurs
+	 */
+	public void toMappedOutputStream(@Nonnull OutputStream outputStream) throws IOException {
+		final ByteArrayOutputStream metadata = new ByteArrayOutputStream();
+		try (final DataOutputStream metadataOutputStream = new DataOutputStream(metadata)) {
+			metadataOutputStream.writeUTF(versionName);
+			writeStrings(metadataOutputStream, projectFiles);
+			writeStrings(metadataOutputStream, includePaths);
+			writeDoubles(metadataOutputStream, typeWeights);
+			writeDoubles(metadataOutputStream, weights);
+		}
+		final DataOutputStream dataOutputStream = new DataOutputStream(new BufferedOutputStream(outputStream));
+		dataOutputStream.writeInt(MappedProjectVersion.FORMAT_MAGIC);
+		dataOutputStream.writeInt(MappedProjectVersion.FORMAT_VERSION);
+		dataOutputStream.writeInt(metadata.size());
+		metadata.writeTo(dataOutputStream);
+		MappedTree.write(rootNode, dataOutputStream);
+		dataOutputStream.flush();
+	}
+
+	/**
+	 * Read the structure of a project version in the compact binary format, after its magic number, decoding the
+	 * tree on the pool.
+	 */
+	@Nonnull
+	private static ProjectVersion readStructure(@Nonnull DataInput input, @Nonnull ForkJoinPool pool)
+			throws IOException {
+		final int formatVersion = input.readInt();
+		if (formatVersion != FORMAT_VERSION && formatVersion != FLAT_FORMAT_VERSION) {
+			throw new IOException("Unsupported file format version!");
+		}
+		final String versionName = input.readUTF();
+		final List<String> projectFiles = readStrings(input);
+		final List<String> includePaths = readStrings(input);
+		final double[] typeWeights = readDoubles(input);
+		final double[] weights = readDoubles(input);
+		if (typeWeights.length != DependencyType.values.size()) throw new IOException("Wrong input file format!");
+		final RootNode rootNode = new RootNode();
+		if (formatVersion == FLAT_FORMAT_VERSION) {
+			rootNode.readFlatStructure(input);
+		} else {
+			rootNode.readStructure(input, pool);
+		}
+		return new ProjectVersion(versionName, projectFiles, includePaths, rootNode, typeWeights, weights);
+	}
+
+	static void writeStrings(@Nonnull DataOutput output, @Nonnull List<String> strings) throws IOException {
+		output.writeInt(strings.size());
+		for (final String string : strings) output.writeUTF(string);
+	}
+
+	@Nonnull
+	static List<String> readStrings(@Nonnull DataInput input) throws IOException {
+		final int size = input.readInt();
+		if (size < 0) throw new IOException("Wrong input file format!");
+		final String[] strings = new String[size];
+		for (int i = 0; i < size; i++) strings[i] = input.readUTF();
+		return List.of(strings);
+	}
+
+	static void writeDoubles(@Nonnull DataOutput output, @Nonnull double[] doubles) throws IOException {
+		output.writeInt(doubles.length);
+		for (final double value : doubles) output.writeDouble(value);
+	}
+
+	@Nonnull
+	static double[] readDoubles(@Nonnull DataInput input) throws IOException {
+		final int size = input.readInt();
+		if (size < 0) throw new IOException("Wrong input file format!");
+		final double[] doubles = new double[size];
+		for (int i = 0; i < size; i++) doubles[i] = input.readDouble();
+		return doubles;
 	}
 
 	@Nonnull
@@ -79,6 +283,7 @@ public final class ProjectVersion implements Serializable {
 
 	@Nonnull
 	public Map<DependencyType, Double> getDependencyTypeWeightMap() {
+		final Map<DependencyType, Double> typeWeightMap = this.typeWeightMap;
 		if (typeWeightMap != null) return typeWeightMap;
 		final Map<DependencyType, Double> map = new EnumMap<>(DependencyType.class);
 		for (final DependencyType type : DependencyType.values()) map.put(type, typeWeights[type.ordinal()]);
@@ -87,10 +292,102 @@ public final class ProjectVersion implements Serializable {
 
 	@Nonnull
 	public Map<CppNode, Double> getWeightMap() {
+		final Map<CppNode, Double> weightMap = this.weightMap;
 		if (weightMap != null) return weightMap;
 		final Map<CppNode, Double> map = new IdentityHashMap<>();
 		map.put(rootNode, weights[0]); // root id == 0
 		for (final CppNode node : rootNode) map.put(node, weights[node.getId()]);
 		return this.weightMap = Map.copyOf(map);
 	}
+
+	/**
+	 * Loader of the bodies from the body segment of a file, which is mapped once in regions of at most
+	 * {@link #REGION_SIZE} bytes. The mapping stays valid after the channel is closed, until it is garbage collected
+	 * along with the project version.
+	 */
+	private static final class BodyLoader implements StringTable.Loader {
+		private static final int REGION_SIZE = 1 << 30;
+
+		@Nonnull private final MappedByteBuffer[] regions;
+		private final long segmentSize;
+
+		private BodyLoader(@Nonnull MappedByteBuffer[] regions, long segmentSize) {
+			this.regions = regions;
+			this.segmentSize = segmentSize;
+		}
+
+		@Nonnull
+		static BodyLoader map(@Nonnull Path path, long bodyPosition) throws IOException {
+			try (final FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+				final long segmentSize = channel.size() - bodyPosition;
+				if (segmentSize < 0) throw new EOFException("Unexpected end of file!");
+				final int regionCount = (int) ((segmentSize + REGION_SIZE - 1) / REGION_SIZE);
+				final MappedByteBuffer[] regions = new MappedByteBuffer[regionCount];
+				for (int i = 0; i < regions.length; i++) {
+					final long regionPosition = (long) i * REGION_SIZE;
+					regions[i] = channel.map(FileChannel.MapMode.READ_ONLY, bodyPosition + regionPosition,
+							Math.min(REGION_SIZE, segmentSize - regionPosition));
+				}
+				return new BodyLoader(regions, segmentSize);
+			}
+		}
+
+		@Nonnull
+		@Override
+		public byte[] load(long position, int length) throws IOException {
+			if (position < 0 || length < 0 || position + length > segmentSize) {
+				throw new EOFException("Unexpected end of body segment!");
+			}
+			final byte[] bytes = new byte[length];
+			int offset = 0;
+			while (offset < length) {
+				final long current = position + offset;
+				// a duplicate per load, the loads may happen on many threads at once
+				final ByteBuffer region = regions[(int) (current / REGION_SIZE)].duplicate();
+				region.position((int) (current % REGION_SIZE));
+				final int count = Math.min(length - offset, region.remaining());
+				region.get(bytes, offset, count);
+				offset += count;
+			}
+			return bytes;
+		}
+	}
+
+	private static final class CountingInputStream extends FilterInputStream {
+		private long count;
+
+		CountingInputStream(@Nonnull InputStream inputStream) {
+			super(inputStream);
+		}
+
+		long getCount() {
+			return count;
+		}
+
+		@Override
+		public int read() throws IOException {
+			final int value = super.read();
+			if (value >= 0) count += 1;
+			return value;
+		}
+
+		@Override
+		public int read(@Nonnull byte[] bytes, int offset, int length) throws IOException {
+			final int readLength = super.read(bytes, offset, length);
+			if (readLength > 0) count += readLength;
+			return readLength;
+		}
+
+		@Override
+		public long skip(long length) throws IOException {
+			final long skipLength = super.skip(length);
+			count += skipLength;
+			return skipLength;
+		}
+
+		@Override
+		public boolean markSupported() {
+			return false;
+		}
+	}
 }
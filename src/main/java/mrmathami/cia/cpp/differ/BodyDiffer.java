@@ -0,0 +1,360 @@
+package mrmathami.cia.cpp.differ;
+
+import mrmathami.annotations.Nonnull;
+import mrmathami.annotations.Nullable;
+import mrmathami.cia.cpp.ast.CppNode;
+import mrmathami.cia.cpp.ast.FunctionNode;
+import mrmathami.cia.cpp.ast.IBodyContainer;
+import mrmathami.cia.cpp.ast.ITypeContainer;
+import mrmathami.utils.Pair;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.function.IntConsumer;
+
+/**
+ * Token level comparison of the bodies of functions and variables. The bodies are split into tokens, dropping the
+ * whitespaces and the comments, and the token lists are compared by the Myers difference algorithm. A change is
+ * cosmetic if the tokens are the same.
+ */
+public final class BodyDiffer {
+	private static final int SPLIT_SIZE = 16; // pairs of nodes compared in a single task
+	private static final long MAX_TRACE_SIZE = 1 << 22; // above this, the middle of the bodies is a single edit
+
+	private static final String[] OPERATORS = { // longest first
+			"<<=", ">>=", "->*", "...", "<=>",
+			"->", "++", "--", "<<", ">>", "<=", ">=", "==", "!=", "&&", "||", "+=", "-=", "*=", "/=", "%=", "&=",
+			"|=", "^=", "::", ".*", "##"
+	};
+
+	private BodyDiffer() {
+	}
+
+	/**
+	 * Compare two bodies token by token. A missing body has no token.
+	 *
+	 * @param bodyA body A
+	 * @param bodyB body B
+	 * @return the difference
+	 */
+	@Nonnull
+	public static BodyDifference compare(@Nullable String bodyA, @Nullable String bodyB) {
+		final List<String> tokensA = bodyA != null ? tokenize(bodyA) : List.of();
+		final List<String> tokensB = bodyB != null ? tokenize(bodyB) : List.of();
+		return new BodyDifference(tokensA, tokensB, diff(tokensA, tokensB));
+	}
+
+	/**
+	 * Compare the bodies of the changed nodes of a difference which hold a body, many pairs at a time on the pool.
+	 *
+	 * @param difference the difference
+	 * @param pool the pool
+	 * @return the body difference of each changed pair holding a body
+	 */
+	@Nonnull
+	public static Map<Pair<CppNode, CppNode>, BodyDifference> compareChangedBodies(
+			@Nonnull VersionDifference difference, @Nonnull ForkJoinPool pool) {
+		final List<Pair<CppNode, CppNode>> pairs = new ArrayList<>();
+		for (final Pair<CppNode, CppNode> pair : difference.getChangedNodes()) {
+			if (pair.getA() instanceof IBodyContainer && pair.getB() instanceof IBodyContainer) pairs.add(pair);
+		}
+		final BodyDifference[] differences = new BodyDifference[pairs.size()];
+		pool.invoke(new RangeTask(0, pairs.size(), index -> {
+			final Pair<CppNode, CppNode> pair = pairs.get(index);
+			differences[index] = compare(((IBodyContainer) pair.getA()).getBody(),
+					((IBodyContainer) pair.getB()).getBody());
+		}));
+		final Map<Pair<CppNode, CppNode>, BodyDifference> map = new HashMap<>();
+		for (int i = 0; i < differences.length; i++) map.put(pairs.get(i), differences[i]);
+		return Map.copyOf(map);
+	}
+
+	/**
+	 * Find the changed pairs of similar nodes which only changed in the whitespaces and the comments of their body,
+	 * many pairs at a time on the pool.
+	 *
+	 * @return whether each pair only changed cosmetically
+	 */
+	@Nonnull
+	static boolean[] findCosmeticChanges(@Nonnull List<Pair<CppNode, CppNode>> pairs,
+			@Nonnull CppNode.Matcher matcher, @Nonnull ForkJoinPool pool) {
+		final boolean[] cosmetic = new boolean[pairs.size()];
+		pool.invoke(new RangeTask(0, pairs.size(), index -> {
+			final Pair<CppNode, CppNode> pair = pairs.get(index);
+			cosmetic[index] = isCosmeticChange(pair.getA(), pair.getB(), matcher);
+		}));
+		return cosmetic;
+	}
+
+	/**
+	 * Everything compared at the IDENTICAL level except the body must match, and the bodies must have the same tokens.
+	 */
+	private static boolean isCosmeticChange(@Nonnull CppNode nodeA, @Nonnull CppNode nodeB,
+			@Nonnull CppNode.Matcher matcher) {
+		if (!(nodeA instanceof IBodyContainer) || nodeA.getClass() != nodeB.getClass()) return false;
+		final String bodyA = ((IBodyContainer) nodeA).getBody();
+		final String bodyB = ((IBodyContainer) nodeB).getBody();
+		if (bodyA == null || bodyB == null || bodyA.equals(bodyB)) return false;
+		if (!matcher.isNodeMatch(nodeA, nodeB, CppNode.MatchLevel.SIMILAR)) return false;
+		if (nodeA instanceof ITypeContainer && !matcher.isNodeMatch(((ITypeContainer) nodeA).getType(),
+				((ITypeContainer) nodeB).getType(), CppNode.MatchLevel.PROTOTYPE_IDENTICAL)) {
+			return false;
+		}
+		if (nodeA instanceof FunctionNode) {
+			final List<CppNode> parametersA = ((FunctionNode) nodeA).getParameters();
+			final List<CppNode> parametersB = ((FunctionNode) nodeB).getParameters();
+			if (parametersA.size() != parametersB.size()) return false;
+			final Iterator<CppNode> iteratorB = parametersB.iterator();
+			for (final CppNode parameterA : parametersA) {
+				if (!matcher.isNodeMatch(parameterA, iteratorB.next(), CppNode.MatchLevel.PROTOTYPE_IDENTICAL)) {
+					return false;
+				}
+			}
+		}
+		return nodeA.equalsAllDependencyTo(nodeB, matcher) && tokenize(bodyA).equals(tokenize(bodyB));
+	}
+
+	//region Tokenizer
+
+	/**
+	 * Split a body into its tokens: identifiers and keywords, numbers, string and character literals, and
+	 * operators. Whitespaces and comments are dropped.
+	 */
+	@Nonnull
+	static List<String> tokenize(@Nonnull String body) {
+		final List<String> tokens = new ArrayList<>();
+		final int length = body.length();
+		int index = 0;
+		while (index < length) {
+			final char c = body.charAt(index);
+			final int start = index;
+			if (Character.isWhitespace(c)) {
+				index += 1;
+				continue;
+			} else if (body.startsWith("//", index)) {
+				final int end = body.indexOf('\n', index);
+				index = end >= 0 ? end + 1 : length;
+				continue;
+			} else if (body.startsWith("/*", index)) {
+				final int end = body.indexOf("*/", index + 2);
+				index = end >= 0 ? end + 2 : length;
+				continue;
+			} else if (c == '"' || c == '\'') {
+				index = skipLiteral(body, index + 1, c);
+			} else if (isNumberStart(body, index)) {
+				index = skipNumber(body, index + 1);
+			} else if (Character.isLetter(c) || c == '_' || c == '$') {
+				index += 1;
+				while (index < length && isIdentifierPart(body.charAt(index))) index += 1;
+			} else {
+				index += operatorLength(body, index);
+			}
+			tokens.add(body.substring(start, index));
+		}
+		return tokens;
+	}
+
+	private static int skipLiteral(@Nonnull String body, int index, char quote) {
+		final int length = body.length();
+		while (index < length) {
+			final char c = body.charAt(index);
+			if (c == '\\') {
+				index += 2;
+			} else {
+				index += 1;
+				if (c == quote || c == '\n') break;
+			}
+		}
+		return Math.min(index, length);
+	}
+
+	private static boolean isNumberStart(@Nonnull String body, int index) {
+		final char c = body.charAt(index);
+		return Character.isDigit(c)
+				|| c == '.' && index + 1 < body.length() && Character.isDigit(body.charAt(index + 1));
+	}
+
+	// a preprocessing number: digits, letters, dots, digit separators and exponent signs
+	private static int skipNumber(@Nonnull String body, int index) {
+		final int length = body.length();
+		while (index < length) {
+			final char c = body.charAt(index);
+			if ((c == '+' || c == '-') && "eEpP".indexOf(body.charAt(index - 1)) >= 0
+					|| c == '\'' && index + 1 < length && isIdentifierPart(body.charAt(index + 1))
+					|| c == '.' || isIdentifierPart(c)) {
+				index += 1;
+			} else {
+				break;
+			}
+		}
+		return index;
+	}
+
+	private static boolean isIdentifierPart(char c) {
+		return Character.isLetterOrDigit(c) || c == '_' || c == '$';
+	}
+
+	private static int operatorLength(@Nonnull String body, int index) {
+		for (final String operator : OPERATORS) if (body.startsWith(operator, index)) return operator.length();
+		return 1;
+	}
+
+	//endregion Tokenizer
+
+	//region Myers
+
+	/**
+	 * @return the edits which turn tokens A into tokens B, in order
+	 */
+	@Nonnull
+	private static List<BodyDifference.Edit> diff(@Nonnull List<String> tokensA, @Nonnull List<String> tokensB) {
+		// the common prefix and suffix are not part of any edit
+		final int sizeA = tokensA.size();
+		final int sizeB = tokensB.size();
+		int prefix = 0;
+		while (prefix < sizeA && prefix < sizeB && tokensA.get(prefix).equals(tokensB.get(prefix))) prefix += 1;
+		int suffix = 0;
+		while (suffix < sizeA - prefix && suffix < sizeB - prefix
+				&& tokensA.get(sizeA - suffix - 1).equals(tokensB.get(sizeB - suffix - 1))) {
+			suffix += 1;
+		}
+		final int n = sizeA - prefix - suffix;
+		final int m = sizeB - prefix - suffix;
+		if (n == 0 && m == 0) return List.of();
+
+		// compare the tokens by their index in a shared table
+		final Map<String, Integer> tokenIndexes = new HashMap<>();
+		final int[] a = new int[n];
+		for (int i = 0; i < n; i++) {
+			a[i] = tokenIndexes.computeIfAbsent(tokensA.get(prefix + i), any -> tokenIndexes.size());
+		}
+		final int[] b = new int[m];
+		for (int j = 0; j < m; j++) {
+			b[j] = tokenIndexes.computeIfAbsent(tokensB.get(prefix + j), any -> tokenIndexes.size());
+		}
+
+		final boolean[] deleted = new boolean[n];
+		final boolean[] inserted = new boolean[m];
+		if (!markEdits(a, b, deleted, inserted)) {
+			return List.of(new BodyDifference.Edit(prefix, prefix + n, prefix, prefix + m));
+		}
+
+		// group the consecutive deleted and inserted tokens into edits
+		final List<BodyDifference.Edit> edits = new ArrayList<>();
+		int i = 0;
+		int j = 0;
+		while (i < n || j < m) {
+			if (i < n && j < m && !deleted[i] && !inserted[j]) {
+				i += 1;
+				j += 1;
+				continue;
+			}
+			final int startA = i;
+			final int startB = j;
+			while (i < n && deleted[i] || j < m && inserted[j]) {
+				while (i < n && deleted[i]) i += 1;
+				while (j < m && inserted[j]) j += 1;
+			}
+			edits.add(new BodyDifference.Edit(prefix + startA, prefix + i, prefix + startB, prefix + j));
+		}
+		return edits;
+	}
+
+	/**
+	 * Find a shortest edit script by the Myers algorithm, keeping the furthest reaching paths of each step to trace
+	 * the script back.
+	 *
+	 * @return false if the script is too long to be traced back
+	 */
+	private static boolean markEdits(@Nonnull int[] a, @Nonnull int[] b, @Nonnull boolean[] deleted,
+			@Nonnull boolean[] inserted) {
+		final int n = a.length;
+		final int m = b.length;
+		final int offset = n + m + 1;
+		final int[] v = new int[offset * 2 + 1]; // furthest x of each diagonal k = x - y, at v[offset + k]
+		final List<int[]> trace = new ArrayList<>(); // v[-d - 1 .. d + 1] before each step d
+		long traceSize = 0;
+		int steps = -1;
+		for (int d = 0; d <= n + m; d++) {
+			traceSize += 2 * d + 3;
+			if (traceSize > MAX_TRACE_SIZE) return false;
+			final int[] snapshot = new int[2 * d + 3];
+			System.arraycopy(v, offset - d - 1, snapshot, 0, snapshot.length);
+			trace.add(snapshot);
+			for (int k = -d; k <= d; k += 2) {
+				int x = k == -d || k != d && v[offset + k - 1] < v[offset + k + 1]
+						? v[offset + k + 1]
+						: v[offset + k - 1] + 1;
+				int y = x - k;
+				while (x < n && y < m && a[x] == b[y]) {
+					x += 1;
+					y += 1;
+				}
+				v[offset + k] = x;
+				if (x >= n && y >= m) {
+					steps = d;
+					break;
+				}
+			}
+			if (steps >= 0) break;
+		}
+
+		int x = n;
+		int y = m;
+		for (int d = steps; d > 0; d--) {
+			final int[] snapshot = trace.get(d); // snapshot[i] is v[i - d - 1]
+			final int k = x - y;
+			final int previousK = k == -d || k != d && snapshot[k - 1 + d + 1] < snapshot[k + 1 + d + 1]
+					? k + 1
+					: k - 1;
+			final int previousX = snapshot[previousK + d + 1];
+			final int previousY = previousX - previousK;
+			while (x > previousX && y > previousY) {
+				x -= 1;
+				y -= 1;
+			}
+			if (x == previousX) {
+				inserted[previousY] = true;
+			} else {
+				deleted[previousX] = true;
+			}
+			x = previousX;
+			y = previousY;
+		}
+		return true;
+	}
+
+	//endregion Myers
+
+	/**
+	 * Apply an action to a range of indexes, splitting the range into tasks of at most {@link #SPLIT_SIZE} indexes.
+	 */
+	private static final class RangeTask extends RecursiveAction {
+		private static final long serialVersionUID = -1L;
+
+		private final int start;
+		private final int end;
+		@Nonnull private final IntConsumer action;
+
+		RangeTask(int start, int end, @Nonnull IntConsumer action) {
+			this.start = start;
+			this.end = end;
+			this.action = action;
+		}
+
+		@Override
+		protected void compute() {
+			if (end - start <= SPLIT_SIZE) {
+				for (int index = start; index < end; index++) action.accept(index);
+			} else {
+				final int middle = (start + end) >>> 1;
+				invokeAll(new RangeTask(start, middle, action), new RangeTask(middle, end, action));
+			}
+		}
+	}
+}
@@ -0,0 +1,105 @@
+package mrmathami.cia.cpp.differ;
+
+import mrmathami.annotations.Nonnull;
+
+import java.util.List;
+
+/**
+ * Token level difference of two bodies, see {@link BodyDiffer}. The tokens are normalized: the whitespaces and the
+ * comments are dropped. Immutable and safe to be shared between threads.
+ */
+public final class BodyDifference {
+	@Nonnull private final List<String> tokensA;
+	@Nonnull private final List<String> tokensB;
+	@Nonnull private final List<Edit> edits;
+
+	BodyDifference(@Nonnull List<String> tokensA, @Nonnull List<String> tokensB, @Nonnull List<Edit> edits) {
+		this.tokensA = List.copyOf(tokensA);
+		this.tokensB = List.copyOf(tokensB);
+		this.edits = List.copyOf(edits);
+	}
+
+	@Nonnull
+	public List<String> getTokensA() {
+		return tokensA;
+	}
+
+	@Nonnull
+	public List<String> getTokensB() {
+		return tokensB;
+	}
+
+	/**
+	 * @return the edits which turn the tokens of body A into the tokens of body B, in order
+	 */
+	@Nonnull
+	public List<Edit> getEdits() {
+		return edits;
+	}
+
+	/**
+	 * @return true if no token changed, so the bodies only differ in their whitespaces and their comments
+	 */
+	public boolean isCosmetic() {
+		return edits.isEmpty();
+	}
+
+	public int getDeletedTokenCount() {
+		int count = 0;
+		for (final Edit edit : edits) count += edit.endA - edit.startA;
+		return count;
+	}
+
+	public int getInsertedTokenCount() {
+		int count = 0;
+		for (final Edit edit : edits) count += edit.endB - edit.startB;
+		return count;
+	}
+
+	@Nonnull
+	@Override
+	public String toString() {
+		return "{ deleted: " + getDeletedTokenCount()
+				+ ", inserted: " + getInsertedTokenCount() + ", edits: " + edits + " }";
+	}
+
+	/**
+	 * Replacement of the tokens [startA, endA) of body A by the tokens [startB, endB) of body B. Either range may be
+	 * empty, but not both.
+	 */
+	public static final class Edit {
+		private final int startA;
+		private final int endA;
+		private final int startB;
+		private final int endB;
+
+		Edit(int startA, int endA, int startB, int endB) {
+			this.startA = startA;
+			this.endA = endA;
+			this.startB = startB;
+			this.endB = endB;
+		}
+
+		public int getStartA() {
+			return startA;
+		}
+
+		public int getEndA() {
+			return endA;
+		}
+
+		public int getStartB() {
+			return startB;
+		}
+
+		public int getEndB() {
+			return endB;
+		}
+
+		@Nonnull
+		@Override
+		public String toString() {
+			return "[" + startA + ", " + endA + ") -> [" + startB + ", " + endB + ")";
+		}
+	}
+}
@@ -0,0 +1,68 @@
+package mrmathami.cia.cpp.differ;
+
+import mrmathami.annotations.Nonnull;
+import mrmathami.annotations.Nullable;
+
+import java.time.Duration;
+import java.util.concurrent.CancellationException;
+
+/**
+ * Cooperative cancellation of a calculation, either by calling {@link #cancel} or when a deadline is reached. The
+ * calculation checks the token regularly and stops soon after it is cancelled. Safe to be shared between threads.
+ */
+public final class CancellationToken {
+	@Nullable private final CancellationToken parent;
+	private final boolean hasDeadline;
+	private final long deadline; // in System.nanoTime()
+	private volatile boolean cancelled;
+
+	/**
+	 * Create a token without deadline, only cancelled by {@link #cancel}.
+	 */
+	public CancellationToken() {
+		this(null, false, 0L);
+	}
+
+	private CancellationToken(@Nullable CancellationToken parent, boolean hasDeadline, long deadline) {
+		this.parent = parent;
+		this.hasDeadline = hasDeadline;
+		this.deadline = deadline;
+	}
+
+	/**
+	 * Create a token which is cancelled when the timeout elapses from now, or by {@link #cancel}.
+	 *
+	 * @param timeout the timeout
+	 * @return the token
+	 */
+	@Nonnull
+	public static CancellationToken withTimeout(@Nonnull Duration timeout) {
+		if (timeout.isNegative()) throw new IllegalArgumentException("Negative timeout!");
+		final long nanos = timeout.compareTo(Duration.ofNanos(Long.MAX_VALUE)) < 0 ? timeout.toNanos() : Long.MAX_VALUE;
+		return new CancellationToken(null, true, System.nanoTime() + nanos);
+	}
+
+	/**
+	 * @return a token which is cancelled with this token, and can also be cancelled on its own
+	 */
+	@Nonnull
+	CancellationToken createChild() {
+		return new CancellationToken(this, false, 0L);
+	}
+
+	public void cancel() {
+		this.cancelled = true;
+	}
+
+	public boolean isCancelled() {
+		return cancelled || hasDeadline && System.nanoTime() - deadline >= 0
+				|| parent != null && parent.isCancelled();
+	}
+
+	/**
+	 * @throws CancellationException if the token is cancelled
+	 */
+	void checkCancelled() {
+		if (isCancelled()) throw new CancellationException("Cancelled!");
+	}
+}
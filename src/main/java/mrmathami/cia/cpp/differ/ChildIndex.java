@@ -0,0 +1,81 @@
+package mrmathami.cia.cpp.differ;
+
+import mrmathami.annotations.Nonnull;
+import mrmathami.annotations.Nullable;
+import mrmathami.cia.cpp.ast.CppNode;
+import mrmathami.cia.cpp.ast.IntegralNode;
+import mrmathami.cia.cpp.ast.RootNode;
+import mrmathami.utils.LongIntHashMap;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Index of the children of every node of a version by their SIMILAR hash, built once per version and shared by all
+ * the comparisons in which the version is version A. The children with the same parent and the same hash are chained
+ * in order. Read only once built, so it is safe to be shared between threads.
+ */
+final class ChildIndex {
+	@Nonnull private final RootNode root;
+	@Nonnull private final CppNode[] nodes; // by id
+	@Nonnull private final int[] positions; // position of each node among the children of its parent, by id
+	@Nonnull private final int[] nextIds; // next child with the same parent and the same hash, -1 at the end, by id
+	@Nonnull private final LongIntHashMap firstIds; // first child with the parent and the hash
+
+	ChildIndex(@Nonnull RootNode root) {
+		final int nodeCount = root.getNodeCount();
+		this.root = root;
+		this.nodes = new CppNode[nodeCount];
+		this.positions = new int[nodeCount];
+		this.nextIds = new int[nodeCount];
+		this.firstIds = new LongIntHashMap(nodeCount);
+		Arrays.fill(nextIds, -1);
+		nodes[0] = root; // root id == 0
+		for (final CppNode node : root) nodes[node.getId()] = node;
+		for (final CppNode parent : nodes) {
+			if (parent == null) continue;
+			final List<CppNode> children = parent.getChildren();
+			for (int i = children.size() - 1; i >= 0; i--) {
+				final CppNode child = children.get(i);
+				positions[child.getId()] = i;
+				if (child instanceof IntegralNode) continue;
+				nextIds[child.getId()] = firstIds.put(keyOf(parent, child.getMatchHash(CppNode.MatchLevel.SIMILAR)),
+						child.getId());
+			}
+		}
+	}
+
+	private static long keyOf(@Nonnull CppNode parent, long hash) {
+		return hash * 0x9E3779B97F4A7C15L + parent.getId();
+	}
+
+	@Nonnull
+	RootNode getRoot() {
+		return root;
+	}
+
+	/**
+	 * @return the first child of the parent with the hash, or a node of another parent if the keys collide
+	 */
+	@Nullable
+	CppNode firstChild(@Nonnull CppNode parent, long hash) {
+		final int id = firstIds.get(keyOf(parent, hash));
+		return id >= 0 ? nodes[id] : null;
+	}
+
+	/**
+	 * @return the next child after the node with the same key, or null at the end
+	 */
+	@Nullable
+	CppNode nextChild(@Nonnull CppNode node) {
+		final int id = nextIds[node.getId()];
+		return id >= 0 ? nodes[id] : null;
+	}
+
+	/**
+	 * @return the position of the node among the children of its parent
+	 */
+	int positionOf(@Nonnull CppNode node) {
+		return positions[node.getId()];
+	}
+}
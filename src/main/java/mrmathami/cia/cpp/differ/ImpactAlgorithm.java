@@ -0,0 +1,25 @@
+package mrmathami.cia.cpp.differ;
+
+import java.util.List;
+
+/**
+ * Algorithm of the impact calculation. The impact spreads from the changed nodes to the nodes depending on them, and
+ * never goes through another changed node.
+ */
+public enum ImpactAlgorithm {
+	/**
+	 * Follow every simple path from each changed node up to the max depth. Exact, but exponential in the depth, unless
+	 * the paths which cannot change the weights by more than an epsilon are pruned.
+	 */
+	PATHS,
+	/**
+	 * Spread the impact of all the changed nodes at once, one depth at a time, as the probability that each node is
+	 * reached at that depth. The paths may go through a node more than once, and the impact of the paths reaching a
+	 * node is combined before going further, so the weights are approximated beyond the first depth, in
+	 * O(depth * dependencies). On an acyclic graph, the weights are never above the exact ones, and they are exact
+	 * when every node is reached by at most one path.
+	 */
+	LAYERED;
+
+	public static final List<ImpactAlgorithm> values = List.of(ImpactAlgorithm.values());
+}
@@ -1,43 +1,75 @@
 package mrmathami.cia.cpp.differ;
 
 import mrmathami.annotations.Nonnull;
+import mrmathami.annotations.Nullable;
 import mrmathami.cia.cpp.CppException;
 import mrmathami.cia.cpp.ast.CppNode;
-import mrmathami.cia.cpp.ast.DependencyMap;
-import mrmathami.cia.cpp.ast.DependencyType;
 import mrmathami.cia.cpp.ast.RootNode;
 
 import java.util.Arrays;
 import java.util.BitSet;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ForkJoinPool;
 import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
 import java.util.concurrent.RecursiveTask;
-import java.util.function.Function;
 
 final class ImpactWeightBuilder {
 	private static final double THRESHOLD = 0x1.0p-128;
+	private static final int DENSE_RATIO = 8; // factors are dense above one in this many nodes
+	private static final int BOUND_DEPTH = 2; // the paths up to this depth are never pruned
+	private static final int CHECK_INTERVAL_MASK = 0xFFF; // check the cancellation once in this many visits
 
 	@Nonnull private final List<CppNode> changedNodes;
 	@Nonnull private final double[] changedWeights;
 	@Nonnull private final BitSet changedPathSet;
-	@Nonnull private final double[] dependencyWeights;
+	@Nonnull private final LinkTable dependents; // links to the nodes depending on each node
 	private final int maxDepth;
+	// error bounds of the paths from each node by the number of depths left, by id, null if the paths are not pruned
+	@Nullable private final double[][] errorBounds;
+	private final double depthBudget; // error each changed node may prune at each depth
+	@Nonnull private final ForkJoinPool pool;
+	@Nonnull private final CancellationToken token;
+	// by thread instead of thread local, so that the buffers are released with the builder
+	@Nonnull private final Map<Thread, Worker> workers = new ConcurrentHashMap<>();
 
 	private ImpactWeightBuilder(@Nonnull List<CppNode> changedNodes, @Nonnull double[] changedWeights,
-			@Nonnull BitSet changedPathSet, @Nonnull double[] dependencyWeights, int maxDepth) {
+			@Nonnull BitSet changedPathSet, @Nonnull LinkTable dependents, int maxDepth,
+			@Nullable double[][] errorBounds, double depthBudget, @Nonnull ForkJoinPool pool,
+			@Nonnull CancellationToken token) {
 		this.changedNodes = changedNodes;
 		this.changedWeights = changedWeights;
 		this.changedPathSet = changedPathSet;
-		this.dependencyWeights = dependencyWeights;
+		this.dependents = dependents;
 		this.maxDepth = maxDepth;
+		this.errorBounds = errorBounds;
+		this.depthBudget = depthBudget;
+		this.pool = pool;
+		this.token = token;
 	}
 
+	/**
+	 * Calculate the impact weights. With a positive epsilon, the paths calculation prunes the paths whose error bound
+	 * fits in a budget of epsilon split between the changed nodes and the depths, so that every weight is at most
+	 * epsilon below its exact value, and never above it. The budget of a depth is spent in the order of the paths, so
+	 * splitting it by depth keeps the first paths from spending all of it.
+	 * <p>
+	 * Dropping a path of weight w ending at a node lowers the weight of the node by at most w times the final miss
+	 * weight of the node. The final miss weights are bounded by the miss weights of the paths up to
+	 * {@link #BOUND_DEPTH}, which are never pruned, so the paths reaching the nodes which are already almost surely
+	 * impacted are pruned almost for free.
+	 */
 	@Nonnull
 	static double[] calculate(@Nonnull double[] dependencyWeights, @Nonnull RootNode rootNode,
-			@Nonnull List<CppNode> changedNodes, int maxDepth) throws CppException {
+			@Nonnull List<CppNode> changedNodes, int maxDepth, @Nonnull ImpactAlgorithm algorithm, double epsilon,
+			@Nonnull ForkJoinPool pool, @Nonnull CancellationToken token) throws CppException {
 		final int nodeCount = rootNode.getNodeCount();
+		// cancelled on its own when the caller is interrupted, without cancelling the token of the caller
+		final CancellationToken taskToken = token.createChild();
 
 		final double[] changedWeights = new double[nodeCount];
 		if (changedNodes.isEmpty()) return changedWeights;
@@ -50,43 +82,273 @@ final class ImpactWeightBuilder {
 			changedPathSet.set(changedId);
 		}
 
-		return new ImpactWeightBuilder(changedNodes, changedWeights, changedPathSet, dependencyWeights, maxDepth)
-				.build();
+		// the link weights only depend on the dependency type weights, so they are calculated once for all the paths
+		final LinkTable dependents = await(pool.submit(LinkTable.ofDependents(rootNode, dependencyWeights, taskToken)),
+				taskToken);
+		if (algorithm == ImpactAlgorithm.LAYERED) {
+			return calculateLayered(dependents.transpose(), changedWeights, changedPathSet, maxDepth, pool, taskToken);
+		}
+		if (epsilon > 0.0 && maxDepth > BOUND_DEPTH) {
+			final double[] boundWeights = new ImpactWeightBuilder(changedNodes, changedWeights, changedPathSet,
+					dependents, BOUND_DEPTH, null, 0.0, pool, taskToken).build();
+			final double[][] errorBounds = calculateErrorBounds(dependents, boundWeights, maxDepth - BOUND_DEPTH, pool,
+					taskToken);
+			return new ImpactWeightBuilder(changedNodes, changedWeights, changedPathSet, dependents, maxDepth,
+					errorBounds, epsilon / changedNodes.size() / (maxDepth - BOUND_DEPTH), pool, taskToken).build();
+		}
+		return new ImpactWeightBuilder(changedNodes, changedWeights, changedPathSet, dependents, maxDepth, null, 0.0,
+				pool, taskToken).build();
+	}
+
+	/**
+	 * Upper bounds of the error of dropping the paths from each node: the sum over all the paths of at most
+	 * (depth + 1) links of their weight times the miss weight bound of their last node, by depth and by id. The
+	 * bounds also count the paths which go through a node more than once or through a changed node, so they hold for
+	 * the simple paths the calculation actually follows.
+	 */
+	@Nonnull
+	private static double[][] calculateErrorBounds(@Nonnull LinkTable dependents, @Nonnull double[] boundWeights,
+			int depthCount, @Nonnull ForkJoinPool pool, @Nonnull CancellationToken token) throws CppException {
+		final int nodeCount = dependents.getNodeCount();
+		final double[][] errorBounds = new double[depthCount][];
+		double[] previousBounds = null;
+		for (int depth = 0; depth < depthCount; depth++) {
+			final double[] bounds = new double[nodeCount];
+			await(pool.submit(new BoundTask(dependents, boundWeights, previousBounds, bounds, 0, nodeCount, token)),
+					token);
+			errorBounds[depth] = previousBounds = bounds;
+		}
+		return errorBounds;
+	}
+
+	/**
+	 * Spread the impact one depth at a time. The probability that a node is reached at the next depth is combined
+	 * from the probabilities of the nodes it depends on at the current depth, and the weight of a node combines its
+	 * probabilities at all the depths.
+	 */
+	@Nonnull
+	private static double[] calculateLayered(@Nonnull LinkTable dependencies, @Nonnull double[] changedWeights,
+			@Nonnull BitSet changedSet, int maxDepth, @Nonnull ForkJoinPool pool, @Nonnull CancellationToken token)
+			throws CppException {
+		final int nodeCount = dependencies.getNodeCount();
+		final double[] missWeights = changedWeights.clone(); // probability of never being reached, by id
+		double[] reachWeights = new double[nodeCount]; // probability of being reached at the current depth, by id
+		double[] nextReachWeights = new double[nodeCount];
+		for (int id = changedSet.nextSetBit(0); id >= 0; id = changedSet.nextSetBit(id + 1)) reachWeights[id] = 1.0;
+
+		for (int depth = 0; depth <= maxDepth; depth++) {
+			await(pool.submit(new LayerTask(dependencies, changedSet, reachWeights, nextReachWeights, missWeights, 0,
+					nodeCount, token)), token);
+			final double[] weights = reachWeights;
+			reachWeights = nextReachWeights;
+			nextReachWeights = weights;
+		}
+		for (int i = 0; i < nodeCount; i++) missWeights[i] = 1.0 - missWeights[i];
+		return missWeights;
 	}
 
 	@Nonnull
 	private double[] build() throws CppException {
+		final Factors factors = await(pool.submit(new CalculationTask(0, changedNodes.size())), token);
+		final double[] weights = changedWeights.clone();
+		if (errorBounds != null) {
+			for (int i = 0; i < weights.length; i++) weights[i] = Math.log(weights[i]);
+			factors.multiplyInto(weights);
+			for (int i = 0; i < weights.length; i++) weights[i] = 0.0 - Math.expm1(weights[i]); // not -0.0
+			return weights;
+		}
+		factors.multiplyInto(weights);
+		for (int i = 0; i < weights.length; i++) {
+			weights[i] = 1.0 - weights[i];
+		}
+		return weights;
+	}
+
+	/**
+	 * Wait for a task, failing fast instead of returning partial weights if the calculation is cancelled. The running
+	 * tasks are stopped through the token if the caller is interrupted.
+	 */
+	@Nonnull
+	private static <E> E await(@Nonnull ForkJoinTask<E> task, @Nonnull CancellationToken token) throws CppException {
 		try {
-			final double[] weights = ForkJoinPool.commonPool()
-					.submit(new CalculationTask(0, changedNodes.size()))
-					.get();
-			for (int i = 0; i < weights.length; i++) {
-				weights[i] = 1.0 - weights[i];
+			return task.get();
+		} catch (final CancellationException exception) {
+			throw new CppException("Impact calculation cancelled!", exception);
+		} catch (final ExecutionException exception) {
+			if (exception.getCause() instanceof CancellationException) {
+				throw new CppException("Impact calculation cancelled!", exception.getCause());
 			}
-			return weights;
-		} catch (final InterruptedException | ExecutionException exception) {
+			throw new CppException("Cannot calculate impactWeights!", exception);
+		} catch (final InterruptedException exception) {
+			token.cancel();
+			Thread.currentThread().interrupt();
 			throw new CppException("Cannot calculate impactWeights!", exception);
 		}
 	}
 
-	private static double linkWeight(@Nonnull DependencyMap dependencyMap, @Nonnull double[] dependencyWeights) {
-		double linkWeight = 1.0;
-		for (final DependencyType type : DependencyType.values) {
-			linkWeight *= Math.pow(1.0 - dependencyWeights[type.ordinal()], dependencyMap.getCount(type));
+	/**
+	 * Product of the miss weights of some changed nodes. Sparse while only a few nodes are reached, as the sorted ids
+	 * of the reached nodes and their factors, then dense, by id. The factors of a node are always multiplied in the
+	 * order of the changed nodes, so the result does not depend on the scheduling of the tasks. In log space, the
+	 * factors are the logarithms of the miss weights and they are added instead, which keeps the tiny weights of the
+	 * long paths from being rounded away.
+	 */
+	private static final class Factors {
+		@Nullable private final int[] ids; // null if dense
+		@Nonnull private final double[] values;
+		private final boolean logSpace;
+
+		Factors(@Nullable int[] ids, @Nonnull double[] values, boolean logSpace) {
+			this.ids = ids;
+			this.values = values;
+			this.logSpace = logSpace;
+		}
+
+		int size() {
+			return ids != null ? ids.length : values.length;
+		}
+
+		/**
+		 * Multiply the factors into dense values by id.
+		 */
+		void multiplyInto(@Nonnull double[] denseValues) {
+			if (logSpace) {
+				if (ids != null) {
+					for (int i = 0; i < ids.length; i++) denseValues[ids[i]] += values[i];
+				} else {
+					for (int i = 0; i < values.length; i++) denseValues[i] += values[i];
+				}
+			} else if (ids != null) {
+				for (int i = 0; i < ids.length; i++) denseValues[ids[i]] *= values[i];
+			} else {
+				for (int i = 0; i < values.length; i++) denseValues[i] *= values[i];
+			}
+		}
+
+		/**
+		 * Combine the factors of this and the factors of the other, reusing the dense values of either.
+		 */
+		@Nonnull
+		Factors multiply(@Nonnull Factors factors, int nodeCount) {
+			if (ids == null) {
+				factors.multiplyInto(values);
+				return this;
+			}
+			if (factors.ids == null) {
+				multiplyInto(factors.values);
+				return factors;
+			}
+			if ((long) ids.length + factors.ids.length > nodeCount / DENSE_RATIO) {
+				final double[] denseValues = new double[nodeCount];
+				if (!logSpace) Arrays.fill(denseValues, 1.0);
+				multiplyInto(denseValues);
+				factors.multiplyInto(denseValues);
+				return new Factors(null, denseValues, logSpace);
+			}
+			// merge the sorted ids
+			final int[] idsA = ids;
+			final int[] idsB = factors.ids;
+			final int[] mergedIds = new int[idsA.length + idsB.length];
+			final double[] mergedValues = new double[mergedIds.length];
+			int a = 0;
+			int b = 0;
+			int size = 0;
+			while (a < idsA.length || b < idsB.length) {
+				if (b >= idsB.length || a < idsA.length && idsA[a] < idsB[b]) {
+					mergedIds[size] = idsA[a];
+					mergedValues[size++] = values[a++];
+				} else if (a >= idsA.length || idsB[b] < idsA[a]) {
+					mergedIds[size] = idsB[b];
+					mergedValues[size++] = factors.values[b++];
+				} else {
+					mergedIds[size] = idsA[a];
+					final double valueA = values[a++];
+					final double valueB = factors.values[b++];
+					mergedValues[size++] = logSpace ? valueA + valueB : valueA * valueB;
+				}
+			}
+			return new Factors(Arrays.copyOf(mergedIds, size), Arrays.copyOf(mergedValues, size), logSpace);
 		}
-		return 1.0 - linkWeight;
 	}
 
-	@Nonnull
-	private static double[] reduceWeights(@Nonnull double[] weightsA, @Nonnull double[] weightsB) {
-		assert weightsA.length == weightsB.length;
-		for (int i = 0; i < weightsA.length; i++) {
-			weightsA[i] *= weightsB[i];
+	/**
+	 * Buffers of the path enumeration of a worker thread, reused for all the changed nodes it calculates. Only the
+	 * reached nodes are recorded, and only they are reset after each changed node.
+	 */
+	private final class Worker {
+		private final boolean logSpace = errorBounds != null;
+		private final double identity = logSpace ? 0.0 : 1.0;
+		@Nonnull private final double[] factors; // identity if not reached
+		@Nonnull private final BitSet pathSet = (BitSet) changedPathSet.clone();
+		@Nonnull private final BitSet reachedSet;
+		@Nonnull private int[] reachedIds = new int[16];
+		private int reachedCount;
+		private int visitCount;
+		@Nonnull private final double[] prunedErrors = new double[maxDepth + 1]; // of the changed node, by depth
+
+		Worker(int nodeCount) {
+			this.factors = new double[nodeCount];
+			this.reachedSet = new BitSet(nodeCount);
+			Arrays.fill(factors, identity);
+		}
+
+		@Nonnull
+		Factors calculate(@Nonnull CppNode changedNode) {
+			Arrays.fill(prunedErrors, 0.0);
+			recursiveCalculate(changedNode.getId(), 1.0, 0);
+
+			final int[] ids = Arrays.copyOf(reachedIds, reachedCount);
+			Arrays.sort(ids);
+			final double[] values = new double[ids.length];
+			for (int i = 0; i < ids.length; i++) {
+				final int id = ids[i];
+				values[i] = factors[id];
+				factors[id] = identity;
+				reachedSet.clear(id);
+			}
+			this.reachedCount = 0;
+			return new Factors(ids, values, logSpace);
+		}
+
+		private void recursiveCalculate(int currentId, double currentWeight, int depth) {
+			final int[] offsets = dependents.getOffsets();
+			final int[] targets = dependents.getTargets();
+			final double[] weights = dependents.getWeights();
+			for (int edge = offsets[currentId], end = offsets[currentId + 1]; edge < end; edge++) {
+				if ((++visitCount & CHECK_INTERVAL_MASK) == 0) token.checkCancelled();
+				final int nextId = targets[edge];
+				if (pathSet.get(nextId)) continue;
+				final double nextWeight = currentWeight * weights[edge];
+				if (!reachedSet.get(nextId)) {
+					reachedSet.set(nextId);
+					if (reachedCount == reachedIds.length) {
+						this.reachedIds = Arrays.copyOf(reachedIds, reachedCount * 2);
+					}
+					reachedIds[reachedCount++] = nextId;
+				}
+				if (logSpace) {
+					factors[nextId] += Math.log1p(-nextWeight);
+				} else {
+					factors[nextId] *= 1.0 - nextWeight;
+				}
+				if (depth < maxDepth && nextWeight >= THRESHOLD) {
+					if (errorBounds != null && depth >= BOUND_DEPTH) {
+						// the paths going further would only lower the weights, by at most their error bound
+						final double error = nextWeight * errorBounds[maxDepth - depth - 1][nextId];
+						if (prunedErrors[depth] + error <= depthBudget) {
+							prunedErrors[depth] += error;
+							continue;
+						}
+					}
+					pathSet.set(nextId);
+					recursiveCalculate(nextId, nextWeight, depth + 1);
+					pathSet.clear(nextId);
+				}
+			}
 		}
-		return weightsA;
 	}
 
-	private final class CalculationTask extends RecursiveTask<double[]> {
+	private final class CalculationTask extends RecursiveTask<Factors> {
 		private final int start;
 		private final int length;
 
@@ -97,49 +359,127 @@ final class ImpactWeightBuilder {
 
 		@Nonnull
 		@Override
-		protected double[] compute() {
+		protected Factors compute() {
 			if (length > 1) {
 				final int half = length >>> 1;
-				final ForkJoinTask<double[]> taskA = new CalculationTask(start, half).fork();
-				final ForkJoinTask<double[]> taskB = new CalculationTask(start + half, length - half).fork();
-				return reduceWeights(taskA.join(), taskB.join());
+				final ForkJoinTask<Factors> taskA = new CalculationTask(start, half).fork();
+				final ForkJoinTask<Factors> taskB = new CalculationTask(start + half, length - half).fork();
+				return taskA.join().multiply(taskB.join(), changedWeights.length);
 			} else {
-				return calculate(changedNodes.get(start));
+				token.checkCancelled();
+				return workers.computeIfAbsent(Thread.currentThread(), thread -> new Worker(changedWeights.length))
+						.calculate(changedNodes.get(start));
 			}
 		}
+	}
 
-		@Nonnull
-		private double[] calculate(@Nonnull CppNode node) {
-			return new Function<CppNode, double[]>() {
-				@Nonnull private final double[] weights = changedWeights.clone();
-				@Nonnull private final BitSet pathSet = (BitSet) changedPathSet.clone();
-
-				private void recursiveCalculate(@Nonnull CppNode currentNode, double currentWeight, int depth) {
-					for (final CppNode nextNode : currentNode.getAllDependencyFrom()) {
-						final int nextId = nextNode.getId();
-						if (pathSet.get(nextId)) continue;
-						final DependencyMap dependencyMap = currentNode.getNodeDependencyFrom(nextNode);
-						final double nextWeight = currentWeight * linkWeight(dependencyMap, dependencyWeights);
-						weights[nextId] *= 1.0 - nextWeight;
-						if (depth < maxDepth && nextWeight >= THRESHOLD) {
-							pathSet.set(nextId);
-							recursiveCalculate(nextNode, nextWeight, depth + 1);
-							pathSet.clear(nextId);
-						}
-					}
+	/**
+	 * One depth of the layered calculation over a range of ids. Each node only writes its own weights.
+	 */
+	private static final class LayerTask extends RecursiveAction {
+		private static final long serialVersionUID = -1L;
+		private static final int SPLIT_SIZE = 4096;
+
+		@Nonnull private final LinkTable dependencies;
+		@Nonnull private final BitSet changedSet;
+		@Nonnull private final double[] reachWeights;
+		@Nonnull private final double[] nextReachWeights;
+		@Nonnull private final double[] missWeights;
+		private final int start;
+		private final int end;
+		@Nonnull private final CancellationToken token;
+
+		LayerTask(@Nonnull LinkTable dependencies, @Nonnull BitSet changedSet, @Nonnull double[] reachWeights,
+				@Nonnull double[] nextReachWeights, @Nonnull double[] missWeights, int start, int end,
+				@Nonnull CancellationToken token) {
+			this.dependencies = dependencies;
+			this.changedSet = changedSet;
+			this.reachWeights = reachWeights;
+			this.nextReachWeights = nextReachWeights;
+			this.missWeights = missWeights;
+			this.start = start;
+			this.end = end;
+			this.token = token;
+		}
+
+		@Override
+		protected void compute() {
+			if (end - start > SPLIT_SIZE) {
+				final int middle = (start + end) >>> 1;
+				invokeAll(new LayerTask(dependencies, changedSet, reachWeights, nextReachWeights, missWeights, start,
+								middle, token),
+						new LayerTask(dependencies, changedSet, reachWeights, nextReachWeights, missWeights, middle,
+								end, token));
+				return;
+			}
+			token.checkCancelled();
+			final int[] offsets = dependencies.getOffsets();
+			final int[] targets = dependencies.getTargets();
+			final double[] weights = dependencies.getWeights();
+			for (int id = start; id < end; id++) {
+				nextReachWeights[id] = 0.0;
+				if (changedSet.get(id)) continue;
+				double missWeight = 1.0;
+				for (int edge = offsets[id], edgeEnd = offsets[id + 1]; edge < edgeEnd; edge++) {
+					final double reachWeight = reachWeights[targets[edge]];
+					if (reachWeight == 0.0) continue;
+					missWeight *= 1.0 - reachWeight * weights[edge];
 				}
+				missWeights[id] *= missWeight;
+				final double nextReachWeight = 1.0 - missWeight;
+				if (nextReachWeight >= THRESHOLD) nextReachWeights[id] = nextReachWeight;
+			}
+		}
+	}
 
-				@Nonnull
-				@Override
-				public double[] apply(@Nonnull CppNode changedNode) {
-					//System.err.println("Thread " + Thread.currentThread().getId() + " START " + changedNode);
+	/**
+	 * One depth of the error bounds over a range of ids, from the bounds of the previous depth.
+	 */
+	private static final class BoundTask extends RecursiveAction {
+		private static final long serialVersionUID = -1L;
+		private static final int SPLIT_SIZE = 4096;
 
-					recursiveCalculate(changedNode, 1.0, 0);
+		@Nonnull private final LinkTable dependents;
+		@Nonnull private final double[] boundWeights;
+		@Nullable private final double[] previousBounds;
+		@Nonnull private final double[] bounds;
+		private final int start;
+		private final int end;
+		@Nonnull private final CancellationToken token;
 
-					//System.err.println("Thread " + Thread.currentThread().getId() + " END " + changedNode);
-					return weights;
+		BoundTask(@Nonnull LinkTable dependents, @Nonnull double[] boundWeights, @Nullable double[] previousBounds,
+				@Nonnull double[] bounds, int start, int end, @Nonnull CancellationToken token) {
+			this.dependents = dependents;
+			this.boundWeights = boundWeights;
+			this.previousBounds = previousBounds;
+			this.bounds = bounds;
+			this.start = start;
+			this.end = end;
+			this.token = token;
+		}
+
+		@Override
+		protected void compute() {
+			if (end - start > SPLIT_SIZE) {
+				final int middle = (start + end) >>> 1;
+				invokeAll(new BoundTask(dependents, boundWeights, previousBounds, bounds, start, middle, token),
+						new BoundTask(dependents, boundWeights, previousBounds, bounds, middle, end, token));
+				return;
+			}
+			token.checkCancelled();
+			final int[] offsets = dependents.getOffsets();
+			final int[] targets = dependents.getTargets();
+			final double[] weights = dependents.getWeights();
+			for (int id = start; id < end; id++) {
+				double bound = 0.0;
+				for (int edge = offsets[id], edgeEnd = offsets[id + 1]; edge < edgeEnd; edge++) {
+					final int nextId = targets[edge];
+					final double missWeight = 1.0 - boundWeights[nextId];
+					final double error = previousBounds != null ? missWeight + previousBounds[nextId] : missWeight;
+					bound += weights[edge] * error;
 				}
-			}.apply(node);
+				bounds[id] = bound;
+			}
 		}
 	}
 }
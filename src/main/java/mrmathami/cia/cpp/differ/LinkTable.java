@@ -0,0 +1,179 @@
+package mrmathami.cia.cpp.differ;
+
+import mrmathami.annotations.Nonnull;
+import mrmathami.cia.cpp.ast.CppNode;
+import mrmathami.cia.cpp.ast.DependencyMap;
+import mrmathami.cia.cpp.ast.DependencyType;
+import mrmathami.cia.cpp.ast.RootNode;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * The links of every node of a version in a flattened adjacency, with the link weight of each link under one
+ * configuration of the dependency type weights. The links of a node are the range [start, end) of the edges, so the
+ * impact calculation reads the weight of a link from an array instead of calculating it again on every path going
+ * through it. Read only once built, so it is safe to be shared between threads.
+ */
+final class LinkTable {
+	@Nonnull private final int[] offsets; // links of a node are the edges [offsets[id], offsets[id + 1]), by id
+	@Nonnull private final int[] targets; // id of the other end, by edge
+	@Nonnull private final double[] weights; // link weight, by edge
+
+	private LinkTable(@Nonnull int[] offsets, @Nonnull int[] targets, @Nonnull double[] weights) {
+		this.offsets = offsets;
+		this.targets = targets;
+		this.weights = weights;
+	}
+
+	/**
+	 * Create the table of the links from each node to the nodes depending on it, in the order of the ids instead of
+	 * the order of the identity maps of the nodes, so that the calculation follows the paths in the same order on
+	 * every run. The link weights are calculated in parallel when the task runs.
+	 *
+	 * @param rootNode the root of the version
+	 * @param dependencyWeights impact weight of each dependency type, by ordinal
+	 * @param token the token to cancel the calculation with
+	 * @return the task creating the table
+	 */
+	@Nonnull
+	static RecursiveTask<LinkTable> ofDependents(@Nonnull RootNode rootNode, @Nonnull double[] dependencyWeights,
+			@Nonnull CancellationToken token) {
+		return new BuildTask(rootNode, dependencyWeights, token);
+	}
+
+	private static double linkWeight(@Nonnull DependencyMap dependencyMap, @Nonnull double[] dependencyWeights) {
+		double linkWeight = 1.0;
+		for (final DependencyType type : DependencyType.values) {
+			linkWeight *= Math.pow(1.0 - dependencyWeights[type.ordinal()], dependencyMap.getCount(type));
+		}
+		return 1.0 - linkWeight;
+	}
+
+	/**
+	 * @return the table of the same links in the other direction, the links of each node in the order of the ids
+	 */
+	@Nonnull
+	LinkTable transpose() {
+		final int nodeCount = offsets.length - 1;
+		final int[] reverseOffsets = new int[nodeCount + 1];
+		for (final int target : targets) reverseOffsets[target + 1] += 1;
+		for (int id = 0; id < nodeCount; id++) reverseOffsets[id + 1] += reverseOffsets[id];
+		final int[] positions = reverseOffsets.clone();
+		final int[] reverseTargets = new int[targets.length];
+		final double[] reverseWeights = new double[weights.length];
+		for (int id = 0; id < nodeCount; id++) {
+			for (int edge = offsets[id], end = offsets[id + 1]; edge < end; edge++) {
+				final int position = positions[targets[edge]]++;
+				reverseTargets[position] = id;
+				reverseWeights[position] = weights[edge];
+			}
+		}
+		return new LinkTable(reverseOffsets, reverseTargets, reverseWeights);
+	}
+
+	int getNodeCount() {
+		return offsets.length - 1;
+	}
+
+	/**
+	 * @return the first edge of each node by id, followed by the edge count
+	 */
+	@Nonnull
+	int[] getOffsets() {
+		return offsets;
+	}
+
+	@Nonnull
+	int[] getTargets() {
+		return targets;
+	}
+
+	@Nonnull
+	double[] getWeights() {
+		return weights;
+	}
+
+	private static final class BuildTask extends RecursiveTask<LinkTable> {
+		private static final long serialVersionUID = -1L;
+
+		@Nonnull private final RootNode rootNode;
+		@Nonnull private final double[] dependencyWeights;
+		@Nonnull private final CancellationToken token;
+
+		BuildTask(@Nonnull RootNode rootNode, @Nonnull double[] dependencyWeights, @Nonnull CancellationToken token) {
+			this.rootNode = rootNode;
+			this.dependencyWeights = dependencyWeights;
+			this.token = token;
+		}
+
+		@Nonnull
+		@Override
+		protected LinkTable compute() {
+			final int nodeCount = rootNode.getNodeCount();
+			final CppNode[] nodes = new CppNode[nodeCount];
+			nodes[0] = rootNode; // root id == 0
+			for (final CppNode node : rootNode) nodes[node.getId()] = node;
+
+			final int[] offsets = new int[nodeCount + 1];
+			for (int id = 0; id < nodeCount; id++) {
+				final CppNode node = nodes[id];
+				offsets[id + 1] = offsets[id] + (node != null ? node.getAllDependencyFrom().size() : 0);
+			}
+			final int edgeCount = offsets[nodeCount];
+			final LinkTable table = new LinkTable(offsets, new int[edgeCount], new double[edgeCount]);
+			new FillTask(table, nodes, dependencyWeights, 0, nodeCount, token).invoke();
+			return table;
+		}
+	}
+
+	/**
+	 * Fill the links of a range of ids. Each node only writes its own edges.
+	 */
+	private static final class FillTask extends RecursiveAction {
+		private static final long serialVersionUID = -1L;
+		private static final int SPLIT_SIZE = 4096;
+
+		@Nonnull private final LinkTable table;
+		@Nonnull private final CppNode[] nodes;
+		@Nonnull private final double[] dependencyWeights;
+		private final int start;
+		private final int end;
+		@Nonnull private final CancellationToken token;
+
+		FillTask(@Nonnull LinkTable table, @Nonnull CppNode[] nodes, @Nonnull double[] dependencyWeights, int start,
+				int end, @Nonnull CancellationToken token) {
+			this.table = table;
+			this.nodes = nodes;
+			this.dependencyWeights = dependencyWeights;
+			this.start = start;
+			this.end = end;
+			this.token = token;
+		}
+
+		@Override
+		protected void compute() {
+			if (end - start > SPLIT_SIZE) {
+				final int middle = (start + end) >>> 1;
+				invokeAll(new FillTask(table, nodes, dependencyWeights, start, middle, token),
+						new FillTask(table, nodes, dependencyWeights, middle, end, token));
+				return;
+			}
+			token.checkCancelled();
+			for (int id = start; id < end; id++) {
+				final CppNode node = nodes[id];
+				if (node == null) continue;
+				final CppNode[] nextNodes = node.getAllDependencyFrom().toArray(new CppNode[0]);
+				Arrays.sort(nextNodes, Comparator.comparingInt(CppNode::getId));
+				int edge = table.offsets[id];
+				for (final CppNode nextNode : nextNodes) {
+					table.targets[edge] = nextNode.getId();
+					table.weights[edge] = linkWeight(node.getNodeDependencyFrom(nextNode), dependencyWeights);
+					edge += 1;
+				}
+			}
+		}
+	}
+}
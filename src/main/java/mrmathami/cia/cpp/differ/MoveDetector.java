@@ -0,0 +1,200 @@
+package mrmathami.cia.cpp.differ;
+
+import mrmathami.annotations.Nonnull;
+import mrmathami.cia.cpp.ast.CppNode;
+import mrmathami.cia.cpp.ast.DependencyType;
+import mrmathami.cia.cpp.ast.IBodyContainer;
+import mrmathami.cia.cpp.ast.StringTable;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Detection of renamed and moved nodes among the removed and the added nodes of a comparison. Each node is described
+ * by the set of its features: the tokens of its body and its signature, the names of its children, and its
+ * dependencies with the names of the nodes on their other end. The sets are summarized by MinHash signatures, and the
+ * pairs of nodes of the same class sharing a band of their signatures are scored by the estimated Jaccard similarity
+ * of their sets. The best pairs above the threshold are taken first.
+ */
+final class MoveDetector {
+	static final double SIMILARITY_THRESHOLD = 0.5;
+
+	private static final int HASH_COUNT = 64;
+	private static final int BAND_ROWS = 4;
+	private static final int BAND_COUNT = HASH_COUNT / BAND_ROWS;
+	private static final int MIN_FEATURE_COUNT = 2; // too little evidence below this
+
+	private static final int BODY_FEATURE = 1;
+	private static final int SIGNATURE_FEATURE = 2;
+	private static final int CHILD_FEATURE = 3;
+	private static final int DEPENDENCY_TO_FEATURE = 4;
+	private static final int DEPENDENCY_FROM_FEATURE = 4 + DependencyType.values.size();
+
+	private MoveDetector() {
+	}
+
+	/**
+	 * Pair the removed nodes with the added nodes they were most likely renamed or moved to.
+	 *
+	 * @param removedNodes the removed nodes, in a stable order
+	 * @param addedNodes the added nodes, in a stable order
+	 * @return the added node paired with each paired removed node
+	 */
+	@Nonnull
+	static Map<CppNode, CppNode> detect(@Nonnull List<CppNode> removedNodes, @Nonnull List<CppNode> addedNodes) {
+		final Map<CppNode, CppNode> pairs = new IdentityHashMap<>();
+		if (removedNodes.isEmpty() || addedNodes.isEmpty()) return pairs;
+
+		final List<CppNode> candidatesA = new ArrayList<>();
+		final List<long[]> signaturesA = new ArrayList<>();
+		collectSignatures(removedNodes, candidatesA, signaturesA);
+		final List<CppNode> candidatesB = new ArrayList<>();
+		final List<long[]> signaturesB = new ArrayList<>();
+		collectSignatures(addedNodes, candidatesB, signaturesB);
+
+		// the bands of the removed nodes, keyed with the class of the node so that only the same classes pair
+		final Map<Long, List<Integer>> buckets = new HashMap<>();
+		for (int i = 0; i < candidatesA.size(); i++) {
+			final long classHash = StringTable.hash(candidatesA.get(i).getClass().getName());
+			for (int band = 0; band < BAND_COUNT; band++) {
+				buckets.computeIfAbsent(bandKey(classHash, signaturesA.get(i), band), any -> new ArrayList<>()).add(i);
+			}
+		}
+
+		final List<long[]> scoredPairs = new ArrayList<>(); // equal hash count, index A, index B
+		final Set<Long> seenPairs = new HashSet<>();
+		for (int j = 0; j < candidatesB.size(); j++) {
+			final long classHash = StringTable.hash(candidatesB.get(j).getClass().getName());
+			final long[] signatureB = signaturesB.get(j);
+			for (int band = 0; band < BAND_COUNT; band++) {
+				final List<Integer> bucket = buckets.get(bandKey(classHash, signatureB, band));
+				if (bucket == null) continue;
+				for (final int i : bucket) {
+					if (!seenPairs.add((long) i << 32 | j)) continue;
+					final int equalCount = countEqual(signaturesA.get(i), signatureB);
+					if (equalCount >= SIMILARITY_THRESHOLD * HASH_COUNT) scoredPairs.add(new long[]{equalCount, i, j});
+				}
+			}
+		}
+
+		// best score first, then in the order of the nodes
+		scoredPairs.sort((pairA, pairB) -> pairA[0] != pairB[0] ? Long.compare(pairB[0], pairA[0])
+				: pairA[1] != pairB[1] ? Long.compare(pairA[1], pairB[1]) : Long.compare(pairA[2], pairB[2]));
+		final boolean[] pairedB = new boolean[candidatesB.size()];
+		for (final long[] scoredPair : scoredPairs) {
+			final CppNode nodeA = candidatesA.get((int) scoredPair[1]);
+			final int j = (int) scoredPair[2];
+			if (pairedB[j] || pairs.containsKey(nodeA)) continue;
+			pairedB[j] = true;
+			pairs.put(nodeA, candidatesB.get(j));
+		}
+		return pairs;
+	}
+
+	private static void collectSignatures(@Nonnull List<CppNode> nodes, @Nonnull List<CppNode> candidates,
+			@Nonnull List<long[]> signatures) {
+		for (final CppNode node : nodes) {
+			final long[] features = features(node);
+			if (features.length < MIN_FEATURE_COUNT) continue;
+			candidates.add(node);
+			signatures.add(minHash(features));
+		}
+	}
+
+	private static long bandKey(long classHash, @Nonnull long[] signature, int band) {
+		long key = mix(classHash + band);
+		for (int row = band * BAND_ROWS, end = row + BAND_ROWS; row < end; row++) key = mix(key ^ signature[row]);
+		return key;
+	}
+
+	private static int countEqual(@Nonnull long[] signatureA, @Nonnull long[] signatureB) {
+		int count = 0;
+		for (int i = 0; i < HASH_COUNT; i++) if (signatureA[i] == signatureB[i]) count += 1;
+		return count;
+	}
+
+	@Nonnull
+	private static long[] minHash(@Nonnull long[] features) {
+		final long[] signature = new long[HASH_COUNT];
+		Arrays.fill(signature, Long.MAX_VALUE);
+		for (final long feature : features) {
+			for (int i = 0; i < HASH_COUNT; i++) {
+				final long value = mix(feature + (i + 1) * 0x9E3779B97F4A7C15L);
+				if (value < signature[i]) signature[i] = value;
+			}
+		}
+		return signature;
+	}
+
+	/**
+	 * @return the sorted distinct hashes of the features of the node
+	 */
+	@Nonnull
+	private static long[] features(@Nonnull CppNode node) {
+		final Set<Long> features = new HashSet<>();
+		final String body = node instanceof IBodyContainer ? ((IBodyContainer) node).getBody() : null;
+		if (body != null) addTokens(features, BODY_FEATURE, body);
+		addTokens(features, SIGNATURE_FEATURE, node.getSignature());
+		for (final CppNode child : node.getChildren()) {
+			features.add(feature(CHILD_FEATURE, StringTable.hash(child.getName())));
+		}
+		for (final CppNode target : node.getAllDependencyTo()) {
+			final long nameHash = StringTable.hash(target.getName());
+			for (final DependencyType type : DependencyType.values) {
+				if (node.getDependencyTo(target, type) > 0) {
+					features.add(feature(DEPENDENCY_TO_FEATURE + type.ordinal(), nameHash));
+				}
+			}
+		}
+		for (final CppNode source : node.getAllDependencyFrom()) {
+			final long nameHash = StringTable.hash(source.getName());
+			for (final DependencyType type : DependencyType.values) {
+				if (node.getDependencyFrom(source, type) > 0) {
+					features.add(feature(DEPENDENCY_FROM_FEATURE + type.ordinal(), nameHash));
+				}
+			}
+		}
+		final long[] array = new long[features.size()];
+		int index = 0;
+		for (final long feature : features) array[index++] = feature;
+		Arrays.sort(array);
+		return array;
+	}
+
+	private static void addTokens(@Nonnull Set<Long> features, int kind, @Nonnull String text) {
+		final int length = text.length();
+		int index = 0;
+		while (index < length) {
+			final char c = text.charAt(index);
+			if (Character.isWhitespace(c)) {
+				index += 1;
+			} else if (Character.isLetterOrDigit(c) || c == '_') {
+				final int start = index;
+				index += 1;
+				while (index < length && (Character.isLetterOrDigit(text.charAt(index)) || text.charAt(index) == '_')) {
+					index += 1;
+				}
+				features.add(feature(kind, StringTable.hash(text.substring(start, index))));
+			} else {
+				features.add(feature(kind, c));
+				index += 1;
+			}
+		}
+	}
+
+	private static long feature(int kind, long hash) {
+		return mix(hash * 31 + kind);
+	}
+
+	private static long mix(long value) {
+		value = (value ^ (value >>> 30)) * 0xBF58476D1CE4E5B9L;
+		value = (value ^ (value >>> 27)) * 0x94D049BB133111EBL;
+		return value ^ (value >>> 31);
+	}
+}
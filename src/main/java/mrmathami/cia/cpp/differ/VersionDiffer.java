@@ -9,14 +9,29 @@ import mrmathami.cia.cpp.ast.RootNode;
 import mrmathami.cia.cpp.builder.ProjectVersion;
 import mrmathami.utils.Pair;
 
-import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
 import java.util.HashSet;
-import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.Objects;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.RecursiveAction;
 
 public final class VersionDiffer {
+	/**
+	 * Matched pairs of nodes down to this depth are compared in their own task, the deeper ones are compared in the
+	 * task of their ancestor.
+	 */
+	private static final int SPLIT_DEPTH = 3;
+	private static final int MAX_MATCH_MEMO_SIZE = 1 << 22;
+
 	@Nonnull public static final Map<DependencyType, Double> IMPACT_WEIGHT_MAP = Map.of(
 			DependencyType.USE, 0.8495204,
 			DependencyType.MEMBER, 0.7816402,
@@ -31,55 +46,304 @@ public final class VersionDiffer {
 	@Nonnull
 	public static VersionDifference compare(@Nonnull ProjectVersion versionA, @Nonnull ProjectVersion versionB,
 			@Nonnull Map<DependencyType, Double> dependencyTypeImpactWeightMap, int maxDepth) throws CppException {
-		final RootNode rootA = versionA.getRootNode();
-		final RootNode rootB = versionB.getRootNode();
+		return compare(versionA, versionB, dependencyTypeImpactWeightMap, maxDepth, ForkJoinPool.commonPool());
+	}
 
-		final CppNode.Matcher matcher = new CppNode.Matcher();
+	/**
+	 * Compare two project versions on the pool, detecting the moves.
+	 *
+	 * @see #compare(ProjectVersion, ProjectVersion, Map, int, ForkJoinPool, boolean, CancellationToken)
+	 */
+	@Nonnull
+	public static VersionDifference compare(@Nonnull ProjectVersion versionA, @Nonnull ProjectVersion versionB,
+			@Nonnull Map<DependencyType, Double> dependencyTypeImpactWeightMap, int maxDepth,
+			@Nonnull ForkJoinPool pool) throws CppException {
+		return compare(versionA, versionB, dependencyTypeImpactWeightMap, maxDepth, pool, true);
+	}
 
-		final Map<CppNode.Wrapper, CppNode> nodeMapA = new HashMap<>();
-		final Map<CppNode.Wrapper, CppNode> nodeMapB = new HashMap<>();
-		nodeMapA.put(new CppNode.Wrapper(rootA, CppNode.MatchLevel.SIMILAR, matcher), rootA);
-		nodeMapB.put(new CppNode.Wrapper(rootB, CppNode.MatchLevel.SIMILAR, matcher), rootB);
-		for (final CppNode nodeA : rootA) {
-			if (!(nodeA instanceof IntegralNode)) {
-				nodeMapA.put(new CppNode.Wrapper(nodeA, CppNode.MatchLevel.SIMILAR, matcher), nodeA);
-			}
+	/**
+	 * Compare two project versions on the pool without cancellation.
+	 *
+	 * @see #compare(ProjectVersion, ProjectVersion, Map, int, ForkJoinPool, boolean, CancellationToken)
+	 */
+	@Nonnull
+	public static VersionDifference compare(@Nonnull ProjectVersion versionA, @Nonnull ProjectVersion versionB,
+			@Nonnull Map<DependencyType, Double> dependencyTypeImpactWeightMap, int maxDepth,
+			@Nonnull ForkJoinPool pool, boolean detectMoves) throws CppException {
+		return compare(versionA, versionB, dependencyTypeImpactWeightMap, maxDepth, pool, detectMoves,
+				new CancellationToken());
+	}
+
+	/**
+	 * Compare two project versions. The matched subtrees are compared in parallel on the pool, then their results
+	 * are merged in the order of the tree, so the result does not depend on the number of threads. If moves are
+	 * detected, the removed and added nodes which were likely renamed or moved are paired (see {@link MoveDetector}).
+	 * Every paired node is reported as changed and is a source of impact, even when it only moved along with its
+	 * paired parent: its unique name and its parent differ, so the nodes depending on it may be affected. A changed
+	 * node whose body only changed in its whitespaces and its comments (see {@link BodyDiffer}) is still reported as
+	 * changed, but is not a source of impact.
+	 *
+	 * @param versionA version A
+	 * @param versionB version B
+	 * @param dependencyTypeImpactWeightMap impact weight of each dependency type
+	 * @param maxDepth maximum depth of the impact calculation
+	 * @param pool the pool to compare the versions and to calculate the impact on
+	 * @param detectMoves pair the renamed and moved nodes instead of reporting them as removed and added
+	 * @param token the token to cancel the comparison with, or to limit its time with a deadline
+	 * @return the difference
+	 * @throws CppException if the impact cannot be calculated, or the comparison is cancelled
+	 */
+	@Nonnull
+	public static VersionDifference compare(@Nonnull ProjectVersion versionA, @Nonnull ProjectVersion versionB,
+			@Nonnull Map<DependencyType, Double> dependencyTypeImpactWeightMap, int maxDepth,
+			@Nonnull ForkJoinPool pool, boolean detectMoves, @Nonnull CancellationToken token) throws CppException {
+		return compare(versionA, versionB, new ChildIndex(versionA.getRootNode()), dependencyTypeImpactWeightMap,
+				maxDepth, pool, detectMoves, token);
+	}
+
+	/**
+	 * Compare each version of a sequence with the next one, see {@link #compareAll(List, int[], Map, int,
+	 * ForkJoinPool, CancellationToken)}.
+	 *
+	 * @return the difference of each version with the next one, in order
+	 */
+	@Nonnull
+	public static List<VersionDifference> compareSequence(@Nonnull List<ProjectVersion> versions,
+			@Nonnull Map<DependencyType, Double> dependencyTypeImpactWeightMap, int maxDepth,
+			@Nonnull ForkJoinPool pool) throws CppException {
+		final int[] versionPairs = new int[Math.max(versions.size() - 1, 0) * 2];
+		for (int i = 0; i < versionPairs.length; i += 2) {
+			versionPairs[i] = i / 2;
+			versionPairs[i + 1] = i / 2 + 1;
+		}
+		return compareAll(versions, versionPairs, dependencyTypeImpactWeightMap, maxDepth, pool);
+	}
+
+	/**
+	 * Compare many pairs of versions at once without cancellation.
+	 *
+	 * @see #compareAll(List, int[], Map, int, ForkJoinPool, CancellationToken)
+	 */
+	@Nonnull
+	public static List<VersionDifference> compareAll(@Nonnull List<ProjectVersion> versions,
+			@Nonnull int[] versionPairs, @Nonnull Map<DependencyType, Double> dependencyTypeImpactWeightMap,
+			int maxDepth, @Nonnull ForkJoinPool pool) throws CppException {
+		return compareAll(versions, versionPairs, dependencyTypeImpactWeightMap, maxDepth, pool,
+				new CancellationToken());
+	}
+
+	/**
+	 * Compare many pairs of versions at once. The index of the children of each version is built once and shared by
+	 * all the pairs where the version is version A, then the pairs are compared in parallel on the pool, detecting the
+	 * moves. The differences are the same as comparing each pair on its own.
+	 *
+	 * @param versions the versions
+	 * @param versionPairs the index of version A and the index of version B of each pair
+	 * @param dependencyTypeImpactWeightMap impact weight of each dependency type
+	 * @param maxDepth maximum depth of the impact calculation
+	 * @param pool the pool
+	 * @param token the token to cancel all the comparisons with, or to limit their time with a deadline
+	 * @return the difference of each pair, in order
+	 * @throws CppException if a pair cannot be compared, or the comparisons are cancelled
+	 */
+	@Nonnull
+	public static List<VersionDifference> compareAll(@Nonnull List<ProjectVersion> versions,
+			@Nonnull int[] versionPairs, @Nonnull Map<DependencyType, Double> dependencyTypeImpactWeightMap,
+			int maxDepth, @Nonnull ForkJoinPool pool, @Nonnull CancellationToken token) throws CppException {
+		if (versionPairs.length % 2 != 0) throw new IllegalArgumentException("Odd version pair array length!");
+		for (final int versionIndex : versionPairs) Objects.checkIndex(versionIndex, versions.size());
+
+		final ChildIndex[] indexes = new ChildIndex[versions.size()];
+		final boolean[] indexed = new boolean[versions.size()];
+		final List<Callable<ChildIndex>> indexTasks = new ArrayList<>();
+		for (int i = 0; i < versionPairs.length; i += 2) {
+			final int versionIndex = versionPairs[i];
+			if (indexed[versionIndex]) continue;
+			indexed[versionIndex] = true;
+			indexTasks.add(() -> indexes[versionIndex] = new ChildIndex(versions.get(versionIndex).getRootNode()));
 		}
-		for (final CppNode nodeB : rootB) {
-			if (!(nodeB instanceof IntegralNode)) {
-				nodeMapB.put(new CppNode.Wrapper(nodeB, CppNode.MatchLevel.SIMILAR, matcher), nodeB);
+		getAll(pool.invokeAll(indexTasks));
+
+		final List<Callable<VersionDifference>> compareTasks = new ArrayList<>(versionPairs.length / 2);
+		for (int i = 0; i < versionPairs.length; i += 2) {
+			final ChildIndex indexA = indexes[versionPairs[i]];
+			final ProjectVersion versionA = versions.get(versionPairs[i]);
+			final ProjectVersion versionB = versions.get(versionPairs[i + 1]);
+			compareTasks.add(() -> compare(versionA, versionB, indexA, dependencyTypeImpactWeightMap, maxDepth,
+					pool, true, token));
+		}
+		return getAll(pool.invokeAll(compareTasks));
+	}
+
+	@Nonnull
+	private static <E> List<E> getAll(@Nonnull List<Future<E>> futures) throws CppException {
+		final List<E> results = new ArrayList<>(futures.size());
+		for (final Future<E> future : futures) {
+			try {
+				results.add(future.get());
+			} catch (final ExecutionException exception) {
+				// the pool wraps the checked exceptions of the tasks in a runtime exception
+				for (Throwable cause = exception.getCause(); cause != null; cause = cause.getCause()) {
+					if (cause instanceof CppException) throw (CppException) cause;
+				}
+				throw new CppException("Cannot compare versions!", exception);
+			} catch (final InterruptedException exception) {
+				Thread.currentThread().interrupt();
+				throw new CppException("Cannot compare versions!", exception);
 			}
 		}
+		return results;
+	}
+
+	@Nonnull
+	private static VersionDifference compare(@Nonnull ProjectVersion versionA, @Nonnull ProjectVersion versionB,
+			@Nonnull ChildIndex indexA, @Nonnull Map<DependencyType, Double> dependencyTypeImpactWeightMap,
+			int maxDepth, @Nonnull ForkJoinPool pool, boolean detectMoves, @Nonnull CancellationToken token)
+			throws CppException {
+		final CppNode.Matcher matcher = createMatcher(versionA, versionB);
+		final VersionDifference difference;
+		try {
+			difference = compareStructure(versionA, versionB, indexA, matcher, pool, detectMoves, token);
+		} catch (final CancellationException exception) {
+			throw new CppException("Comparison cancelled!", exception);
+		}
+		return calculateImpact(difference, matcher, dependencyTypeImpactWeightMap, maxDepth, ImpactAlgorithm.PATHS,
+				0.0, pool, token);
+	}
+
+	/**
+	 * Compare two project versions without calculating the impact, which is by far the most expensive part of a
+	 * comparison. The impact can be calculated later, see {@link #calculateImpact}.
+	 *
+	 * @param versionA version A
+	 * @param versionB version B
+	 * @param pool the pool to compare the versions on
+	 * @param detectMoves pair the renamed and moved nodes instead of reporting them as removed and added
+	 * @return the difference, without impact weights
+	 * @see #compare(ProjectVersion, ProjectVersion, Map, int, ForkJoinPool, boolean)
+	 */
+	@Nonnull
+	public static VersionDifference compareStructure(@Nonnull ProjectVersion versionA,
+			@Nonnull ProjectVersion versionB, @Nonnull ForkJoinPool pool, boolean detectMoves) {
+		return compareStructure(versionA, versionB, new ChildIndex(versionA.getRootNode()),
+				createMatcher(versionA, versionB), pool, detectMoves, new CancellationToken());
+	}
+
+	/**
+	 * Calculate the impact of a difference by following every path, see {@link ImpactAlgorithm#PATHS}.
+	 *
+	 * @see #calculateImpact(VersionDifference, Map, int, ImpactAlgorithm, ForkJoinPool)
+	 */
+	@Nonnull
+	public static VersionDifference calculateImpact(@Nonnull VersionDifference difference,
+			@Nonnull Map<DependencyType, Double> dependencyTypeImpactWeightMap, int maxDepth,
+			@Nonnull ForkJoinPool pool) throws CppException {
+		return calculateImpact(difference, dependencyTypeImpactWeightMap, maxDepth, ImpactAlgorithm.PATHS, pool);
+	}
+
+	/**
+	 * Calculate the exact impact of a difference without cancellation.
+	 *
+	 * @see #calculateImpact(VersionDifference, Map, int, ImpactAlgorithm, double, ForkJoinPool, CancellationToken)
+	 */
+	@Nonnull
+	public static VersionDifference calculateImpact(@Nonnull VersionDifference difference,
+			@Nonnull Map<DependencyType, Double> dependencyTypeImpactWeightMap, int maxDepth,
+			@Nonnull ImpactAlgorithm algorithm, @Nonnull ForkJoinPool pool) throws CppException {
+		return calculateImpact(difference, dependencyTypeImpactWeightMap, maxDepth, algorithm, 0.0, pool,
+				new CancellationToken());
+	}
+
+	/**
+	 * Calculate the impact of a difference, replacing its impact weights if it has some. The sources of impact are the
+	 * added nodes and the changed nodes of version B, except the nodes whose body only changed in its whitespaces and
+	 * its comments. Use a dedicated pool to keep a large calculation from starving the other users of a shared pool.
+	 * <p>
+	 * With a positive epsilon, the paths calculation skips the paths which together cannot lower any weight by more
+	 * than epsilon, using upper bounds of the impact the paths from each node can still have, and sums the logarithms
+	 * of the miss weights so that the tiny weights are not rounded away. Every weight is then at most epsilon below
+	 * its exact value, never above it. An epsilon such as 1e-6 makes a high max depth affordable when the long paths
+	 * weigh little. The layered calculation is already linear in the depth and ignores the epsilon.
+	 *
+	 * @param difference the difference
+	 * @param dependencyTypeImpactWeightMap impact weight of each dependency type
+	 * @param maxDepth maximum depth of the impact calculation
+	 * @param algorithm the algorithm of the impact calculation
+	 * @param epsilon maximum error of each impact weight of the paths calculation, 0.0 for the exact weights
+	 * @param pool the pool to calculate the impact on
+	 * @param token the token to cancel the calculation with, or to limit its time with a deadline
+	 * @return the difference with the impact weights
+	 * @throws CppException if the impact cannot be calculated, or the calculation is cancelled
+	 */
+	@Nonnull
+	public static VersionDifference calculateImpact(@Nonnull VersionDifference difference,
+			@Nonnull Map<DependencyType, Double> dependencyTypeImpactWeightMap, int maxDepth,
+			@Nonnull ImpactAlgorithm algorithm, double epsilon, @Nonnull ForkJoinPool pool,
+			@Nonnull CancellationToken token) throws CppException {
+		return calculateImpact(difference, createMatcher(difference.getVersionA(), difference.getVersionB()),
+				dependencyTypeImpactWeightMap, maxDepth, algorithm, epsilon, pool, token);
+	}
+
+	@Nonnull
+	private static CppNode.Matcher createMatcher(@Nonnull ProjectVersion versionA, @Nonnull ProjectVersion versionB) {
+		final RootNode rootA = versionA.getRootNode();
+		final RootNode rootB = versionB.getRootNode();
+		final int matchMemoSize = (int) Math.min(MAX_MATCH_MEMO_SIZE,
+				((long) rootA.getNodeCount() + rootB.getNodeCount()) * 4);
+		return CppNode.Matcher.concurrent(rootA, rootB, Math.max(matchMemoSize, 1));
+	}
+
+	/**
+	 * @throws CancellationException if the token is cancelled
+	 */
+	@Nonnull
+	private static VersionDifference compareStructure(@Nonnull ProjectVersion versionA,
+			@Nonnull ProjectVersion versionB, @Nonnull ChildIndex indexA, @Nonnull CppNode.Matcher matcher,
+			@Nonnull ForkJoinPool pool, boolean detectMoves, @Nonnull CancellationToken token) {
+		final RootNode rootA = versionA.getRootNode();
+		final RootNode rootB = versionB.getRootNode();
+		assert indexA.getRoot() == rootA;
+		final CompareTask rootTask = new CompareTask(rootA, rootB, false, 0, matcher, indexA, token);
+		pool.invoke(rootTask);
 
-		final Set<CppNode> addedNodes = new HashSet<>();
+		final List<CppNode> addedList = new ArrayList<>();
 		final Set<Pair<CppNode, CppNode>> changedNodes = new HashSet<>();
 		final Set<Pair<CppNode, CppNode>> unchangedNodes = new HashSet<>();
-		final Set<CppNode> removedNodes = new HashSet<>();
+		final List<CppNode> removedList = new ArrayList<>();
+		rootTask.mergeTo(addedList, changedNodes, unchangedNodes, removedList);
 
-		final List<CppNode> changedListB = new LinkedList<>();
-
-		for (final CppNode.Wrapper wrapperA : nodeMapA.keySet()) {
-			final CppNode nodeA = wrapperA.getNode();
-			final CppNode nodeB = nodeMapB.get(wrapperA);
-			if (nodeB != null) {
-				if (matcher.isNodeMatch(nodeA, nodeB, CppNode.MatchLevel.IDENTICAL)) {
-					unchangedNodes.add(Pair.immutableOf(nodeA, nodeB));
-				} else {
-					changedNodes.add(Pair.immutableOf(nodeA, nodeB));
-					changedListB.add(nodeB);
-				}
-			} else {
-				removedNodes.add(nodeA);
+		final Set<CppNode> addedNodes = new HashSet<>(addedList);
+		final Set<CppNode> removedNodes = new HashSet<>(removedList);
+		if (detectMoves) {
+			final Map<CppNode, CppNode> movedNodes = MoveDetector.detect(removedList, addedList);
+			// a paired node is always changed, see the javadoc of compare
+			for (final Map.Entry<CppNode, CppNode> entry : movedNodes.entrySet()) {
+				removedNodes.remove(entry.getKey());
+				addedNodes.remove(entry.getValue());
+				changedNodes.add(Pair.immutableOf(entry.getKey(), entry.getValue()));
 			}
 		}
-		for (final CppNode.Wrapper wrapperB : nodeMapB.keySet()) {
-			final CppNode nodeA = nodeMapA.get(wrapperB);
-			final CppNode nodeB = wrapperB.getNode();
-			if (nodeA == null) {
-				addedNodes.add(nodeB);
-				changedListB.add(nodeB);
-			}
+		return new VersionDifference(versionA, versionB, addedNodes, changedNodes, unchangedNodes, removedNodes,
+				null, null, VersionDifference.NO_IMPACT_DEPTH, null, 0.0);
+	}
+
+	@Nonnull
+	private static VersionDifference calculateImpact(@Nonnull VersionDifference difference,
+			@Nonnull CppNode.Matcher matcher, @Nonnull Map<DependencyType, Double> dependencyTypeImpactWeightMap,
+			int maxDepth, @Nonnull ImpactAlgorithm algorithm, double epsilon, @Nonnull ForkJoinPool pool,
+			@Nonnull CancellationToken token) throws CppException {
+		if (maxDepth < 0) throw new IllegalArgumentException("Negative max depth!");
+		if (!(epsilon >= 0.0)) throw new IllegalArgumentException("Invalid epsilon!");
+		final double impactEpsilon = algorithm == ImpactAlgorithm.PATHS ? epsilon : 0.0;
+		final ProjectVersion versionB = difference.getVersionB();
+		final List<Pair<CppNode, CppNode>> changedList = new ArrayList<>(difference.getChangedNodes());
+		final boolean[] cosmeticChanges = BodyDiffer.findCosmeticChanges(changedList, matcher, pool);
+		final List<CppNode> impactSources = new ArrayList<>(difference.getAddedNodes());
+		for (int i = 0; i < cosmeticChanges.length; i++) {
+			if (!cosmeticChanges[i]) impactSources.add(changedList.get(i).getB());
 		}
+		// in the order of the ids, so that the weights do not depend on the order of the sets
+		impactSources.sort(Comparator.comparingInt(CppNode::getId));
 
 		final DependencyType[] types = DependencyType.values();
 		final double[] typeImpactWeights = new double[types.length];
@@ -87,9 +351,155 @@ public final class VersionDiffer {
 			typeImpactWeights[type.ordinal()] = dependencyTypeImpactWeightMap.get(type);
 		}
 
-		final double[] impactWeights = ImpactWeightBuilder.calculate(typeImpactWeights, rootB, changedListB, maxDepth);
+		final double[] impactWeights = ImpactWeightBuilder.calculate(typeImpactWeights, versionB.getRootNode(),
+				impactSources, maxDepth, algorithm, impactEpsilon, pool, token);
 
-		return new VersionDifference(versionA, versionB, addedNodes, changedNodes, unchangedNodes, removedNodes,
-				typeImpactWeights, impactWeights, maxDepth);
+		return new VersionDifference(difference.getVersionA(), versionB, difference.getAddedNodes(),
+				difference.getChangedNodes(), difference.getUnchangedNodes(), difference.getRemovedNodes(),
+				typeImpactWeights, impactWeights, maxDepth, algorithm, impactEpsilon);
+	}
+
+	/**
+	 * Comparison of a pair of matched nodes and their subtrees. Each task has its own results and forks a task for each
+	 * pair of matched children down to {@link #SPLIT_DEPTH}. All the tasks share a concurrent matcher, and check the
+	 * token before each pair of matched subtrees.
+	 */
+	private static final class CompareTask extends RecursiveAction {
+		private static final long serialVersionUID = -1L;
+
+		@Nonnull private final CppNode rootA;
+		@Nonnull private final CppNode rootB;
+		private final boolean rootUnchanged;
+		private final int rootDepth;
+		@Nonnull private final CppNode.Matcher matcher;
+		@Nonnull private final ChildIndex index;
+		@Nonnull private final CancellationToken token;
+
+		@Nonnull private final List<CppNode> addedNodes = new ArrayList<>();
+		@Nonnull private final List<Pair<CppNode, CppNode>> changedNodes = new ArrayList<>();
+		@Nonnull private final List<Pair<CppNode, CppNode>> unchangedNodes = new ArrayList<>();
+		@Nonnull private final List<CppNode> removedNodes = new ArrayList<>();
+		@Nonnull private final List<CompareTask> subtasks = new ArrayList<>();
+
+		CompareTask(@Nonnull CppNode rootA, @Nonnull CppNode rootB, boolean rootUnchanged, int rootDepth,
+				@Nonnull CppNode.Matcher matcher, @Nonnull ChildIndex index, @Nonnull CancellationToken token) {
+			this.rootA = rootA;
+			this.rootB = rootB;
+			this.rootUnchanged = rootUnchanged;
+			this.rootDepth = rootDepth;
+			this.matcher = matcher;
+			this.index = index;
+			this.token = token;
+		}
+
+		@Override
+		protected void compute() {
+			token.checkCancelled();
+			compareNodes(rootA, rootB, rootUnchanged, rootDepth);
+			invokeAll(subtasks);
+		}
+
+		/**
+		 * Add the results of this task, then the results of its subtasks in the order they were created.
+		 */
+		void mergeTo(@Nonnull Collection<CppNode> addedNodes, @Nonnull Collection<Pair<CppNode, CppNode>> changedNodes,
+				@Nonnull Collection<Pair<CppNode, CppNode>> unchangedNodes, @Nonnull Collection<CppNode> removedNodes) {
+			addedNodes.addAll(this.addedNodes);
+			changedNodes.addAll(this.changedNodes);
+			unchangedNodes.addAll(this.unchangedNodes);
+			removedNodes.addAll(this.removedNodes);
+			for (final CompareTask subtask : subtasks) {
+				subtask.mergeTo(addedNodes, changedNodes, unchangedNodes, removedNodes);
+			}
+		}
+
+		private void compareMatchedNodes(@Nonnull CppNode nodeA, @Nonnull CppNode nodeB, boolean unchangedSubtree,
+				int depth) {
+			if (depth <= SPLIT_DEPTH) {
+				subtasks.add(new CompareTask(nodeA, nodeB, unchangedSubtree, depth, matcher, index, token));
+			} else {
+				token.checkCancelled();
+				compareNodes(nodeA, nodeB, unchangedSubtree, depth);
+			}
+		}
+
+		private void compareNodes(@Nonnull CppNode nodeA, @Nonnull CppNode nodeB, boolean unchangedSubtree, int depth) {
+			// same subtree hash means the whole subtree is unchanged
+			final boolean unchanged = unchangedSubtree || nodeA.getSubtreeHash() == nodeB.getSubtreeHash();
+			if (unchanged || matcher.isNodeMatch(nodeA, nodeB, CppNode.MatchLevel.IDENTICAL)) {
+				unchangedNodes.add(Pair.immutableOf(nodeA, nodeB));
+			} else {
+				changedNodes.add(Pair.immutableOf(nodeA, nodeB));
+			}
+			if (unchanged && compareChildrenInOrder(nodeA.getChildren(), nodeB.getChildren(), depth + 1)) return;
+			compareChildren(nodeA, nodeB.getChildren(), unchanged, depth + 1);
+		}
+
+		// fast path: unchanged subtrees usually have their children in the same order
+		private boolean compareChildrenInOrder(@Nonnull List<CppNode> childrenA, @Nonnull List<CppNode> childrenB,
+				int depth) {
+			final int size = childrenA.size();
+			if (size != childrenB.size()) return false;
+			for (int i = 0; i < size; i++) {
+				final CppNode childA = childrenA.get(i);
+				final CppNode childB = childrenB.get(i);
+				if (childA.getSubtreeHash() != childB.getSubtreeHash()
+						|| !matcher.isNodeMatch(childA, childB, CppNode.MatchLevel.SIMILAR)) {
+					return false;
+				}
+			}
+			for (int i = 0; i < size; i++) {
+				final CppNode childA = childrenA.get(i);
+				if (!(childA instanceof IntegralNode)) compareMatchedNodes(childA, childrenB.get(i), true, depth);
+			}
+			return true;
+		}
+
+		/**
+		 * Pair the children of two matched nodes by their SIMILAR hash, which is precomputed when the tree is
+		 * locked and covers the class, the name, the unique name and the signature of the node and its
+		 * parents. The children of A are looked up in the index of version A, where children with the same hash
+		 * are chained, so that a hash collision falls back to the full comparison of the children, and children
+		 * with the same key are paired in order.
+		 */
+		private void compareChildren(@Nonnull CppNode parentA, @Nonnull List<CppNode> childrenB,
+				boolean unchangedSubtree, int depth) {
+			final List<CppNode> childrenA = parentA.getChildren();
+			final int sizeA = childrenA.size();
+			final boolean[] matched = new boolean[sizeA];
+			for (final CppNode childB : childrenB) {
+				if (childB instanceof IntegralNode) continue;
+				CppNode childA = index.firstChild(parentA, childB.getMatchHash(CppNode.MatchLevel.SIMILAR));
+				while (childA != null && (childA.getParent() != parentA || matched[index.positionOf(childA)]
+						|| !isKeyMatch(childA, childB))) {
+					childA = index.nextChild(childA);
+				}
+				if (childA != null) {
+					matched[index.positionOf(childA)] = true;
+					compareMatchedNodes(childA, childB, unchangedSubtree
+							&& childA.getSubtreeHash() == childB.getSubtreeHash(), depth);
+				} else {
+					addedNodes.add(childB);
+					for (final CppNode node : childB) if (!(node instanceof IntegralNode)) addedNodes.add(node);
+				}
+			}
+			for (int i = 0; i < sizeA; i++) {
+				final CppNode childA = childrenA.get(i);
+				if (matched[i] || childA instanceof IntegralNode) continue;
+				removedNodes.add(childA);
+				for (final CppNode node : childA) if (!(node instanceof IntegralNode)) removedNodes.add(node);
+			}
+		}
+
+		/**
+		 * Compare the canonical key of two children of matched parents before the full comparison.
+		 */
+		private boolean isKeyMatch(@Nonnull CppNode childA, @Nonnull CppNode childB) {
+			return childA.getClass() == childB.getClass()
+					&& childA.getUniqueName().equals(childB.getUniqueName())
+					&& childA.getSignature().equals(childB.getSignature())
+					&& childA.getName().equals(childB.getName())
+					&& matcher.isNodeMatch(childA, childB, CppNode.MatchLevel.SIMILAR);
+		}
 	}
 }
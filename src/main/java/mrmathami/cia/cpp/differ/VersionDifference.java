@@ -1,69 +1,236 @@
 package mrmathami.cia.cpp.differ;
 
+import mrmathami.annotations.Internal;
 import mrmathami.annotations.Nonnull;
 import mrmathami.annotations.Nullable;
+import mrmathami.cia.cpp.SerializationReader;
 import mrmathami.cia.cpp.ast.CppNode;
 import mrmathami.cia.cpp.ast.DependencyType;
 import mrmathami.cia.cpp.ast.RootNode;
 import mrmathami.cia.cpp.builder.ProjectVersion;
+import mrmathami.utils.BlockCompressedInputStream;
 import mrmathami.utils.Pair;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
 import java.io.OutputStream;
 import java.io.Serializable;
 import java.util.EnumMap;
 import java.util.IdentityHashMap;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
 
+/**
+ * Result of comparing two project versions. Immutable and safe to be shared between threads.
+ * <p>
+ * The binary format does not depend on the layout of the classes: it is a header, the two versions in their own
+ * binary format, then the compact form of the difference. Files written by Java serialization are still read, using
+ * {@link SerializationReader}.
+ */
 public final class VersionDifference implements Serializable {
 	private static final long serialVersionUID = -1L;
 
+	public static final int FORMAT_MAGIC = 0x43494158; // "CIAX"
+	public static final int FORMAT_VERSION = 1;
+
+	/** Max depth of a difference without impact weights. */
+	public static final int NO_IMPACT_DEPTH = -1;
+
 	@Nonnull private final ProjectVersion versionA;
 	@Nonnull private final ProjectVersion versionB;
 	@Nonnull private final Set<CppNode> addedNodes;
 	@Nonnull private final Set<Pair<CppNode, CppNode>> changedNodes;
 	@Nonnull private final Set<Pair<CppNode, CppNode>> unchangedNodes;
 	@Nonnull private final Set<CppNode> removedNodes;
-	@Nonnull private final double[] typeImpactWeights;
-	@Nonnull private final double[] impactWeights;
+	@Nullable private final double[] typeImpactWeights; // null if the impact was not calculated
+	@Nullable private final double[] impactWeights;
 	private final int maxDepth;
+	@Nullable private final ImpactAlgorithm impactAlgorithm; // null if read from before it was recorded
+	private final double impactEpsilon; // 0.0 if exact or read from before it was recorded
 
-	@Nullable private transient Map<DependencyType, Double> typeImpactWeightMap;
-	@Nullable private transient Map<CppNode, Double> impactWeightMap;
+	// lazily created immutable views, racy but idempotent, so no lock is needed
+	@Nullable private transient volatile Map<DependencyType, Double> typeImpactWeightMap;
+	@Nullable private transient volatile Map<CppNode, Double> impactWeightMap;
 
 	VersionDifference(@Nonnull ProjectVersion versionA, @Nonnull ProjectVersion versionB,
 			@Nonnull Set<CppNode> addedNodes, @Nonnull Set<Pair<CppNode, CppNode>> changedNodes,
 			@Nonnull Set<Pair<CppNode, CppNode>> unchangedNodes, @Nonnull Set<CppNode> removedNodes,
-			@Nonnull double[] typeImpactWeights, @Nonnull double[] impactWeights, int maxDepth) {
+			@Nullable double[] typeImpactWeights, @Nullable double[] impactWeights, int maxDepth,
+			@Nullable ImpactAlgorithm impactAlgorithm, double impactEpsilon) {
+		assert (typeImpactWeights != null) == (impactWeights != null) && (impactWeights != null) == (maxDepth >= 0);
+		assert impactEpsilon >= 0.0 && (impactWeights != null || impactEpsilon == 0.0);
 		this.versionA = versionA;
 		this.versionB = versionB;
 		this.addedNodes = Set.copyOf(addedNodes);
 		this.changedNodes = Set.copyOf(changedNodes);
 		this.unchangedNodes = Set.copyOf(unchangedNodes);
 		this.removedNodes = Set.copyOf(removedNodes);
-		this.typeImpactWeights = typeImpactWeights.clone();
-		this.impactWeights = impactWeights.clone();
+		this.typeImpactWeights = typeImpactWeights != null ? typeImpactWeights.clone() : null;
+		this.impactWeights = impactWeights != null ? impactWeights.clone() : null;
 		this.maxDepth = maxDepth;
+		this.impactAlgorithm = impactAlgorithm;
+		this.impactEpsilon = impactEpsilon;
 	}
 
+	/**
+	 * Create a difference from its already read parts, e.g. ones decoded from a Java serialization stream.
+	 *
+	 * @param versionA version A
+	 * @param versionB version B
+	 * @param addedNodes nodes of version B only
+	 * @param changedNodes pairs of changed nodes, node A then node B
+	 * @param unchangedNodes pairs of unchanged nodes, node A then node B
+	 * @param removedNodes nodes of version A only
+	 * @param typeImpactWeights impact weight of each dependency type by ordinal, or null without impact
+	 * @param impactWeights impact weight of each node of version B by id, or null without impact
+	 * @param maxDepth max depth of the impact, or {@link #NO_IMPACT_DEPTH} without impact
+	 * @param impactAlgorithm algorithm of the impact, or null if not recorded
+	 * @param impactEpsilon epsilon of the impact, 0.0 if exact or not recorded
+	 * @return the difference
+	 */
+	@Internal
+	@Nonnull
+	public static VersionDifference of(@Nonnull ProjectVersion versionA, @Nonnull ProjectVersion versionB,
+			@Nonnull Set<CppNode> addedNodes, @Nonnull Set<Pair<CppNode, CppNode>> changedNodes,
+			@Nonnull Set<Pair<CppNode, CppNode>> unchangedNodes, @Nonnull Set<CppNode> removedNodes,
+			@Nullable double[] typeImpactWeights, @Nullable double[] impactWeights, int maxDepth,
+			@Nullable ImpactAlgorithm impactAlgorithm, double impactEpsilon) {
+		if ((typeImpactWeights != null) != (impactWeights != null) || (impactWeights != null) != (maxDepth >= 0)
+				|| maxDepth < NO_IMPACT_DEPTH) {
+			throw new IllegalArgumentException("Inconsistent impact weights!");
+		}
+		if (typeImpactWeights != null && typeImpactWeights.length != DependencyType.values.size()) {
+			throw new IllegalArgumentException("Wrong dependency type weight count!");
+		}
+		if (!(impactEpsilon >= 0.0) || impactWeights == null && impactEpsilon != 0.0) {
+			throw new IllegalArgumentException("Invalid epsilon!");
+		}
+		return new VersionDifference(versionA, versionB, addedNodes, changedNodes, unchangedNodes, removedNodes,
+				typeImpactWeights, impactWeights, maxDepth, impactAlgorithm, impactEpsilon);
+	}
+
+	/**
+	 * Read a difference with its two versions, in any format version of the binary format or in the Java
+	 * serialization format. Either of them may be block compressed.
+	 *
+	 * @param inputStream input stream
+	 * @return the difference
+	 * @throws IOException if the input is not a difference
+	 */
 	@Nonnull
 	public static VersionDifference fromInputStream(@Nonnull InputStream inputStream) throws IOException {
-		final ObjectInputStream objectInputStream = new ObjectInputStream(inputStream);
-		try {
-			return (VersionDifference) objectInputStream.readObject();
-		} catch (ClassNotFoundException | ClassCastException e) {
-			throw new IOException("Wrong input file format!", e);
+		return fromInputStream(inputStream, ForkJoinPool.commonPool());
+	}
+
+	/**
+	 * Read a difference like {@link #fromInputStream(InputStream)}, decompressing the input and decoding the versions
+	 * on the pool.
+	 *
+	 * @param inputStream input stream
+	 * @param pool the pool to decompress the input and decode the versions on
+	 * @return the difference
+	 * @throws IOException if the input is not a difference
+	 */
+	@Nonnull
+	public static VersionDifference fromInputStream(@Nonnull InputStream inputStream, @Nonnull ForkJoinPool pool)
+			throws IOException {
+		final BufferedInputStream bufferedInputStream
+				= new BufferedInputStream(BlockCompressedInputStream.decompressIfNeeded(inputStream, pool));
+		bufferedInputStream.mark(Integer.BYTES);
+		final DataInputStream dataInputStream = new DataInputStream(bufferedInputStream);
+		if (dataInputStream.readInt() == FORMAT_MAGIC) {
+			final int formatVersion = dataInputStream.readInt();
+			if (formatVersion == 1) return readVersion1(dataInputStream, pool);
+			throw new IOException("Unsupported file format version!");
 		}
+		bufferedInputStream.reset();
+
+		return SerializationReader.read(bufferedInputStream, VersionDifference.class);
+	}
+
+	@Nonnull
+	private static VersionDifference readVersion1(@Nonnull DataInput input, @Nonnull ForkJoinPool pool)
+			throws IOException {
+		final ProjectVersion versionA
+				= ProjectVersion.fromInputStream(new ByteArrayInputStream(readSegment(input)), pool);
+		final ProjectVersion versionB = input.readBoolean()
+				? versionA
+				: ProjectVersion.fromInputStream(new ByteArrayInputStream(readSegment(input)), pool);
+		return fromCompactInputStream(new ByteArrayInputStream(readSegment(input)), versionA, versionB);
 	}
 
+	/**
+	 * Write the difference and its two versions in the current version of the binary format.
+	 *
+	 * @param outputStream output stream
+	 * @throws IOException if an I/O error occurs
+	 */
 	public void toOutputStream(@Nonnull OutputStream outputStream) throws IOException {
-		final ObjectOutputStream objectOutputStream = new ObjectOutputStream(outputStream);
-		objectOutputStream.writeObject(this);
-		objectOutputStream.flush();
+		final DataOutputStream output = new DataOutputStream(new BufferedOutputStream(outputStream));
+		output.writeInt(FORMAT_MAGIC);
+		output.writeInt(FORMAT_VERSION);
+		final ByteArrayOutputStream segment = new ByteArrayOutputStream();
+		versionA.toOutputStream(segment);
+		writeSegment(output, segment);
+		output.writeBoolean(versionA == versionB);
+		if (versionA != versionB) {
+			segment.reset();
+			versionB.toOutputStream(segment);
+			writeSegment(output, segment);
+		}
+		segment.reset();
+		toCompactOutputStream(segment);
+		writeSegment(output, segment);
+		output.flush();
+	}
+
+	private static void writeSegment(@Nonnull DataOutput output, @Nonnull ByteArrayOutputStream segment)
+			throws IOException {
+		output.writeInt(segment.size());
+		output.write(segment.toByteArray());
+	}
+
+	@Nonnull
+	private static byte[] readSegment(@Nonnull DataInput input) throws IOException {
+		final int length = input.readInt();
+		if (length < 0) throw new IOException("Wrong input file format!");
+		final byte[] segment = new byte[length];
+		input.readFully(segment);
+		return segment;
+	}
+
+	/**
+	 * Read a difference written by {@link #toCompactOutputStream}, given its two versions.
+	 *
+	 * @param inputStream input stream
+	 * @param versionA version A
+	 * @param versionB version B
+	 * @return the difference
+	 * @throws IOException if the input is not a compact difference, or the versions are not the ones of it
+	 */
+	@Nonnull
+	public static VersionDifference fromCompactInputStream(@Nonnull InputStream inputStream,
+			@Nonnull ProjectVersion versionA, @Nonnull ProjectVersion versionB) throws IOException {
+		return VersionDifferenceSummary.fromInputStream(inputStream).toVersionDifference(versionA, versionB);
+	}
+
+	/**
+	 * Write the difference without its versions, see {@link VersionDifferenceSummary}.
+	 *
+	 * @param outputStream output stream
+	 * @throws IOException if an I/O error occurs
+	 */
+	public void toCompactOutputStream(@Nonnull OutputStream outputStream) throws IOException {
+		VersionDifferenceSummary.of(this).toOutputStream(outputStream);
 	}
 
 	@Nonnull
@@ -96,9 +263,23 @@ public final class VersionDifference implements Serializable {
 		return removedNodes;
 	}
 
+	/**
+	 * @return true if the impact was calculated, see {@link VersionDiffer#compareStructure} and
+	 * {@link VersionDiffer#calculateImpact}
+	 */
+	public boolean hasImpactWeights() {
+		return impactWeights != null;
+	}
+
+	/**
+	 * @return impact weight of each dependency type, or an empty map if the impact was not calculated
+	 */
 	@Nonnull
 	public Map<DependencyType, Double> getDependencyTypeImpactWeightMap() {
+		final Map<DependencyType, Double> typeImpactWeightMap = this.typeImpactWeightMap;
 		if (typeImpactWeightMap != null) return typeImpactWeightMap;
+		final double[] typeImpactWeights = this.typeImpactWeights;
+		if (typeImpactWeights == null) return Map.of();
 		final Map<DependencyType, Double> map = new EnumMap<>(DependencyType.class);
 		for (final DependencyType type : DependencyType.values()) {
 			map.put(type, typeImpactWeights[type.ordinal()]);
@@ -106,9 +287,15 @@ public final class VersionDifference implements Serializable {
 		return this.typeImpactWeightMap = Map.copyOf(map);
 	}
 
+	/**
+	 * @return impact weight of each node of version B, or an empty map if the impact was not calculated
+	 */
 	@Nonnull
 	public Map<CppNode, Double> getImpactWeightMap() {
+		final Map<CppNode, Double> impactWeightMap = this.impactWeightMap;
 		if (impactWeightMap != null) return impactWeightMap;
+		final double[] impactWeights = this.impactWeights;
+		if (impactWeights == null) return Map.of();
 		final Map<CppNode, Double> map = new IdentityHashMap<>();
 		final RootNode rootNode = versionB.getRootNode();
 		map.put(rootNode, impactWeights[0]); // root id == 0
@@ -116,7 +303,26 @@ public final class VersionDifference implements Serializable {
 		return this.impactWeightMap = Map.copyOf(map);
 	}
 
+	/**
+	 * @return maximum depth of the impact calculation, or {@link #NO_IMPACT_DEPTH} if the impact was not calculated
+	 */
 	public int getMaxDepth() {
 		return maxDepth;
 	}
+
+	/**
+	 * @return algorithm of the impact calculation, or null if the impact was not calculated
+	 */
+	@Nullable
+	public ImpactAlgorithm getImpactAlgorithm() {
+		if (impactWeights == null) return null;
+		return impactAlgorithm != null ? impactAlgorithm : ImpactAlgorithm.PATHS;
+	}
+
+	/**
+	 * @return maximum error of the impact weights, 0.0 if they are exact, see {@link VersionDiffer#calculateImpact}
+	 */
+	public double getImpactEpsilon() {
+		return impactEpsilon;
+	}
 }
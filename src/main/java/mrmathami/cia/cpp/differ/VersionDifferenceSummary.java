@@ -0,0 +1,524 @@
+package mrmathami.cia.cpp.differ;
+
+import mrmathami.annotations.Nonnull;
+import mrmathami.annotations.Nullable;
+import mrmathami.cia.cpp.ast.CppNode;
+import mrmathami.cia.cpp.ast.DependencyType;
+import mrmathami.cia.cpp.ast.RootNode;
+import mrmathami.cia.cpp.builder.ProjectVersion;
+import mrmathami.utils.BlockCompressedInputStream;
+import mrmathami.utils.Pair;
+
+import java.io.BufferedOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.EnumMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Compact form of a {@link VersionDifference}. The two versions are referred to by their name, node count and content
+ * hash instead of being embedded, and the nodes by their id in their version. It can be read without reading the two
+ * versions, and turned back into a full difference given them. The content hash covers the id of every node, so a
+ * version with the same content but other ids does not match the difference.
+ * <p>
+ * The format stores the added and removed nodes as bitmaps of their ids, the changed and unchanged nodes as a bitmap
+ * of their ids in version B followed by their ids in version A, and the non-zero impact weights. Immutable and safe
+ * to be shared between threads.
+ */
+public final class VersionDifferenceSummary {
+	public static final int FORMAT_MAGIC = 0x43494144; // "CIAD"
+	public static final int FORMAT_VERSION = 4;
+
+	@Nonnull private final String versionNameA;
+	@Nonnull private final String versionNameB;
+	private final int nodeCountA;
+	private final int nodeCountB;
+	private final long contentHashA;
+	private final long contentHashB;
+	private final boolean rootContentHash; // the content hashes are the subtree hashes of the roots, before version 4
+	@Nonnull private final int[] addedIds; // ids in version B
+	@Nonnull private final int[] removedIds; // ids in version A
+	@Nonnull private final int[] changedIdsA;
+	@Nonnull private final int[] changedIdsB;
+	@Nonnull private final int[] unchangedIdsA;
+	@Nonnull private final int[] unchangedIdsB;
+	@Nonnull private final double[] typeImpactWeights;
+	@Nonnull private final double[] impactWeights; // by id in version B
+	private final int maxDepth;
+	@Nullable private final ImpactAlgorithm impactAlgorithm; // null if the impact was not calculated
+	private final double impactEpsilon;
+
+	private VersionDifferenceSummary(@Nonnull String versionNameA, @Nonnull String versionNameB, int nodeCountA,
+			int nodeCountB, long contentHashA, long contentHashB, boolean rootContentHash, @Nonnull int[] addedIds,
+			@Nonnull int[] removedIds,
+			@Nonnull int[] changedIdsA, @Nonnull int[] changedIdsB, @Nonnull int[] unchangedIdsA,
+			@Nonnull int[] unchangedIdsB, @Nonnull double[] typeImpactWeights, @Nonnull double[] impactWeights,
+			int maxDepth, @Nullable ImpactAlgorithm impactAlgorithm, double impactEpsilon) {
+		this.versionNameA = versionNameA;
+		this.versionNameB = versionNameB;
+		this.nodeCountA = nodeCountA;
+		this.nodeCountB = nodeCountB;
+		this.contentHashA = contentHashA;
+		this.contentHashB = contentHashB;
+		this.rootContentHash = rootContentHash;
+		this.addedIds = addedIds;
+		this.removedIds = removedIds;
+		this.changedIdsA = changedIdsA;
+		this.changedIdsB = changedIdsB;
+		this.unchangedIdsA = unchangedIdsA;
+		this.unchangedIdsB = unchangedIdsB;
+		this.typeImpactWeights = typeImpactWeights;
+		this.impactWeights = impactWeights;
+		this.maxDepth = maxDepth;
+		this.impactAlgorithm = impactAlgorithm;
+		this.impactEpsilon = impactEpsilon;
+	}
+
+	/**
+	 * @param difference the difference
+	 * @return the compact form of the difference
+	 */
+	@Nonnull
+	public static VersionDifferenceSummary of(@Nonnull VersionDifference difference) {
+		final RootNode rootA = difference.getVersionA().getRootNode();
+		final RootNode rootB = difference.getVersionB().getRootNode();
+		final int[][] changedIds = toSortedIds(difference.getChangedNodes());
+		final int[][] unchangedIds = toSortedIds(difference.getUnchangedNodes());
+		final Map<DependencyType, Double> typeImpactWeightMap = difference.getDependencyTypeImpactWeightMap();
+		final double[] typeImpactWeights = new double[DependencyType.values.size()];
+		for (final DependencyType type : DependencyType.values) {
+			typeImpactWeights[type.ordinal()] = typeImpactWeightMap.getOrDefault(type, 0.0);
+		}
+		final double[] impactWeights = new double[rootB.getNodeCount()];
+		for (final Map.Entry<CppNode, Double> entry : difference.getImpactWeightMap().entrySet()) {
+			impactWeights[entry.getKey().getId()] = entry.getValue();
+		}
+		return new VersionDifferenceSummary(difference.getVersionA().getVersionName(),
+				difference.getVersionB().getVersionName(), rootA.getNodeCount(), rootB.getNodeCount(),
+				contentHash(nodesById(rootA)), contentHash(nodesById(rootB)), false,
+				toSortedIds(difference.getAddedNodes()),
+				toSortedIds(difference.getRemovedNodes()), changedIds[0], changedIds[1], unchangedIds[0],
+				unchangedIds[1], typeImpactWeights, impactWeights, difference.getMaxDepth(),
+				difference.getImpactAlgorithm(), difference.getImpactEpsilon());
+	}
+
+	/**
+	 * @return the nodes of the tree by their id, null for the ids without node
+	 */
+	@Nonnull
+	private static CppNode[] nodesById(@Nonnull RootNode rootNode) {
+		final CppNode[] nodes = new CppNode[rootNode.getNodeCount()];
+		nodes[0] = rootNode; // root id == 0
+		for (final CppNode node : rootNode) nodes[node.getId()] = node;
+		return nodes;
+	}
+
+	/**
+	 * @return the hash of the id and the subtree hash of every node, in the order of the ids
+	 */
+	private static long contentHash(@Nonnull CppNode[] nodes) {
+		long hash = nodes.length;
+		for (int id = 0; id < nodes.length; id++) {
+			hash = combineHash(combineHash(hash, id), nodes[id] != null ? nodes[id].getSubtreeHash() : 0L);
+		}
+		return hash;
+	}
+
+	private static long combineHash(long hash, long value) {
+		final long result = (Long.rotateLeft(hash, 31) ^ value) * 0x9E3779B97F4A7C15L;
+		return result ^ (result >>> 32);
+	}
+
+	@Nonnull
+	private static int[] toSortedIds(@Nonnull Set<CppNode> nodes) {
+		final int[] ids = new int[nodes.size()];
+		int index = 0;
+		for (final CppNode node : nodes) ids[index++] = node.getId();
+		Arrays.sort(ids);
+		return ids;
+	}
+
+	/**
+	 * @param pairs node pairs
+	 * @return the ids in version A and the ids in version B, sorted by the ids in version B
+	 */
+	@Nonnull
+	private static int[][] toSortedIds(@Nonnull Collection<Pair<CppNode, CppNode>> pairs) {
+		final long[] packedIds = new long[pairs.size()];
+		int index = 0;
+		for (final Pair<CppNode, CppNode> pair : pairs) {
+			packedIds[index++] = (long) pair.getB().getId() << 32 | pair.getA().getId();
+		}
+		Arrays.sort(packedIds);
+		final int[] idsA = new int[packedIds.length];
+		final int[] idsB = new int[packedIds.length];
+		for (int i = 0; i < packedIds.length; i++) {
+			idsA[i] = (int) packedIds[i];
+			idsB[i] = (int) (packedIds[i] >>> 32);
+		}
+		return new int[][]{idsA, idsB};
+	}
+
+	//region Input & Output
+
+	@Nonnull
+	public static VersionDifferenceSummary fromInputStream(@Nonnull InputStream inputStream) throws IOException {
+		final DataInputStream input = new DataInputStream(BlockCompressedInputStream.decompressIfNeeded(inputStream));
+		if (input.readInt() != FORMAT_MAGIC) throw new IOException("Wrong input file format!");
+		final int formatVersion = input.readInt();
+		if (formatVersion < 1 || formatVersion > 4) throw new IOException("Unsupported file format version!");
+		final String versionNameA = input.readUTF();
+		final int nodeCountA = readCount(input);
+		final long contentHashA = input.readLong();
+		final String versionNameB = input.readUTF();
+		final int nodeCountB = readCount(input);
+		final long contentHashB = input.readLong();
+		final int maxDepth = input.readInt();
+		if (maxDepth < VersionDifference.NO_IMPACT_DEPTH) throw new IOException("Wrong input file format!");
+		final ImpactAlgorithm impactAlgorithm = formatVersion >= 2
+				? readImpactAlgorithm(input, maxDepth)
+				: maxDepth >= 0 ? ImpactAlgorithm.PATHS : null; // version 1 only had the paths
+		final double impactEpsilon = formatVersion >= 3 ? readImpactEpsilon(input, maxDepth) : 0.0;
+		final boolean rootContentHash = formatVersion < 4 || input.readBoolean();
+		final double[] typeImpactWeights = new double[DependencyType.values.size()];
+		for (int i = 0; i < typeImpactWeights.length; i++) typeImpactWeights[i] = input.readDouble();
+
+		final int[] addedIds = readBitmap(input, nodeCountB);
+		final int[] removedIds = readBitmap(input, nodeCountA);
+		final int[] changedIdsB = readBitmap(input, nodeCountB);
+		final int[] changedIdsA = readIds(input, changedIdsB.length, nodeCountA);
+		final int[] unchangedIdsB = readBitmap(input, nodeCountB);
+		final int[] unchangedIdsA = readIds(input, unchangedIdsB.length, nodeCountA);
+
+		final double[] impactWeights = new double[nodeCountB];
+		for (final int id : readBitmap(input, nodeCountB)) impactWeights[id] = input.readDouble();
+		return new VersionDifferenceSummary(versionNameA, versionNameB, nodeCountA, nodeCountB, contentHashA,
+				contentHashB, rootContentHash, addedIds, removedIds, changedIdsA, changedIdsB, unchangedIdsA,
+				unchangedIdsB, typeImpactWeights, impactWeights, maxDepth, impactAlgorithm, impactEpsilon);
+	}
+
+	@Nullable
+	private static ImpactAlgorithm readImpactAlgorithm(@Nonnull DataInput input, int maxDepth) throws IOException {
+		final int ordinal = input.readByte();
+		if (ordinal < -1 || ordinal >= ImpactAlgorithm.values.size() || (ordinal >= 0) != (maxDepth >= 0)) {
+			throw new IOException("Wrong input file format!");
+		}
+		return ordinal >= 0 ? ImpactAlgorithm.values.get(ordinal) : null;
+	}
+
+	private static double readImpactEpsilon(@Nonnull DataInput input, int maxDepth) throws IOException {
+		final double epsilon = input.readDouble();
+		if (!(epsilon >= 0.0) || maxDepth < 0 && epsilon != 0.0) throw new IOException("Wrong input file format!");
+		return epsilon;
+	}
+
+	public void toOutputStream(@Nonnull OutputStream outputStream) throws IOException {
+		final DataOutputStream output = new DataOutputStream(new BufferedOutputStream(outputStream));
+		output.writeInt(FORMAT_MAGIC);
+		output.writeInt(FORMAT_VERSION);
+		output.writeUTF(versionNameA);
+		output.writeInt(nodeCountA);
+		output.writeLong(contentHashA);
+		output.writeUTF(versionNameB);
+		output.writeInt(nodeCountB);
+		output.writeLong(contentHashB);
+		output.writeInt(maxDepth);
+		output.writeByte(impactAlgorithm != null ? impactAlgorithm.ordinal() : -1);
+		output.writeDouble(impactEpsilon);
+		output.writeBoolean(rootContentHash);
+		for (final double typeImpactWeight : typeImpactWeights) output.writeDouble(typeImpactWeight);
+
+		writeBitmap(output, addedIds);
+		writeBitmap(output, removedIds);
+		writeBitmap(output, changedIdsB);
+		writeIds(output, changedIdsA);
+		writeBitmap(output, unchangedIdsB);
+		writeIds(output, unchangedIdsA);
+
+		final BitSet weightedIds = new BitSet(impactWeights.length);
+		for (int id = 0; id < impactWeights.length; id++) {
+			if (impactWeights[id] != 0.0) weightedIds.set(id);
+		}
+		writeBitmap(output, weightedIds.stream().toArray());
+		for (final double impactWeight : impactWeights) {
+			if (impactWeight != 0.0) output.writeDouble(impactWeight);
+		}
+		output.flush();
+	}
+
+	private static int readCount(@Nonnull DataInput input) throws IOException {
+		final int count = input.readInt();
+		if (count <= 0) throw new IOException("Wrong input file format!");
+		return count;
+	}
+
+	/**
+	 * Write sorted ids as a bitmap of words.
+	 */
+	private static void writeBitmap(@Nonnull DataOutput output, @Nonnull int[] sortedIds) throws IOException {
+		final BitSet bitSet = new BitSet();
+		for (final int id : sortedIds) bitSet.set(id);
+		final long[] words = bitSet.toLongArray();
+		output.writeInt(words.length);
+		for (final long word : words) output.writeLong(word);
+	}
+
+	@Nonnull
+	private static int[] readBitmap(@Nonnull DataInput input, int idCount) throws IOException {
+		final int wordCount = input.readInt();
+		if (wordCount < 0 || wordCount > (idCount + Long.SIZE - 1) / Long.SIZE) {
+			throw new IOException("Wrong input file format!");
+		}
+		final long[] words = new long[wordCount];
+		for (int i = 0; i < wordCount; i++) words[i] = input.readLong();
+		final BitSet bitSet = BitSet.valueOf(words);
+		if (bitSet.length() > idCount) throw new IOException("Wrong input file format!");
+		return bitSet.stream().toArray();
+	}
+
+	/**
+	 * Write ids as the zigzag variable-length differences from their previous id, which are small since the paired
+	 * nodes mostly keep their order.
+	 */
+	private static void writeIds(@Nonnull DataOutput output, @Nonnull int[] ids) throws IOException {
+		int previousId = 0;
+		for (final int id : ids) {
+			final int delta = id - previousId;
+			int value = (delta << 1) ^ (delta >> 31);
+			while ((value & ~0x7F) != 0) {
+				output.writeByte((value & 0x7F) | 0x80);
+				value >>>= 7;
+			}
+			output.writeByte(value);
+			previousId = id;
+		}
+	}
+
+	@Nonnull
+	private static int[] readIds(@Nonnull DataInput input, int count, int idCount) throws IOException {
+		final int[] ids = new int[count];
+		int previousId = 0;
+		for (int i = 0; i < count; i++) {
+			int value = 0;
+			for (int shift = 0; ; shift += 7) {
+				if (shift >= Integer.SIZE) throw new IOException("Wrong input file format!");
+				final byte b = input.readByte();
+				value |= (b & 0x7F) << shift;
+				if (b >= 0) break;
+			}
+			final int id = previousId + ((value >>> 1) ^ -(value & 1));
+			if (id < 0 || id >= idCount) throw new IOException("Wrong input file format!");
+			ids[i] = previousId = id;
+		}
+		return ids;
+	}
+
+	//endregion Input & Output
+
+	/**
+	 * Create the full difference from its two versions.
+	 *
+	 * @param versionA version A
+	 * @param versionB version B
+	 * @return the full difference
+	 * @throws IOException if the versions are not the ones of this difference
+	 */
+	@Nonnull
+	public VersionDifference toVersionDifference(@Nonnull ProjectVersion versionA, @Nonnull ProjectVersion versionB)
+			throws IOException {
+		final CppNode[] nodesA = getNodes(versionA, versionNameA, nodeCountA, contentHashA, rootContentHash);
+		final CppNode[] nodesB = getNodes(versionB, versionNameB, nodeCountB, contentHashB, rootContentHash);
+		return new VersionDifference(versionA, versionB, toNodes(nodesB, addedIds),
+				toPairs(nodesA, nodesB, changedIdsA, changedIdsB),
+				toPairs(nodesA, nodesB, unchangedIdsA, unchangedIdsB),
+				toNodes(nodesA, removedIds), hasImpactWeights() ? typeImpactWeights : null,
+				hasImpactWeights() ? impactWeights : null, maxDepth, impactAlgorithm, impactEpsilon);
+	}
+
+	@Nonnull
+	private static CppNode[] getNodes(@Nonnull ProjectVersion version, @Nonnull String versionName, int nodeCount,
+			long contentHash, boolean rootContentHash) throws IOException {
+		final RootNode rootNode = version.getRootNode();
+		if (!version.getVersionName().equals(versionName) || rootNode.getNodeCount() != nodeCount) {
+			throw new IOException("Version " + version.getVersionName() + " does not match the difference!");
+		}
+		final CppNode[] nodes = new CppNode[nodeCount];
+		nodes[0] = rootNode; // root id == 0
+		for (final CppNode node : rootNode) {
+			final int id = node.getId();
+			if (id <= 0 || id >= nodeCount || nodes[id] != null) {
+				throw new IOException("Version " + version.getVersionName() + " has invalid node ids!");
+			}
+			nodes[id] = node;
+		}
+		// the older formats only have the subtree hash of the root, which does not cover the ids
+		if ((rootContentHash ? rootNode.getSubtreeHash() : contentHash(nodes)) != contentHash) {
+			throw new IOException("Version " + version.getVersionName() + " does not match the difference!");
+		}
+		return nodes;
+	}
+
+	@Nonnull
+	private static Set<CppNode> toNodes(@Nonnull CppNode[] nodes, @Nonnull int[] ids) throws IOException {
+		final Set<CppNode> set = new HashSet<>();
+		for (final int id : ids) set.add(getNode(nodes, id));
+		return set;
+	}
+
+	@Nonnull
+	private static Set<Pair<CppNode, CppNode>> toPairs(@Nonnull CppNode[] nodesA, @Nonnull CppNode[] nodesB,
+			@Nonnull int[] idsA, @Nonnull int[] idsB) throws IOException {
+		final Set<Pair<CppNode, CppNode>> set = new HashSet<>();
+		for (int i = 0; i < idsA.length; i++) {
+			set.add(Pair.immutableOf(getNode(nodesA, idsA[i]), getNode(nodesB, idsB[i])));
+		}
+		return set;
+	}
+
+	@Nonnull
+	private static CppNode getNode(@Nonnull CppNode[] nodes, int id) throws IOException {
+		final CppNode node = nodes[id];
+		if (node == null) throw new IOException("Node id " + id + " is not in the version!");
+		return node;
+	}
+
+	//region Getters
+
+	@Nonnull
+	public String getVersionNameA() {
+		return versionNameA;
+	}
+
+	@Nonnull
+	public String getVersionNameB() {
+		return versionNameB;
+	}
+
+	/**
+	 * @return the content hash of version A, the subtree hash of its root node if {@link #hasRootContentHashes}
+	 */
+	public long getContentHashA() {
+		return contentHashA;
+	}
+
+	/**
+	 * @return the content hash of version B, the subtree hash of its root node if {@link #hasRootContentHashes}
+	 */
+	public long getContentHashB() {
+		return contentHashB;
+	}
+
+	/**
+	 * @return true if the content hashes are the subtree hashes of the root nodes, which do not cover the ids of the
+	 * nodes, as in the differences written before version 4 of the format
+	 */
+	public boolean hasRootContentHashes() {
+		return rootContentHash;
+	}
+
+	/**
+	 * @return ids of the added nodes in version B, sorted
+	 */
+	@Nonnull
+	public int[] getAddedIds() {
+		return addedIds.clone();
+	}
+
+	/**
+	 * @return ids of the removed nodes in version A, sorted
+	 */
+	@Nonnull
+	public int[] getRemovedIds() {
+		return removedIds.clone();
+	}
+
+	/**
+	 * @return ids of the changed nodes in version A, in the same order as {@link #getChangedIdsB}
+	 */
+	@Nonnull
+	public int[] getChangedIdsA() {
+		return changedIdsA.clone();
+	}
+
+	/**
+	 * @return ids of the changed nodes in version B, sorted
+	 */
+	@Nonnull
+	public int[] getChangedIdsB() {
+		return changedIdsB.clone();
+	}
+
+	/**
+	 * @return ids of the unchanged nodes in version A, in the same order as {@link #getUnchangedIdsB}
+	 */
+	@Nonnull
+	public int[] getUnchangedIdsA() {
+		return unchangedIdsA.clone();
+	}
+
+	/**
+	 * @return ids of the unchanged nodes in version B, sorted
+	 */
+	@Nonnull
+	public int[] getUnchangedIdsB() {
+		return unchangedIdsB.clone();
+	}
+
+	/**
+	 * @return true if the impact was calculated, otherwise all the impact weights are zero
+	 */
+	public boolean hasImpactWeights() {
+		return maxDepth >= 0;
+	}
+
+	@Nonnull
+	public Map<DependencyType, Double> getDependencyTypeImpactWeightMap() {
+		final Map<DependencyType, Double> map = new EnumMap<>(DependencyType.class);
+		for (final DependencyType type : DependencyType.values) map.put(type, typeImpactWeights[type.ordinal()]);
+		return Map.copyOf(map);
+	}
+
+	/**
+	 * @param id id of the node in version B
+	 * @return impact weight of the node
+	 */
+	public double getImpactWeight(int id) {
+		return impactWeights[id];
+	}
+
+	/**
+	 * @return impact weight of each node of version B, by its id
+	 */
+	@Nonnull
+	public double[] getImpactWeights() {
+		return impactWeights.clone();
+	}
+
+	public int getMaxDepth() {
+		return maxDepth;
+	}
+
+	@Nullable
+	public ImpactAlgorithm getImpactAlgorithm() {
+		return impactAlgorithm;
+	}
+
+	/**
+	 * @return maximum error of the impact weights, 0.0 if they are exact
+	 */
+	public double getImpactEpsilon() {
+		return impactEpsilon;
+	}
+
+	//endregion Getters
+}
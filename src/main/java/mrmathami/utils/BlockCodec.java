@@ -0,0 +1,61 @@
+package mrmathami.utils;
+
+import mrmathami.annotations.Nonnull;
+
+import java.io.IOException;
+
+/**
+ * Compression codec of the blocks of a {@link BlockCompressedOutputStream}. A codec is used by many threads at the
+ * same time, so it must not keep any state between calls.
+ */
+public interface BlockCodec {
+	/**
+	 * Id of the blocks stored without compression, not to be used by a codec.
+	 */
+	int STORED_ID = 0;
+
+	/**
+	 * @param level compression level, from {@link java.util.zip.Deflater#BEST_SPEED} to
+	 * {@link java.util.zip.Deflater#BEST_COMPRESSION}
+	 * @return the deflate codec
+	 */
+	@Nonnull
+	static BlockCodec deflate(int level) {
+		return new DeflateBlockCodec(level);
+	}
+
+	/**
+	 * @return the LZ4 block codec, much faster than deflate but with a lower ratio
+	 */
+	@Nonnull
+	static BlockCodec lz4() {
+		return Lz4BlockCodec.INSTANCE;
+	}
+
+	/**
+	 * @return the id of the codec written with every block, from 1 to 255
+	 */
+	int getId();
+
+	/**
+	 * Compress a block.
+	 *
+	 * @param input the block
+	 * @param inputLength length of the block
+	 * @param output the output buffer
+	 * @return length of the compressed block, or -1 if it does not fit in the output buffer
+	 */
+	int compress(@Nonnull byte[] input, int inputLength, @Nonnull byte[] output);
+
+	/**
+	 * Decompress a block.
+	 *
+	 * @param input the compressed block
+	 * @param inputLength length of the compressed block
+	 * @param output the output buffer
+	 * @param outputLength length of the block
+	 * @throws IOException if the compressed block is corrupted
+	 */
+	void decompress(@Nonnull byte[] input, int inputLength, @Nonnull byte[] output, int outputLength)
+			throws IOException;
+}
@@ -0,0 +1,206 @@
+package mrmathami.utils;
+
+import mrmathami.annotations.Nonnull;
+import mrmathami.annotations.Nullable;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.zip.CRC32C;
+
+/**
+ * Input stream of the content written by a {@link BlockCompressedOutputStream}. The blocks are read ahead and
+ * decompressed on the executor if one is given, several at a time.
+ */
+public final class BlockCompressedInputStream extends InputStream {
+	private static final byte[] EMPTY = new byte[0];
+
+	@Nonnull private final DataInputStream input;
+	@Nullable private final Executor executor;
+	private final int maxPendingBlocks;
+	private final int blockSize;
+	@Nonnull private final Map<Integer, BlockCodec> codecs = new HashMap<>();
+	@Nonnull private final Deque<CompletableFuture<byte[]>> pendingBlocks = new ArrayDeque<>();
+
+	@Nonnull private byte[] block = EMPTY;
+	private int position;
+	private boolean ended;
+
+	/**
+	 * @param inputStream the underlying input stream
+	 * @param executor executor to decompress the blocks on, or null to decompress them on the reading thread
+	 * @param codecs codecs other than the built-in ones
+	 * @throws IOException if the stream is not block compressed
+	 */
+	public BlockCompressedInputStream(@Nonnull InputStream inputStream, @Nullable Executor executor,
+			@Nonnull BlockCodec... codecs) throws IOException {
+		this.input = new DataInputStream(inputStream);
+		this.executor = executor;
+		this.maxPendingBlocks = executor != null ? Runtime.getRuntime().availableProcessors() * 2 : 1;
+		this.codecs.put(DeflateBlockCodec.ID, BlockCodec.deflate(1));
+		this.codecs.put(Lz4BlockCodec.ID, BlockCodec.lz4());
+		for (final BlockCodec codec : codecs) this.codecs.put(codec.getId(), codec);
+
+		if (input.readInt() != BlockCompressedOutputStream.FORMAT_MAGIC) {
+			throw new IOException("Wrong input file format!");
+		}
+		if (input.readInt() != BlockCompressedOutputStream.FORMAT_VERSION) {
+			throw new IOException("Unsupported file format version!");
+		}
+		this.blockSize = input.readInt();
+		if (blockSize <= 0 || blockSize > BlockCompressedOutputStream.MAX_BLOCK_SIZE) {
+			throw new IOException("Wrong input file format!");
+		}
+	}
+
+	/**
+	 * Decompress the input stream if it is block compressed, on the common pool.
+	 *
+	 * @param inputStream input stream
+	 * @return the decompressed input stream, or a buffered input stream of the same content if it is not compressed
+	 * @throws IOException if an I/O error occurs
+	 */
+	@Nonnull
+	public static InputStream decompressIfNeeded(@Nonnull InputStream inputStream) throws IOException {
+		return decompressIfNeeded(inputStream, ForkJoinPool.commonPool());
+	}
+
+	/**
+	 * Decompress the input stream if it is block compressed, on the pool.
+	 *
+	 * @param inputStream input stream
+	 * @param pool the pool to decompress the blocks on
+	 * @return the decompressed input stream, or a buffered input stream of the same content if it is not compressed
+	 * @throws IOException if an I/O error occurs
+	 */
+	@Nonnull
+	public static InputStream decompressIfNeeded(@Nonnull InputStream inputStream, @Nonnull ForkJoinPool pool)
+			throws IOException {
+		final BufferedInputStream bufferedInputStream = new BufferedInputStream(inputStream);
+		bufferedInputStream.mark(Integer.BYTES);
+		final byte[] magic = bufferedInputStream.readNBytes(Integer.BYTES);
+		bufferedInputStream.reset();
+		final boolean compressed = magic.length == Integer.BYTES
+				&& ((magic[0] & 0xFF) << 24 | (magic[1] & 0xFF) << 16 | (magic[2] & 0xFF) << 8 | (magic[3] & 0xFF))
+				== BlockCompressedOutputStream.FORMAT_MAGIC;
+		return compressed
+				? new BlockCompressedInputStream(bufferedInputStream, pool)
+				: bufferedInputStream;
+	}
+
+	/**
+	 * @return false if the stream has ended
+	 */
+	private boolean nextBlock() throws IOException {
+		if (position < block.length) return true;
+		while (!ended && pendingBlocks.size() < maxPendingBlocks) readFrame();
+		final CompletableFuture<byte[]> pendingBlock = pendingBlocks.poll();
+		if (pendingBlock == null) return false;
+		this.block = join(pendingBlock);
+		this.position = 0;
+		return true;
+	}
+
+	private void readFrame() throws IOException {
+		final int codecId = input.readUnsignedByte();
+		final int length = input.readInt();
+		final int dataLength = input.readInt();
+		final int checksum = input.readInt();
+		if (length == 0) {
+			if (codecId != BlockCodec.STORED_ID || dataLength != 0 || checksum != 0) {
+				throw new IOException("Wrong input file format!");
+			}
+			this.ended = true;
+			return;
+		}
+		if (length < 0 || length > blockSize || dataLength < 0 || dataLength > blockSize) {
+			throw new IOException("Wrong input file format!");
+		}
+		final BlockCodec codec = codecs.get(codecId);
+		if (codecId != BlockCodec.STORED_ID && codec == null) throw new IOException("Unknown codec " + codecId + "!");
+		final byte[] data = new byte[dataLength];
+		input.readFully(data);
+		if (executor != null) {
+			pendingBlocks.add(CompletableFuture.supplyAsync(() -> decode(codec, data, length, checksum), executor));
+		} else {
+			try {
+				pendingBlocks.add(CompletableFuture.completedFuture(decode(codec, data, length, checksum)));
+			} catch (UncheckedIOException e) {
+				throw e.getCause();
+			}
+		}
+	}
+
+	@Nonnull
+	private static byte[] decode(@Nullable BlockCodec codec, @Nonnull byte[] data, int length, int checksum) {
+		try {
+			final byte[] block;
+			if (codec == null) {
+				if (data.length != length) throw new IOException("Wrong input file format!");
+				block = data;
+			} else {
+				block = new byte[length];
+				codec.decompress(data, data.length, block, length);
+			}
+			final CRC32C crc = new CRC32C();
+			crc.update(block, 0, length);
+			if ((int) crc.getValue() != checksum) throw new IOException("Block checksum mismatch!");
+			return block;
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	/**
+	 * Wait for a block, rethrowing its I/O error.
+	 */
+	@Nonnull
+	static byte[] join(@Nonnull CompletableFuture<byte[]> pendingBlock) throws IOException {
+		try {
+			return pendingBlock.join();
+		} catch (CompletionException e) {
+			final Throwable cause = e.getCause();
+			if (cause instanceof UncheckedIOException) throw ((UncheckedIOException) cause).getCause();
+			if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+			if (cause instanceof Error) throw (Error) cause;
+			throw new IOException(cause);
+		}
+	}
+
+	@Override
+	public int read() throws IOException {
+		return nextBlock() ? block[position++] & 0xFF : -1;
+	}
+
+	@Override
+	public int read(@Nonnull byte[] bytes, int offset, int length) throws IOException {
+		if (offset < 0 || length < 0 || length > bytes.length - offset) throw new IndexOutOfBoundsException();
+		if (length == 0) return 0;
+		if (!nextBlock()) return -1;
+		final int readLength = Math.min(length, block.length - position);
+		System.arraycopy(block, position, bytes, offset, readLength);
+		position += readLength;
+		return readLength;
+	}
+
+	@Override
+	public int available() {
+		return block.length - position;
+	}
+
+	@Override
+	public void close() throws IOException {
+		pendingBlocks.clear();
+		input.close();
+	}
+}
@@ -0,0 +1,159 @@
+package mrmathami.utils;
+
+import mrmathami.annotations.Nonnull;
+import mrmathami.annotations.Nullable;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.zip.CRC32C;
+
+/**
+ * Output stream compressing its content in independent blocks. The blocks are compressed on the executor if one is
+ * given, several at a time, and written in order. The stream must be finished or closed to write its end.
+ * <p>
+ * The stream is a header of the magic number, the format version and the block size, then the blocks, each of them
+ * with its codec id, its length, its compressed length and the checksum of its content, then an empty block.
+ * Blocks which do not get smaller are stored without compression.
+ */
+public final class BlockCompressedOutputStream extends OutputStream {
+	public static final int FORMAT_MAGIC = 0x4349415A; // "CIAZ"
+	static final int FORMAT_VERSION = 1;
+	static final int BLOCK_HEADER_SIZE = 1 + Integer.BYTES * 3;
+
+	public static final int DEFAULT_BLOCK_SIZE = 1 << 18;
+	public static final int MAX_BLOCK_SIZE = 1 << 26;
+
+	@Nonnull private final DataOutputStream output;
+	@Nonnull private final BlockCodec codec;
+	private final int blockSize;
+	@Nullable private final Executor executor;
+	private final int maxPendingBlocks;
+	@Nonnull private final Deque<CompletableFuture<byte[]>> pendingBlocks = new ArrayDeque<>();
+
+	@Nonnull private byte[] buffer;
+	private int count;
+	private boolean finished;
+
+	public BlockCompressedOutputStream(@Nonnull OutputStream outputStream, @Nonnull BlockCodec codec)
+			throws IOException {
+		this(outputStream, codec, DEFAULT_BLOCK_SIZE, null);
+	}
+
+	/**
+	 * @param outputStream the underlying output stream
+	 * @param codec the codec of the blocks
+	 * @param blockSize length of each block before compression
+	 * @param executor executor to compress the blocks on, or null to compress them on the writing thread
+	 * @throws IOException if the header cannot be written
+	 */
+	public BlockCompressedOutputStream(@Nonnull OutputStream outputStream, @Nonnull BlockCodec codec, int blockSize,
+			@Nullable Executor executor) throws IOException {
+		if (blockSize <= 0 || blockSize > MAX_BLOCK_SIZE) throw new IllegalArgumentException("Invalid block size!");
+		final int codecId = codec.getId();
+		if (codecId <= BlockCodec.STORED_ID || codecId > 255) throw new IllegalArgumentException("Invalid codec id!");
+		this.output = new DataOutputStream(outputStream);
+		this.codec = codec;
+		this.blockSize = blockSize;
+		this.executor = executor;
+		this.maxPendingBlocks = executor != null ? Runtime.getRuntime().availableProcessors() * 2 : 0;
+		this.buffer = new byte[blockSize];
+		output.writeInt(FORMAT_MAGIC);
+		output.writeInt(FORMAT_VERSION);
+		output.writeInt(blockSize);
+	}
+
+	@Override
+	public void write(int value) throws IOException {
+		if (finished) throw new IOException("Stream is finished!");
+		buffer[count++] = (byte) value;
+		if (count == blockSize) writeBlock();
+	}
+
+	@Override
+	public void write(@Nonnull byte[] bytes, int offset, int length) throws IOException {
+		if (finished) throw new IOException("Stream is finished!");
+		if (offset < 0 || length < 0 || length > bytes.length - offset) throw new IndexOutOfBoundsException();
+		while (length > 0) {
+			final int copyLength = Math.min(length, blockSize - count);
+			System.arraycopy(bytes, offset, buffer, count, copyLength);
+			count += copyLength;
+			offset += copyLength;
+			length -= copyLength;
+			if (count == blockSize) writeBlock();
+		}
+	}
+
+	private void writeBlock() throws IOException {
+		final byte[] block = buffer;
+		final int length = count;
+		count = 0;
+		if (executor == null) {
+			output.write(encode(codec, block, length));
+			return;
+		}
+		buffer = new byte[blockSize];
+		pendingBlocks.add(CompletableFuture.supplyAsync(() -> encode(codec, block, length), executor));
+		while (pendingBlocks.size() > maxPendingBlocks) output.write(BlockCompressedInputStream.join(pendingBlocks.poll()));
+	}
+
+	@Nonnull
+	private static byte[] encode(@Nonnull BlockCodec codec, @Nonnull byte[] block, int length) {
+		final byte[] compressed = new byte[length - 1];
+		final int compressedLength = codec.compress(block, length, compressed);
+		final boolean stored = compressedLength < 0;
+		final int dataLength = stored ? length : compressedLength;
+		final byte[] frame = new byte[BLOCK_HEADER_SIZE + dataLength];
+		final CRC32C checksum = new CRC32C();
+		checksum.update(block, 0, length);
+		frame[0] = (byte) (stored ? BlockCodec.STORED_ID : codec.getId());
+		writeInt(frame, 1, length);
+		writeInt(frame, 5, dataLength);
+		writeInt(frame, 9, (int) checksum.getValue());
+		System.arraycopy(stored ? block : compressed, 0, frame, BLOCK_HEADER_SIZE, dataLength);
+		return frame;
+	}
+
+	private static void writeInt(@Nonnull byte[] bytes, int index, int value) {
+		bytes[index] = (byte) (value >>> 24);
+		bytes[index + 1] = (byte) (value >>> 16);
+		bytes[index + 2] = (byte) (value >>> 8);
+		bytes[index + 3] = (byte) value;
+	}
+
+	/**
+	 * Write the buffered content as a block, even if it is not full, and wait for all pending blocks.
+	 *
+	 * @throws IOException if an I/O error occurs
+	 */
+	@Override
+	public void flush() throws IOException {
+		if (count > 0) writeBlock();
+		while (!pendingBlocks.isEmpty()) output.write(BlockCompressedInputStream.join(pendingBlocks.poll()));
+		output.flush();
+	}
+
+	/**
+	 * Write the end of the stream without closing the underlying output stream.
+	 *
+	 * @throws IOException if an I/O error occurs
+	 */
+	public void finish() throws IOException {
+		if (finished) return;
+		flush();
+		output.write(new byte[BLOCK_HEADER_SIZE]); // empty block
+		output.flush();
+		finished = true;
+	}
+
+	@Override
+	public void close() throws IOException {
+		try (output) {
+			finish();
+		}
+	}
+}
@@ -0,0 +1,67 @@
+package mrmathami.utils;
+
+import mrmathami.annotations.Nonnull;
+
+import java.io.IOException;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+final class DeflateBlockCodec implements BlockCodec {
+	static final int ID = 1;
+
+	private final int level;
+
+	DeflateBlockCodec(int level) {
+		if (level < Deflater.BEST_SPEED || level > Deflater.BEST_COMPRESSION) {
+			throw new IllegalArgumentException("Invalid compression level!");
+		}
+		this.level = level;
+	}
+
+	@Override
+	public int getId() {
+		return ID;
+	}
+
+	@Override
+	public int compress(@Nonnull byte[] input, int inputLength, @Nonnull byte[] output) {
+		final Deflater deflater = new Deflater(level);
+		try {
+			deflater.setInput(input, 0, inputLength);
+			deflater.finish();
+			int length = 0;
+			while (!deflater.finished()) {
+				if (length == output.length) return -1;
+				length += deflater.deflate(output, length, output.length - length);
+			}
+			return length;
+		} finally {
+			deflater.end();
+		}
+	}
+
+	@Override
+	public void decompress(@Nonnull byte[] input, int inputLength, @Nonnull byte[] output, int outputLength)
+			throws IOException {
+		final Inflater inflater = new Inflater();
+		try {
+			inflater.setInput(input, 0, inputLength);
+			int length = 0;
+			while (length < outputLength) {
+				final int inflated = inflater.inflate(output, length, outputLength - length);
+				if (inflated == 0 && (inflater.finished() || inflater.needsInput() || inflater.needsDictionary())) {
+					throw new IOException("Corrupted compressed block!");
+				}
+				length += inflated;
+			}
+			if (!inflater.finished() && inflater.inflate(new byte[1]) != 0) {
+				throw new IOException("Corrupted compressed block!");
+			}
+		} catch (DataFormatException e) {
+			throw new IOException("Corrupted compressed block!", e);
+		} finally {
+			inflater.end();
+		}
+	}
+}
@@ -0,0 +1,113 @@
+package mrmathami.utils;
+
+import mrmathami.annotations.Nonnull;
+
+import java.util.Arrays;
+
+/**
+ * Map from long keys to non-negative int values, using open addressing with linear probing and no boxing.
+ * Not thread-safe.
+ */
+public final class LongIntHashMap {
+	private static final int MIN_CAPACITY = 8;
+
+	@Nonnull private long[] keys;
+	@Nonnull private int[] values; // value + 1, 0 means empty
+	private int mask;
+	private int size;
+
+	public LongIntHashMap() {
+		this(MIN_CAPACITY / 2);
+	}
+
+	/**
+	 * @param expectedSize number of keys which can be put without growing the map
+	 */
+	public LongIntHashMap(int expectedSize) {
+		final int capacity = capacityOf(expectedSize);
+		this.keys = new long[capacity];
+		this.values = new int[capacity];
+		this.mask = capacity - 1;
+	}
+
+	private static int capacityOf(int expectedSize) {
+		if (expectedSize < 0) throw new IllegalArgumentException("Negative size!");
+		// load factor at most 1/2
+		final int capacity = Integer.highestOneBit(Math.max(expectedSize, MIN_CAPACITY / 2) * 2 - 1) << 1;
+		if (capacity <= 0) throw new IllegalArgumentException("Size too large!");
+		return capacity;
+	}
+
+	private static int mix(long key) {
+		final long hash = key * 0x9E3779B97F4A7C15L;
+		return (int) (hash ^ (hash >>> 32));
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public boolean isEmpty() {
+		return size == 0;
+	}
+
+	/**
+	 * @param key the key
+	 * @return the value of the key, or -1 if there is none
+	 */
+	public int get(long key) {
+		for (int index = mix(key) & mask; ; index = (index + 1) & mask) {
+			final int value = values[index];
+			if (value == 0) return -1;
+			if (keys[index] == key) return value - 1;
+		}
+	}
+
+	public boolean containsKey(long key) {
+		return get(key) >= 0;
+	}
+
+	/**
+	 * @param key the key
+	 * @param value the value, must not be negative
+	 * @return the previous value of the key, or -1 if there was none
+	 */
+	public int put(long key, int value) {
+		if (value < 0 || value == Integer.MAX_VALUE) throw new IllegalArgumentException("Invalid value!");
+		for (int index = mix(key) & mask; ; index = (index + 1) & mask) {
+			final int oldValue = values[index];
+			if (oldValue == 0) {
+				keys[index] = key;
+				values[index] = value + 1;
+				if (++size * 2 > keys.length) grow();
+				return -1;
+			}
+			if (keys[index] == key) {
+				values[index] = value + 1;
+				return oldValue - 1;
+			}
+		}
+	}
+
+	public void clear() {
+		Arrays.fill(values, 0);
+		this.size = 0;
+	}
+
+	private void grow() {
+		final long[] oldKeys = keys;
+		final int[] oldValues = values;
+		final int capacity = oldKeys.length * 2;
+		if (capacity <= 0) throw new IllegalStateException("Map too large!");
+		this.keys = new long[capacity];
+		this.values = new int[capacity];
+		this.mask = capacity - 1;
+		for (int i = 0; i < oldKeys.length; i++) {
+			if (oldValues[i] == 0) continue;
+			int index = mix(oldKeys[i]) & mask;
+			while (values[index] != 0) index = (index + 1) & mask;
+			keys[index] = oldKeys[i];
+			values[index] = oldValues[i];
+		}
+	}
+}
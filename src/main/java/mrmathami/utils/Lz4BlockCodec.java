@@ -0,0 +1,168 @@
+package mrmathami.utils;
+
+import mrmathami.annotations.Nonnull;
+
+import java.io.IOException;
+
+/**
+ * Pure Java codec of the LZ4 block format: a greedy single pass with a hash table of 4-byte sequences.
+ */
+final class Lz4BlockCodec implements BlockCodec {
+	static final int ID = 2;
+	static final Lz4BlockCodec INSTANCE = new Lz4BlockCodec();
+
+	private static final int MIN_MATCH = 4;
+	private static final int LAST_LITERALS = 5; // the last bytes are always literals
+	private static final int MATCH_FIND_LIMIT = 12; // no match starts in the last bytes
+	private static final int MAX_DISTANCE = 0xFFFF;
+	private static final int HASH_LOG = 14;
+	private static final int SKIP_TRIGGER = 6; // step up after 2^6 misses on incompressible data
+
+	private Lz4BlockCodec() {
+	}
+
+	@Override
+	public int getId() {
+		return ID;
+	}
+
+	private static int readInt(@Nonnull byte[] bytes, int index) {
+		return (bytes[index] & 0xFF) | (bytes[index + 1] & 0xFF) << 8
+				| (bytes[index + 2] & 0xFF) << 16 | (bytes[index + 3] & 0xFF) << 24;
+	}
+
+	private static int hash(int value) {
+		return (value * -1640531535) >>> (Integer.SIZE - HASH_LOG);
+	}
+
+	@Override
+	public int compress(@Nonnull byte[] input, int inputLength, @Nonnull byte[] output) {
+		final int[] table = new int[1 << HASH_LOG]; // position + 1, 0 means empty
+		final int findLimit = inputLength - MATCH_FIND_LIMIT;
+		final int matchLimit = inputLength - LAST_LITERALS;
+		int anchor = 0;
+		int position = 0;
+		int outputPosition = 0;
+		int misses = 0;
+		while (position < findLimit) {
+			final int value = readInt(input, position);
+			final int hash = hash(value);
+			int reference = table[hash] - 1;
+			table[hash] = position + 1;
+			if (reference < 0 || position - reference > MAX_DISTANCE || readInt(input, reference) != value) {
+				position += 1 + (misses++ >>> SKIP_TRIGGER);
+				continue;
+			}
+			misses = 0;
+			while (position > anchor && reference > 0 && input[position - 1] == input[reference - 1]) {
+				position -= 1;
+				reference -= 1;
+			}
+			int matchLength = MIN_MATCH;
+			while (position + matchLength < matchLimit && input[reference + matchLength] == input[position + matchLength]) {
+				matchLength += 1;
+			}
+			outputPosition = writeSequence(input, anchor, position - anchor, output, outputPosition,
+					position - reference, matchLength);
+			if (outputPosition < 0) return -1;
+			position += matchLength;
+			anchor = position;
+		}
+		return writeSequence(input, anchor, inputLength - anchor, output, outputPosition, 0, 0);
+	}
+
+	/**
+	 * Write a sequence of literals followed by a match, or only the literals if the match length is 0.
+	 *
+	 * @return the output position after the sequence, or -1 if it does not fit
+	 */
+	private static int writeSequence(@Nonnull byte[] input, int literalStart, int literalLength,
+			@Nonnull byte[] output, int outputPosition, int offset, int matchLength) {
+		final int extraMatchLength = matchLength - MIN_MATCH;
+		final int size = 1 + literalLength / 255 + 1 + literalLength + (matchLength > 0 ? 2 + extraMatchLength / 255 + 1 : 0);
+		if (outputPosition + size > output.length) return -1;
+
+		final int tokenPosition = outputPosition++;
+		int token = Math.min(literalLength, 15) << 4;
+		outputPosition = writeLength(output, outputPosition, literalLength);
+		System.arraycopy(input, literalStart, output, outputPosition, literalLength);
+		outputPosition += literalLength;
+		if (matchLength > 0) {
+			token |= Math.min(extraMatchLength, 15);
+			output[outputPosition++] = (byte) offset;
+			output[outputPosition++] = (byte) (offset >>> 8);
+			outputPosition = writeLength(output, outputPosition, extraMatchLength);
+		}
+		output[tokenPosition] = (byte) token;
+		return outputPosition;
+	}
+
+	private static int writeLength(@Nonnull byte[] output, int outputPosition, int length) {
+		if (length < 15) return outputPosition;
+		length -= 15;
+		while (length >= 255) {
+			output[outputPosition++] = (byte) 255;
+			length -= 255;
+		}
+		output[outputPosition++] = (byte) length;
+		return outputPosition;
+	}
+
+	@Override
+	public void decompress(@Nonnull byte[] input, int inputLength, @Nonnull byte[] output, int outputLength)
+			throws IOException {
+		int position = 0;
+		int outputPosition = 0;
+		while (true) {
+			if (position >= inputLength) throw new IOException("Corrupted compressed block!");
+			final int token = input[position++] & 0xFF;
+
+			int literalLength = token >>> 4;
+			if (literalLength == 15) {
+				int value;
+				do {
+					if (position >= inputLength || literalLength > outputLength) {
+						throw new IOException("Corrupted compressed block!");
+					}
+					value = input[position++] & 0xFF;
+					literalLength += value;
+				} while (value == 255);
+			}
+			if (literalLength > inputLength - position || literalLength > outputLength - outputPosition) {
+				throw new IOException("Corrupted compressed block!");
+			}
+			System.arraycopy(input, position, output, outputPosition, literalLength);
+			position += literalLength;
+			outputPosition += literalLength;
+			if (position == inputLength) break; // the last sequence has no match
+
+			if (position + 2 > inputLength) throw new IOException("Corrupted compressed block!");
+			final int offset = (input[position] & 0xFF) | (input[position + 1] & 0xFF) << 8;
+			position += 2;
+			if (offset == 0 || offset > outputPosition) throw new IOException("Corrupted compressed block!");
+
+			int matchLength = token & 15;
+			if (matchLength == 15) {
+				int value;
+				do {
+					if (position >= inputLength || matchLength > outputLength) {
+						throw new IOException("Corrupted compressed block!");
+					}
+					value = input[position++] & 0xFF;
+					matchLength += value;
+				} while (value == 255);
+			}
+			matchLength += MIN_MATCH;
+			if (matchLength > outputLength - outputPosition) throw new IOException("Corrupted compressed block!");
+			final int reference = outputPosition - offset;
+			if (offset >= matchLength) {
+				System.arraycopy(output, reference, output, outputPosition, matchLength);
+			} else {
+				// overlapping match repeats the last offset bytes
+				for (int i = 0; i < matchLength; i++) output[outputPosition + i] = output[reference + i];
+			}
+			outputPosition += matchLength;
+		}
+		if (outputPosition != outputLength) throw new IOException("Corrupted compressed block!");
+	}
+}
@@ -0,0 +1,423 @@
+package mrmathami.cia.cpp;
+
+import mrmathami.cia.cpp.ast.ClassNode;
+import mrmathami.cia.cpp.ast.CppNode;
+import mrmathami.cia.cpp.ast.DependencyType;
+import mrmathami.cia.cpp.ast.FunctionNode;
+import mrmathami.cia.cpp.ast.IntegralNode;
+import mrmathami.cia.cpp.ast.RootNode;
+import mrmathami.cia.cpp.ast.TypedefNode;
+import mrmathami.cia.cpp.ast.VariableNode;
+import mrmathami.cia.cpp.builder.ProjectVersion;
+import mrmathami.cia.cpp.differ.VersionDiffer;
+import mrmathami.cia.cpp.differ.VersionDifference;
+import mrmathami.utils.Pair;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+import static mrmathami.cia.cpp.TestVersions.build;
+import static mrmathami.cia.cpp.TestVersions.check;
+import static mrmathami.cia.cpp.TestVersions.encode;
+
+/**
+ * The differences must be the ones of the original matching, which put every node in a hash map keyed by its similar
+ * match, and found the pairs by looking the nodes of version A up in the map of version B.
+ */
+public final class DifferEquivalenceTest {
+	private static final String ADDED = "added";
+	private static final String REMOVED = "removed";
+	private static final String CHANGED = "changed";
+	private static final String UNCHANGED = "unchanged";
+
+	private DifferEquivalenceTest() {
+	}
+
+	private static Map<CppNode.Wrapper, CppNode> wrapAll(RootNode root, CppNode.Matcher matcher) {
+		final Map<CppNode.Wrapper, CppNode> nodeMap = new HashMap<>();
+		nodeMap.put(new CppNode.Wrapper(root, CppNode.MatchLevel.SIMILAR, matcher), root);
+		for (final CppNode node : root) {
+			if (!(node instanceof IntegralNode)) {
+				nodeMap.put(new CppNode.Wrapper(node, CppNode.MatchLevel.SIMILAR, matcher), node);
+			}
+		}
+		return nodeMap;
+	}
+
+	/**
+	 * @return the category of each node of both versions and the node it is paired with, as the original matching
+	 * found them
+	 */
+	private static Map<CppNode, Object[]> reference(ProjectVersion versionA, ProjectVersion versionB) {
+		final CppNode.Matcher matcher = new CppNode.Matcher();
+		final Map<CppNode.Wrapper, CppNode> nodeMapA = wrapAll(versionA.getRootNode(), matcher);
+		final Map<CppNode.Wrapper, CppNode> nodeMapB = wrapAll(versionB.getRootNode(), matcher);
+		final Map<CppNode, Object[]> categories = new IdentityHashMap<>();
+		for (final Map.Entry<CppNode.Wrapper, CppNode> entry : nodeMapA.entrySet()) {
+			final CppNode nodeA = entry.getValue();
+			final CppNode nodeB = nodeMapB.get(entry.getKey());
+			if (nodeB == null) {
+				categories.put(nodeA, new Object[]{REMOVED, null});
+			} else {
+				final String category = matcher.isNodeMatch(nodeA, nodeB, CppNode.MatchLevel.IDENTICAL)
+						? UNCHANGED
+						: CHANGED;
+				categories.put(nodeA, new Object[]{category, nodeB});
+				categories.put(nodeB, new Object[]{category, nodeA});
+			}
+		}
+		for (final Map.Entry<CppNode.Wrapper, CppNode> entry : nodeMapB.entrySet()) {
+			if (!nodeMapA.containsKey(entry.getKey())) categories.put(entry.getValue(), new Object[]{ADDED, null});
+		}
+		return categories;
+	}
+
+	/**
+	 * @return the category of each node of both versions in the difference and the node it is paired with
+	 */
+	private static Map<CppNode, Object[]> categories(VersionDifference difference) {
+		final Map<CppNode, Object[]> categories = new IdentityHashMap<>();
+		for (final CppNode node : difference.getAddedNodes()) {
+			check(categories.put(node, new Object[]{ADDED, null}) == null, "Node in two categories");
+		}
+		for (final CppNode node : difference.getRemovedNodes()) {
+			check(categories.put(node, new Object[]{REMOVED, null}) == null, "Node in two categories");
+		}
+		for (final Pair<CppNode, CppNode> pair : difference.getChangedNodes()) {
+			check(categories.put(pair.getA(), new Object[]{CHANGED, pair.getB()}) == null
+					&& categories.put(pair.getB(), new Object[]{CHANGED, pair.getA()}) == null,
+					"Node in two categories");
+		}
+		for (final Pair<CppNode, CppNode> pair : difference.getUnchangedNodes()) {
+			check(categories.put(pair.getA(), new Object[]{UNCHANGED, pair.getB()}) == null
+					&& categories.put(pair.getB(), new Object[]{UNCHANGED, pair.getA()}) == null,
+					"Node in two categories");
+		}
+		return categories;
+	}
+
+	/**
+	 * @return the nodes whose class, name, unique name and signature are the same as the ones of one of their
+	 * siblings, which the original matching could not tell apart
+	 */
+	private static Set<CppNode> findDuplicates(RootNode root) {
+		final Set<CppNode> duplicates = Collections.newSetFromMap(new IdentityHashMap<>());
+		final List<CppNode> parents = new ArrayList<>();
+		parents.add(root);
+		for (final CppNode node : root) parents.add(node);
+		for (final CppNode parent : parents) {
+			final Map<List<Object>, CppNode> keys = new HashMap<>();
+			for (final CppNode node : parent.getChildren()) {
+				final CppNode sibling = keys.put(List.of(node.getClass(), node.getName(), node.getUniqueName(),
+						node.getSignature()), node);
+				if (sibling != null) {
+					duplicates.add(sibling);
+					duplicates.add(node);
+				}
+			}
+		}
+		return duplicates;
+	}
+
+	/**
+	 * On random versions, where the siblings are all told apart, the categories and the pairs must be exactly the
+	 * ones of the original matching.
+	 */
+	private static void checkRandomVersions() throws CppException {
+		for (int seed = 1; seed <= 10; seed++) {
+			final ProjectVersion versionA = build("equivalenceA", seed, 100 + seed * 40, 0);
+			final ProjectVersion versionB = build("equivalenceB", seed, 100 + seed * 40, seed * 7 + 1);
+			final VersionDifference difference = VersionDiffer.compare(versionA, versionB,
+					VersionDiffer.IMPACT_WEIGHT_MAP, 4, ForkJoinPool.commonPool(), false);
+			final Map<CppNode, Object[]> expected = reference(versionA, versionB);
+			final Map<CppNode, Object[]> actual = categories(difference);
+			check(expected.size() == actual.size(), "Node count of seed " + seed);
+			for (final Map.Entry<CppNode, Object[]> entry : expected.entrySet()) {
+				final Object[] category = actual.get(entry.getKey());
+				check(category != null && category[0] == entry.getValue()[0] && category[1] == entry.getValue()[1],
+						"Category of " + entry.getKey().getUniqueName() + " of seed " + seed);
+			}
+		}
+	}
+
+	/**
+	 * Build classes which inherit from each other in cycles of ten, some of them also from a random class, each with
+	 * a typedef of another class and a variable of another typedef, and functions using the variables. With a
+	 * non-zero mutation seed, some classes lose their random base, some typedefs refer to other classes and some
+	 * variables have other bodies.
+	 */
+	private static ProjectVersion buildCyclic(String versionName, int size, long mutationSeed) {
+		final Random structure = new Random(size);
+		final Random mutation = new Random(mutationSeed);
+		final boolean mutate = mutationSeed != 0;
+		final RootNode root = new RootNode();
+		final ClassNode[] classes = new ClassNode[size];
+		final TypedefNode[] typedefs = new TypedefNode[size];
+		final VariableNode[] variables = new VariableNode[size];
+		final FunctionNode[] functions = new FunctionNode[size];
+		for (int i = 0; i < size; i++) {
+			classes[i] = new ClassNode();
+			classes[i].setName("C" + i);
+			classes[i].setUniqueName("C" + i);
+			classes[i].setSignature("C" + i);
+			root.addChild(classes[i]);
+			typedefs[i] = new TypedefNode();
+			typedefs[i].setName("T");
+			typedefs[i].setUniqueName("C" + i + "::T");
+			typedefs[i].setSignature("T");
+			classes[i].addChild(typedefs[i]);
+			variables[i] = new VariableNode();
+			variables[i].setName("v");
+			variables[i].setUniqueName("C" + i + "::v");
+			variables[i].setSignature("v");
+			variables[i].setBody(mutate && mutation.nextInt(8) == 0 ? "= " + i + " + 1;" : "= " + i + ";");
+			classes[i].addChild(variables[i]);
+			functions[i] = new FunctionNode();
+			functions[i].setName("f" + i);
+			functions[i].setUniqueName("f" + i);
+			functions[i].setSignature("f" + i + "()");
+			functions[i].setBody("{ return C" + i + "::v; }");
+			root.addChild(functions[i]);
+		}
+		for (int i = 0; i < size; i++) {
+			typedefs[i].setType(classes[(i + (mutate && mutation.nextInt(8) == 0 ? 2 : 1)) % size]);
+			variables[i].setType(typedefs[(i + 2) % size]);
+			classes[i].addBase(classes[i % 10 == 9 ? i - 9 : i + 1]);
+			final int base = structure.nextInt(size);
+			final boolean dropBase = mutate && mutation.nextInt(12) == 0;
+			if (base != i && structure.nextInt(3) == 0 && !dropBase) classes[i].addBase(classes[base]);
+			functions[i].addDependencyTo(variables[i], DependencyType.USE);
+			functions[i].addDependencyTo(functions[(i + 1) % size], DependencyType.INVOCATION);
+		}
+		int id = 0;
+		for (final CppNode node : root) node.setId(++id);
+		root.setNodeCount(id + 1);
+		root.lock();
+		final double[] typeWeights = new double[DependencyType.values.size()];
+		Arrays.fill(typeWeights, 0.5);
+		final double[] weights = new double[root.getNodeCount()];
+		Arrays.fill(weights, 1.0);
+		return ProjectVersion.of(versionName, List.of("a.cpp"), List.of(), root, typeWeights, weights);
+	}
+
+	/**
+	 * @return the classes of the version by their unique names
+	 */
+	private static Map<String, ClassNode> classesOf(ProjectVersion version) {
+		final Map<String, ClassNode> classes = new HashMap<>();
+		for (final ClassNode node : version.getRootNode().getClasses()) classes.put(node.getUniqueName(), node);
+		return classes;
+	}
+
+	/**
+	 * @return the unique names of the classes of version A which are not identical to the ones of version B: the
+	 * classes whose bases changed, and the classes inheriting from them
+	 */
+	private static Set<String> changedClasses(Map<String, ClassNode> classesA, Map<String, ClassNode> classesB) {
+		final Set<String> changed = new TreeSet<>();
+		for (final ClassNode classA : classesA.values()) {
+			final Set<String> basesA = new TreeSet<>();
+			final Set<String> basesB = new TreeSet<>();
+			for (final CppNode base : classA.getBases()) basesA.add(base.getUniqueName());
+			for (final CppNode base : classesB.get(classA.getUniqueName()).getBases()) basesB.add(base.getUniqueName());
+			if (!basesA.equals(basesB)) changed.add(classA.getUniqueName());
+		}
+		boolean grown = true;
+		while (grown) {
+			grown = false;
+			for (final ClassNode classA : classesA.values()) {
+				if (changed.contains(classA.getUniqueName())) continue;
+				for (final CppNode base : classA.getBases()) {
+					if (changed.contains(base.getUniqueName())) {
+						grown = changed.add(classA.getUniqueName());
+						break;
+					}
+				}
+			}
+		}
+		return changed;
+	}
+
+	/**
+	 * On classes inheriting from each other in cycles, where the nested comparisons are made under the optimistic
+	 * assumptions of the outer ones, the comparisons made by many threads sharing their results must find exactly
+	 * the classes inheriting from a changed class, and the differences must not depend on the number of threads.
+	 */
+	private static void checkCyclicVersions() throws IOException, CppException {
+		final List<ProjectVersion[]> versionPairs = new ArrayList<>();
+		for (int seed = 1; seed <= 4; seed++) {
+			versionPairs.add(new ProjectVersion[]{buildCyclic("cyclicA", 300, 0), buildCyclic("cyclicB", 300, seed)});
+		}
+		final List<byte[]> expected = new ArrayList<>();
+		for (final int threads : new int[]{1, 2, 4, 8}) {
+			final ForkJoinPool pool = new ForkJoinPool(threads);
+			try {
+				for (int i = 0; i < versionPairs.size(); i++) {
+					final ProjectVersion[] versions = versionPairs.get(i);
+					final Map<String, ClassNode> classesA = classesOf(versions[0]);
+					final Map<String, ClassNode> classesB = classesOf(versions[1]);
+					final Set<String> changed = changedClasses(classesA, classesB);
+					final List<String> names = new ArrayList<>(classesA.keySet());
+					Collections.shuffle(names, new Random(threads * 31L + i));
+					final CppNode.Matcher matcher = CppNode.Matcher.concurrent(versions[0].getRootNode(),
+							versions[1].getRootNode(), 1 << 16);
+					final List<Callable<Boolean>> tasks = new ArrayList<>();
+					for (final String name : names) {
+						tasks.add(() -> matcher.isNodeMatch(classesA.get(name), classesB.get(name),
+								CppNode.MatchLevel.IDENTICAL));
+					}
+					final List<Future<Boolean>> matches = pool.invokeAll(tasks);
+					for (int j = 0; j < names.size(); j++) {
+						check(matches.get(j).get() != changed.contains(names.get(j)), "Match of " + names.get(j)
+								+ " of cyclic version " + i + " on " + threads + " threads");
+					}
+
+					final byte[] difference = encode(VersionDiffer.compare(versions[0], versions[1],
+							VersionDiffer.IMPACT_WEIGHT_MAP, 3, pool, false));
+					if (threads == 1) {
+						expected.add(difference);
+					} else {
+						check(Arrays.equals(expected.get(i), difference),
+								"Cyclic difference " + i + " on " + threads + " threads");
+					}
+				}
+			} catch (InterruptedException | ExecutionException e) {
+				throw new AssertionError(e);
+			} finally {
+				pool.shutdown();
+			}
+		}
+	}
+
+	/**
+	 * On the checked in differences written by the original matching, every node the original matching could tell
+	 * apart from its siblings must be in the same category and paired with the same node. The others, which the
+	 * original matching dropped or paired arbitrarily, must still be in exactly one category.
+	 */
+	private static void checkFixture(Path path, VersionDifference fixture) throws CppException {
+		final RootNode rootA = fixture.getVersionA().getRootNode();
+		final RootNode rootB = fixture.getVersionB().getRootNode();
+		final VersionDifference difference = VersionDiffer.compare(fixture.getVersionA(), fixture.getVersionB(),
+				VersionDiffer.IMPACT_WEIGHT_MAP, 0, ForkJoinPool.commonPool(), false);
+		final Map<CppNode, Object[]> expected = categories(fixture);
+		final Map<CppNode, Object[]> actual = categories(difference);
+
+		final Set<CppNode> duplicates = findDuplicates(rootA);
+		duplicates.addAll(findDuplicates(rootB));
+		final Set<CppNode> nodes = Collections.newSetFromMap(new IdentityHashMap<>());
+		for (final CppNode node : rootA) if (!(node instanceof IntegralNode)) nodes.add(node);
+		for (final CppNode node : rootB) if (!(node instanceof IntegralNode)) nodes.add(node);
+		final TreeSet<String> mismatches = new TreeSet<>();
+		for (final CppNode node : nodes) {
+			final Object[] category = actual.get(node);
+			check(category != null, "Node " + node.getUniqueName() + " not in any category of " + path);
+			if (duplicates.contains(node)) continue;
+			final Object[] expectedCategory = expected.get(node);
+			if (expectedCategory == null || category[0] != expectedCategory[0] || category[1] != expectedCategory[1]) {
+				mismatches.add(node.getUniqueName());
+			}
+		}
+		check(mismatches.isEmpty(), "Categories of " + path + " differ: " + mismatches);
+	}
+
+	/**
+	 * The differences must not depend on the number of threads, including the order of their nodes.
+	 */
+	private static void checkPools(List<VersionDifference> fixtures) throws IOException, CppException {
+		final ForkJoinPool singlePool = new ForkJoinPool(1);
+		final ForkJoinPool pool = new ForkJoinPool(4);
+		try {
+			final List<ProjectVersion[]> versionPairs = new ArrayList<>();
+			for (int seed = 1; seed <= 5; seed++) {
+				versionPairs.add(new ProjectVersion[]{build("parallelA", seed, 600, 0),
+						build("parallelB", seed, 600, seed * 5 + 2)});
+			}
+			for (final VersionDifference fixture : fixtures) {
+				versionPairs.add(new ProjectVersion[]{fixture.getVersionA(), fixture.getVersionB()});
+			}
+			for (final ProjectVersion[] versions : versionPairs) {
+				for (final boolean detectMoves : new boolean[]{false, true}) {
+					final VersionDifference single = VersionDiffer.compare(versions[0], versions[1],
+							VersionDiffer.IMPACT_WEIGHT_MAP, 3, singlePool, detectMoves);
+					final VersionDifference parallel = VersionDiffer.compare(versions[0], versions[1],
+							VersionDiffer.IMPACT_WEIGHT_MAP, 3, pool, detectMoves);
+					check(Arrays.equals(encode(single), encode(parallel)),
+							"Parallel difference of " + versions[0].getVersionName());
+				}
+			}
+		} finally {
+			singlePool.shutdown();
+			pool.shutdown();
+		}
+	}
+
+	/**
+	 * The differences of a sequence and of arbitrary pairs, where the versions share their index of children, must be
+	 * the same as comparing each pair on its own.
+	 */
+	private static void checkSequence() throws IOException, CppException {
+		final List<ProjectVersion> versions = new ArrayList<>();
+		for (int i = 0; i < 6; i++) versions.add(build("sequence" + i, 11, 500, i * 3));
+		final ForkJoinPool pool = new ForkJoinPool(3);
+		try {
+			final List<VersionDifference> sequence
+					= VersionDiffer.compareSequence(versions, VersionDiffer.IMPACT_WEIGHT_MAP, 4, pool);
+			check(sequence.size() == versions.size() - 1, "Sequence difference count");
+			for (int i = 0; i < sequence.size(); i++) {
+				final VersionDifference difference = VersionDiffer.compare(versions.get(i), versions.get(i + 1),
+						VersionDiffer.IMPACT_WEIGHT_MAP, 4, pool);
+				check(Arrays.equals(encode(difference), encode(sequence.get(i))), "Sequence difference " + i);
+			}
+
+			final int[] versionPairs = {0, 5, 5, 0, 2, 2, 2, 4, 0, 3, 2, 4};
+			final List<VersionDifference> all
+					= VersionDiffer.compareAll(versions, versionPairs, VersionDiffer.IMPACT_WEIGHT_MAP, 4, pool);
+			check(all.size() == versionPairs.length / 2, "Pair difference count");
+			for (int i = 0; i < all.size(); i++) {
+				final VersionDifference difference = VersionDiffer.compare(versions.get(versionPairs[i * 2]),
+						versions.get(versionPairs[i * 2 + 1]), VersionDiffer.IMPACT_WEIGHT_MAP, 4, pool);
+				check(Arrays.equals(encode(difference), encode(all.get(i))), "Pair difference " + i);
+			}
+			check(VersionDiffer.compareSequence(versions.subList(0, 1), VersionDiffer.IMPACT_WEIGHT_MAP, 4, pool)
+					.isEmpty(), "Sequence of one version");
+		} finally {
+			pool.shutdown();
+		}
+	}
+
+	public static void main(String[] args) throws IOException, CppException {
+		checkRandomVersions();
+		checkCyclicVersions();
+		checkSequence();
+		final List<String> fixtures = args.length > 0
+				? List.of(args)
+				: List.of("local/diff-GSonly.VersionDifference", "local/diff-GS_PADHost.VersionDifference",
+						"local/diff-GS_PADHostLinux.VersionDifference", "local/diff-renderersonly.VersionDifference");
+		final List<VersionDifference> differences = new ArrayList<>();
+		for (final String fixture : fixtures) {
+			final Path path = Path.of(fixture);
+			try (final InputStream inputStream = Files.newInputStream(path)) {
+				differences.add(VersionDifference.fromInputStream(inputStream));
+			}
+			checkFixture(path, differences.get(differences.size() - 1));
+		}
+		checkPools(differences);
+		System.out.println("OK");
+	}
+}
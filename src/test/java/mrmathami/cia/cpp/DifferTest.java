@@ -34,7 +34,7 @@ public final class DifferTest {
 
 			System.out.println((System.nanoTime() - start_time) / 1000000.0);
 			try (final FileOutputStream fos = new FileOutputStream("project1_project2.VersionDifference")) {
-				difference.toOutputStream(fos);
+				difference.toCompactOutputStream(fos);
 				System.out.println((System.nanoTime() - start_time) / 1000000.0);
 			}
 		}
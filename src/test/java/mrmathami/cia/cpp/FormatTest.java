@@ -0,0 +1,294 @@
+package mrmathami.cia.cpp;
+
+import mrmathami.cia.cpp.ast.CppNode;
+import mrmathami.cia.cpp.ast.MappedTree;
+import mrmathami.cia.cpp.ast.RootNode;
+import mrmathami.cia.cpp.builder.MappedProjectVersion;
+import mrmathami.cia.cpp.builder.ProjectVersion;
+import mrmathami.cia.cpp.differ.ImpactAlgorithm;
+import mrmathami.cia.cpp.differ.VersionDiffer;
+import mrmathami.cia.cpp.differ.VersionDifference;
+import mrmathami.cia.cpp.differ.VersionDifferenceSummary;
+import mrmathami.utils.BlockCodec;
+import mrmathami.utils.BlockCompressedInputStream;
+import mrmathami.utils.BlockCompressedOutputStream;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static mrmathami.cia.cpp.TestVersions.build;
+import static mrmathami.cia.cpp.TestVersions.check;
+import static mrmathami.cia.cpp.TestVersions.deleteAll;
+import static mrmathami.cia.cpp.TestVersions.encode;
+
+/**
+ * Round trips of the saved formats. A version read back must be written again to the same bytes.
+ */
+public final class FormatTest {
+	private FormatTest() {
+	}
+
+	/**
+	 * CIAV version 2, read from a stream and from a file with the bodies loaded on demand, the checked in CIAV version
+	 * 1 fixture, and Java serialization.
+	 */
+	private static void checkVersionFormat(Path directory, Path flatFixture) throws IOException {
+		final ProjectVersion version = build("version", 1, 500, 0);
+		final byte[] bytes = encode(version);
+		check(Arrays.equals(bytes, encode(ProjectVersion.fromInputStream(new ByteArrayInputStream(bytes)))),
+				"CIAV stream round trip");
+
+		final Path path = directory.resolve("version.proj");
+		Files.write(path, bytes);
+		check(Arrays.equals(bytes, encode(ProjectVersion.fromPath(path, 8))), "CIAV file round trip");
+		final ForkJoinPool pool = new ForkJoinPool(3);
+		final AtomicInteger callerThreads = new AtomicInteger();
+		final ForkJoinPool callerPool = new ForkJoinPool(2, threadPool -> {
+			callerThreads.incrementAndGet();
+			return ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(threadPool);
+		}, null, false);
+		try {
+			check(Arrays.equals(bytes, encode(ProjectVersion.fromPath(path, 0, pool))), "CIAV file round trip on pool");
+		} finally {
+			pool.shutdown();
+		}
+
+		// written by the first version of the binary format from the same seed
+		try (final InputStream inputStream = Files.newInputStream(flatFixture)) {
+			check(Arrays.equals(encode(build("flat", 31, 400, 0)), encode(ProjectVersion.fromInputStream(inputStream))),
+					"CIAV version 1 fixture");
+		}
+
+		final ByteArrayOutputStream serialized = new ByteArrayOutputStream();
+		try (final ObjectOutputStream outputStream = new ObjectOutputStream(serialized)) {
+			outputStream.writeObject(version);
+		}
+		check(Arrays.equals(bytes, encode(ProjectVersion.fromInputStream(
+				new ByteArrayInputStream(serialized.toByteArray())))), "Java serialization round trip");
+	}
+
+	/**
+	 * The mapped layout, read directly from the mapped file and as a whole project version.
+	 */
+	private static void checkMappedLayout(Path directory) throws IOException {
+		final ProjectVersion version = build("mapped", 2, 500, 0);
+		final Path path = directory.resolve("version.mapped");
+		try (final OutputStream outputStream = Files.newOutputStream(path)) {
+			version.toMappedOutputStream(outputStream);
+		}
+		final MappedProjectVersion mappedVersion = MappedProjectVersion.open(path, 8);
+		final MappedTree tree = mappedVersion.getTree();
+		final RootNode rootNode = version.getRootNode();
+		final CppNode[] nodes = new CppNode[rootNode.getNodeCount()];
+		nodes[0] = rootNode;
+		for (final CppNode node : rootNode) nodes[node.getId()] = node;
+		check(tree.getNodeCount() == nodes.length, "Mapped node count");
+		for (int index = 0; index < tree.getNodeCount(); index++) {
+			final CppNode node = nodes[tree.getId(index)];
+			check(tree.getNodeClass(index) == node.getClass()
+					&& tree.getName(index).equals(node.getName())
+					&& tree.getUniqueName(index).equals(node.getUniqueName())
+					&& tree.getSignature(index).equals(node.getSignature())
+					&& tree.getSubtreeHash(index) == node.getSubtreeHash()
+					&& mappedVersion.getWeight(index) == version.getWeightMap().get(node), "Mapped node " + index);
+		}
+		check(Arrays.equals(encode(version), encode(mappedVersion.getProjectVersion())), "Mapped round trip");
+	}
+
+	/**
+	 * CIAH, with versions stored as deltas between the checkpoints, read one by one and as a whole project.
+	 */
+	private static void checkHistory(Path directory) throws IOException, CppException {
+		final List<ProjectVersion> versions = new ArrayList<>();
+		for (int i = 0; i < 7; i++) versions.add(build("history" + i, 3, 400, i));
+		final List<VersionDifference> differences = VersionDiffer.compareSequence(versions,
+				VersionDiffer.IMPACT_WEIGHT_MAP, 4, ForkJoinPool.commonPool());
+		final Path path = directory.resolve("project.history");
+		try (final OutputStream outputStream = Files.newOutputStream(path)) {
+			ProjectHistory.write(new Project("history", versions, differences), outputStream, 3);
+		}
+		final ProjectHistory history = ProjectHistory.open(path);
+		check(history.getVersionCount() == versions.size() && history.getDifferenceCount() == differences.size(),
+				"History counts");
+		for (int i = 0; i < versions.size(); i++) {
+			check(Arrays.equals(encode(versions.get(i)), encode(history.getVersion(i))), "History version " + i);
+		}
+		for (int i = 0; i < differences.size(); i++) {
+			check(Arrays.equals(encode(differences.get(i)), encode(history.getDifference(i))),
+					"History difference " + i);
+		}
+		final Project project = history.toProject();
+		check(project.getProjectName().equals("history"), "History project name");
+		for (int i = 0; i < versions.size(); i++) {
+			check(Arrays.equals(encode(versions.get(i)), encode(project.getVersionList().get(i))),
+					"History project version " + i);
+		}
+		for (int i = 0; i < differences.size(); i++) {
+			check(Arrays.equals(encode(differences.get(i)), encode(project.getDifferenceList().get(i))),
+					"History project difference " + i);
+		}
+	}
+
+	/**
+	 * CIAD, with and without impact weights, read without the versions and then with them, but not with the wrong
+	 * versions, including a version of the same content whose nodes have other ids.
+	 */
+	private static void checkCompactDifference() throws IOException, CppException {
+		final ProjectVersion versionA = build("compactA", 4, 500, 0);
+		final ProjectVersion versionB = build("compactB", 4, 500, 5);
+		final ProjectVersion permutedB = build("compactB", 4, 500, 5, false, 3);
+		check(permutedB.getRootNode().getSubtreeHash() == versionB.getRootNode().getSubtreeHash()
+				&& !Arrays.equals(encode(permutedB), encode(versionB)), "Permuted version");
+		final VersionDifference structure
+				= VersionDiffer.compareStructure(versionA, versionB, ForkJoinPool.commonPool(), true);
+		final VersionDifference impact = VersionDiffer.calculateImpact(structure, VersionDiffer.IMPACT_WEIGHT_MAP, 5,
+				ImpactAlgorithm.LAYERED, ForkJoinPool.commonPool());
+		for (final VersionDifference difference : List.of(structure, impact)) {
+			final ByteArrayOutputStream compact = new ByteArrayOutputStream();
+			difference.toCompactOutputStream(compact);
+			final VersionDifferenceSummary summary
+					= VersionDifferenceSummary.fromInputStream(new ByteArrayInputStream(compact.toByteArray()));
+			check(summary.getVersionNameA().equals("compactA") && summary.getVersionNameB().equals("compactB")
+					&& summary.getAddedIds().length == difference.getAddedNodes().size()
+					&& summary.getChangedIdsB().length == difference.getChangedNodes().size()
+					&& summary.hasImpactWeights() == (difference.getImpactAlgorithm() != null), "CIAD summary");
+			check(Arrays.equals(encode(difference), encode(VersionDifference.fromCompactInputStream(
+					new ByteArrayInputStream(compact.toByteArray()), versionA, versionB))), "CIAD round trip");
+			for (final ProjectVersion[] versions : List.of(new ProjectVersion[]{versionB, versionA},
+					new ProjectVersion[]{versionA, permutedB})) {
+				try {
+					VersionDifference.fromCompactInputStream(new ByteArrayInputStream(compact.toByteArray()),
+							versions[0], versions[1]);
+					throw new AssertionError("CIAD read with the wrong versions");
+				} catch (IOException e) {
+					// expected, the versions do not match the difference
+				}
+			}
+		}
+	}
+
+	/**
+	 * CIAX, of two versions and of a version with itself, and CIAP, where the differences share the versions of the
+	 * project.
+	 */
+	private static void checkDifferenceAndProject() throws IOException, CppException {
+		final List<ProjectVersion> versions = List.of(build("projectA", 7, 400, 0), build("projectB", 7, 400, 8),
+				build("projectC", 7, 400, 9));
+		final VersionDifference difference = VersionDiffer.compare(versions.get(0), versions.get(1),
+				VersionDiffer.IMPACT_WEIGHT_MAP, 4);
+		final VersionDifference self = VersionDiffer.compare(versions.get(2), versions.get(2),
+				VersionDiffer.IMPACT_WEIGHT_MAP, 4);
+		for (final VersionDifference original : List.of(difference, self)) {
+			final byte[] bytes = encode(original);
+			final VersionDifference copy = VersionDifference.fromInputStream(new ByteArrayInputStream(bytes));
+			check(Arrays.equals(bytes, encode(copy)), "CIAX round trip");
+			check((copy.getVersionA() == copy.getVersionB()) == (original.getVersionA() == original.getVersionB()),
+					"CIAX shared version");
+		}
+
+		final Project project = new Project("project", versions, List.of(difference, self));
+		final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		project.toOutputStream(bytes);
+		final Project copy = Project.fromInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+		check(copy.getProjectName().equals("project") && copy.getVersionList().size() == versions.size()
+				&& copy.getDifferenceList().size() == 2, "CIAP counts");
+		for (int i = 0; i < versions.size(); i++) {
+			check(Arrays.equals(encode(versions.get(i)), encode(copy.getVersionList().get(i))), "CIAP version " + i);
+		}
+		check(Arrays.equals(encode(difference), encode(copy.getDifferenceList().get(0)))
+				&& Arrays.equals(encode(self), encode(copy.getDifferenceList().get(1))), "CIAP differences");
+		check(copy.getDifferenceList().get(0).getVersionA() == copy.getVersionList().get(0)
+				&& copy.getDifferenceList().get(0).getVersionB() == copy.getVersionList().get(1)
+				&& copy.getDifferenceList().get(1).getVersionA() == copy.getVersionList().get(2),
+				"CIAP shared versions");
+		final ByteArrayOutputStream again = new ByteArrayOutputStream();
+		copy.toOutputStream(again);
+		check(Arrays.equals(bytes.toByteArray(), again.toByteArray()), "CIAP round trip");
+	}
+
+	/**
+	 * Deflate and LZ4 block streams, with blocks crossed by the writes, compressed on the writing thread and on a
+	 * pool, and a compressed project version, decompressed on the common pool and on the pool of the caller.
+	 */
+	private static void checkBlockStreams() throws IOException {
+		final byte[] version = encode(build("compressed", 6, 500, 0));
+		final byte[] noise = new byte[100000];
+		new Random(6).nextBytes(noise);
+		final ByteArrayOutputStream content = new ByteArrayOutputStream();
+		content.write(version);
+		content.write(noise);
+		content.write(new byte[100000]);
+		final byte[] bytes = content.toByteArray();
+
+		final ForkJoinPool pool = new ForkJoinPool(3);
+		final AtomicInteger callerThreads = new AtomicInteger();
+		final ForkJoinPool callerPool = new ForkJoinPool(2, threadPool -> {
+			callerThreads.incrementAndGet();
+			return ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(threadPool);
+		}, null, false);
+		try {
+			for (final BlockCodec codec : List.of(BlockCodec.deflate(6), BlockCodec.lz4())) {
+				for (final int blockSize : new int[]{1000, BlockCompressedOutputStream.DEFAULT_BLOCK_SIZE}) {
+					for (final ForkJoinPool executor : Arrays.asList(null, pool)) {
+						final ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+						try (final OutputStream outputStream
+								= new BlockCompressedOutputStream(compressed, codec, blockSize, executor)) {
+							for (int offset = 0; offset < bytes.length; offset += 777) {
+								outputStream.write(bytes, offset, Math.min(777, bytes.length - offset));
+							}
+						}
+						try (final InputStream inputStream = new BlockCompressedInputStream(
+								new ByteArrayInputStream(compressed.toByteArray()), executor)) {
+							check(Arrays.equals(bytes, inputStream.readAllBytes()), "Block stream round trip");
+						}
+						if (executor == null) continue;
+						try (final InputStream inputStream = BlockCompressedInputStream.decompressIfNeeded(
+								new ByteArrayInputStream(compressed.toByteArray()), callerPool)) {
+							check(Arrays.equals(bytes, inputStream.readAllBytes()), "Block stream on a pool");
+						}
+						check(callerThreads.get() > 0, "Not decompressed on the pool of the caller");
+					}
+				}
+				final ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+				try (final OutputStream outputStream = new BlockCompressedOutputStream(compressed, codec)) {
+					outputStream.write(version);
+				}
+				check(Arrays.equals(version, encode(ProjectVersion.fromInputStream(
+						new ByteArrayInputStream(compressed.toByteArray())))), "Compressed CIAV round trip");
+				check(Arrays.equals(version, encode(ProjectVersion.fromInputStream(
+						new ByteArrayInputStream(compressed.toByteArray()), callerPool))), "Compressed CIAV on a pool");
+			}
+		} finally {
+			pool.shutdown();
+			callerPool.shutdown();
+		}
+	}
+
+	public static void main(String[] args) throws IOException, CppException {
+		final Path flatFixture = Path.of(args.length > 0 ? args[0] : "local/version-v1.proj");
+		final Path directory = Files.createTempDirectory("format");
+		try {
+			checkVersionFormat(directory, flatFixture);
+			checkMappedLayout(directory);
+			checkHistory(directory);
+			checkCompactDifference();
+			checkDifferenceAndProject();
+			checkBlockStreams();
+			System.out.println("OK");
+		} finally {
+			deleteAll(directory);
+		}
+	}
+}
@@ -0,0 +1,304 @@
+package mrmathami.cia.cpp;
+
+import mrmathami.cia.cpp.ast.CppNode;
+import mrmathami.cia.cpp.ast.DependencyType;
+import mrmathami.cia.cpp.ast.FunctionNode;
+import mrmathami.cia.cpp.ast.RootNode;
+import mrmathami.cia.cpp.builder.ProjectVersion;
+import mrmathami.cia.cpp.differ.CancellationToken;
+import mrmathami.cia.cpp.differ.ImpactAlgorithm;
+import mrmathami.cia.cpp.differ.VersionDiffer;
+import mrmathami.cia.cpp.differ.VersionDifference;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static mrmathami.cia.cpp.TestVersions.build;
+import static mrmathami.cia.cpp.TestVersions.check;
+import static mrmathami.cia.cpp.TestVersions.encode;
+
+/**
+ * The impact weights of the paths calculation, which is exact, and of the calculations approximating it.
+ */
+public final class ImpactTest {
+	private static final double TOLERANCE = 1e-12;
+
+	private ImpactTest() {
+	}
+
+	/**
+	 * Build a version where every function depends on at most one function created before it, so every node is
+	 * reached from a changed node by at most one path. With changes, the bodies of some functions are changed.
+	 */
+	private static ProjectVersion buildForest(String versionName, long seed, int size, boolean changes) {
+		final Random random = new Random(seed);
+		final Random changeRandom = new Random(seed + 1);
+		final RootNode root = new RootNode();
+		final List<CppNode> functions = new ArrayList<>();
+		for (int i = 0; i < size; i++) {
+			final FunctionNode function = new FunctionNode();
+			function.setName("f" + i);
+			function.setUniqueName("f" + i);
+			function.setSignature("f" + i + "()");
+			function.setBody(changes && changeRandom.nextInt(8) == 0 ? "{ return " + i + " + 1; }" : "{ return 0; }");
+			root.addChild(function);
+			if (i > 0 && random.nextInt(10) != 0) {
+				final DependencyType type = DependencyType.values.get(random.nextInt(DependencyType.values.size()));
+				function.addDependencyTo(functions.get(random.nextInt(i)), type);
+			}
+			functions.add(function);
+		}
+		return lock(versionName, root);
+	}
+
+	/**
+	 * Build a version where every function depends on two of the few functions created before it, and some of them
+	 * depend back on a later function, so the paths are long and many of them reach the same nodes. With changes, the
+	 * bodies of a few functions are changed.
+	 */
+	private static ProjectVersion buildChain(String versionName, long seed, int size, boolean changes) {
+		final Random random = new Random(seed);
+		final RootNode root = new RootNode();
+		final List<CppNode> functions = new ArrayList<>();
+		for (int i = 0; i < size; i++) {
+			final FunctionNode function = new FunctionNode();
+			function.setName("f" + i);
+			function.setUniqueName("f" + i);
+			function.setSignature("f" + i + "()");
+			function.setBody(changes && i % 97 == 0 ? "{ return 1; }" : "{ return 0; }");
+			root.addChild(function);
+			for (int k = 0; k < 2 && i > 0; k++) {
+				final DependencyType type = DependencyType.values.get(random.nextInt(DependencyType.values.size()));
+				function.addDependencyTo(functions.get(Math.max(0, i - 1 - random.nextInt(4))), type);
+			}
+			if (i >= 4 && random.nextInt(4) == 0) functions.get(i - 4).addDependencyTo(function, DependencyType.USE);
+			functions.add(function);
+		}
+		return lock(versionName, root);
+	}
+
+	private static ProjectVersion lock(String versionName, RootNode root) {
+		int id = 0;
+		for (final CppNode node : root) node.setId(++id);
+		root.setNodeCount(id + 1);
+		root.lock();
+		return ProjectVersion.of(versionName, List.of(), List.of(), root, new double[DependencyType.values.size()],
+				new double[root.getNodeCount()]);
+	}
+
+	private static Map<CppNode, Double> calculate(VersionDifference difference, int maxDepth,
+			ImpactAlgorithm algorithm) throws CppException {
+		return VersionDiffer.calculateImpact(difference, VersionDiffer.IMPACT_WEIGHT_MAP, maxDepth, algorithm,
+				ForkJoinPool.commonPool()).getImpactWeightMap();
+	}
+
+	/**
+	 * The layered calculation combines the paths reaching a node before going further, which only lowers the weights
+	 * of the nodes after it. Without such nodes, as in a forest of dependencies, it must be the same as the paths
+	 * calculation, and on any acyclic graph it must never be above it.
+	 */
+	private static void checkLayered() throws CppException {
+		for (int seed = 1; seed <= 5; seed++) {
+			final VersionDifference forest = VersionDiffer.compareStructure(buildForest("forestA", seed, 500, false),
+					buildForest("forestB", seed, 500, true), ForkJoinPool.commonPool(), true);
+			final VersionDifference acyclic = VersionDiffer.compareStructure(build("acyclicA", seed, 400, 0, true),
+					build("acyclicB", seed, 400, seed * 3 + 1, true), ForkJoinPool.commonPool(), true);
+			for (final int maxDepth : new int[]{0, 1, 3, 8}) {
+				final Map<CppNode, Double> forestPaths = calculate(forest, maxDepth, ImpactAlgorithm.PATHS);
+				final Map<CppNode, Double> forestLayered = calculate(forest, maxDepth, ImpactAlgorithm.LAYERED);
+				check(forestPaths.values().stream().filter(weight -> weight > 0.0).count() > 1, "Forest impact");
+				for (final Map.Entry<CppNode, Double> entry : forestPaths.entrySet()) {
+					check(Math.abs(forestLayered.get(entry.getKey()) - entry.getValue()) <= TOLERANCE,
+							"Layered forest weight of " + entry.getKey().getUniqueName() + " at depth " + maxDepth);
+				}
+				final Map<CppNode, Double> acyclicPaths = calculate(acyclic, maxDepth, ImpactAlgorithm.PATHS);
+				final Map<CppNode, Double> acyclicLayered = calculate(acyclic, maxDepth, ImpactAlgorithm.LAYERED);
+				for (final Map.Entry<CppNode, Double> entry : acyclicPaths.entrySet()) {
+					check(acyclicLayered.get(entry.getKey()) <= entry.getValue() + TOLERANCE,
+							"Layered acyclic weight of " + entry.getKey().getUniqueName() + " at depth " + maxDepth);
+				}
+			}
+		}
+	}
+
+	/**
+	 * The paths calculation must give the weights of the checked in differences, written by the original
+	 * calculation.
+	 */
+	private static void checkFixture(Path path) throws IOException, CppException {
+		final VersionDifference fixture;
+		try (final InputStream inputStream = Files.newInputStream(path)) {
+			fixture = VersionDifference.fromInputStream(inputStream);
+		}
+		final Map<CppNode, Double> weights = VersionDiffer.calculateImpact(fixture,
+				fixture.getDependencyTypeImpactWeightMap(), fixture.getMaxDepth(), ImpactAlgorithm.PATHS,
+				ForkJoinPool.commonPool()).getImpactWeightMap();
+		for (final Map.Entry<CppNode, Double> entry : fixture.getImpactWeightMap().entrySet()) {
+			check(Math.abs(weights.get(entry.getKey()) - entry.getValue()) <= TOLERANCE,
+					"Weight of " + entry.getKey().getUniqueName() + " in " + path);
+		}
+	}
+
+	/**
+	 * With an epsilon, every weight must be at most epsilon below its exact value and never above it, but for the
+	 * rounding. The low dependency weights make the long paths weigh little, so that some of them are pruned.
+	 */
+	private static void checkEpsilon() throws CppException {
+		final VersionDifference difference = VersionDiffer.compareStructure(buildChain("chainA", 1, 300, false),
+				buildChain("chainB", 1, 300, true), ForkJoinPool.commonPool(), true);
+		final Map<DependencyType, Double> typeWeights = new EnumMap<>(DependencyType.class);
+		for (final DependencyType type : DependencyType.values) typeWeights.put(type, 0.4);
+		final Map<CppNode, Double> exact = VersionDiffer.calculateImpact(difference, typeWeights, 20,
+				ImpactAlgorithm.PATHS, ForkJoinPool.commonPool()).getImpactWeightMap();
+		for (final double epsilon : new double[]{1e-1, 1e-3, 1e-6}) {
+			final VersionDifference approximated = VersionDiffer.calculateImpact(difference, typeWeights, 20,
+					ImpactAlgorithm.PATHS, epsilon, ForkJoinPool.commonPool(), new CancellationToken());
+			check(approximated.getImpactEpsilon() == epsilon, "Epsilon of the difference");
+			final Map<CppNode, Double> weights = approximated.getImpactWeightMap();
+			double maxError = 0.0;
+			for (final Map.Entry<CppNode, Double> entry : exact.entrySet()) {
+				final double weight = weights.get(entry.getKey());
+				check(weight >= entry.getValue() - epsilon && weight <= entry.getValue() + 1e-9,
+						"Weight of " + entry.getKey().getUniqueName() + " with epsilon " + epsilon);
+				maxError = Math.max(maxError, entry.getValue() - weight);
+			}
+			check(epsilon < 1e-1 || maxError > 1e-9, "Nothing pruned with epsilon " + epsilon);
+		}
+	}
+
+	private static boolean isCancelled(VersionDifference difference, int maxDepth, ImpactAlgorithm algorithm,
+			ForkJoinPool pool, CancellationToken token) {
+		try {
+			VersionDiffer.calculateImpact(difference, VersionDiffer.IMPACT_WEIGHT_MAP, maxDepth, algorithm, 0.0, pool,
+					token);
+			return false;
+		} catch (CppException e) {
+			return e.getCause() instanceof CancellationException;
+		}
+	}
+
+	/**
+	 * A token cancelled before the calculation or expired must stop it, and so must a token cancelled or expiring
+	 * during a calculation far longer than the test, soon after. A token which is not cancelled must give the same
+	 * weights as no token, and the pool must still be usable after a cancellation.
+	 */
+	private static void checkCancellation() throws CppException {
+		final VersionDifference small = VersionDiffer.compareStructure(build("smallA", 8, 300, 0),
+				build("smallB", 8, 300, 9), ForkJoinPool.commonPool(), true);
+		// following every path up to this depth takes minutes
+		final VersionDifference large = VersionDiffer.compareStructure(build("largeA", 5, 3000, 0),
+				build("largeB", 5, 3000, 9), ForkJoinPool.commonPool(), true);
+		final ForkJoinPool pool = new ForkJoinPool(2);
+		final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+		try {
+			for (final ImpactAlgorithm algorithm : ImpactAlgorithm.values) {
+				final CancellationToken cancelled = new CancellationToken();
+				cancelled.cancel();
+				check(isCancelled(small, 4, algorithm, pool, cancelled), "Cancelled before " + algorithm);
+				check(isCancelled(small, 4, algorithm, pool, CancellationToken.withTimeout(Duration.ZERO)),
+						"Expired before " + algorithm);
+
+				final Map<CppNode, Double> expected = calculate(small, 4, algorithm);
+				for (final CancellationToken token : List.of(new CancellationToken(),
+						CancellationToken.withTimeout(Duration.ofDays(1)))) {
+					final Map<CppNode, Double> weights = VersionDiffer.calculateImpact(small,
+							VersionDiffer.IMPACT_WEIGHT_MAP, 4, algorithm, 0.0, pool, token).getImpactWeightMap();
+					check(weights.equals(expected) && !token.isCancelled(), "Not cancelled " + algorithm);
+				}
+			}
+
+			final long start = System.nanoTime();
+			final CancellationToken token = new CancellationToken();
+			scheduler.schedule(token::cancel, 200, TimeUnit.MILLISECONDS);
+			check(isCancelled(large, 40, ImpactAlgorithm.PATHS, pool, token), "Cancelled during");
+			check(isCancelled(large, 40, ImpactAlgorithm.PATHS, pool,
+					CancellationToken.withTimeout(Duration.ofMillis(200))), "Expired during");
+			check(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(20), "Cancellation too late");
+
+			check(calculate(small, 4, ImpactAlgorithm.PATHS).equals(VersionDiffer.calculateImpact(small,
+					VersionDiffer.IMPACT_WEIGHT_MAP, 4, ImpactAlgorithm.PATHS, pool).getImpactWeightMap()),
+					"Pool after cancellation");
+		} finally {
+			scheduler.shutdown();
+			pool.shutdown();
+		}
+	}
+
+	private static boolean isCancelled(List<ProjectVersion> versions, int[] versionPairs, ForkJoinPool pool,
+			CancellationToken token) {
+		try {
+			if (versionPairs.length == 2) {
+				VersionDiffer.compare(versions.get(versionPairs[0]), versions.get(versionPairs[1]),
+						VersionDiffer.IMPACT_WEIGHT_MAP, 4, pool, true, token);
+			} else {
+				VersionDiffer.compareAll(versions, versionPairs, VersionDiffer.IMPACT_WEIGHT_MAP, 4, pool, token);
+			}
+			return false;
+		} catch (CppException e) {
+			return e.getCause() instanceof CancellationException;
+		}
+	}
+
+	/**
+	 * A token cancelled before a comparison or expired must stop it, whether it compares one pair or many. A token
+	 * which is not cancelled must give the same differences as no token.
+	 */
+	private static void checkCompareCancellation() throws IOException, CppException {
+		final List<ProjectVersion> versions = List.of(build("compareA", 12, 800, 0), build("compareB", 12, 800, 3),
+				build("compareC", 12, 800, 7));
+		final ForkJoinPool pool = new ForkJoinPool(2);
+		try {
+			for (final int[] versionPairs : new int[][]{{0, 1}, {0, 1, 1, 2, 0, 2}}) {
+				final CancellationToken cancelled = new CancellationToken();
+				cancelled.cancel();
+				check(isCancelled(versions, versionPairs, pool, cancelled), "Comparison cancelled before");
+				check(isCancelled(versions, versionPairs, pool, CancellationToken.withTimeout(Duration.ZERO)),
+						"Comparison expired before");
+			}
+
+			final int[] versionPairs = {0, 1, 1, 2, 0, 2};
+			final List<VersionDifference> expected
+					= VersionDiffer.compareAll(versions, versionPairs, VersionDiffer.IMPACT_WEIGHT_MAP, 4, pool);
+			for (final CancellationToken token : List.of(new CancellationToken(),
+					CancellationToken.withTimeout(Duration.ofDays(1)))) {
+				final List<VersionDifference> differences = VersionDiffer.compareAll(versions, versionPairs,
+						VersionDiffer.IMPACT_WEIGHT_MAP, 4, pool, token);
+				for (int i = 0; i < differences.size(); i++) {
+					final VersionDifference difference = VersionDiffer.compare(versions.get(versionPairs[i * 2]),
+							versions.get(versionPairs[i * 2 + 1]), VersionDiffer.IMPACT_WEIGHT_MAP, 4, pool, true,
+							token);
+					check(Arrays.equals(encode(expected.get(i)), encode(differences.get(i)))
+							&& Arrays.equals(encode(expected.get(i)), encode(difference)), "Comparison not cancelled");
+				}
+			}
+		} finally {
+			pool.shutdown();
+		}
+	}
+
+	public static void main(String[] args) throws IOException, CppException {
+		checkLayered();
+		checkEpsilon();
+		checkCancellation();
+		checkCompareCancellation();
+		final List<String> fixtures = args.length > 0
+				? List.of(args)
+				: List.of("local/diff-GS_PADHost.VersionDifference", "local/diff-GS_PADHostLinux.VersionDifference");
+		for (final String fixture : fixtures) checkFixture(Path.of(fixture));
+		System.out.println("OK");
+	}
+}
@@ -0,0 +1,161 @@
+package mrmathami.cia.cpp;
+
+import mrmathami.cia.cpp.builder.MappedProjectVersion;
+import mrmathami.cia.cpp.builder.ProjectVersion;
+import mrmathami.cia.cpp.differ.VersionDifference;
+import mrmathami.cia.cpp.differ.VersionDifferenceSummary;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+
+import static mrmathami.cia.cpp.TestVersions.build;
+import static mrmathami.cia.cpp.TestVersions.check;
+import static mrmathami.cia.cpp.TestVersions.deleteAll;
+import static mrmathami.cia.cpp.TestVersions.encode;
+
+/**
+ * Upgrade the checked in files written by Java serialization and by the older versions of the binary formats, then
+ * check that the upgraded files hold the same content. The checked in compact difference is of the versions built by
+ * {@link TestVersions} from the seed 21, the checked in history of the versions built from the seed 22.
+ */
+public final class MigratorTest {
+	private MigratorTest() {
+	}
+
+	private static byte[] readSerialized(Path path) throws IOException {
+		try (final InputStream inputStream = Files.newInputStream(path)) {
+			final ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+			final Object object = SerializationReader.read(inputStream);
+			if (object instanceof ProjectVersion) {
+				((ProjectVersion) object).toOutputStream(outputStream);
+			} else {
+				check(object instanceof VersionDifference, "Unexpected object in " + path);
+				((VersionDifference) object).toOutputStream(outputStream);
+			}
+			return outputStream.toByteArray();
+		}
+	}
+
+	private static byte[] readVersion(Path path) throws IOException {
+		try (final InputStream inputStream = Files.newInputStream(path)) {
+			return encode(ProjectVersion.fromInputStream(inputStream));
+		}
+	}
+
+	private static byte[] readSummary(Path path) throws IOException {
+		try (final InputStream inputStream = Files.newInputStream(path)) {
+			final ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+			VersionDifferenceSummary.fromInputStream(inputStream).toOutputStream(outputStream);
+			return outputStream.toByteArray();
+		}
+	}
+
+	/**
+	 * @return the encoded versions then the encoded differences of the history
+	 */
+	private static List<byte[]> readHistory(ProjectHistory history) throws IOException, CppException {
+		final List<byte[]> contents = new ArrayList<>();
+		for (int i = 0; i < history.getVersionCount(); i++) contents.add(encode(history.getVersion(i)));
+		for (int i = 0; i < history.getDifferenceCount(); i++) contents.add(encode(history.getDifference(i)));
+		return contents;
+	}
+
+	private static boolean equals(List<byte[]> contentsA, List<byte[]> contentsB) {
+		if (contentsA.size() != contentsB.size()) return false;
+		for (int i = 0; i < contentsA.size(); i++) {
+			if (!Arrays.equals(contentsA.get(i), contentsB.get(i))) return false;
+		}
+		return true;
+	}
+
+	public static void main(String[] args) throws IOException, CppException {
+		final Path versionSource = Path.of(args.length > 0 ? args[0] : "local/first-GSonly.proj");
+		final Path differenceSource = Path.of(args.length > 1 ? args[1] : "local/diff-GSonly.VersionDifference");
+		final Path flatSource = Path.of(args.length > 2 ? args[2] : "local/version-v1.proj");
+		final Path summarySource = Path.of(args.length > 3 ? args[3] : "local/difference-v3.ciad");
+		final Path historySource = Path.of(args.length > 4 ? args[4] : "local/history-v3.ciah");
+		final byte[] versionBytes = readSerialized(versionSource);
+		final byte[] differenceBytes = readSerialized(differenceSource);
+		final byte[] flatBytes = readVersion(flatSource);
+		final byte[] summaryBytes = readSummary(summarySource);
+		final List<byte[]> historyContents = readHistory(ProjectHistory.open(historySource));
+
+		final Path directory = Files.createTempDirectory("migrator");
+		final ForkJoinPool pool = new ForkJoinPool(2);
+		try {
+			final Path versionPath = directory.resolve("version.proj");
+			final Path differencePath = directory.resolve("difference.VersionDifference");
+			final Path flatPath = directory.resolve("flat.proj");
+			final Path summaryPath = directory.resolve("difference.ciad");
+			final Path historyPath = directory.resolve("history.ciah");
+			final Path mappedPath = directory.resolve("version.mapped");
+			final Path otherPath = directory.resolve("other.txt");
+			Files.copy(versionSource, versionPath);
+			Files.copy(differenceSource, differencePath);
+			Files.copy(flatSource, flatPath);
+			Files.copy(summarySource, summaryPath);
+			Files.copy(historySource, historyPath);
+			try (final OutputStream outputStream = Files.newOutputStream(mappedPath)) {
+				build("mapped", 23, 150, 0).toMappedOutputStream(outputStream);
+			}
+			Files.writeString(otherPath, "not a project");
+
+			final Map<Path, ArchiveMigrator.Status> first = ArchiveMigrator.migrateAll(directory, pool);
+			for (final Path path : List.of(versionPath, differencePath, flatPath, summaryPath, historyPath)) {
+				check(first.get(path) == ArchiveMigrator.Status.UPGRADED, path + " not upgraded!");
+			}
+			check(first.get(mappedPath) == ArchiveMigrator.Status.CURRENT, "Mapped version not current!");
+			check(first.get(otherPath) == ArchiveMigrator.Status.UNKNOWN, "Other file not left untouched!");
+
+			final Map<Path, ArchiveMigrator.Status> second = ArchiveMigrator.migrateAll(directory, pool);
+			for (final Path path : List.of(versionPath, differencePath, flatPath, summaryPath, historyPath,
+					mappedPath)) {
+				check(second.get(path) == ArchiveMigrator.Status.CURRENT, path + " not current!");
+			}
+			check(second.get(otherPath) == ArchiveMigrator.Status.UNKNOWN, "Other file changed status!");
+
+			final ByteArrayOutputStream versionOutput = new ByteArrayOutputStream();
+			ArchiveMigrator.load(versionPath, ProjectVersion.class, false).toOutputStream(versionOutput);
+			check(Arrays.equals(versionBytes, versionOutput.toByteArray()), "Version changed by the upgrade!");
+
+			final ByteArrayOutputStream differenceOutput = new ByteArrayOutputStream();
+			ArchiveMigrator.load(differencePath, VersionDifference.class, false).toOutputStream(differenceOutput);
+			check(Arrays.equals(differenceBytes, differenceOutput.toByteArray()), "Difference changed by the upgrade!");
+
+			check(Arrays.equals(flatBytes, Files.readAllBytes(flatPath)), "Flat version changed by the upgrade!");
+
+			// the compact difference is rewritten without its versions and still matches them
+			check(Arrays.equals(summaryBytes, Files.readAllBytes(summaryPath)), "Summary changed by the upgrade!");
+			ArchiveMigrator.load(summaryPath, VersionDifferenceSummary.class, false)
+					.toVersionDifference(build("fixtureA", 21, 150, 0), build("fixtureB", 21, 150, 5));
+
+			check(equals(historyContents, readHistory(ArchiveMigrator.load(historyPath, ProjectHistory.class, false))),
+					"History changed by the upgrade!");
+
+			final MappedProjectVersion mappedVersion
+					= ArchiveMigrator.load(mappedPath, MappedProjectVersion.class, false);
+			check(Arrays.equals(encode(build("mapped", 23, 150, 0)), encode(mappedVersion.getProjectVersion())),
+					"Mapped version changed!");
+
+			// a history upgraded when loaded is read again from the upgraded file
+			final Path loadedPath = directory.resolve("loaded.ciah");
+			Files.copy(historySource, loadedPath);
+			check(equals(historyContents, readHistory(ArchiveMigrator.load(loadedPath, ProjectHistory.class, true))),
+					"History changed by the upgrade on load!");
+			check(ArchiveMigrator.migrate(loadedPath) == ArchiveMigrator.Status.CURRENT, "Loaded history not current!");
+			System.out.println("OK");
+		} finally {
+			pool.shutdown();
+			deleteAll(directory);
+		}
+	}
+}
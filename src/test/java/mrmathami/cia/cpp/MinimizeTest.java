@@ -80,7 +80,7 @@ public final class MinimizeTest {
 
             System.out.println((System.nanoTime() - start_time) / 1000000.0);
             try (final FileOutputStream fos = new FileOutputStream("local/diff" + ends + ".VersionDifference")) {
-                difference.toOutputStream(fos);
+                difference.toCompactOutputStream(fos);
                 System.out.println((System.nanoTime() - start_time) / 1000000.0);
             }
         }
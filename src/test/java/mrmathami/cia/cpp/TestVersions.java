@@ -0,0 +1,184 @@
+package mrmathami.cia.cpp;
+
+import mrmathami.cia.cpp.ast.ClassNode;
+import mrmathami.cia.cpp.ast.CppNode;
+import mrmathami.cia.cpp.ast.DependencyType;
+import mrmathami.cia.cpp.ast.FunctionNode;
+import mrmathami.cia.cpp.ast.IntegralNode;
+import mrmathami.cia.cpp.ast.NamespaceNode;
+import mrmathami.cia.cpp.ast.RootNode;
+import mrmathami.cia.cpp.ast.VariableNode;
+import mrmathami.cia.cpp.builder.ProjectVersion;
+import mrmathami.cia.cpp.differ.VersionDifference;
+import mrmathami.utils.Pair;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.TreeSet;
+import java.util.stream.Stream;
+
+/**
+ * Deterministic random project versions and helpers shared by the tests.
+ */
+final class TestVersions {
+	private TestVersions() {
+	}
+
+	static void check(boolean condition, String message) {
+		if (!condition) throw new AssertionError(message);
+	}
+
+	/**
+	 * Build a random tree of namespaces, classes, functions and variables with random dependencies. The same seed
+	 * builds the same tree. With a non-zero mutation seed, some nodes are left out, some bodies and dependencies are
+	 * changed, and a few functions are added. An acyclic tree only has dependencies from a node to the nodes created
+	 * before it. With a non-zero permutation seed, the children of the root are shuffled, which gives the same content
+	 * with other ids.
+	 */
+	static RootNode buildTree(long seed, int size, long mutationSeed, boolean acyclic, long permutationSeed) {
+		final Random random = new Random(seed);
+		final Random mutation = new Random(mutationSeed);
+		final boolean mutate = mutationSeed != 0;
+		final RootNode root = new RootNode();
+		final List<CppNode> containers = new ArrayList<>();
+		containers.add(root);
+		final List<CppNode> nodes = new ArrayList<>();
+		final List<CppNode> rootChildren = new ArrayList<>();
+		final List<VariableNode> typedVariables = new ArrayList<>();
+		final IntegralNode integral = new IntegralNode("int");
+		rootChildren.add(integral);
+		for (int i = 0; i < size; i++) {
+			final int kind = random.nextInt(4);
+			final CppNode parent = containers.get(random.nextInt(containers.size()));
+			String body = "{ return b" + random.nextInt(5) + " + " + i + "; }";
+			final boolean skip = mutate && mutation.nextInt(40) == 0;
+			if (mutate && mutation.nextInt(15) == 0) body = body + " x";
+			final CppNode node;
+			if (kind == 0 && !(parent instanceof ClassNode)) {
+				node = new NamespaceNode();
+			} else if (kind <= 1) {
+				node = new ClassNode();
+			} else if (kind == 2) {
+				final FunctionNode function = new FunctionNode();
+				function.setBody(body);
+				node = function;
+			} else {
+				final VariableNode variable = new VariableNode();
+				variable.setBody(body);
+				node = variable;
+			}
+			final String name = "n" + i;
+			node.setName(name);
+			node.setUniqueName(parent.getUniqueName() + "::" + name);
+			node.setSignature(name);
+			final boolean typed = node instanceof VariableNode && random.nextBoolean();
+			nodes.add(node);
+			if (skip && kind >= 2) continue;
+			if (parent == root) {
+				rootChildren.add(node);
+			} else {
+				parent.addChild(node);
+			}
+			if (typed) typedVariables.add((VariableNode) node);
+			if (node instanceof ClassNode || node instanceof NamespaceNode) containers.add(node);
+		}
+		if (permutationSeed != 0) Collections.shuffle(rootChildren, new Random(permutationSeed));
+		for (final CppNode child : rootChildren) root.addChild(child);
+		for (final VariableNode variable : typedVariables) variable.setType(integral);
+		for (int i = 0; i < size * 2; i++) {
+			final int indexA = random.nextInt(nodes.size());
+			final int indexB = random.nextInt(nodes.size());
+			final DependencyType type = DependencyType.values.get(random.nextInt(DependencyType.values.size()));
+			if (mutate && mutation.nextInt(30) == 0) continue;
+			if (indexA == indexB || acyclic && indexA < indexB) continue;
+			final CppNode nodeA = nodes.get(indexA);
+			final CppNode nodeB = nodes.get(indexB);
+			if (nodeA.getParent() != null && nodeB.getParent() != null) nodeA.addDependencyTo(nodeB, type);
+		}
+		if (mutate) {
+			for (int i = 0; i < 3; i++) {
+				final FunctionNode function = new FunctionNode();
+				function.setName("added" + i);
+				function.setUniqueName("added" + i);
+				function.setSignature("added" + i + "()");
+				function.setBody("{ return " + i + "; }");
+				root.addChild(function);
+				final CppNode target = nodes.get(mutation.nextInt(nodes.size()));
+				if (target.getParent() != null) function.addDependencyTo(target, DependencyType.INVOCATION);
+				final CppNode source = nodes.get(mutation.nextInt(nodes.size()));
+				if (!acyclic && source.getParent() != null) source.addDependencyTo(function, DependencyType.USE);
+			}
+		}
+		int id = 0;
+		for (final CppNode node : root) node.setId(++id);
+		root.setNodeCount(id + 1);
+		root.lock();
+		return root;
+	}
+
+	static ProjectVersion build(String versionName, long seed, int size, long mutationSeed, boolean acyclic,
+			long permutationSeed) {
+		final RootNode root = buildTree(seed, size, mutationSeed, acyclic, permutationSeed);
+		final Random random = new Random(seed ^ mutationSeed);
+		final double[] typeWeights = new double[DependencyType.values.size()];
+		for (int i = 0; i < typeWeights.length; i++) typeWeights[i] = random.nextDouble();
+		final double[] weights = new double[root.getNodeCount()];
+		for (int i = 0; i < weights.length; i++) weights[i] = random.nextDouble();
+		return ProjectVersion.of(versionName, List.of("a.cpp", "b.h"), List.of("include"), root, typeWeights,
+				weights);
+	}
+
+	static ProjectVersion build(String versionName, long seed, int size, long mutationSeed, boolean acyclic) {
+		return build(versionName, seed, size, mutationSeed, acyclic, 0);
+	}
+
+	static ProjectVersion build(String versionName, long seed, int size, long mutationSeed) {
+		return build(versionName, seed, size, mutationSeed, false);
+	}
+
+	static void deleteAll(Path directory) throws IOException {
+		try (final Stream<Path> stream = Files.walk(directory)) {
+			for (final Path path : (Iterable<Path>) stream.sorted(Comparator.reverseOrder())::iterator) {
+				Files.delete(path);
+			}
+		}
+	}
+
+	static byte[] encode(ProjectVersion version) throws IOException {
+		final ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+		version.toOutputStream(outputStream);
+		return outputStream.toByteArray();
+	}
+
+	static byte[] encode(VersionDifference difference) throws IOException {
+		final ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+		difference.toOutputStream(outputStream);
+		return outputStream.toByteArray();
+	}
+
+	/**
+	 * @return the unique names of the added, removed, changed and unchanged nodes, in this order
+	 */
+	static String describe(VersionDifference difference) {
+		final TreeSet<String> added = new TreeSet<>();
+		final TreeSet<String> removed = new TreeSet<>();
+		final TreeSet<String> changed = new TreeSet<>();
+		final TreeSet<String> unchanged = new TreeSet<>();
+		for (final CppNode node : difference.getAddedNodes()) added.add(node.getUniqueName());
+		for (final CppNode node : difference.getRemovedNodes()) removed.add(node.getUniqueName());
+		for (final Pair<CppNode, CppNode> pair : difference.getChangedNodes()) {
+			changed.add(pair.getA().getUniqueName() + " -> " + pair.getB().getUniqueName());
+		}
+		for (final Pair<CppNode, CppNode> pair : difference.getUnchangedNodes()) {
+			unchanged.add(pair.getA().getUniqueName() + " -> " + pair.getB().getUniqueName());
+		}
+		return "added " + added + "\nremoved " + removed + "\nchanged " + changed + "\nunchanged " + unchanged;
+	}
+}